@@ -0,0 +1,68 @@
+package org.totschnig.myexpenses.export.qif;
+
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Currency;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Measures parsing of amounts and dates as found in large QIF files, with the scanning fast path
+ * and with the fallback used for input it does not handle. Results are logged with tag
+ * {@link #TAG}. Lives in the package of {@link QifUtils}, since the fallbacks are not public.
+ */
+@RunWith(AndroidJUnit4.class)
+public class QifUtilsBenchmarkTest {
+  private static final String TAG = "QifUtilsBenchmark";
+  private static final int ITERATIONS = 200000;
+
+  @Test
+  public void parseMoney() {
+    String[] input = {"4,13", "-2600.66", "1234567.89", "-0.5", "23 08 20,16"};
+    Currency currency = Currency.getInstance("EUR");
+    //warm up
+    for (String money : input) {
+      QifUtils.parseMoneyFallback(money, Integer.MAX_VALUE);
+      QifUtils.parseMoneyMinor(money, currency);
+    }
+    long start = System.nanoTime();
+    for (int i = 0; i < ITERATIONS; i++) {
+      QifUtils.parseMoneyFallback(input[i % input.length], Integer.MAX_VALUE);
+    }
+    long fallback = System.nanoTime() - start;
+    start = System.nanoTime();
+    for (int i = 0; i < ITERATIONS; i++) {
+      QifUtils.parseMoneyMinor(input[i % input.length], currency);
+    }
+    long fast = System.nanoTime() - start;
+    Log.i(TAG, String.format(Locale.ROOT, "parseMoney: %d ns/op fallback, %d ns/op minor units",
+        fallback / ITERATIONS, fast / ITERATIONS));
+  }
+
+  @Test
+  public void parseDate() {
+    String[] input = {"21.06.2001", "1.1.2005", "21/6'01", "03.26.03", "21.06.2001 14:58"};
+    TimeZone timeZone = TimeZone.getDefault();
+    //warm up
+    for (String date : input) {
+      QifUtils.parseDateFallback(date, QifDateFormat.EU);
+      QifUtils.parseDateSeconds(date, QifDateFormat.EU, timeZone);
+    }
+    long start = System.nanoTime();
+    for (int i = 0; i < ITERATIONS; i++) {
+      QifUtils.parseDateFallback(input[i % input.length], QifDateFormat.EU);
+    }
+    long fallback = System.nanoTime() - start;
+    start = System.nanoTime();
+    for (int i = 0; i < ITERATIONS; i++) {
+      QifUtils.parseDateSeconds(input[i % input.length], QifDateFormat.EU, timeZone);
+    }
+    long fast = System.nanoTime() - start;
+    Log.i(TAG, String.format(Locale.ROOT, "parseDate: %d ns/op fallback, %d ns/op epoch seconds",
+        fallback / ITERATIONS, fast / ITERATIONS));
+  }
+}
@@ -33,9 +33,11 @@ import org.totschnig.myexpenses.util.Utils;
 
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ACCOUNTID;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_CATID;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_CLEARED_TOTAL;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_CODE;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_CR_STATUS;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_CURRENT_BALANCE;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_RECONCILED_TOTAL;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ROWID;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_STATUS;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_SUM_EXPENSES;
@@ -223,6 +225,37 @@ public class AccountTest extends ModelTest {
     assertEquals(initialclearedBalance, account1.getReconciledBalance());
   }
 
+  public void testCrStatusTotalsFollowBalance() {
+    insertData();
+    assertCrStatusTotals();
+    account1.balance(false, 0L);
+    //transactions are dated after the statement
+    assertEquals(4, count(account1.getId(), KEY_CR_STATUS + " = '" + CrStatus.CLEARED.name() + "'"));
+    assertCrStatusTotals();
+    account1.balance(false);
+    assertCrStatusTotals();
+    Transaction op = Transaction.getNewInstance(account1.getId());
+    assert op != null;
+    op.setAmount(new Money(account1.currency, 70L));
+    op.setCrStatus(CrStatus.CLEARED);
+    op.save();
+    assertCrStatusTotals();
+    Transaction.delete(op.getId(), false);
+    assertCrStatusTotals();
+  }
+
+  private void assertCrStatusTotals() {
+    Cursor cursor = getMockContentResolver().query(TransactionProvider.ACCOUNTS_URI,
+        Account.PROJECTION_FULL, KEY_ROWID + "=" + account1.getId(), null, null);
+    assert cursor != null;
+    assertTrue(cursor.moveToFirst());
+    assertEquals(account1.getClearedBalance().getAmountMinor().longValue(),
+        cursor.getLong(cursor.getColumnIndex(KEY_CLEARED_TOTAL)));
+    assertEquals(account1.getReconciledBalance().getAmountMinor().longValue(),
+        cursor.getLong(cursor.getColumnIndex(KEY_RECONCILED_TOTAL)));
+    cursor.close();
+  }
+
   public void testBalanceWithReset() {
     insertData();
     Money initialclearedBalance = account1.getClearedBalance();
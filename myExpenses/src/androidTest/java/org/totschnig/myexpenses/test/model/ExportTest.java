@@ -340,6 +340,41 @@ public class ExportTest extends ModelTest {
     }
   }
 
+  public void testExportIncremental() {
+    String[] linesCSV = new String[]{
+        csvHeader(),
+        "\"\";\"" + date + "\";\"\";0;1.00;\"\";\"\";\"Expense inserted after first export\";\""
+            + getContext().getString(R.string.pm_cheque) + "\";\"\";\"3\";\"\"",
+        "\"\";\"" + date + "\";\"N.N.\";1.00;0;\"\";\"\";\"Income inserted after first export\";\"\";\"\";\"\";\"\"",
+        ""
+    };
+    try {
+      insertData1();
+      Result<Uri> result = new Exporter(account1, null, outDir, FILE_NAME, ExportFormat.CSV, false,
+          "dd/MM/yyyy", '.', "UTF-8", true).export();
+      assertTrue("Export failed with message: " + getContext().getString(result.getMessage()), result.isSuccess());
+      assertTrue(account1.getExportWatermark() > 0);
+      assertFalse(Account.getHasExported(account1.getId()));
+      export = result.getExtra();
+      //noinspection ResultOfMethodCallIgnored
+      new File(export.getPath()).delete();
+      insertData2();
+      result = new Exporter(account1, null, outDir, FILE_NAME, ExportFormat.CSV, false,
+          "dd/MM/yyyy", '.', "UTF-8", true).export();
+      assertTrue("Export failed with message: " + getContext().getString(result.getMessage()), result.isSuccess());
+      export = result.getExtra();
+      compare(new File(export.getPath()), linesCSV);
+      //noinspection ResultOfMethodCallIgnored
+      new File(export.getPath()).delete();
+      result = new Exporter(account1, null, outDir, FILE_NAME, ExportFormat.CSV, false,
+          "dd/MM/yyyy", '.', "UTF-8", true).export();
+      assertFalse(result.isSuccess());
+      export = null;
+    } catch (IOException e) {
+      fail("Could not export expenses. Error: " + e.getMessage());
+    }
+  }
+
   private void compare(File file, String[] lines) {
     try {
       InputStream is = new FileInputStream(file);
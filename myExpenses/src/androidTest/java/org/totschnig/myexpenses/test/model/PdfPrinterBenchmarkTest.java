@@ -0,0 +1,116 @@
+package org.totschnig.myexpenses.test.model;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.net.Uri;
+import android.support.v4.provider.DocumentFile;
+import android.util.Log;
+
+import org.totschnig.myexpenses.export.pdf.PdfPrinter;
+import org.totschnig.myexpenses.model.Account;
+import org.totschnig.myexpenses.model.Transaction;
+import org.totschnig.myexpenses.provider.TransactionProvider;
+import org.totschnig.myexpenses.provider.filter.WhereFilter;
+import org.totschnig.myexpenses.util.Result;
+
+import java.io.File;
+import java.util.ArrayList;
+
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ACCOUNTID;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_AMOUNT;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_COMMENT;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_CR_STATUS;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_DATE;
+
+/**
+ * Measures duration and peak heap usage of printing large accounts to PDF. Results are logged
+ * with tag {@link #TAG}.
+ */
+public class PdfPrinterBenchmarkTest extends ModelTest {
+  private static final String TAG = "PdfPrinterBenchmark";
+  private static final int BATCH_SIZE = 1000;
+  private Account account;
+  private Uri output;
+
+  @Override
+  protected void tearDown() throws Exception {
+    if (output != null) {
+      //noinspection ResultOfMethodCallIgnored
+      new File(output.getPath()).delete();
+    }
+    if (account != null && account.getId() != null) {
+      Account.delete(account.getId());
+    }
+    super.tearDown();
+  }
+
+  public void test10kTransactions() throws Exception {
+    benchmark(10000);
+  }
+
+  public void test100kTransactions() throws Exception {
+    benchmark(100000);
+  }
+
+  private void benchmark(int count) throws Exception {
+    account = new Account("Benchmark", 0L, "");
+    account.save();
+    insertTransactions(count);
+    HeapSampler sampler = new HeapSampler();
+    sampler.start();
+    long start = System.nanoTime();
+    Result<Uri> result = new PdfPrinter(account, DocumentFile.fromFile(getContext().getCacheDir()),
+        new WhereFilter()).print();
+    long duration = (System.nanoTime() - start) / 1000000;
+    sampler.interrupt();
+    sampler.join();
+    assertTrue(result.isSuccess());
+    output = result.getExtra();
+    Log.i(TAG, String.format("%d transactions: %d ms, peak heap %d KB",
+        count, duration, sampler.peak / 1024));
+  }
+
+  private void insertTransactions(int count) throws Exception {
+    long now = System.currentTimeMillis() / 1000;
+    ArrayList<ContentProviderOperation> ops = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      ops.add(ContentProviderOperation.newInsert(Transaction.CONTENT_URI)
+          .withValue(KEY_ACCOUNTID, account.getId())
+          .withValue(KEY_AMOUNT, (i % 2 == 0 ? -1 : 1) * (100L + i))
+          //spread over roughly three years
+          .withValue(KEY_DATE, now - (i * 1000L * 86400 / count))
+          .withValue(KEY_CR_STATUS, Transaction.CrStatus.UNRECONCILED.name())
+          .withValue(KEY_COMMENT, i % 10 == 0 ? "Comment " + i : null)
+          .build());
+      if (ops.size() == BATCH_SIZE) {
+        applyBatch(ops);
+      }
+    }
+    if (!ops.isEmpty()) {
+      applyBatch(ops);
+    }
+  }
+
+  private void applyBatch(ArrayList<ContentProviderOperation> ops) throws Exception {
+    ContentProviderResult[] results = getMockContentResolver().applyBatch(TransactionProvider.AUTHORITY, ops);
+    assertEquals(ops.size(), results.length);
+    ops.clear();
+  }
+
+  private static class HeapSampler extends Thread {
+    volatile long peak;
+
+    @Override
+    public void run() {
+      Runtime runtime = Runtime.getRuntime();
+      while (!isInterrupted()) {
+        peak = Math.max(peak, runtime.totalMemory() - runtime.freeMemory());
+        try {
+          Thread.sleep(10);
+        } catch (InterruptedException e) {
+          return;
+        }
+      }
+    }
+  }
+}
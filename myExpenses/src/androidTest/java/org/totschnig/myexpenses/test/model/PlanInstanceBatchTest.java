@@ -0,0 +1,174 @@
+package org.totschnig.myexpenses.test.model;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+
+import com.android.calendar.CalendarContractCompat;
+
+import org.totschnig.myexpenses.model.Account;
+import org.totschnig.myexpenses.model.Money;
+import org.totschnig.myexpenses.model.SplitTransaction;
+import org.totschnig.myexpenses.model.Template;
+import org.totschnig.myexpenses.model.Transaction;
+import org.totschnig.myexpenses.provider.CalendarProviderProxy;
+import org.totschnig.myexpenses.provider.TransactionProvider;
+import org.totschnig.myexpenses.service.PlanInstanceBatch;
+
+import java.util.List;
+
+import static org.totschnig.myexpenses.contract.TransactionsContract.Transactions.TYPE_SPLIT;
+import static org.totschnig.myexpenses.contract.TransactionsContract.Transactions.TYPE_TRANSACTION;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_INSTANCEID;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PARENTID;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ROWID;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_STATUS;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_TEMPLATEID;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.STATUS_NONE;
+
+public class PlanInstanceBatchTest extends ModelTest {
+  private static final long AUTOMATIC_PLAN_ID = 4711L;
+  private static final long MANUAL_PLAN_ID = 4712L;
+  private static final long DAY = 24 * 60 * 60 * 1000L;
+  private Account account;
+  private Template automatic, manual;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    account = new Account("TestAccount 1", 100, "Main account");
+    account.save();
+    automatic = buildTemplate(AUTOMATIC_PLAN_ID, true);
+    manual = buildTemplate(MANUAL_PLAN_ID, false);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    Account.delete(account.getId());
+    super.tearDown();
+  }
+
+  private Template buildTemplate(long planId, boolean automatic) {
+    Template t = new Template(account, TYPE_TRANSACTION, null);
+    t.setAmount(new Money(account.currency, -1000L));
+    t.setTitle("Plan " + planId);
+    t.planId = planId;
+    t.setPlanExecutionAutomatic(automatic);
+    t.save();
+    return t;
+  }
+
+  private Cursor instances(long planId, int count, long start) {
+    MatrixCursor cursor = new MatrixCursor(new String[]{
+        CalendarContractCompat.Instances.EVENT_ID,
+        CalendarContractCompat.Instances.BEGIN});
+    for (int i = 0; i < count; i++) {
+      cursor.addRow(new Object[]{planId, start + i * DAY});
+    }
+    return cursor;
+  }
+
+  public void testAutomaticInstancesAreExecutedInOneBatch() {
+    long start = System.currentTimeMillis() - 100 * DAY;
+    Cursor cursor = instances(AUTOMATIC_PLAN_ID, 100, start);
+    PlanInstanceBatch batch = PlanInstanceBatch.fromInstances(cursor);
+    assertEquals(100, batch.getOpenInstances().size());
+    assertTrue(batch.getManualInstances().isEmpty());
+    List<PlanInstanceBatch.Instance> executed = batch.executeAutomatic();
+    assertNotNull(executed);
+    assertEquals(100, executed.size());
+    for (PlanInstanceBatch.Instance instance : executed) {
+      Transaction t = Transaction.getInstanceFromDb(instance.getTransactionId());
+      assertNotNull(t);
+      assertEquals(instance.date / 1000, t.getDate());
+      assertEquals(-1000L, t.getAmount().getAmountMinor().longValue());
+    }
+    Cursor status = getMockContentResolver().query(TransactionProvider.PLAN_INSTANCE_STATUS_URI,
+        new String[]{KEY_INSTANCEID}, KEY_TEMPLATEID + " = ?",
+        new String[]{String.valueOf(automatic.getId())}, null);
+    assertNotNull(status);
+    assertEquals(100, status.getCount());
+    status.close();
+    //the instances are no longer open
+    assertTrue(PlanInstanceBatch.fromInstances(cursor).getOpenInstances().isEmpty());
+    cursor.close();
+  }
+
+  /**
+   * an instance might be linked by another run between collecting and executing the batch
+   */
+  public void testInstanceLinkedMeanwhileDoesNotFailBatch() {
+    Cursor cursor = instances(AUTOMATIC_PLAN_ID, 3, System.currentTimeMillis() - 3 * DAY);
+    PlanInstanceBatch first = PlanInstanceBatch.fromInstances(cursor);
+    PlanInstanceBatch second = PlanInstanceBatch.fromInstances(cursor);
+    cursor.close();
+    assertNotNull(first.executeAutomatic());
+    List<PlanInstanceBatch.Instance> executed = second.executeAutomatic();
+    assertNotNull(executed);
+    assertEquals(3, executed.size());
+    Cursor status = getMockContentResolver().query(TransactionProvider.PLAN_INSTANCE_STATUS_URI,
+        new String[]{KEY_INSTANCEID}, KEY_TEMPLATEID + " = ?",
+        new String[]{String.valueOf(automatic.getId())}, null);
+    assertNotNull(status);
+    assertEquals(3, status.getCount());
+    status.close();
+  }
+
+  public void testSplitTemplateIsInstantiatedWithItsParts() {
+    long planId = 4714L;
+    Template split = new Template(account, TYPE_SPLIT, null);
+    split.setAmount(new Money(account.currency, -500L));
+    split.setTitle("Split plan");
+    split.planId = planId;
+    split.setPlanExecutionAutomatic(true);
+    split.save();
+    for (long amount : new long[]{-200L, -300L}) {
+      Template part = new Template(account, TYPE_TRANSACTION, split.getId());
+      part.setAmount(new Money(account.currency, amount));
+      part.save();
+    }
+    Cursor cursor = instances(planId, 2, System.currentTimeMillis() - 2 * DAY);
+    List<PlanInstanceBatch.Instance> executed = PlanInstanceBatch.fromInstances(cursor).executeAutomatic();
+    cursor.close();
+    assertNotNull(executed);
+    assertEquals(2, executed.size());
+    for (PlanInstanceBatch.Instance instance : executed) {
+      assertTrue(Transaction.getInstanceFromDb(instance.getTransactionId()) instanceof SplitTransaction);
+      Cursor parts = getMockContentResolver().query(Transaction.CONTENT_URI,
+          new String[]{KEY_ROWID}, KEY_PARENTID + " = ? AND " + KEY_STATUS + " = ?",
+          new String[]{String.valueOf(instance.getTransactionId()), String.valueOf(STATUS_NONE)}, null);
+      assertNotNull(parts);
+      assertEquals(2, parts.getCount());
+      parts.close();
+    }
+    //nothing is left behind outside the batch
+    Cursor uncommitted = getMockContentResolver().query(TransactionProvider.UNCOMMITTED_URI,
+        new String[]{KEY_ROWID}, null, null, null);
+    assertNotNull(uncommitted);
+    assertEquals(0, uncommitted.getCount());
+    uncommitted.close();
+  }
+
+  public void testManualInstancesAreNotExecuted() {
+    long start = System.currentTimeMillis();
+    Cursor cursor = instances(MANUAL_PLAN_ID, 3, start);
+    PlanInstanceBatch batch = PlanInstanceBatch.fromInstances(cursor);
+    cursor.close();
+    assertEquals(3, batch.getManualInstances().size());
+    List<PlanInstanceBatch.Instance> executed = batch.executeAutomatic();
+    assertNotNull(executed);
+    assertTrue(executed.isEmpty());
+    assertEquals(manual.getId(), batch.getManualInstances().get(0).template.getId());
+  }
+
+  public void testInstancesReportedTwiceAreHandledOnce() {
+    long start = System.currentTimeMillis();
+    MatrixCursor cursor = (MatrixCursor) instances(AUTOMATIC_PLAN_ID, 1, start);
+    cursor.addRow(new Object[]{AUTOMATIC_PLAN_ID, start});
+    cursor.addRow(new Object[]{4713L, start});
+    PlanInstanceBatch batch = PlanInstanceBatch.fromInstances(cursor);
+    cursor.close();
+    assertEquals(1, batch.getOpenInstances().size());
+    assertEquals(CalendarProviderProxy.calculateId(start),
+        batch.getOpenInstances().get(0).instanceId);
+  }
+}
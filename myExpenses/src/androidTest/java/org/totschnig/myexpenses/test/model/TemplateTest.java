@@ -15,17 +15,31 @@
 
 package org.totschnig.myexpenses.test.model;
 
+import android.database.Cursor;
+import android.os.Bundle;
+
 import org.totschnig.myexpenses.model.Account;
 import org.totschnig.myexpenses.model.Category;
 import org.totschnig.myexpenses.model.Money;
 import org.totschnig.myexpenses.model.Payee;
 import org.totschnig.myexpenses.model.PaymentMethod;
+import org.totschnig.myexpenses.model.SplitTransaction;
 import org.totschnig.myexpenses.model.Template;
 import org.totschnig.myexpenses.model.Transaction;
+import org.totschnig.myexpenses.model.Transfer;
+import org.totschnig.myexpenses.provider.TransactionProvider;
 
 import static org.totschnig.myexpenses.contract.TransactionsContract.Transactions.TYPE_SPLIT;
 import static org.totschnig.myexpenses.contract.TransactionsContract.Transactions.TYPE_TRANSACTION;
 import static org.totschnig.myexpenses.contract.TransactionsContract.Transactions.TYPE_TRANSFER;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ACCOUNTID;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_AMOUNT;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_INSTANCEID;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PARENTID;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_STATUS;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_TEMPLATEID;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_TRANSACTIONID;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.STATUS_NONE;
 
 public class TemplateTest extends ModelTest {
   private Account mAccount1, mAccount2;
@@ -89,6 +103,86 @@ public class TemplateTest extends ModelTest {
     assertEquals(template.getComment(), transaction.getComment());
   }
 
+  public void testInstantiateTemplate() {
+    Template template = buildTemplate();
+    template.setAmount(new Money(mAccount1.currency, -500L));
+    template.save();
+    Bundle result = Transaction.instantiateTemplate(template.getId(), null, null);
+    assertNotNull(result);
+    assertEquals(mAccount1.getId().longValue(), result.getLong(KEY_ACCOUNTID));
+    Transaction transaction = Transaction.getInstanceFromDb(result.getLong(KEY_TRANSACTIONID));
+    assertNotNull(transaction);
+    assertEquals(template.getCatId(), transaction.getCatId());
+    assertEquals(template.getAccountId(), transaction.getAccountId());
+    assertEquals(template.getPayeeId(), transaction.getPayeeId());
+    assertEquals(template.getMethodId(), transaction.getMethodId());
+    assertEquals(template.getComment(), transaction.getComment());
+    assertEquals(template.getAmount(), transaction.getAmount());
+    assertEquals(Transaction.CrStatus.UNRECONCILED, transaction.getCrStatus());
+  }
+
+  public void testInstantiateTransferTemplate() {
+    Template template = new Template(mAccount1, TYPE_TRANSFER, null);
+    template.setTransferAccountId(mAccount2.getId());
+    template.setAmount(new Money(mAccount1.currency, -500L));
+    template.setTitle("Transfer");
+    template.save();
+    long date = System.currentTimeMillis() / 1000 - 86400;
+    Bundle result = Transaction.instantiateTemplate(template.getId(), date, 4711L);
+    assertNotNull(result);
+    Transaction transfer = Transaction.getInstanceFromDb(result.getLong(KEY_TRANSACTIONID));
+    assertTrue(transfer instanceof Transfer);
+    assertEquals(date, transfer.getDate());
+    Transaction peer = Transaction.getInstanceFromDb(((Transfer) transfer).getTransferPeer());
+    assertNotNull(peer);
+    assertEquals(mAccount2.getId(), peer.getAccountId());
+    assertEquals(500L, peer.getAmount().getAmountMinor().longValue());
+    assertEquals(transfer.getId(), ((Transfer) peer).getTransferPeer());
+    assertEquals(transfer.uuid, peer.uuid);
+    Cursor c = getMockContentResolver().query(TransactionProvider.PLAN_INSTANCE_STATUS_URI,
+        new String[]{KEY_TRANSACTIONID}, KEY_TEMPLATEID + " = ? AND " + KEY_INSTANCEID + " = ?",
+        new String[]{String.valueOf(template.getId()), "4711"}, null);
+    assertNotNull(c);
+    assertTrue(c.moveToFirst());
+    assertEquals(transfer.getId().longValue(), c.getLong(0));
+    c.close();
+  }
+
+  public void testInstantiateSplitTemplate() {
+    Template template = new Template(mAccount1, TYPE_SPLIT, null);
+    template.setAmount(new Money(mAccount1.currency, -500L));
+    template.setTitle("Split");
+    template.save();
+    Template part1 = new Template(mAccount1, TYPE_TRANSACTION, template.getId());
+    part1.setAmount(new Money(mAccount1.currency, -200L));
+    part1.setCatId(categoryId);
+    part1.save();
+    Template part2 = new Template(mAccount1, TYPE_TRANSFER, template.getId());
+    part2.setTransferAccountId(mAccount2.getId());
+    part2.setAmount(new Money(mAccount1.currency, -300L));
+    part2.save();
+    Bundle result = Transaction.instantiateTemplate(template.getId(), null, null);
+    assertNotNull(result);
+    long splitId = result.getLong(KEY_TRANSACTIONID);
+    assertTrue(Transaction.getInstanceFromDb(splitId) instanceof SplitTransaction);
+    Cursor c = getMockContentResolver().query(Transaction.CONTENT_URI,
+        new String[]{KEY_AMOUNT}, KEY_PARENTID + " = ? AND " + KEY_STATUS + " = ?",
+        new String[]{String.valueOf(splitId), String.valueOf(STATUS_NONE)}, KEY_AMOUNT);
+    assertNotNull(c);
+    assertEquals(2, c.getCount());
+    c.moveToFirst();
+    assertEquals(-300L, c.getLong(0));
+    c.close();
+    //balance of account 2 reflects the peer of the transfer part
+    assertEquals(100L + 300L, mAccount2.getTotalBalance().getAmountMinor().longValue());
+  }
+
+  public void testInstantiateDeletedTemplate() {
+    Template template = buildTemplate();
+    Template.delete(template.getId(), false);
+    assertNull(Transaction.instantiateTemplate(template.getId(), null, null));
+  }
+
   public void testGetTypedNewInstanceTransaction() {
     newInstanceTestHelper(TYPE_TRANSACTION);
   }
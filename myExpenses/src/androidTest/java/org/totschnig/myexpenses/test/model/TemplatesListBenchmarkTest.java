@@ -0,0 +1,143 @@
+package org.totschnig.myexpenses.test.model;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentUris;
+import android.database.Cursor;
+import android.util.Log;
+
+import org.totschnig.myexpenses.model.Account;
+import org.totschnig.myexpenses.model.Plan;
+import org.totschnig.myexpenses.model.Template;
+import org.totschnig.myexpenses.provider.PlanInstanceStore;
+import org.totschnig.myexpenses.provider.TransactionProvider;
+
+import java.util.ArrayList;
+import java.util.UUID;
+
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ACCOUNTID;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_AMOUNT;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_DATE;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_INSTANCEID;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PARENTID;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PLANID;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PLAN_INFO;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_SIGNATURE;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_TEMPLATEID;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_TITLE;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_UUID;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_WINDOW_START;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.SELECT_NEXT_INSTANCE;
+
+/**
+ * Measures loading the list of templates with plan descriptions and next instance ordering
+ * computed by the database, compared with describing each plan while binding rows. Results are
+ * logged with tag {@link #TAG}.
+ */
+public class TemplatesListBenchmarkTest extends ModelTest {
+  private static final String TAG = "TemplatesListBenchmark";
+  private static final int COUNT = 1000;
+  private static final int INSTANCES_PER_PLAN = 12;
+  private static final long DAY = 24 * 60 * 60 * 1000L;
+  private static final String RRULE = "FREQ=MONTHLY;BYMONTHDAY=1";
+  private Account account;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    account = new Account("Benchmark", 0L, "");
+    account.save();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    if (account != null && account.getId() != null) {
+      Account.delete(account.getId());
+    }
+    super.tearDown();
+  }
+
+  public void test1000Plans() throws Exception {
+    insertTemplates();
+    long start = System.nanoTime();
+    Cursor c = getMockContentResolver().query(
+        TransactionProvider.TEMPLATES_URI.buildUpon()
+            .appendQueryParameter(TransactionProvider.QUERY_PARAMETER_WITH_PLAN_INFO, "1").build(),
+        null, KEY_PARENTID + " is null", null,
+        SELECT_NEXT_INSTANCE + " IS NULL, " + SELECT_NEXT_INSTANCE + ", " + KEY_TITLE);
+    assertNotNull(c);
+    int columnIndexPlanInfo = c.getColumnIndex(KEY_PLAN_INFO);
+    int columnIndexTitle = c.getColumnIndex(KEY_TITLE);
+    int count = 0;
+    String first = null;
+    while (c.moveToNext()) {
+      assertNotNull(c.getString(columnIndexPlanInfo));
+      if (first == null) {
+        first = c.getString(columnIndexTitle);
+      }
+      count++;
+    }
+    c.close();
+    long duration = (System.nanoTime() - start) / 1000000;
+    assertEquals(COUNT, count);
+    //the template whose plan has the earliest future instance comes first
+    assertEquals(title(0), first);
+
+    start = System.nanoTime();
+    long dtStart = System.currentTimeMillis();
+    for (int i = 0; i < COUNT; i++) {
+      assertNotNull(Plan.prettyTimeInfo(getContext(), RRULE, dtStart));
+    }
+    long legacyDuration = (System.nanoTime() - start) / 1000000;
+    Log.i(TAG, String.format("%d plans: %d ms from database, %d ms for describing plans while binding",
+        COUNT, duration, legacyDuration));
+  }
+
+  private void insertTemplates() throws Exception {
+    long now = System.currentTimeMillis();
+    long windowStart = PlanInstanceStore.getWindowStart();
+    ArrayList<ContentProviderOperation> ops = new ArrayList<>();
+    for (int i = 0; i < COUNT; i++) {
+      ops.add(ContentProviderOperation.newInsert(Template.CONTENT_URI)
+          .withValue(KEY_TITLE, title(i))
+          .withValue(KEY_AMOUNT, -100L - i)
+          .withValue(KEY_ACCOUNTID, account.getId())
+          .withValue(KEY_PLANID, (long) i)
+          .withValue(KEY_UUID, UUID.randomUUID().toString())
+          .build());
+    }
+    ContentProviderResult[] results = applyBatch(ops);
+    for (int i = 0; i < COUNT; i++) {
+      long templateId = ContentUris.parseId(results[i].uri);
+      ops.add(ContentProviderOperation.newInsert(TransactionProvider.PLAN_INSTANCE_SOURCES_URI)
+          .withValue(KEY_TEMPLATEID, templateId)
+          .withValue(KEY_PLANID, (long) i)
+          .withValue(KEY_WINDOW_START, windowStart)
+          .withValue(KEY_SIGNATURE, "benchmark")
+          .withValue(KEY_PLAN_INFO, "Monthly")
+          .build());
+      for (int j = 0; j < INSTANCES_PER_PLAN; j++) {
+        //one past instance, the first future instance of plan i is one day and i minutes from now
+        long date = now + DAY + i * 60000L + (j - 1) * 30 * DAY;
+        ops.add(ContentProviderOperation.newInsert(TransactionProvider.PLAN_INSTANCES_URI)
+            .withValue(KEY_TEMPLATEID, templateId)
+            .withValue(KEY_PLANID, (long) i)
+            .withValue(KEY_INSTANCEID, date)
+            .withValue(KEY_DATE, date)
+            .build());
+      }
+    }
+    applyBatch(ops);
+  }
+
+  private static String title(int i) {
+    return String.format("Plan %04d", i);
+  }
+
+  private ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> ops) throws Exception {
+    ContentProviderResult[] results = getMockContentResolver().applyBatch(TransactionProvider.AUTHORITY, ops);
+    assertEquals(ops.size(), results.length);
+    ops.clear();
+    return results;
+  }
+}
@@ -208,6 +208,37 @@ public class TransactionTest extends ModelTest {
     assertNull("Transaction deleted, but can still be retrieved", Transaction.getInstanceFromDb(op1.getId()));
   }
 
+  public void testBulkCommands() {
+    long[] ids = new long[3];
+    for (int i = 0; i < ids.length; i++) {
+      Transaction op = Transaction.getNewInstance(mAccount1.getId());
+      assert op != null;
+      op.setAmount(new Money(mAccount1.currency, 100L));
+      op.save();
+      ids[i] = op.getId();
+    }
+    Transaction.toggleCrStatus(ids);
+    for (long id : ids) {
+      assertEquals(CrStatus.CLEARED, Transaction.getInstanceFromDb(id).getCrStatus());
+    }
+    Transaction.move(ids, mAccount2.getId());
+    for (long id : ids) {
+      assertEquals(mAccount2.getId(), Transaction.getInstanceFromDb(id).getAccountId());
+    }
+    Transaction.delete(ids, true);
+    for (long id : ids) {
+      assertEquals(CrStatus.VOID, Transaction.getInstanceFromDb(id).getCrStatus());
+    }
+    Transaction.undelete(ids);
+    for (long id : ids) {
+      assertEquals(CrStatus.UNRECONCILED, Transaction.getInstanceFromDb(id).getCrStatus());
+    }
+    Transaction.delete(ids, false);
+    for (long id : ids) {
+      assertNull(Transaction.getInstanceFromDb(id));
+    }
+  }
+
   public void testIncreaseCatUsage() {
     catId1 = Category.write(0, "Test category 1", null);
     catId2 = Category.write(0, "Test category 2", null);
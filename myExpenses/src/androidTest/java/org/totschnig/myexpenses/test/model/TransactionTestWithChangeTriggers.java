@@ -17,6 +17,7 @@ package org.totschnig.myexpenses.test.model;
 
 import android.content.ContentValues;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.net.Uri;
 
 import org.totschnig.myexpenses.model.Account;
@@ -180,6 +181,169 @@ public class TransactionTestWithChangeTriggers extends ModelTest {
     assertNotNull("Split parts deleted after saving parent", Transaction.getInstanceFromDb(split2.getId()));
   }
 
+  /**
+   * editing one part of a split only records the parent and this part in the change log
+   */
+  public void testEditSplitRecordsOnlyChangedParts() {
+    SplitTransaction op1 = SplitTransaction.getNewInstance(mAccount1.getId(), true);
+    assert op1 != null;
+    op1.setAmount(new Money(mAccount1.currency, 150L));
+    long[] partIds = new long[3];
+    for (int i = 0; i < 3; i++) {
+      Transaction part = Transaction.getNewInstance(mAccount1.getId(), op1.getId());
+      assert part != null;
+      part.setAmount(new Money(mAccount1.currency, 50L));
+      part.status = DatabaseConstants.STATUS_UNCOMMITTED;
+      part.save();
+      partIds[i] = part.getId();
+    }
+    op1.save();
+    long lastChange = lastChange();
+
+    Transaction restored = Transaction.getInstanceFromDb(op1.getId());
+    assertTrue(restored instanceof SplitTransaction);
+    restored.prepareForEdit(false);
+    Cursor c = getMockContentResolver().query(TransactionProvider.UNCOMMITTED_URI,
+        new String[]{DatabaseConstants.KEY_ROWID}, DatabaseConstants.KEY_PARENTID + " = ?",
+        new String[]{String.valueOf(op1.getId())}, DatabaseConstants.KEY_ROWID);
+    assertNotNull(c);
+    assertEquals(3, c.getCount());
+    c.moveToFirst();
+    Transaction clone = Transaction.getInstanceFromDb(c.getLong(0));
+    c.close();
+    assert clone != null;
+    clone.setComment("edited");
+    clone.save();
+    restored.save();
+
+    //one update for the parent, one for the edited part
+    assertEquals(2, countChangesSince(lastChange, null));
+    assertEquals(2, countChangesSince(lastChange, "updated"));
+    //committed parts survive, the edit is written back to the first one
+    for (long partId : partIds) {
+      assertNotNull(Transaction.getInstanceFromDb(partId));
+    }
+    assertEquals("edited", Transaction.getInstanceFromDb(partIds[0]).getComment());
+    c = getMockContentResolver().query(TransactionProvider.UNCOMMITTED_URI, null,
+        DatabaseConstants.KEY_PARENTID + " = ?", new String[]{String.valueOf(op1.getId())}, null);
+    assertNotNull(c);
+    assertEquals(0, c.getCount());
+    c.close();
+  }
+
+  /**
+   * cloning a split copies its parts into the new split and leaves the parts of the original alone
+   */
+  public void testCloneSplitCopiesParts() {
+    SplitTransaction op1 = SplitTransaction.getNewInstance(mAccount1.getId(), true);
+    assert op1 != null;
+    op1.setAmount(new Money(mAccount1.currency, 150L));
+    long[] partIds = new long[3];
+    for (int i = 0; i < 3; i++) {
+      Transaction part = Transaction.getNewInstance(mAccount1.getId(), op1.getId());
+      assert part != null;
+      part.setAmount(new Money(mAccount1.currency, 50L));
+      part.status = DatabaseConstants.STATUS_UNCOMMITTED;
+      part.save();
+      partIds[i] = part.getId();
+    }
+    op1.save();
+
+    Transaction cloned = Transaction.getInstanceFromDb(op1.getId());
+    assertTrue(cloned instanceof SplitTransaction);
+    cloned.prepareForEdit(true);
+    long cloneId = cloned.getId();
+    assertTrue(cloneId != op1.getId());
+    Cursor c = getMockContentResolver().query(TransactionProvider.UNCOMMITTED_URI,
+        new String[]{DatabaseConstants.KEY_ROWID}, DatabaseConstants.KEY_PARENTID + " = ?",
+        new String[]{String.valueOf(cloneId)}, DatabaseConstants.KEY_ROWID);
+    assertNotNull(c);
+    assertEquals(3, c.getCount());
+    c.moveToFirst();
+    Transaction clonedPart = Transaction.getInstanceFromDb(c.getLong(0));
+    c.close();
+    assert clonedPart != null;
+    clonedPart.setComment("edited");
+    clonedPart.save();
+    cloned.save();
+
+    //the original keeps its parts unchanged
+    for (long partId : partIds) {
+      Transaction part = Transaction.getInstanceFromDb(partId);
+      assertNotNull(part);
+      assertEquals(op1.getId(), part.getParentId());
+      assertNull(part.getComment());
+    }
+    //the clone has its own committed parts
+    c = getMockContentResolver().query(TransactionProvider.TRANSACTIONS_URI,
+        new String[]{DatabaseConstants.KEY_COMMENT}, DatabaseConstants.KEY_PARENTID + " = ?",
+        new String[]{String.valueOf(cloneId)}, DatabaseConstants.KEY_ROWID);
+    assertNotNull(c);
+    assertEquals(3, c.getCount());
+    c.moveToFirst();
+    assertEquals("edited", c.getString(0));
+    c.close();
+    c = getMockContentResolver().query(TransactionProvider.UNCOMMITTED_URI, null,
+        DatabaseConstants.KEY_PARENTID + " IN (?, ?)",
+        new String[]{String.valueOf(op1.getId()), String.valueOf(cloneId)}, null);
+    assertNotNull(c);
+    assertEquals(0, c.getCount());
+    c.close();
+  }
+
+  private long lastChange() {
+    return DatabaseUtils.longForQuery(getProvider().getOpenHelperForTest().getReadableDatabase(),
+        "SELECT coalesce(max(rowid), 0) FROM " + DatabaseConstants.TABLE_CHANGES, null);
+  }
+
+  /**
+   * @param type if not null only changes of this type are counted
+   */
+  private long countChangesSince(long lastChange, String type) {
+    String where = "rowid > " + lastChange;
+    if (type != null) {
+      where += " AND " + DatabaseConstants.KEY_TYPE + " = '" + type + "'";
+    }
+    return DatabaseUtils.queryNumEntries(getProvider().getOpenHelperForTest().getReadableDatabase(),
+        DatabaseConstants.TABLE_CHANGES, where);
+  }
+
+  public void testUnsplitSeveral() {
+    long[] splitIds = new long[2];
+    long[] partIds = new long[4];
+    for (int i = 0; i < 2; i++) {
+      SplitTransaction split = SplitTransaction.getNewInstance(mAccount1.getId(), true);
+      assert split != null;
+      split.setAmount(new Money(mAccount1.currency, 100L));
+      split.setCrStatus(CrStatus.CLEARED);
+      for (int j = 0; j < 2; j++) {
+        Transaction part = Transaction.getNewInstance(mAccount1.getId(), split.getId());
+        assert part != null;
+        part.setAmount(new Money(mAccount1.currency, 50L));
+        part.status = DatabaseConstants.STATUS_UNCOMMITTED;
+        part.save();
+        partIds[i * 2 + j] = part.getId();
+      }
+      split.save();
+      splitIds[i] = split.getId();
+    }
+    long lastChange = lastChange();
+    final int[] progress = {0};
+    assertEquals(2, SplitTransaction.unsplit(splitIds, done -> progress[0] = done));
+    assertEquals(2, progress[0]);
+    for (long splitId : splitIds) {
+      assertNull(Transaction.getInstanceFromDb(splitId));
+    }
+    for (long partId : partIds) {
+      Transaction part = Transaction.getInstanceFromDb(partId);
+      assertNotNull(part);
+      assertNull(part.getParentId());
+      assertEquals(CrStatus.CLEARED, part.getCrStatus());
+    }
+    assertEquals(2, countChangesSince(lastChange, null));
+    assertEquals(2, countChangesSince(lastChange, "unsplit"));
+  }
+
   public void testDeleteSplitWithPartTransfer() {
     SplitTransaction op1 = SplitTransaction.getNewInstance(mAccount1.getId(), false);
     assert op1 != null;
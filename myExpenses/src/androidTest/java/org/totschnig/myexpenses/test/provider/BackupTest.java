@@ -0,0 +1,66 @@
+package org.totschnig.myexpenses.test.provider;
+
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+
+import org.totschnig.myexpenses.testutils.BaseDbTest;
+import org.totschnig.myexpenses.util.BackupUtils;
+
+import java.io.File;
+
+public class BackupTest extends BaseDbTest {
+  private File backupDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    backupDir = new File(getMockContext().getCacheDir(), "backupTest");
+    assertTrue(backupDir.isDirectory() || backupDir.mkdir());
+    mDb.execSQL("CREATE TABLE backup_filler (content blob)");
+    //several steps of the snapshot
+    for (int i = 0; i < 40; i++) {
+      mDb.execSQL("INSERT INTO backup_filler VALUES (randomblob(65536))");
+    }
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    mDb.execSQL("DROP TABLE IF EXISTS backup_filler");
+    for (File file : backupDir.listFiles()) {
+      //noinspection ResultOfMethodCallIgnored
+      file.delete();
+    }
+    //noinspection ResultOfMethodCallIgnored
+    backupDir.delete();
+    super.tearDown();
+  }
+
+  public void testDatabaseIsNotInWalMode() {
+    assertFalse("wal".equalsIgnoreCase(
+        DatabaseUtils.stringForQuery(mDb, "PRAGMA journal_mode", null)));
+  }
+
+  /**
+   * a commit between two steps of the snapshot restarts it, and the backup includes the commit
+   */
+  public void testCommitDuringBackupIsIncluded() {
+    final boolean[] committed = {false};
+    getProvider().backup(backupDir, percent -> {
+      if (!committed[0] && percent < 100) {
+        mDb.execSQL("INSERT INTO backup_filler VALUES (x'cafe')");
+        committed[0] = true;
+      }
+    });
+    assertTrue(committed[0]);
+    SQLiteDatabase backup = SQLiteDatabase.openDatabase(
+        new File(backupDir, BackupUtils.BACKUP_DB_FILE_NAME).getPath(), null,
+        SQLiteDatabase.OPEN_READONLY);
+    try {
+      assertEquals("ok", DatabaseUtils.stringForQuery(backup, "PRAGMA integrity_check", null));
+      assertEquals(41, DatabaseUtils.queryNumEntries(backup, "backup_filler"));
+      assertEquals(1, DatabaseUtils.queryNumEntries(backup, "backup_filler", "content = x'cafe'"));
+    } finally {
+      backup.close();
+    }
+  }
+}
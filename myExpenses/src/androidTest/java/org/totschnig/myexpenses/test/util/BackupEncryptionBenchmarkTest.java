@@ -0,0 +1,111 @@
+package org.totschnig.myexpenses.test.util;
+
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.totschnig.myexpenses.util.BackupEncryption;
+import org.totschnig.myexpenses.util.BackupUtils;
+import org.totschnig.myexpenses.util.ZipUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Measures how much encrypting adds to writing a backup archive of the size of a large database,
+ * the target being less than 15% of the time needed for the unencrypted archive. Results are
+ * logged with tag {@link #TAG}.
+ */
+@RunWith(AndroidJUnit4.class)
+public class BackupEncryptionBenchmarkTest {
+  private static final String TAG = "BackupEncryptionBenchmark";
+  private static final int SIZE = 50 * 1024 * 1024;
+  private File backupDir, archive;
+
+  @Before
+  public void setUp() throws IOException {
+    File cacheDir = InstrumentationRegistry.getTargetContext().getCacheDir();
+    backupDir = new File(cacheDir, "benchmark-backup");
+    assertTrue(backupDir.isDirectory() || backupDir.mkdir());
+    archive = new File(cacheDir, "benchmark-backup.zip");
+    //database pages compress, hence we do not write random bytes only
+    byte[] chunk = new byte[1024 * 1024];
+    Random random = new Random(0);
+    for (int i = 0; i < chunk.length; i++) {
+      chunk[i] = (byte) ('0' + random.nextInt(10));
+    }
+    write(BackupUtils.getBackupDbFile(backupDir), chunk, SIZE / chunk.length);
+    write(BackupUtils.getBackupPrefFile(backupDir), new byte[1024], 1);
+  }
+
+  @After
+  public void tearDown() {
+    //noinspection ResultOfMethodCallIgnored
+    BackupUtils.getBackupDbFile(backupDir).delete();
+    //noinspection ResultOfMethodCallIgnored
+    BackupUtils.getBackupPrefFile(backupDir).delete();
+    //noinspection ResultOfMethodCallIgnored
+    backupDir.delete();
+    //noinspection ResultOfMethodCallIgnored
+    archive.delete();
+  }
+
+  @Test
+  public void zip50MB() throws IOException {
+    //warm up
+    zip(false);
+
+    long start = System.nanoTime();
+    zip(false);
+    long plainDuration = (System.nanoTime() - start) / 1000000;
+    long plainLength = archive.length();
+
+    start = System.nanoTime();
+    zip(true);
+    long encryptedDuration = (System.nanoTime() - start) / 1000000;
+    long encryptedLength = archive.length();
+
+    Log.i(TAG, String.format("%d MB: %d ms (%d bytes) unencrypted, %d ms (%d bytes) encrypted, overhead %d%%",
+        SIZE / 1024 / 1024, plainDuration, plainLength, encryptedDuration, encryptedLength,
+        (encryptedDuration - plainDuration) * 100 / Math.max(plainDuration, 1)));
+  }
+
+  private void zip(boolean encrypt) throws IOException {
+    OutputStream out = new FileOutputStream(archive);
+    try {
+      if (encrypt) {
+        BackupEncryption.EncryptingOutputStream encrypted = BackupEncryption.encrypt(out, "benchmark");
+        try {
+          ZipUtils.zipBackup(backupDir, encrypted);
+          encrypted.finish();
+        } finally {
+          encrypted.release();
+        }
+      } else {
+        ZipUtils.zipBackup(backupDir, out);
+      }
+    } finally {
+      out.close();
+    }
+  }
+
+  private static void write(File file, byte[] chunk, int times) throws IOException {
+    OutputStream out = new FileOutputStream(file);
+    try {
+      for (int i = 0; i < times; i++) {
+        out.write(chunk);
+      }
+    } finally {
+      out.close();
+    }
+  }
+}
@@ -0,0 +1,174 @@
+package org.totschnig.myexpenses.test.util;
+
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.support.v4.provider.DocumentFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.totschnig.myexpenses.util.BackupRepository;
+import org.totschnig.myexpenses.util.BackupUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(AndroidJUnit4.class)
+public class BackupRepositoryTest {
+  /**
+   * size of the chunks the database is split into by the repository
+   */
+  private static final int CHUNK_SIZE = 64 * 1024;
+  private File appDir, backupDir;
+  private byte[] a, b, c;
+
+  @Before
+  public void setUp() throws IOException {
+    File cacheDir = InstrumentationRegistry.getTargetContext().getCacheDir();
+    appDir = new File(cacheDir, "repositoryTest");
+    backupDir = new File(cacheDir, "repositoryTestBackup");
+    assertTrue(appDir.isDirectory() || appDir.mkdir());
+    assertTrue(backupDir.isDirectory() || backupDir.mkdir());
+    Random random = new Random(0);
+    a = new byte[CHUNK_SIZE];
+    random.nextBytes(a);
+    b = new byte[CHUNK_SIZE];
+    random.nextBytes(b);
+    c = new byte[CHUNK_SIZE];
+    random.nextBytes(c);
+    write(BackupUtils.getBackupPrefFile(backupDir), new byte[]{'p', 'r', 'e', 'f', 's'});
+  }
+
+  @After
+  public void tearDown() {
+    deleteRecursively(appDir);
+    deleteRecursively(backupDir);
+  }
+
+  private static void deleteRecursively(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        deleteRecursively(child);
+      }
+    }
+    //noinspection ResultOfMethodCallIgnored
+    file.delete();
+  }
+
+  private static void write(File file, byte[]... chunks) throws IOException {
+    OutputStream out = new FileOutputStream(file);
+    try {
+      for (byte[] chunk : chunks) {
+        out.write(chunk);
+      }
+    } finally {
+      out.close();
+    }
+  }
+
+  private BackupRepository openRepository() {
+    BackupRepository repository = BackupRepository.open(DocumentFile.fromFile(appDir));
+    assertNotNull(repository);
+    return repository;
+  }
+
+  /**
+   * stores a backup of a database consisting of the given chunks
+   */
+  private DocumentFile store(byte[]... chunks) throws IOException {
+    write(BackupUtils.getBackupDbFile(backupDir), chunks);
+    return openRepository().store(backupDir);
+  }
+
+  /**
+   * @return hashes of the objects in the repository
+   */
+  private Set<String> objects() {
+    Set<String> result = new HashSet<>();
+    File objectsDir = new File(new File(appDir, BackupRepository.REPOSITORY_DIR_NAME),
+        BackupRepository.OBJECTS_DIR_NAME);
+    for (String name : objectsDir.list()) {
+      int extension = name.indexOf('.');
+      result.add(extension == -1 ? name : name.substring(0, extension));
+    }
+    return result;
+  }
+
+  private static String hash(byte[] content) {
+    return BackupRepository.toHex(BackupRepository.newDigest().digest(content));
+  }
+
+  @Test
+  public void shouldStoreSharedChunksOnce() throws IOException {
+    BackupRepository repository = openRepository();
+    write(BackupUtils.getBackupDbFile(backupDir), a, b);
+    repository.store(backupDir);
+    write(BackupUtils.getBackupDbFile(backupDir), a, c);
+    repository.store(backupDir);
+    //only the changed chunk
+    assertEquals(1, repository.getWritten());
+    repository.store(backupDir);
+    assertEquals(0, repository.getWritten());
+  }
+
+  @Test
+  public void deleteShouldKeepObjectsOfRemainingBackups() throws IOException {
+    DocumentFile first = store(a, b);
+    DocumentFile second = store(a, c);
+    assertTrue(objects().contains(hash(b)));
+    openRepository().delete(Collections.singletonList(first));
+    assertFalse(first.exists());
+    assertTrue(second.exists());
+    Set<String> objects = objects();
+    assertTrue(objects.contains(hash(a)));
+    assertTrue(objects.contains(hash(c)));
+    assertFalse(objects.contains(hash(b)));
+  }
+
+  @Test
+  public void deleteShouldRemoveLeftoversOfInterruptedBackups() throws IOException {
+    store(a);
+    File objectsDir = new File(new File(appDir, BackupRepository.REPOSITORY_DIR_NAME),
+        BackupRepository.OBJECTS_DIR_NAME);
+    File leftover = new File(objectsDir, "tmp-leftover");
+    assertTrue(leftover.createNewFile());
+    openRepository().delete(Collections.emptyList());
+    assertFalse(leftover.exists());
+    assertTrue(objects().contains(hash(a)));
+  }
+
+  @Test
+  public void deleteShouldNotDeleteObjectsIfManifestCannotBeRead() throws IOException {
+    DocumentFile first = store(a, b);
+    DocumentFile second = store(a, c);
+    File secondFile = new File(second.getUri().getPath());
+    assertTrue(secondFile.setReadable(false));
+    try {
+      openRepository().delete(Collections.singletonList(first));
+      fail("IOException expected");
+    } catch (IOException expected) {
+      //objects referenced by the unreadable manifest must not be deleted
+    } finally {
+      //noinspection ResultOfMethodCallIgnored
+      secondFile.setReadable(true);
+    }
+    assertFalse(first.exists());
+    Set<String> objects = objects();
+    assertTrue(objects.contains(hash(b)));
+    assertTrue(objects.contains(hash(c)));
+  }
+}
@@ -0,0 +1,106 @@
+package org.totschnig.myexpenses.test.util;
+
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.totschnig.myexpenses.util.io.FileCopyUtils;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Measures copying a file of the size of a large database, with the byte array loop
+ * {@link FileCopyUtils} used before, with a transfer between file channels, and with the buffered
+ * loop used for streams that are not backed by files. Results are logged with tag {@link #TAG}.
+ */
+@RunWith(AndroidJUnit4.class)
+public class FileCopyUtilsBenchmarkTest {
+  private static final String TAG = "FileCopyUtilsBenchmark";
+  private static final int SIZE = 200 * 1024 * 1024;
+  private File source, destination;
+
+  @Before
+  public void setUp() throws IOException {
+    File dir = InstrumentationRegistry.getTargetContext().getCacheDir();
+    source = new File(dir, "benchmark.db");
+    destination = new File(dir, "benchmark-copy.db");
+    byte[] chunk = new byte[1024 * 1024];
+    new Random(0).nextBytes(chunk);
+    OutputStream out = new FileOutputStream(source);
+    try {
+      for (int i = 0; i < SIZE / chunk.length; i++) {
+        out.write(chunk);
+      }
+    } finally {
+      out.close();
+    }
+  }
+
+  @After
+  public void tearDown() {
+    //noinspection ResultOfMethodCallIgnored
+    source.delete();
+    //noinspection ResultOfMethodCallIgnored
+    destination.delete();
+  }
+
+  @Test
+  public void copy200MB() throws IOException {
+    long start = System.nanoTime();
+    legacyCopy();
+    long legacyDuration = (System.nanoTime() - start) / 1000000;
+    assertEquals(SIZE, destination.length());
+
+    start = System.nanoTime();
+    assertTrue(FileCopyUtils.copy(source, destination, false));
+    long channelDuration = (System.nanoTime() - start) / 1000000;
+    assertEquals(SIZE, destination.length());
+
+    start = System.nanoTime();
+    assertTrue(FileCopyUtils.copy(source, destination, true));
+    long syncDuration = (System.nanoTime() - start) / 1000000;
+
+    start = System.nanoTime();
+    InputStream in = new BufferedInputStream(new FileInputStream(source));
+    OutputStream out = new FileOutputStream(destination);
+    try {
+      assertEquals(SIZE, FileCopyUtils.copy(in, out));
+    } finally {
+      in.close();
+      out.close();
+    }
+    long streamDuration = (System.nanoTime() - start) / 1000000;
+
+    Log.i(TAG, String.format("%d MB: %d ms with 1 KB buffer, %d ms between channels, %d ms between channels with sync, %d ms from stream",
+        SIZE / 1024 / 1024, legacyDuration, channelDuration, syncDuration, streamDuration));
+  }
+
+  private void legacyCopy() throws IOException {
+    InputStream in = new FileInputStream(source);
+    OutputStream out = new FileOutputStream(destination);
+    try {
+      final byte[] buffer = new byte[1024];
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        out.write(buffer, 0, read);
+      }
+    } finally {
+      in.close();
+      out.close();
+    }
+  }
+}
@@ -0,0 +1,111 @@
+package org.totschnig.myexpenses.test.util;
+
+import android.os.ParcelFileDescriptor;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.totschnig.myexpenses.util.io.FileCopyUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+@RunWith(AndroidJUnit4.class)
+public class FileCopyUtilsTest {
+  private static final int SIZE = 300 * 1024;
+  private byte[] content;
+  private File destination;
+
+  @Before
+  public void setUp() {
+    content = new byte[SIZE];
+    new Random(0).nextBytes(content);
+    destination = new File(InstrumentationRegistry.getTargetContext().getCacheDir(), "copy-test");
+  }
+
+  @After
+  public void tearDown() {
+    //noinspection ResultOfMethodCallIgnored
+    destination.delete();
+  }
+
+  /**
+   * streaming content providers hand out file streams on pipes, which can not be positioned
+   */
+  @Test
+  public void shouldCopyFromPipe() throws Exception {
+    ParcelFileDescriptor[] pipe = ParcelFileDescriptor.createPipe();
+    Thread writer = new Thread(() -> {
+      try {
+        OutputStream out = new ParcelFileDescriptor.AutoCloseOutputStream(pipe[1]);
+        try {
+          out.write(content);
+        } finally {
+          out.close();
+        }
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    });
+    writer.start();
+    InputStream in = new ParcelFileDescriptor.AutoCloseInputStream(pipe[0]);
+    OutputStream out = new FileOutputStream(destination);
+    try {
+      assertEquals(SIZE, FileCopyUtils.copy(in, out));
+    } finally {
+      in.close();
+      out.close();
+    }
+    writer.join();
+    assertArrayEquals(content, readDestination());
+  }
+
+  @Test
+  public void shouldCopyFileFromCurrentPosition() throws IOException {
+    File source = new File(InstrumentationRegistry.getTargetContext().getCacheDir(), "copy-test-source");
+    OutputStream sourceOut = new FileOutputStream(source);
+    try {
+      sourceOut.write(content);
+    } finally {
+      sourceOut.close();
+    }
+    InputStream in = new FileInputStream(source);
+    OutputStream out = new FileOutputStream(destination);
+    try {
+      assertEquals(100, in.skip(100));
+      assertEquals(SIZE - 100, FileCopyUtils.copy(in, out));
+    } finally {
+      in.close();
+      out.close();
+      //noinspection ResultOfMethodCallIgnored
+      source.delete();
+    }
+    assertArrayEquals(Arrays.copyOfRange(content, 100, SIZE), readDestination());
+  }
+
+  private byte[] readDestination() throws IOException {
+    byte[] result = new byte[(int) destination.length()];
+    InputStream in = new FileInputStream(destination);
+    try {
+      int total = 0, read;
+      while (total < result.length && (read = in.read(result, total, result.length - total)) != -1) {
+        total += read;
+      }
+    } finally {
+      in.close();
+    }
+    return result;
+  }
+}
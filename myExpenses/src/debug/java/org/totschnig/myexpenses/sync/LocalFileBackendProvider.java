@@ -15,13 +15,11 @@ import org.totschnig.myexpenses.util.Utils;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStreamWriter;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 
 import dagger.internal.Preconditions;
@@ -89,26 +87,38 @@ class LocalFileBackendProvider extends AbstractSyncBackendProvider {
   }
 
   @Override
-  public void storeBackup(Uri uri, String fileName) throws IOException {
+  protected void writeBackup(String fileName, BackupWriter writer) throws IOException {
     File backupDir = new File(baseDir, BACKUP_FOLDER_NAME);
     //noinspection ResultOfMethodCallIgnored
     backupDir.mkdir();
     if (!backupDir.isDirectory()) {
       throw new IOException("Unable to create directory for backups");
     }
-    saveUriToFolder(fileName, uri, backupDir);
+    FileOutputStream out = new FileOutputStream(new File(backupDir, fileName));
+    try {
+      writer.writeTo(out);
+    } finally {
+      out.close();
+    }
   }
 
   @NonNull
   @Override
   public List<String> getStoredBackups(android.accounts.Account account) throws IOException {
     String[] list = new File(baseDir, BACKUP_FOLDER_NAME).list();
-    return list != null ? Arrays.asList(list) : new ArrayList<>();
+    return list != null ? Stream.of(list).filter(this::isBackup).toList() : new ArrayList<>();
+  }
+
+  @Override
+  public InputStream getInputStreamForBackup(android.accounts.Account account, String backupFile, long offset) throws IOException {
+    FileInputStream in = new FileInputStream(new File(new File(baseDir, BACKUP_FOLDER_NAME), backupFile));
+    in.getChannel().position(offset);
+    return in;
   }
 
   @Override
-  public InputStream getInputStreamForBackup(android.accounts.Account account, String backupFile) throws FileNotFoundException {
-    return new FileInputStream(new File(new File(baseDir, BACKUP_FOLDER_NAME), backupFile));
+  protected void saveBackupContents(String fileName, String fileContents) throws IOException {
+    saveFileContents(new File(new File(baseDir, BACKUP_FOLDER_NAME), fileName), fileContents);
   }
 
   @Override
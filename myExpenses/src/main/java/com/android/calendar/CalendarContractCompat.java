@@ -156,6 +156,9 @@ public final class CalendarContractCompat {
           EVENT_TIMEZONE,
           HAS_ALARM,
           RRULE,
+          RDATE,
+          EXDATE,
+          ORIGINAL_ID,
           CUSTOM_APP_PACKAGE,
           CUSTOM_APP_URI,
           ALL_DAY;
@@ -172,6 +175,9 @@ public final class CalendarContractCompat {
           EVENT_TIMEZONE = "eventTimezone";
           HAS_ALARM = "hasAlarm";
           RRULE = "rrule";
+          RDATE = "rdate";
+          EXDATE = "exdate";
+          ORIGINAL_ID = "original_id";
           ALL_DAY = "allDay";
           CONTENT_URI = Uri.parse("content://" + AUTHORITY + "/events");
         } else {
@@ -185,6 +191,9 @@ public final class CalendarContractCompat {
           EVENT_TIMEZONE = CalendarContract.Events.EVENT_TIMEZONE;
           HAS_ALARM = CalendarContract.Events.HAS_ALARM;
           RRULE = CalendarContract.Events.RRULE;
+          RDATE = CalendarContract.Events.RDATE;
+          EXDATE = CalendarContract.Events.EXDATE;
+          ORIGINAL_ID = CalendarContract.Events.ORIGINAL_ID;
           ALL_DAY = CalendarContract.Events.ALL_DAY;
           CONTENT_URI = CalendarContract.Events.CONTENT_URI;
         }
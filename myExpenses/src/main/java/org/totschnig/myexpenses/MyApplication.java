@@ -16,10 +16,12 @@
 package org.totschnig.myexpenses;
 
 import android.app.ActivityManager;
+import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
 import android.content.res.Configuration;
@@ -27,6 +29,7 @@ import android.database.ContentObserver;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Process;
+import android.os.RemoteException;
 import android.os.StrictMode;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
@@ -49,6 +52,7 @@ import org.totschnig.myexpenses.di.AppComponent;
 import org.totschnig.myexpenses.di.AppModule;
 import org.totschnig.myexpenses.di.DaggerAppComponent;
 import org.totschnig.myexpenses.di.UiModule;
+import org.totschnig.myexpenses.model.Plan;
 import org.totschnig.myexpenses.model.Template;
 import org.totschnig.myexpenses.preference.PrefKey;
 import org.totschnig.myexpenses.provider.DatabaseConstants;
@@ -56,6 +60,7 @@ import org.totschnig.myexpenses.provider.DbUtils;
 import org.totschnig.myexpenses.provider.TransactionProvider;
 import org.totschnig.myexpenses.service.DailyAutoBackupScheduler;
 import org.totschnig.myexpenses.service.PlanExecutor;
+import org.totschnig.myexpenses.service.StaleImagesCollectorService;
 import org.totschnig.myexpenses.sync.SyncAdapter;
 import org.totschnig.myexpenses.util.NotificationBuilderWrapper;
 import org.totschnig.myexpenses.util.Result;
@@ -70,7 +75,11 @@ import org.totschnig.myexpenses.widget.TemplateWidget;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Locale;
+import java.util.Map;
 import java.util.UUID;
 
 import javax.inject.Inject;
@@ -164,6 +173,7 @@ public class MyApplication extends MultiDexApplication implements
       getSettings().registerOnSharedPreferenceChangeListener(this);
       initPlannerInternal(60000);
       registerWidgetObservers();
+      StaleImagesCollectorService.scheduleCollection(this);
     }
     licenceHandler.init();
     Pubnative.setTestMode(BuildConfig.DEBUG);
@@ -593,6 +603,57 @@ public class MyApplication extends MultiDexApplication implements
     }
   }
 
+  /**
+   * @return ids of the events in the planner calendar mapped to the uuid of the template found in
+   * their description
+   */
+  private Map<String, Long> getPlannerEventsByUuid(ContentResolver cr) {
+    Map<String, Long> result = new HashMap<>();
+    Cursor eventCursor = cr.query(Events.CONTENT_URI,
+        new String[]{Events._ID, Events.DESCRIPTION},
+        Events.CALENDAR_ID + " = ?", new String[]{mPlannerCalendarId}, null);
+    if (eventCursor != null) {
+      if (eventCursor.moveToFirst()) {
+        do {
+          String uuid = Plan.extractUuid(eventCursor.getString(1));
+          if (uuid != null && !result.containsKey(uuid)) {
+            result.put(uuid, eventCursor.getLong(0));
+          }
+        } while (eventCursor.moveToNext());
+      }
+      eventCursor.close();
+    }
+    return result;
+  }
+
+  /**
+   * @return data of the events cached on backup mapped to the uuid of their template
+   */
+  private Map<String, ContentValues> getCachedEventsByUuid(ContentResolver cr) {
+    Map<String, ContentValues> result = new HashMap<>();
+    String[] projection = buildEventProjection();
+    String[] projectionWithUuid = Arrays.copyOf(projection, projection.length + 1);
+    projectionWithUuid[projection.length] = DatabaseConstants.KEY_UUID;
+    Cursor eventCursor = cr.query(TransactionProvider.EVENT_CACHE_URI, projectionWithUuid,
+        null, null, null);
+    if (eventCursor != null) {
+      if (eventCursor.moveToFirst()) {
+        do {
+          //backups from older versions do not have the uuid column populated
+          String uuid = eventCursor.isNull(projection.length) ?
+              Plan.extractUuid(eventCursor.getString(7)) : eventCursor.getString(projection.length);
+          if (uuid != null && !result.containsKey(uuid)) {
+            ContentValues eventValues = new ContentValues();
+            copyEventData(eventCursor, eventValues);
+            result.put(uuid, eventValues);
+          }
+        } while (eventCursor.moveToNext());
+      }
+      eventCursor.close();
+    }
+    return result;
+  }
+
   private boolean insertEventAndUpdatePlan(ContentValues eventValues,
                                            long templateId) {
     Uri uri = getContentResolver().insert(Events.CONTENT_URI, eventValues);
@@ -745,70 +806,58 @@ public class MyApplication extends MultiDexApplication implements
           mPlannerCalendarId = c.getString(0);
           Timber.d("restorePlaner: found calendar with id %s", mPlannerCalendarId);
           PrefKey.PLANNER_CALENDAR_ID.putString(mPlannerCalendarId);
-          ContentValues planValues = new ContentValues(), eventValues = new ContentValues();
-          eventValues.put(Events.CALENDAR_ID,
-              Long.parseLong(mPlannerCalendarId));
           Cursor planCursor = cr.query(Template.CONTENT_URI, new String[]{
               DatabaseConstants.KEY_ROWID, DatabaseConstants.KEY_PLANID,
               DatabaseConstants.KEY_UUID}, DatabaseConstants.KEY_PLANID
               + " IS NOT null", null, null);
           if (planCursor != null) {
             if (planCursor.moveToFirst()) {
+              Map<String, Long> events = getPlannerEventsByUuid(cr);
+              Map<String, ContentValues> cachedEvents = getCachedEventsByUuid(cr);
+              ArrayList<ContentProviderOperation> ops = new ArrayList<>();
+              int relinkedPlansCount = 0;
               do {
                 long templateId = planCursor.getLong(0);
                 long oldPlanId = planCursor.getLong(1);
                 String uuid = planCursor.getString(2);
-                Cursor eventCursor = cr
-                    .query(Events.CONTENT_URI, new String[]{Events._ID},
-                        Events.CALENDAR_ID + " = ? AND " + Events.DESCRIPTION
-                            + " LIKE ?", new String[]{mPlannerCalendarId,
-                            "%" + uuid + "%"}, null);
-                if (eventCursor != null) {
-                  if (eventCursor.moveToFirst()) {
-                    long newPlanId = eventCursor.getLong(0);
-                    Timber.d("Looking for event with uuid %s: found id %d. Original event had id %d",
-                        uuid, newPlanId, oldPlanId);
-                    if (newPlanId != oldPlanId) {
-                      planValues.put(DatabaseConstants.KEY_PLANID, newPlanId);
-                      int updated = cr.update(ContentUris.withAppendedId(
-                          Template.CONTENT_URI, templateId), planValues, null,
-                          null);
-                      if (updated > 0) {
-                        Timber.i("updated plan id in template: %d", templateId);
-                        restoredPlansCount++;
-                      }
-                    } else {
-                      restoredPlansCount++;
-                    }
-                    continue;
+                Uri templateUri = ContentUris.withAppendedId(Template.CONTENT_URI, templateId);
+                Long newPlanId = events.get(uuid);
+                if (newPlanId != null) {
+                  Timber.d("Looking for event with uuid %s: found id %d. Original event had id %d",
+                      uuid, newPlanId, oldPlanId);
+                  if (newPlanId != oldPlanId) {
+                    ops.add(ContentProviderOperation.newUpdate(templateUri)
+                        .withValue(DatabaseConstants.KEY_PLANID, newPlanId).build());
+                    relinkedPlansCount++;
+                  } else {
+                    restoredPlansCount++;
                   }
-                  eventCursor.close();
+                  continue;
                 }
                 Timber.d("Looking for event with uuid %s did not find, now reconstructing from cache",
                     uuid);
-                eventCursor = cr.query(TransactionProvider.EVENT_CACHE_URI,
-                    buildEventProjection(), Events.DESCRIPTION + " LIKE ?",
-                    new String[]{"%" + uuid + "%"}, null);
-                boolean found = false;
-                if (eventCursor != null) {
-                  if (eventCursor.moveToFirst()) {
-                    found = true;
-                    copyEventData(eventCursor, eventValues);
-                    if (insertEventAndUpdatePlan(eventValues, templateId)) {
-                      Timber.i("updated plan id in template %d", templateId);
-                      restoredPlansCount++;
-                    }
+                ContentValues eventValues = cachedEvents.get(uuid);
+                if (eventValues != null) {
+                  eventValues.put(Events.CALENDAR_ID, Long.parseLong(mPlannerCalendarId));
+                  if (insertEventAndUpdatePlan(eventValues, templateId)) {
+                    Timber.i("updated plan id in template %d", templateId);
+                    restoredPlansCount++;
                   }
-                  eventCursor.close();
-                }
-                if (!found) {
+                } else {
                   //need to set eventId to null
-                  planValues.putNull(DatabaseConstants.KEY_PLANID);
-                  getContentResolver().update(
-                      ContentUris.withAppendedId(Template.CONTENT_URI, templateId),
-                      planValues, null, null);
+                  ops.add(ContentProviderOperation.newUpdate(templateUri)
+                      .withValue(DatabaseConstants.KEY_PLANID, null).build());
                 }
               } while (planCursor.moveToNext());
+              if (!ops.isEmpty()) {
+                try {
+                  cr.applyBatch(TransactionProvider.AUTHORITY, ops);
+                  Timber.i("updated plan id in %d templates", ops.size());
+                  restoredPlansCount += relinkedPlansCount;
+                } catch (RemoteException | OperationApplicationException e) {
+                  CrashHandler.report(e);
+                }
+              }
             }
             planCursor.close();
           }
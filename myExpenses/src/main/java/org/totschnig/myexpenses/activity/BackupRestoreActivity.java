@@ -15,14 +15,13 @@
 
 package org.totschnig.myexpenses.activity;
 
+import android.app.ProgressDialog;
 import android.content.ComponentName;
 import android.net.Uri;
 import android.os.Bundle;
 import android.support.annotation.NonNull;
 import android.support.v4.provider.DocumentFile;
 
-import com.annimon.stream.Stream;
-
 import org.totschnig.myexpenses.MyApplication;
 import org.totschnig.myexpenses.R;
 import org.totschnig.myexpenses.dialog.BackupListDialogFragment;
@@ -32,11 +31,14 @@ import org.totschnig.myexpenses.dialog.ConfirmationDialogFragment;
 import org.totschnig.myexpenses.dialog.ConfirmationDialogFragment.ConfirmationDialogListener;
 import org.totschnig.myexpenses.dialog.DialogUtils;
 import org.totschnig.myexpenses.dialog.MessageDialogFragment;
+import org.totschnig.myexpenses.dialog.ProgressDialogFragment;
 import org.totschnig.myexpenses.preference.PrefKey;
 import org.totschnig.myexpenses.task.RestoreTask;
 import org.totschnig.myexpenses.task.TaskExecutionFragment;
 import org.totschnig.myexpenses.ui.SnackbarAction;
 import org.totschnig.myexpenses.util.AppDirHelper;
+import org.totschnig.myexpenses.util.BackupEncryption;
+import org.totschnig.myexpenses.util.BackupUtils;
 import org.totschnig.myexpenses.util.io.FileUtils;
 import org.totschnig.myexpenses.util.PermissionHelper;
 import org.totschnig.myexpenses.util.Result;
@@ -160,8 +162,18 @@ public class BackupRestoreActivity extends ProtectedFragmentActivity
   protected void doBackup() {
     Result appDirStatus = AppDirHelper.checkAppDir(this);//TODO this check leads to strict mode violation, can we get rid of it ?
     if (appDirStatus.isSuccess()) {
-      startTaskExecution(TaskExecutionFragment.TASK_BACKUP, null, null,
-          R.string.menu_backup, true);
+      if (hasPendingTask(true)) {
+        return;
+      }
+      //progress of the database snapshot is reported in percent
+      ProgressDialogFragment progressDialogFragment = ProgressDialogFragment.newInstance(
+          0, R.string.menu_backup, ProgressDialog.STYLE_HORIZONTAL, true);
+      progressDialogFragment.setMax(100);
+      getSupportFragmentManager().beginTransaction()
+          .add(TaskExecutionFragment.newInstance(TaskExecutionFragment.TASK_BACKUP, null, null),
+              ASYNC_TAG)
+          .add(progressDialogFragment, PROGRESS_TAG)
+          .commit();
     } else {
       abort(appDirStatus.print(this));
     }
@@ -183,7 +195,7 @@ public class BackupRestoreActivity extends ProtectedFragmentActivity
             uris.add(backupFileUri);
             Result shareResult = ShareUtils.share(this, uris,
                 PrefKey.SHARE_TARGET.getString("").trim(),
-                "application/zip");
+                BackupEncryption.isEnabled() ? BackupEncryption.MIME_TYPE : "application/zip");
             if (!shareResult.isSuccess()) {
               onProgressUpdate(shareResult.print(this));
             }
@@ -238,9 +250,7 @@ public class BackupRestoreActivity extends ProtectedFragmentActivity
   }
 
   public boolean hasBackups() {
-    DocumentFile appDir = AppDirHelper.getAppDir(this);
-    return appDir != null && Stream.of(appDir.listFiles())
-        .anyMatch(documentFile -> documentFile.getName().endsWith(".zip"));
+    return !BackupUtils.listBackups(this).isEmpty();
   }
 
   @Override
@@ -66,7 +66,6 @@ import android.widget.ToggleButton;
 
 import com.android.calendar.CalendarContractCompat;
 import com.android.calendar.CalendarContractCompat.Events;
-import com.squareup.picasso.Picasso;
 
 import org.threeten.bp.Instant;
 import org.threeten.bp.LocalDate;
@@ -113,6 +112,7 @@ import org.totschnig.myexpenses.util.DistribHelper;
 import org.totschnig.myexpenses.util.FilterCursorWrapper;
 import org.totschnig.myexpenses.util.PermissionHelper;
 import org.totschnig.myexpenses.util.PictureDirHelper;
+import org.totschnig.myexpenses.util.ThumbnailHelper;
 import org.totschnig.myexpenses.util.UiUtils;
 import org.totschnig.myexpenses.util.UiUtils.DateMode;
 import org.totschnig.myexpenses.util.Utils;
@@ -1377,7 +1377,7 @@ public class ExpenseEdit extends AmountActivity implements
   protected void setPicture() {
     if (mPictureUri != null) {
       mPictureViewContainer.setVisibility(View.VISIBLE);
-      Picasso.get().load(mPictureUri).fit().into((ImageView) mPictureViewContainer.findViewById(R.id.picture));
+      ThumbnailHelper.load(mPictureUri).fit().into((ImageView) mPictureViewContainer.findViewById(R.id.picture));
       mAttachPictureButton.setVisibility(View.GONE);
     }
   }
@@ -70,6 +70,7 @@ import org.totschnig.myexpenses.model.ContribFeature;
 import org.totschnig.myexpenses.model.Grouping;
 import org.totschnig.myexpenses.model.Money;
 import org.totschnig.myexpenses.model.SortDirection;
+import org.totschnig.myexpenses.model.SplitTransaction;
 import org.totschnig.myexpenses.model.Template;
 import org.totschnig.myexpenses.model.Transaction;
 import org.totschnig.myexpenses.preference.PrefKey;
@@ -111,6 +112,7 @@ import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_CLEARED_TO
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_COLOR;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_CURRENCY;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_CURRENT_BALANCE;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_DATE;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_GROUPING;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_HAS_CLEARED;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_HAS_EXPORTED;
@@ -1025,7 +1027,23 @@ public class MyExpenses extends LaunchActivity implements
         break;
       }
       case R.id.UNGROUP_SPLIT_COMMAND: {
-        startTaskExecution(TaskExecutionFragment.TASK_REVOKE_SPLIT, args, R.string.progress_dialog_saving);
+        long[] ids = args.getLongArray(KEY_LONG_IDS);
+        if (ids != null && ids.length > SplitTransaction.UNSPLIT_CHUNK_SIZE) {
+          if (hasPendingTask(true)) {
+            break;
+          }
+          //progress is reported after each chunk
+          ProgressDialogFragment progressDialogFragment = ProgressDialogFragment.newInstance(
+              0, R.string.progress_dialog_saving, ProgressDialog.STYLE_HORIZONTAL, false);
+          progressDialogFragment.setMax(ids.length);
+          getSupportFragmentManager().beginTransaction()
+              .add(TaskExecutionFragment.newInstanceWithBundle(args, TaskExecutionFragment.TASK_REVOKE_SPLIT),
+                  ASYNC_TAG)
+              .add(progressDialogFragment, PROGRESS_TAG)
+              .commit();
+        } else {
+          startTaskExecution(TaskExecutionFragment.TASK_REVOKE_SPLIT, args, R.string.progress_dialog_saving);
+        }
         break;
       }
     }
@@ -1044,8 +1062,11 @@ public class MyExpenses extends LaunchActivity implements
         break;
       }
       case R.id.BALANCE_COMMAND_DO: {
+        //the statement end date, if given, is passed as second id
         startTaskExecution(TaskExecutionFragment.TASK_BALANCE,
-            new Long[]{args.getLong(KEY_ROWID)},
+            args.containsKey(KEY_DATE) ?
+                new Long[]{args.getLong(KEY_ROWID), args.getLong(KEY_DATE)} :
+                new Long[]{args.getLong(KEY_ROWID)},
             checked, 0);
         break;
       }
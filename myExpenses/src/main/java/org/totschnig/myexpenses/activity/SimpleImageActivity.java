@@ -3,6 +3,7 @@ package org.totschnig.myexpenses.activity;
 
 import android.app.Activity;
 import android.os.Bundle;
+import android.util.DisplayMetrics;
 import android.view.WindowManager;
 import android.widget.ImageView;
 
@@ -11,12 +12,23 @@ import com.squareup.picasso.Picasso;
 import org.totschnig.myexpenses.R;
 
 public class SimpleImageActivity extends Activity {
+  /**
+   * the picture is decoded with up to this multiple of the screen size, so that zooming in
+   * reveals details, while multi-megapixel pictures are still sampled down
+   */
+  private static final int ZOOM_FACTOR = 2;
 
   @Override
   public void onCreate(Bundle savedInstanceState) {
     super.onCreate(savedInstanceState);
     getWindow().addFlags(WindowManager.LayoutParams.FLAG_DIM_BEHIND);
     setContentView(R.layout.simple_image);
-    Picasso.get().load(getIntent().getData()).into(((ImageView) findViewById(R.id.imageView)));
+    DisplayMetrics displayMetrics = getResources().getDisplayMetrics();
+    int size = Math.max(displayMetrics.widthPixels, displayMetrics.heightPixels) * ZOOM_FACTOR;
+    Picasso.get().load(getIntent().getData())
+        .resize(size, size)
+        .centerInside()
+        .onlyScaleDown()
+        .into(((ImageView) findViewById(R.id.imageView)));
   }
-}
\ No newline at end of file
+}
@@ -4,7 +4,6 @@ import android.app.Dialog;
 import android.content.DialogInterface;
 import android.os.Bundle;
 import android.support.annotation.Nullable;
-import android.support.v4.provider.DocumentFile;
 import android.support.v7.app.AlertDialog;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -13,24 +12,25 @@ import android.widget.ArrayAdapter;
 import android.widget.RadioGroup;
 import android.widget.Spinner;
 
-import com.annimon.stream.Stream;
-
 import org.totschnig.myexpenses.R;
 import org.totschnig.myexpenses.activity.BackupRestoreActivity;
 import org.totschnig.myexpenses.dialog.MessageDialogFragment.MessageDialogListener;
-import org.totschnig.myexpenses.util.AppDirHelper;
+import org.totschnig.myexpenses.util.BackupIndex;
+import org.totschnig.myexpenses.util.BackupUtils;
+
+import java.util.List;
 
 public class BackupListDialogFragment extends CommitSafeDialogFragment
     implements DialogInterface.OnClickListener,DialogUtils.CalendarRestoreStrategyChangedListener {
   RadioGroup mRestorePlanStrategie;
   Spinner selectBackupSpinner;
   RadioGroup.OnCheckedChangeListener mCalendarRestoreButtonCheckedChangeListener;
-  DocumentFile[] backupFiles;
+  List<BackupIndex.Entry> backups;
 
   @Override
   public void onCreate(@Nullable Bundle savedInstanceState) {
     super.onCreate(savedInstanceState);
-    backupFiles = listBackups();
+    backups = listBackups();
   }
 
   @Override
@@ -38,9 +38,8 @@ public class BackupListDialogFragment extends CommitSafeDialogFragment
     LayoutInflater li = LayoutInflater.from(getActivity());
     //noinspection InflateParams
     View view = li.inflate(R.layout.backup_restore_fallback_dialog, null);
-    ArrayAdapter<DocumentFileItem> adapter = new ArrayAdapter<>(getActivity(),
-        android.R.layout.simple_spinner_item,
-        Stream.of(backupFiles).map(DocumentFileItem::new).toArray(DocumentFileItem[]::new));
+    ArrayAdapter<BackupIndex.Entry> adapter = new ArrayAdapter<>(getActivity(),
+        android.R.layout.simple_spinner_item, backups);
     selectBackupSpinner = view.findViewById(R.id.select_backup);
     selectBackupSpinner.setAdapter(adapter);
     adapter.setDropDownViewResource(R.layout.support_simple_spinner_dropdown_item);
@@ -79,7 +78,7 @@ public class BackupListDialogFragment extends CommitSafeDialogFragment
       int position = selectBackupSpinner.getSelectedItemPosition();
       if (position!= AdapterView.INVALID_POSITION) {
         ((BackupRestoreActivity) getActivity()).onSourceSelected(
-            backupFiles[position].getUri(),
+            backups.get(position).uri,
             mRestorePlanStrategie == null ? R.id.restore_calendar_handling_ignore :
                 mRestorePlanStrategie.getCheckedRadioButtonId());
         return;
@@ -112,24 +111,7 @@ public class BackupListDialogFragment extends CommitSafeDialogFragment
     setButtonState();
   }
 
-  public DocumentFile[] listBackups() {
-    DocumentFile appDir = AppDirHelper.getAppDir(getContext());
-    return appDir != null ? Stream.of(appDir.listFiles())
-        .filter(documentFile -> documentFile.getName().endsWith(".zip"))
-        .toArray(DocumentFile[]::new) : new DocumentFile[]{};
-  }
-
-  private static class DocumentFileItem {
-    private final DocumentFile documentFile;
-
-    private DocumentFileItem(DocumentFile documentFile) {
-      this.documentFile = documentFile;
-    }
-
-    @Override
-    public String toString() {
-      return documentFile.getName();
-    }
-
+  public List<BackupIndex.Entry> listBackups() {
+    return BackupUtils.listBackups(getContext());
   }
 }
@@ -8,6 +8,7 @@ import android.widget.RadioGroup;
 import org.totschnig.myexpenses.R;
 import org.totschnig.myexpenses.activity.BackupRestoreActivity;
 import org.totschnig.myexpenses.activity.ProtectedFragmentActivity;
+import org.totschnig.myexpenses.util.BackupEncryption;
 import org.totschnig.myexpenses.util.Utils;
 
 public class BackupSourcesDialogFragment extends ImportSourceDialogFragment
@@ -49,8 +50,10 @@ public class BackupSourcesDialogFragment extends ImportSourceDialogFragment
 
   @Override
   public boolean checkTypeParts(String[] typeParts) {
-    return typeParts[0].equals("application") && 
-    typeParts[1].equals("zip");
+    //providers that do not know our extension for encrypted backups report them as octet-stream
+    return typeParts[0].equals("application") &&
+        (typeParts[1].equals("zip") || typeParts[1].equals(BackupEncryption.EXTENSION) ||
+            typeParts[1].equals("octet-stream"));
   }
 
   @Override
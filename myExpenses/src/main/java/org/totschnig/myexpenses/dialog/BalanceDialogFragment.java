@@ -25,13 +25,17 @@ import android.support.v7.app.AlertDialog;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.widget.CheckBox;
+import android.widget.DatePicker;
 import android.widget.TextView;
 
 import org.totschnig.myexpenses.R;
 import org.totschnig.myexpenses.activity.MyExpenses;
 import org.totschnig.myexpenses.util.UiUtils;
 
+import java.util.Calendar;
+
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_CLEARED_TOTAL;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_DATE;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_LABEL;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_RECONCILED_TOTAL;
 
@@ -54,6 +58,9 @@ public class BalanceDialogFragment extends CommitSafeDialogFragment implements O
     TextView clearedTextView = view.findViewById(R.id.TotalCleared);
     UiUtils.configureAmountTextViewForHebrew(clearedTextView);
     clearedTextView.setText(getArguments().getString(KEY_CLEARED_TOTAL));
+    DatePicker statementDate = view.findViewById(R.id.StatementDate);
+    ((CheckBox) view.findViewById(R.id.balance_statement)).setOnCheckedChangeListener(
+        (buttonView, isChecked) -> statementDate.setVisibility(isChecked ? View.VISIBLE : View.GONE));
     return new AlertDialog.Builder(getActivity())
       .setTitle(getString(R.string.dialog_title_balance_account,getArguments().getString(KEY_LABEL)))
       .setView(view)
@@ -67,8 +74,17 @@ public class BalanceDialogFragment extends CommitSafeDialogFragment implements O
     if (ctx==null) {
       return;
     }
+    AlertDialog alertDialog = (AlertDialog) dialog;
     Bundle b = getArguments();
     b.putInt(ConfirmationDialogFragment.KEY_COMMAND_POSITIVE, R.id.BALANCE_COMMAND_DO);
-    ctx.onPositive(b, ((CheckBox) ((AlertDialog) dialog).findViewById(R.id.balance_delete)).isChecked());
+    if (((CheckBox) alertDialog.findViewById(R.id.balance_statement)).isChecked()) {
+      DatePicker statementDate = alertDialog.findViewById(R.id.StatementDate);
+      Calendar cal = Calendar.getInstance();
+      cal.set(statementDate.getYear(), statementDate.getMonth(), statementDate.getDayOfMonth(), 23, 59, 59);
+      b.putLong(KEY_DATE, cal.getTimeInMillis() / 1000);
+    } else {
+      b.remove(KEY_DATE);
+    }
+    ctx.onPositive(b, ((CheckBox) alertDialog.findViewById(R.id.balance_delete)).isChecked());
   }
 }
@@ -68,7 +68,7 @@ import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ROWID;
 public class ExportDialogFragment extends CommitSafeDialogFragment implements android.content.DialogInterface.OnClickListener, OnCheckedChangeListener {
   private static final String KEY_IS_FILTERED = "is_filtered";
   RadioGroup handleDeletedGroup;
-  CheckBox notYetExportedCB, deleteCB;
+  CheckBox notYetExportedCB, deleteCB, zipCB, incrementalCB;
   RadioButton formatRBCSV, separatorRBComma;
   TextView warningTV;
   EditText dateFormatET, fileNameET;
@@ -205,6 +205,8 @@ public class ExportDialogFragment extends CommitSafeDialogFragment implements an
 
     notYetExportedCB = dialogView.findViewById(R.id.export_not_yet_exported);
     deleteCB = dialogView.findViewById(R.id.export_delete);
+    zipCB = dialogView.findViewById(R.id.export_zip);
+    incrementalCB = dialogView.findViewById(R.id.export_incremental);
     warningTV = dialogView.findViewById(R.id.warning_reset);
 
     String encoding = MyApplication.getInstance().getSettings()
@@ -255,6 +257,12 @@ public class ExportDialogFragment extends CommitSafeDialogFragment implements an
     }
 
     deleteCB.setOnCheckedChangeListener(this);
+    if (args.getBoolean(KEY_IS_FILTERED)) {
+      //the watermark is kept per account, it would not be meaningful for a filtered export
+      incrementalCB.setVisibility(View.GONE);
+    } else {
+      incrementalCB.setOnCheckedChangeListener(this);
+    }
     if (hasExported) {
       notYetExportedCB.setChecked(true);
       notYetExportedCB.setVisibility(View.VISIBLE);
@@ -263,6 +271,7 @@ public class ExportDialogFragment extends CommitSafeDialogFragment implements an
     warningTV.setText(warningText);
     if (allP) {
       ((TextView) dialogView.findViewById(R.id.file_name_label)).setText(R.string.folder_name);
+      zipCB.setVisibility(View.VISIBLE);
     }
 
     final View helpIcon = dialogView.findViewById(R.id.date_format_help);
@@ -378,6 +387,8 @@ public class ExportDialogFragment extends CommitSafeDialogFragment implements an
       b.putString(TaskExecutionFragment.KEY_FORMAT, format);
       b.putBoolean(ExportTask.KEY_DELETE_P, deleteP);
       b.putBoolean(ExportTask.KEY_NOT_YET_EXPORTED_P, notYetExportedP);
+      b.putBoolean(ExportTask.KEY_ZIP_P, zipCB.isChecked());
+      b.putBoolean(ExportTask.KEY_INCREMENTAL_P, incrementalCB.isChecked());
       b.putString(TaskExecutionFragment.KEY_DATE_FORMAT, dateFormat);
       b.putChar(ExportTask.KEY_DECIMAL_SEPARATOR, decimalSeparator);
       b.putString(TaskExecutionFragment.KEY_ENCODING, encoding);
@@ -404,7 +415,21 @@ public class ExportDialogFragment extends CommitSafeDialogFragment implements an
 
   @Override
   public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
-    configure(isChecked);
+    if (buttonView.getId() == R.id.export_incremental) {
+      configureIncremental(isChecked);
+    } else {
+      configure(isChecked);
+    }
+  }
+
+  /*
+   * incremental exports leave transactions in place, hence can not be combined with deleting
+   */
+  private void configureIncremental(boolean incremental) {
+    if (incremental) {
+      deleteCB.setChecked(false);
+    }
+    deleteCB.setEnabled(!incremental);
   }
 
   /* 
@@ -432,6 +457,7 @@ public class ExportDialogFragment extends CommitSafeDialogFragment implements an
   public void onStart() {
     super.onStart();
     configure(deleteCB.isChecked());
+    configureIncremental(incrementalCB.isChecked());
     int checkedId = handleDeletedGroup.getCheckedRadioButtonId();
     if (checkedId == R.id.update_balance)
       handleDeletedAction = Account.EXPORT_HANDLE_DELETED_UPDATE_BALANCE;
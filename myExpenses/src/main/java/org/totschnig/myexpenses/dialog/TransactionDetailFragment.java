@@ -40,8 +40,6 @@ import android.widget.ListView;
 import android.widget.SimpleCursorAdapter;
 import android.widget.TextView;
 
-import com.squareup.picasso.Picasso;
-
 import org.threeten.bp.Instant;
 import org.threeten.bp.ZoneId;
 import org.threeten.bp.ZonedDateTime;
@@ -67,6 +65,7 @@ import org.totschnig.myexpenses.provider.TransactionProvider;
 import org.totschnig.myexpenses.task.TaskExecutionFragment;
 import org.totschnig.myexpenses.util.CurrencyFormatter;
 import org.totschnig.myexpenses.util.PictureDirHelper;
+import org.totschnig.myexpenses.util.ThumbnailHelper;
 import org.totschnig.myexpenses.util.UiUtils;
 import org.totschnig.myexpenses.util.Utils;
 import org.totschnig.myexpenses.util.crashreporting.CrashHandler;
@@ -450,7 +449,7 @@ public class TransactionDetailFragment extends CommitSafeDialogFragment implemen
       ImageView image = dlg.getWindow().findViewById(android.R.id.icon);
       image.setVisibility(View.VISIBLE);
       image.setScaleType(ImageView.ScaleType.CENTER_CROP);
-      Picasso.get().load(mTransaction.getPictureUri()).fit().into(image);
+      ThumbnailHelper.load(mTransaction.getPictureUri()).fit().into(image);
     }
   }
 
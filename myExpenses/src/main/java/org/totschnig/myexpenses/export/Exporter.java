@@ -4,14 +4,12 @@ import android.database.Cursor;
 import android.net.Uri;
 import android.support.v4.provider.DocumentFile;
 
-import org.apache.commons.lang3.StringUtils;
 import org.totschnig.myexpenses.MyApplication;
 import org.totschnig.myexpenses.R;
 import org.totschnig.myexpenses.model.Account;
 import org.totschnig.myexpenses.model.Category;
 import org.totschnig.myexpenses.model.ExportFormat;
 import org.totschnig.myexpenses.model.Model;
-import org.totschnig.myexpenses.model.Money;
 import org.totschnig.myexpenses.model.PaymentMethod;
 import org.totschnig.myexpenses.model.SplitTransaction;
 import org.totschnig.myexpenses.model.Transaction;
@@ -23,13 +21,11 @@ import org.totschnig.myexpenses.util.Result;
 import org.totschnig.myexpenses.util.Utils;
 import org.totschnig.myexpenses.util.io.FileUtils;
 
+import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
-import java.math.BigDecimal;
+import java.io.Writer;
 import java.text.DecimalFormat;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.Locale;
 
 import timber.log.Timber;
 
@@ -53,12 +49,14 @@ import static org.totschnig.myexpenses.provider.DatabaseConstants.SPLIT_CATID;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.STATUS_NONE;
 
 public class Exporter {
+  private static final int WRITER_BUFFER_SIZE = 64 * 1024;
   private Account account;
   WhereFilter filter;
   DocumentFile destDir;
   String fileName;
   ExportFormat format;
   boolean notYetExportedP;
+  boolean incrementalP;
   String dateFormat;
   char decimalSeparator;
   String encoding;
@@ -77,6 +75,18 @@ public class Exporter {
   public Exporter(Account account, WhereFilter filter, DocumentFile destDir, String fileName,
                   ExportFormat format, boolean notYetExportedP, String dateFormat,
                   char decimalSeparator, String encoding) {
+    this(account, filter, destDir, fileName, format, notYetExportedP, dateFormat,
+        decimalSeparator, encoding, false);
+  }
+
+  /**
+   * @param incrementalP if true only transactions added since the last incremental export are
+   *                     handled, and the account's export watermark is advanced once the file has
+   *                     been written. The export status of transactions is not touched.
+   */
+  public Exporter(Account account, WhereFilter filter, DocumentFile destDir, String fileName,
+                  ExportFormat format, boolean notYetExportedP, String dateFormat,
+                  char decimalSeparator, String encoding, boolean incrementalP) {
     this.account = account;
     this.destDir = destDir;
     this.filter = filter;
@@ -86,17 +96,23 @@ public class Exporter {
     this.dateFormat = dateFormat;
     this.decimalSeparator = decimalSeparator;
     this.encoding = encoding;
+    this.incrementalP = incrementalP;
   }
 
   public Result<Uri> export() throws IOException {
     MyApplication ctx = MyApplication.getInstance();
-    DecimalFormat nfFormat = Utils.getDecimalFormat(account.currency, decimalSeparator);
+    DecimalFormat nfFormat = FormatterCache.getDecimalFormat(account.currency, decimalSeparator);
     Timber.i("now starting export");
     //first we check if there are any exportable transactions
     String selection = KEY_ACCOUNTID + " = ? AND " + KEY_PARENTID + " is null";
     String[] selectionArgs = new String[]{String.valueOf(account.getId())};
     if (notYetExportedP)
       selection += " AND " + KEY_STATUS + " = " + STATUS_NONE;
+    if (incrementalP) {
+      selection += " AND " + KEY_ROWID + " > ?";
+      selectionArgs = Utils.joinArrays(selectionArgs,
+          new String[]{String.valueOf(account.getExportWatermark())});
+    }
     if (filter != null && !filter.isEmpty()) {
       selection += " AND " + filter.getSelectionForParents(DatabaseConstants.VIEW_EXTENDED);
       selectionArgs = Utils.joinArrays(selectionArgs, filter.getSelectionArgs(false));
@@ -120,17 +136,16 @@ public class Exporter {
           fileName, FileUtils.getPath(MyApplication.getInstance(), destDir.getUri()));
     }
     c.moveToFirst();
-    Utils.StringBuilderWrapper sb = new Utils.StringBuilderWrapper();
-    SimpleDateFormat formatter = new SimpleDateFormat(dateFormat, Locale.US);
-    OutputStreamWriter out = new OutputStreamWriter(
+    RowFormatter sb = new RowFormatter(nfFormat, FormatterCache.getDateFormat(dateFormat));
+    Writer out = new BufferedWriter(new OutputStreamWriter(
         Model.cr().openOutputStream(outputFile.getUri()),
-        encoding);
+        encoding), WRITER_BUFFER_SIZE);
     switch (format) {
       case CSV:
         int[] columns = {R.string.split_transaction, R.string.date, R.string.payer_or_payee, R.string.income, R.string.expense,
             R.string.category, R.string.subcategory, R.string.comment, R.string.method, R.string.status, R.string.reference_number, R.string.picture};
         for (int column : columns) {
-          sb.append("\"")
+          sb.append('"')
               .appendQ(ctx.getString(column))
               .append("\";");
         }
@@ -144,19 +159,33 @@ public class Exporter {
             .append("\n^\n!Type:")
             .append(account.getType().toQifName());
     }
-    sb.append("\n");
+    sb.append('\n');
     //Write header
-    out.write(sb.toString());
+    sb.writeTo(out);
+    String transferLabel = ctx.getString(R.string.transfer);
+    int columnIndexComment = c.getColumnIndexOrThrow(KEY_COMMENT);
+    int columnIndexCatId = c.getColumnIndexOrThrow(KEY_CATID);
+    int columnIndexRowId = c.getColumnIndexOrThrow(KEY_ROWID);
+    int columnIndexPayee = c.getColumnIndexOrThrow(KEY_PAYEE_NAME);
+    int columnIndexDate = c.getColumnIndexOrThrow(KEY_DATE);
+    int columnIndexAmount = c.getColumnIndexOrThrow(KEY_AMOUNT);
+    int columnIndexCrStatus = c.getColumnIndexOrThrow(KEY_CR_STATUS);
+    int columnIndexReferenceNumber = c.getColumnIndexOrThrow(KEY_REFERENCE_NUMBER);
+    int columnIndexMethodId = c.getColumnIndexOrThrow(KEY_METHODID);
+    int columnIndexPictureUri = c.getColumnIndexOrThrow(KEY_PICTURE_URI);
+    long maxRowId = 0L;
     while (c.getPosition() < c.getCount()) {
-      String comment = DbUtils.getString(c, KEY_COMMENT);
-      String full_label = "", label_sub = "", label_main;
+      String comment = DbUtils.getString(c, columnIndexComment);
+      String labelSub = "", labelMain;
+      boolean isTransfer = false;
       Transaction.CrStatus status;
-      Long catId = DbUtils.getLongOrNull(c, KEY_CATID);
+      maxRowId = Math.max(maxRowId, c.getLong(columnIndexRowId));
+      boolean isSplit = !c.isNull(columnIndexCatId) && c.getLong(columnIndexCatId) == SPLIT_CATID;
       Cursor splits = null, readCat;
-      if (SPLIT_CATID.equals(catId)) {
+      if (isSplit) {
         //split transactions take their full_label from the first split part
         splits = Model.cr().query(Transaction.CONTENT_URI, null,
-            KEY_PARENTID + " = " + c.getLong(c.getColumnIndex(KEY_ROWID)), null, null);
+            KEY_PARENTID + " = " + c.getLong(columnIndexRowId), null, null);
         if (splits != null && splits.moveToFirst()) {
           readCat = splits;
         } else {
@@ -165,55 +194,37 @@ public class Exporter {
       } else {
         readCat = c;
       }
-      Long transfer_peer = DbUtils.getLongOrNull(readCat, KEY_TRANSFER_PEER);
-      label_main = DbUtils.getString(readCat, KEY_LABEL_MAIN);
-      if (label_main.length() > 0) {
-        if (transfer_peer != null) {
-          full_label = "[" + label_main + "]";
-          label_main = ctx.getString(R.string.transfer);
-          label_sub = full_label;
-        } else {
-          full_label = label_main;
-          label_sub = DbUtils.getString(readCat, KEY_LABEL_SUB);
-          if (label_sub.length() > 0)
-            full_label += ":" + label_sub;
+      labelMain = DbUtils.getString(readCat, KEY_LABEL_MAIN);
+      if (labelMain.length() > 0) {
+        isTransfer = !readCat.isNull(readCat.getColumnIndexOrThrow(KEY_TRANSFER_PEER));
+        if (!isTransfer) {
+          labelSub = DbUtils.getString(readCat, KEY_LABEL_SUB);
         }
       }
-      String payee = DbUtils.getString(c, KEY_PAYEE_NAME);
-      String dateStr = formatter.format(new Date(c.getLong(
-          c.getColumnIndexOrThrow(KEY_DATE)) * 1000));
-      long amount = c.getLong(
-          c.getColumnIndexOrThrow(KEY_AMOUNT));
-      BigDecimal bdAmount = new Money(account.currency, amount).getAmountMajor();
-      String amountQIF = nfFormat.format(bdAmount);
-      String amountAbsCSV = nfFormat.format(bdAmount.abs());
+      String payee = DbUtils.getString(c, columnIndexPayee);
+      String dateStr = sb.formatDate(c.getLong(columnIndexDate));
+      long amount = c.getLong(columnIndexAmount);
       try {
-        status = Transaction.CrStatus.valueOf(c.getString(c.getColumnIndexOrThrow(KEY_CR_STATUS)));
+        status = Transaction.CrStatus.valueOf(c.getString(columnIndexCrStatus));
       } catch (IllegalArgumentException ex) {
         status = Transaction.CrStatus.UNRECONCILED;
       }
-      String referenceNumber = DbUtils.getString(c, KEY_REFERENCE_NUMBER);
-      String splitIndicator = SPLIT_CATID.equals(catId) ? SplitTransaction.CSV_INDICATOR : "";
-      sb.clear();
+      String referenceNumber = DbUtils.getString(c, columnIndexReferenceNumber);
+      PaymentMethod method = format == ExportFormat.CSV && !c.isNull(columnIndexMethodId) ?
+          PaymentMethod.getInstanceFromDb(c.getLong(columnIndexMethodId)) : null;
       switch (format) {
         case CSV:
-          Long methodId = DbUtils.getLongOrNull(c, KEY_METHODID);
-          PaymentMethod method = methodId == null ? null : PaymentMethod.getInstanceFromDb(methodId);
-          sb.append("\"")
-              .append(splitIndicator)
+          sb.append('"')
+              .append(isSplit ? SplitTransaction.CSV_INDICATOR : "")
               .append("\";\"")
               .append(dateStr)
               .append("\";\"")
               .appendQ(payee)
-              .append("\";")
-              .append(amount > 0 ? amountAbsCSV : "0")
-              .append(";")
-              .append(amount < 0 ? amountAbsCSV : "0")
-              .append(";\"")
-              .appendQ(label_main)
-              .append("\";\"")
-              .appendQ(label_sub)
-              .append("\";\"")
+              .append("\";");
+          appendCsvAmounts(sb, amount);
+          sb.append(";\"");
+          appendCsvCategory(sb, labelMain, labelSub, isTransfer, transferLabel);
+          sb.append("\";\"")
               .appendQ(comment)
               .append("\";\"")
               .appendQ(method == null ? "" : method.getLabel())
@@ -221,22 +232,22 @@ public class Exporter {
               .append(status.symbol)
               .append("\";\"")
               .append(referenceNumber)
-              .append("\";\"")
-              .appendQ(StringUtils.substringAfterLast(DbUtils.getString(c, KEY_PICTURE_URI), "/"))
-              .append("\"");
+              .append("\";\"");
+          appendPictureFileName(sb, DbUtils.getString(c, columnIndexPictureUri));
+          sb.append('"');
           break;
         default:
-          sb.append("D")
+          sb.append('D')
               .append(dateStr)
               .append("\nT")
-              .append(amountQIF);
+              .appendAmount(amount, false);
           if (comment.length() > 0) {
             sb.append("\nM")
                 .append(comment);
           }
-          if (full_label.length() > 0) {
-            sb.append("\nL")
-                .append(full_label);
+          if (labelMain.length() > 0) {
+            sb.append("\nL");
+            appendQifCategory(sb, labelMain, labelSub, isTransfer);
           }
           if (payee.length() > 0) {
             sb.append("\nP")
@@ -250,73 +261,57 @@ public class Exporter {
                 .append(referenceNumber);
           }
       }
-      sb.append("\n");
-      out.write(sb.toString());
-      if (SPLIT_CATID.equals(catId) && splits != null) {
+      sb.append('\n');
+      sb.writeTo(out);
+      if (isSplit && splits != null) {
         while (splits.getPosition() < splits.getCount()) {
-          transfer_peer = DbUtils.getLongOrNull(splits, KEY_TRANSFER_PEER);
           comment = DbUtils.getString(splits, KEY_COMMENT);
-          label_main = DbUtils.getString(splits, KEY_LABEL_MAIN);
-          if (label_main.length() > 0) {
-            if (transfer_peer != null) {
-              full_label = "[" + label_main + "]";
-              label_main = ctx.getString(R.string.transfer);
-              label_sub = full_label;
-            } else {
-              full_label = label_main;
-              label_sub = DbUtils.getString(splits, KEY_LABEL_SUB);
-              if (label_sub.length() > 0)
-                full_label += ":" + label_sub;
+          labelMain = DbUtils.getString(splits, KEY_LABEL_MAIN);
+          labelSub = "";
+          isTransfer = false;
+          if (labelMain.length() > 0) {
+            isTransfer = !splits.isNull(splits.getColumnIndexOrThrow(KEY_TRANSFER_PEER));
+            if (!isTransfer) {
+              labelSub = DbUtils.getString(splits, KEY_LABEL_SUB);
             }
           } else {
-            label_main = full_label = Category.NO_CATEGORY_ASSIGNED_LABEL;
-            label_sub = "";
+            labelMain = Category.NO_CATEGORY_ASSIGNED_LABEL;
           }
           amount = splits.getLong(
               splits.getColumnIndexOrThrow(KEY_AMOUNT));
-          bdAmount = new Money(account.currency, amount).getAmountMajor();
-          amountQIF = nfFormat.format(bdAmount);
-          amountAbsCSV = nfFormat.format(bdAmount.abs());
-          sb.clear();
           switch (format) {
             case CSV:
-              Long methodId = DbUtils.getLongOrNull(c, KEY_METHODID);
-              PaymentMethod method = methodId == null ? null : PaymentMethod.getInstanceFromDb(methodId);
-              sb.append("\"")
+              sb.append('"')
                   .append(SplitTransaction.CSV_PART_INDICATOR)
                   .append("\";\"")
                   .append(dateStr)
                   .append("\";\"")
                   .appendQ(payee)
-                  .append("\";")
-                  .append(amount > 0 ? amountAbsCSV : "0")
-                  .append(";")
-                  .append(amount < 0 ? amountAbsCSV : "0")
-                  .append(";\"")
-                  .appendQ(label_main)
-                  .append("\";\"")
-                  .appendQ(label_sub)
-                  .append("\";\"")
+                  .append("\";");
+              appendCsvAmounts(sb, amount);
+              sb.append(";\"");
+              appendCsvCategory(sb, labelMain, labelSub, isTransfer, transferLabel);
+              sb.append("\";\"")
                   .appendQ(comment)
                   .append("\";\"")
                   .appendQ(method == null ? "" : method.getLabel())
-                  .append("\";\"\";\"\";\"")
-                  .appendQ(StringUtils.substringAfterLast(DbUtils.getString(splits, KEY_PICTURE_URI), "/"))
-                  .append("\"");
+                  .append("\";\"\";\"\";\"");
+              appendPictureFileName(sb, DbUtils.getString(splits, KEY_PICTURE_URI));
+              sb.append('"');
               break;
             //QIF
             default:
-              sb.append("S")
-                  .append(full_label);
+              sb.append('S');
+              appendQifCategory(sb, labelMain, labelSub, isTransfer);
               if ((comment.length() > 0)) {
                 sb.append("\nE")
                     .append(comment);
               }
               sb.append("\n$")
-                  .append(amountQIF);
+                  .appendAmount(amount, false);
           }
-          sb.append("\n");
-          out.write(sb.toString());
+          sb.append('\n');
+          sb.writeTo(out);
           splits.moveToNext();
         }
         splits.close();
@@ -328,6 +323,66 @@ public class Exporter {
     }
     out.close();
     c.close();
+    if (incrementalP) {
+      account.setExportWatermark(maxRowId);
+    }
     return Result.ofSuccess(R.string.export_sdcard_success, outputFile.getUri(), FileUtils.getPath(ctx, outputFile.getUri()));
   }
+
+  private static void appendCsvAmounts(RowFormatter sb, long amount) {
+    if (amount > 0) {
+      sb.appendAmount(amount, true);
+    } else {
+      sb.append('0');
+    }
+    sb.append(';');
+    if (amount < 0) {
+      sb.appendAmount(amount, true);
+    } else {
+      sb.append('0');
+    }
+  }
+
+  /**
+   * appends the main and sub category columns, transfers are represented by the transfer label
+   * and the bracketed account
+   */
+  private static void appendCsvCategory(RowFormatter sb, String labelMain, String labelSub,
+                                        boolean isTransfer, String transferLabel) {
+    if (isTransfer) {
+      sb.appendQ(transferLabel)
+          .append("\";\"[")
+          .appendQ(labelMain)
+          .append(']');
+    } else {
+      sb.appendQ(labelMain)
+          .append("\";\"")
+          .appendQ(labelSub);
+    }
+  }
+
+  private static void appendQifCategory(RowFormatter sb, String labelMain, String labelSub,
+                                        boolean isTransfer) {
+    if (isTransfer) {
+      sb.append('[').append(labelMain).append(']');
+    } else {
+      sb.append(labelMain);
+      if (labelSub.length() > 0) {
+        sb.append(':').append(labelSub);
+      }
+    }
+  }
+
+  private static void appendPictureFileName(RowFormatter sb, String pictureUri) {
+    int lastSlash = pictureUri.lastIndexOf('/');
+    if (lastSlash != -1) {
+      for (int i = lastSlash + 1; i < pictureUri.length(); i++) {
+        char ch = pictureUri.charAt(i);
+        if (ch == '"') {
+          sb.append('"');
+        }
+        sb.append(ch);
+      }
+    }
+  }
 }
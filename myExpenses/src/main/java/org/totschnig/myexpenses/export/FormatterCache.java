@@ -0,0 +1,57 @@
+package org.totschnig.myexpenses.export;
+
+import org.totschnig.myexpenses.model.Money;
+import org.totschnig.myexpenses.util.Utils;
+
+import java.text.DecimalFormat;
+import java.text.SimpleDateFormat;
+import java.util.Currency;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * SimpleDateFormat and DecimalFormat are expensive to build and not thread safe, hence each thread
+ * that runs an export keeps its own instances, keyed by their configuration.
+ */
+final class FormatterCache {
+  private static final ThreadLocal<Map<String, SimpleDateFormat>> dateFormats =
+      new ThreadLocal<Map<String, SimpleDateFormat>>() {
+        @Override
+        protected Map<String, SimpleDateFormat> initialValue() {
+          return new HashMap<>();
+        }
+      };
+  private static final ThreadLocal<Map<String, DecimalFormat>> decimalFormats =
+      new ThreadLocal<Map<String, DecimalFormat>>() {
+        @Override
+        protected Map<String, DecimalFormat> initialValue() {
+          return new HashMap<>();
+        }
+      };
+
+  private FormatterCache() {
+  }
+
+  static SimpleDateFormat getDateFormat(String pattern) {
+    Map<String, SimpleDateFormat> cache = dateFormats.get();
+    SimpleDateFormat result = cache.get(pattern);
+    if (result == null) {
+      result = new SimpleDateFormat(pattern, Locale.US);
+      cache.put(pattern, result);
+    }
+    return result;
+  }
+
+  static DecimalFormat getDecimalFormat(Currency currency, char separator) {
+    Map<String, DecimalFormat> cache = decimalFormats.get();
+    //fraction digits are user configurable, hence part of the key
+    String key = currency.getCurrencyCode() + separator + Money.getFractionDigits(currency);
+    DecimalFormat result = cache.get(key);
+    if (result == null) {
+      result = Utils.getDecimalFormat(currency, separator);
+      cache.put(key, result);
+    }
+    return result;
+  }
+}
@@ -0,0 +1,181 @@
+package org.totschnig.myexpenses.export;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+/**
+ * Builds export rows into a reused buffer. Amounts are rendered directly from their minor unit
+ * representation and dates are cached per local day, so that the output is identical to what
+ * the {@link DecimalFormat} and {@link SimpleDateFormat} passed in would produce, without
+ * allocating intermediary objects for each row.
+ */
+final class RowFormatter {
+  private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+  /**
+   * pattern letters of {@link SimpleDateFormat} that do not depend on the time of day
+   */
+  private static final String DATE_ONLY_PATTERN_LETTERS = "GyYMLwWDdFEu";
+
+  private final StringBuilder sb = new StringBuilder(256);
+  private char[] buffer = new char[256];
+  private final char[] digits = new char[20];
+
+  private final DecimalFormat decimalFormat;
+  private final int fractionDigits;
+  private final long divisor;
+  private final char decimalSeparator;
+  private final char zeroDigit;
+  private final char minusSign;
+
+  private final SimpleDateFormat dateFormat;
+  private final TimeZone timeZone;
+  private final boolean cacheByDay;
+  private final Date date = new Date();
+  private long cachedKey = Long.MIN_VALUE;
+  private String cachedDate;
+
+  /**
+   * @param decimalFormat needs to have identical minimum and maximum fraction digits and no grouping,
+   *                      as configured by {@link org.totschnig.myexpenses.util.Utils#getDecimalFormat}
+   * @param dateFormat
+   */
+  RowFormatter(DecimalFormat decimalFormat, SimpleDateFormat dateFormat) {
+    this.decimalFormat = decimalFormat;
+    this.fractionDigits = decimalFormat.getMaximumFractionDigits();
+    long divisor = 1;
+    for (int i = 0; i < fractionDigits && divisor > 0; i++) {
+      divisor *= 10;
+    }
+    //we fall back to DecimalFormat for configurations we do not handle
+    this.divisor = fractionDigits == decimalFormat.getMinimumFractionDigits() &&
+        !decimalFormat.isGroupingUsed() && fractionDigits <= 18 ? divisor : -1;
+    DecimalFormatSymbols symbols = decimalFormat.getDecimalFormatSymbols();
+    this.decimalSeparator = symbols.getDecimalSeparator();
+    this.zeroDigit = symbols.getZeroDigit();
+    this.minusSign = symbols.getMinusSign();
+    this.dateFormat = dateFormat;
+    this.timeZone = dateFormat.getTimeZone();
+    this.cacheByDay = isDateOnly(dateFormat.toPattern());
+  }
+
+  static boolean isDateOnly(String pattern) {
+    boolean inQuote = false;
+    for (int i = 0; i < pattern.length(); i++) {
+      char c = pattern.charAt(i);
+      if (c == '\'') {
+        inQuote = !inQuote;
+      } else if (!inQuote && ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')) &&
+          DATE_ONLY_PATTERN_LETTERS.indexOf(c) == -1) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @param epochSeconds
+   * @return the formatted date, consecutive calls for the same day return the same instance
+   */
+  String formatDate(long epochSeconds) {
+    long millis = epochSeconds * 1000;
+    long key;
+    if (cacheByDay) {
+      long local = millis + timeZone.getOffset(millis);
+      key = local / MILLIS_PER_DAY;
+      if (local % MILLIS_PER_DAY < 0) {
+        key--;
+      }
+    } else {
+      key = epochSeconds;
+    }
+    if (key != cachedKey || cachedDate == null) {
+      date.setTime(millis);
+      cachedDate = dateFormat.format(date);
+      cachedKey = key;
+    }
+    return cachedDate;
+  }
+
+  RowFormatter append(String s) {
+    sb.append(s);
+    return this;
+  }
+
+  RowFormatter append(char c) {
+    sb.append(c);
+    return this;
+  }
+
+  /**
+   * appends s with double quotes escaped as required inside a quoted CSV field
+   */
+  RowFormatter appendQ(String s) {
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (c == '"') {
+        sb.append('"');
+      }
+      sb.append(c);
+    }
+    return this;
+  }
+
+  /**
+   * @param amountMinor amount in minor units of the currency
+   * @param abs         if true, the sign is dropped
+   */
+  RowFormatter appendAmount(long amountMinor, boolean abs) {
+    if (divisor <= 0 || amountMinor == Long.MIN_VALUE) {
+      BigDecimal major = new BigDecimal(amountMinor).movePointLeft(fractionDigits);
+      sb.append(decimalFormat.format(abs ? major.abs() : major));
+      return this;
+    }
+    if (amountMinor < 0) {
+      if (!abs) {
+        sb.append(minusSign);
+      }
+      amountMinor = -amountMinor;
+    }
+    appendDigits(amountMinor / divisor, 1);
+    if (fractionDigits > 0) {
+      sb.append(decimalSeparator);
+      appendDigits(amountMinor % divisor, fractionDigits);
+    }
+    return this;
+  }
+
+  private void appendDigits(long value, int minDigits) {
+    int pos = digits.length;
+    do {
+      digits[--pos] = (char) (zeroDigit + (value % 10));
+      value /= 10;
+    } while (value > 0);
+    while (digits.length - pos < minDigits) {
+      digits[--pos] = zeroDigit;
+    }
+    sb.append(digits, pos, digits.length - pos);
+  }
+
+  void clear() {
+    sb.setLength(0);
+  }
+
+  /**
+   * writes the current content to out and clears the buffer
+   */
+  void writeTo(Writer out) throws IOException {
+    int length = sb.length();
+    if (buffer.length < length) {
+      buffer = new char[Math.max(length, buffer.length * 2)];
+    }
+    sb.getChars(0, length, buffer, 0);
+    out.write(buffer, 0, length);
+    clear();
+  }
+}
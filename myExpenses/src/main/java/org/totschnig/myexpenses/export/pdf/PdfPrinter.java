@@ -73,6 +73,11 @@ import static org.totschnig.myexpenses.provider.DatabaseConstants.SPLIT_CATID;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_ACCOUNTS;
 
 public class PdfPrinter {
+  /**
+   * number of transaction rows after which the table of the current group is written to the
+   * document, so that large groups are not kept in memory as a whole
+   */
+  private static final int FLUSH_ROWS = 50;
   private Account account;
   private DocumentFile destDir;
   private WhereFilter filter;
@@ -231,6 +236,9 @@ public class PdfPrinter {
     int columnIndexPayee = transactionCursor.getColumnIndex(KEY_PAYEE_NAME);
     int columnIndexTransferPeer = transactionCursor.getColumnIndex(KEY_TRANSFER_PEER);
     int columnIndexDate = transactionCursor.getColumnIndex(KEY_DATE);
+    int columnIndexCatId = transactionCursor.getColumnIndex(KEY_CATID);
+    int columnIndexAccountLabel = transactionCursor.getColumnIndex(KEY_ACCOUNT_LABEL);
+    int columnIndexIsSameCurrency = transactionCursor.getColumnIndex(KEY_IS_SAME_CURRENCY);
     DateFormat itemDateFormat;
     switch (account.getGrouping()) {
       case DAY:
@@ -248,6 +256,9 @@ public class PdfPrinter {
         itemDateFormat = Utils.localizedYearlessDateFormat();
     }
     PdfPTable table = null;
+    //PdfPTable#addCell copies the cell, hence we can reuse the same instance
+    PdfPCell emptyCell = helper.emptyCell();
+    int rowsInTable = 0;
 
     int prevHeaderId = 0, currentHeaderId;
 
@@ -280,6 +291,7 @@ public class PdfPrinter {
       }
       if (currentHeaderId != prevHeaderId) {
         if (table != null) {
+          table.setComplete(true);
           document.add(table);
         }
         switch (account.getGrouping()) {
@@ -323,8 +335,7 @@ public class PdfPrinter {
         cell.setHorizontalAlignment(Element.ALIGN_CENTER);
         table.addCell(cell);
         cell = helper.printToCell(Transfer.BI_ARROW + " " + currencyFormatter.convAmount(
-            DbUtils.getLongOr0L(groupCursor, columnIndexGroupSumTransfer),
-            account.currency), LazyFontSelector.FontType.NORMAL);
+            sumTransfer, account.currency), LazyFontSelector.FontType.NORMAL);
         cell.setHorizontalAlignment(Element.ALIGN_CENTER);
         table.addCell(cell);
         table.setSpacingAfter(2f);
@@ -337,6 +348,9 @@ public class PdfPrinter {
         table.setSpacingBefore(2f);
         table.setSpacingAfter(2f);
         table.setWidthPercentage(100f);
+        //the table is added to the document in chunks, which frees the rows already rendered
+        table.setComplete(false);
+        rowsInTable = 0;
         prevHeaderId = currentHeaderId;
         groupCursor.moveToNext();
         previousBalance = interimBalance;
@@ -350,7 +364,7 @@ public class PdfPrinter {
       if (DbUtils.getLongOrNull(transactionCursor, columnIndexTransferPeer) != null) {
         catText = Transfer.getIndicatorPrefixForLabel(amount) + catText;
       } else {
-        Long catId = DbUtils.getLongOrNull(transactionCursor, KEY_CATID);
+        Long catId = DbUtils.getLongOrNull(transactionCursor, columnIndexCatId);
         if (SPLIT_CATID.equals(catId)) {
           Cursor splits = Model.cr().query(Transaction.CONTENT_URI, null,
               KEY_PARENTID + " = " + transactionCursor.getLong(columnIndexRowId), null, null);
@@ -393,7 +407,7 @@ public class PdfPrinter {
       }
       if (account.getId() < 0) {
         //for aggregate accounts we need to indicate the account name
-        catText = transactionCursor.getString(transactionCursor.getColumnIndex(KEY_ACCOUNT_LABEL))
+        catText = transactionCursor.getString(columnIndexAccountLabel)
             + " " + catText;
       }
       String referenceNumber = transactionCursor.getString(columnIndexReferenceNumber);
@@ -410,7 +424,7 @@ public class PdfPrinter {
       }
       LazyFontSelector.FontType t;
       if (account.getId() < 0 &&
-          transactionCursor.getInt(transactionCursor.getColumnIndex(KEY_IS_SAME_CURRENCY)) == 1) {
+          transactionCursor.getInt(columnIndexIsSameCurrency) == 1) {
         t = LazyFontSelector.FontType.NORMAL;
       } else {
         t = amount < 0 ? LazyFontSelector.FontType.EXPENSE : LazyFontSelector.FontType.INCOME;
@@ -422,13 +436,17 @@ public class PdfPrinter {
       if (comment != null && comment.length() > 0) {
         cell = helper.printToCell(comment, LazyFontSelector.FontType.ITALIC);
         cell.setColspan(2);
-        table.addCell(helper.emptyCell());
+        table.addCell(emptyCell);
         table.addCell(cell);
-        table.addCell(helper.emptyCell());
+        table.addCell(emptyCell);
+      }
+      if (++rowsInTable % FLUSH_ROWS == 0) {
+        document.add(table);
       }
       transactionCursor.moveToNext();
     }
     // now add all this to the document
+    table.setComplete(true);
     document.add(table);
     groupCursor.close();
   }
@@ -20,6 +20,7 @@ import java.text.ParseException;
 import java.util.Calendar;
 import java.util.Currency;
 import java.util.Date;
+import java.util.TimeZone;
 import java.util.regex.Pattern;
 
 import timber.log.Timber;
@@ -35,6 +36,12 @@ public class QifUtils {
   private static final Pattern HOUR_DELIMITER_PATTERN = Pattern.compile(":");
   private static final Pattern MONEY_PREFIX_PATTERN = Pattern.compile("\\D");
   private static final BigDecimal HUNDRED = new BigDecimal(100);
+  private static final long NOT_SCANNED = Long.MIN_VALUE;
+  private static final long SECONDS_PER_DAY = 24 * 60 * 60;
+  /**
+   * amounts with more significant digits are left to {@link BigDecimal}
+   */
+  private static final int MAX_SCANNED_DIGITS = 18;
 
   private QifUtils() {
   }
@@ -52,6 +59,31 @@ public class QifUtils {
    * @return
    */
   public static Date parseDate(String sDateTime, QifDateFormat format) {
+    long seconds = scanDate(sDateTime, format, TimeZone.getDefault());
+    if (seconds != NOT_SCANNED) {
+      return new Date(seconds * 1000);
+    }
+    return parseDateFallback(sDateTime, format);
+  }
+
+  /**
+   * Same as {@link #parseDate(String, QifDateFormat)}, but returns the result as seconds since
+   * epoch and does not allocate for well formed input
+   *
+   * @param sDateTime
+   * @param format
+   * @param timeZone  the default time zone, passed in by callers parsing many dates
+   * @return
+   */
+  public static long parseDateSeconds(String sDateTime, QifDateFormat format, TimeZone timeZone) {
+    long seconds = scanDate(sDateTime, format, timeZone);
+    if (seconds != NOT_SCANNED) {
+      return seconds;
+    }
+    return parseDateFallback(sDateTime, format).getTime() / 1000;
+  }
+
+  static Date parseDateFallback(String sDateTime, QifDateFormat format) {
     try {
       return parseDateInternal(sDateTime, format).getTime();
     } catch (IllegalArgumentException e) {
@@ -115,6 +147,131 @@ public class QifUtils {
     return cal;
   }
 
+  /**
+   * Scans input of the form date[ time], where date consists of three numeric chunks separated by
+   * one of the delimiters understood by {@link #parseDateInternal(String, QifDateFormat)} and time
+   * is H[H]:MM[:SS]
+   *
+   * @return seconds since epoch, or {@link #NOT_SCANNED} if input is not of this form, or its
+   * interpretation would depend on the lenient handling of {@link Calendar}
+   */
+  private static long scanDate(String s, QifDateFormat format, TimeZone timeZone) {
+    int length = s.length();
+    int pos = 0;
+    int firstChunk = 0, secondChunk = 0, thirdChunk = 0;
+    boolean dateHasWhitespace = false;
+    for (int chunk = 0; chunk < 3; chunk++) {
+      if (chunk > 0) {
+        if (pos == length || "/'.-".indexOf(s.charAt(pos)) == -1) {
+          return NOT_SCANNED;
+        }
+        pos++;
+      }
+      int start = pos;
+      while (pos < length && s.charAt(pos) <= ' ') pos++;
+      dateHasWhitespace |= pos > start;
+      start = pos;
+      int value = 0;
+      while (pos < length && pos - start < 4) {
+        char c = s.charAt(pos);
+        if (c < '0' || c > '9') break;
+        value = value * 10 + (c - '0');
+        pos++;
+      }
+      if (pos == start) {
+        return NOT_SCANNED;
+      }
+      if (chunk == 0) firstChunk = value;
+      else if (chunk == 1) secondChunk = value;
+      else thirdChunk = value;
+      if (chunk < 2) {
+        start = pos;
+        while (pos < length && s.charAt(pos) <= ' ') pos++;
+        dateHasWhitespace |= pos > start;
+      }
+    }
+    int year, month, day;
+    switch (format) {
+      case US:
+        month = firstChunk;
+        day = secondChunk;
+        year = thirdChunk;
+        break;
+      case EU:
+        day = firstChunk;
+        month = secondChunk;
+        year = thirdChunk;
+        break;
+      default:
+        year = firstChunk;
+        month = secondChunk;
+        day = thirdChunk;
+    }
+    if (year < 100) {
+      year += year < 29 ? 2000 : 1900;
+    }
+    //before the Gregorian cutover, Calendar uses the Julian calendar
+    if (year < 1600 || month < 1 || month > 12 || day < 1 || day > 31) {
+      return NOT_SCANNED;
+    }
+    int hour = 0, minute = 0, second = 0;
+    int afterDate = pos;
+    while (pos < length && s.charAt(pos) <= ' ') pos++;
+    if (pos < length) {
+      //parseDateFallback splits on whitespace, when the date itself contains whitespace, it would
+      //not find the time
+      if (pos == afterDate || dateHasWhitespace) {
+        return NOT_SCANNED;
+      }
+      for (int chunk = 0; chunk < 3; chunk++) {
+        int start = pos, value = 0;
+        while (pos < length && pos - start < 2) {
+          char c = s.charAt(pos);
+          if (c < '0' || c > '9') break;
+          value = value * 10 + (c - '0');
+          pos++;
+        }
+        if (pos == start) {
+          return NOT_SCANNED;
+        }
+        if (chunk == 0) hour = value;
+        else if (chunk == 1) minute = value;
+        else second = value;
+        if (pos < length && s.charAt(pos) == ':') {
+          pos++;
+        } else {
+          break;
+        }
+      }
+      if (pos < length || hour > 23 || minute > 59 || second > 59) {
+        return NOT_SCANNED;
+      }
+    }
+    //days are added to the first of month, which mimics how Calendar rolls over days exceeding
+    //the length of the month
+    long localSeconds = (daysFromCivil(year, month) + day - 1) * SECONDS_PER_DAY
+        + hour * 3600 + minute * 60 + second;
+    long localMillis = localSeconds * 1000;
+    int offset = timeZone.getOffset(localMillis - timeZone.getRawOffset());
+    //around DST transitions, we leave the decision to Calendar
+    if (timeZone.getOffset(localMillis - offset) != offset) {
+      return NOT_SCANNED;
+    }
+    return (localMillis - offset) / 1000;
+  }
+
+  /**
+   * @return days since epoch of the first day of month in year (proleptic Gregorian calendar)
+   */
+  private static long daysFromCivil(int year, int month) {
+    year -= month <= 2 ? 1 : 0;
+    long era = (year >= 0 ? year : year - 399) / 400;
+    long yearOfEra = year - era * 400;
+    long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5;
+    long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+    return era * 146097 + dayOfEra - 719468;
+  }
+
   private static int parseInt(String[] array, int position, int defaultValue) {
     try {
       return parseInt(array, position);
@@ -155,6 +312,106 @@ public class QifUtils {
    * @return BigDecimal, if the result exceeds maxSize, {@link IllegalArgumentException} is thrown
    */
   public static BigDecimal parseMoney(@NonNull String money, int maxSize) {
+    int scale = scanMoneyScale(money, maxSize);
+    if (scale != -1) {
+      return BigDecimal.valueOf(scanMoneyUnscaled(money), scale);
+    }
+    return parseMoneyFallback(money, maxSize);
+  }
+
+  /**
+   * Parses money directly into the minor unit of currency, with the same semantics as
+   * {@link Money#setAmountMajor(BigDecimal)} applied to {@link #parseMoney(String, Currency)}.
+   * Well formed input is handled without allocation.
+   *
+   * @param money
+   * @param currency
+   * @return
+   * @throws IllegalArgumentException if the result would exceed the storage limit
+   */
+  public static long parseMoneyMinor(@NonNull String money, Currency currency) {
+    int fractionDigits = Money.getFractionDigits(currency);
+    int maxSize = MAX_SCANNED_DIGITS - fractionDigits;
+    int scale = scanMoneyScale(money, maxSize);
+    if (scale == -1) {
+      return new Money(currency, parseMoneyFallback(money, maxSize)).getAmountMinor();
+    }
+    long unscaled = scanMoneyUnscaled(money);
+    for (; scale < fractionDigits; scale++) {
+      unscaled *= 10;
+    }
+    for (; scale > fractionDigits; scale--) {
+      unscaled /= 10;
+    }
+    return unscaled;
+  }
+
+  /**
+   * Checks if money consists of an optional sign, and digits with at most one decimal separator
+   * ('.' or ',') followed by at least one digit. Blanks are ignored. Input of this form is
+   * interpreted by {@link #parseMoneyFallback(String, int)} as a plain decimal number.
+   *
+   * @return the scale of the number, or -1 if money is not of this form, has more than
+   * {@link #MAX_SCANNED_DIGITS} digits, or exceeds maxSize
+   */
+  private static int scanMoneyScale(String money, int maxSize) {
+    int start = 0, end = money.length();
+    while (start < end && money.charAt(start) <= ' ') start++;
+    while (end > start && money.charAt(end - 1) <= ' ') end--;
+    if (start < end && (money.charAt(start) == '-' || money.charAt(start) == '+')) {
+      start++;
+    }
+    int digits = 0, significantDigits = 0, scale = -1;
+    for (int i = start; i < end; i++) {
+      char c = money.charAt(i);
+      if (c >= '0' && c <= '9') {
+        digits++;
+        if (significantDigits > 0 || c != '0') {
+          significantDigits++;
+        }
+        if (scale != -1) {
+          scale++;
+        }
+      } else if (c == '.' || c == ',') {
+        if (scale != -1) {
+          return -1;
+        }
+        scale = 0;
+      } else if (c != ' ') {
+        return -1;
+      }
+    }
+    if (digits == 0 || scale == 0 || significantDigits > MAX_SCANNED_DIGITS) {
+      return -1;
+    }
+    if (scale == -1) {
+      scale = 0;
+    }
+    //precision - scale as computed by BigDecimal
+    if (Math.max(significantDigits, 1) - scale > maxSize) {
+      return -1;
+    }
+    return scale;
+  }
+
+  /**
+   * @return the digits of money (validated by {@link #scanMoneyScale(String, int)}) as signed long
+   */
+  private static long scanMoneyUnscaled(String money) {
+    long result = 0;
+    boolean negative = false;
+    for (int i = 0; i < money.length(); i++) {
+      char c = money.charAt(i);
+      if (c >= '0' && c <= '9') {
+        result = result * 10 + (c - '0');
+      } else if (c == '-') {
+        negative = true;
+      }
+    }
+    return negative ? -result : result;
+  }
+
+  static BigDecimal parseMoneyFallback(@NonNull String money, int maxSize) {
     BigDecimal result;
 
     String sMoney = money.trim().replace(" ", ""); // to be safe
@@ -1,7 +1,6 @@
 package org.totschnig.myexpenses.fragment;
 
 import android.app.Dialog;
-import android.content.ContentUris;
 import android.content.Context;
 import android.content.Intent;
 import android.content.res.Configuration;
@@ -9,7 +8,6 @@ import android.database.Cursor;
 import android.graphics.drawable.ColorDrawable;
 import android.graphics.drawable.GradientDrawable;
 import android.graphics.drawable.StateListDrawable;
-import android.net.Uri;
 import android.os.Bundle;
 import android.support.annotation.NonNull;
 import android.support.v4.app.LoaderManager;
@@ -43,6 +41,7 @@ import org.totschnig.myexpenses.activity.ManageTemplates;
 import org.totschnig.myexpenses.activity.ProtectedFragmentActivity;
 import org.totschnig.myexpenses.provider.CalendarProviderProxy;
 import org.totschnig.myexpenses.provider.DatabaseConstants;
+import org.totschnig.myexpenses.provider.PlanInstanceStore;
 import org.totschnig.myexpenses.provider.TransactionProvider;
 import org.totschnig.myexpenses.task.TaskExecutionFragment;
 import org.totschnig.myexpenses.util.UiUtils;
@@ -201,22 +200,19 @@ public class PlanMonthFragment extends CaldroidFragment
     switch (id) {
       case INSTANCES_CURSOR:
         // Construct the query with the desired date range.
-        Uri.Builder builder = CalendarProviderProxy.INSTANCES_URI.buildUpon();
         DateTime startOfMonth = new DateTime(year, month, 1, 0, 0, 0, 0);
-        long start = startOfMonth.minusDays(7)
+        final long start = startOfMonth.minusDays(7)
             .getMilliseconds(TimeZone.getDefault());
-        long end = startOfMonth.getEndOfMonth().plusDays(7)
+        final long end = startOfMonth.getEndOfMonth().plusDays(7)
             .getMilliseconds(TimeZone.getDefault());
-        ContentUris.appendId(builder, start);
-        ContentUris.appendId(builder, end);
-        return new CursorLoader(
-            getActivity(),
-            builder.build(),
-            null,
-            String.format(Locale.US, CalendarContractCompat.Instances.EVENT_ID + " = %d",
-                getArguments().getLong(DatabaseConstants.KEY_PLANID)),
-            null,
-            null);
+        final long templateId = getArguments().getLong(KEY_ROWID);
+        final long planId = getArguments().getLong(DatabaseConstants.KEY_PLANID);
+        return new CursorLoader(getActivity()) {
+          @Override
+          public Cursor loadInBackground() {
+            return PlanInstanceStore.queryInstances(getContext(), templateId, planId, start, end);
+          }
+        };
       case INSTANCE_STATUS_CURSOR:
         return new CursorLoader(
             getActivity(),
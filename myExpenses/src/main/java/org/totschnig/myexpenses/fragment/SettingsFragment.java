@@ -62,6 +62,7 @@ import org.totschnig.myexpenses.sync.SyncBackendProviderFactory;
 import org.totschnig.myexpenses.task.TaskExecutionFragment;
 import org.totschnig.myexpenses.ui.PreferenceDividerItemDecoration;
 import org.totschnig.myexpenses.util.AppDirHelper;
+import org.totschnig.myexpenses.util.BackupEncryption;
 import org.totschnig.myexpenses.util.CurrencyFormatter;
 import org.totschnig.myexpenses.util.DistribHelper;
 import org.totschnig.myexpenses.util.ShareUtils;
@@ -101,6 +102,7 @@ import static org.totschnig.myexpenses.preference.PrefKey.APP_DIR;
 import static org.totschnig.myexpenses.preference.PrefKey.AUTO_BACKUP;
 import static org.totschnig.myexpenses.preference.PrefKey.AUTO_BACKUP_INFO;
 import static org.totschnig.myexpenses.preference.PrefKey.AUTO_BACKUP_CLOUD;
+import static org.totschnig.myexpenses.preference.PrefKey.BACKUP_PASSWORD;
 import static org.totschnig.myexpenses.preference.PrefKey.CATEGORY_CONTRIB;
 import static org.totschnig.myexpenses.preference.PrefKey.CATEGORY_MANAGE;
 import static org.totschnig.myexpenses.preference.PrefKey.CATEGORY_PRIVACY;
@@ -251,6 +253,10 @@ public class SettingsFragment extends PreferenceFragmentCompat implements
       findPreference(APP_DIR).setOnPreferenceClickListener(this);
       setAppDirSummary();
 
+      if (!BackupEncryption.isAvailable()) {
+        findPreference(BACKUP_PASSWORD).setEnabled(false);
+      }
+
       final PreferenceCategory categoryManage =
           ((PreferenceCategory) findPreference(CATEGORY_MANAGE));
       final Preference prefStaleImages = findPreference(MANAGE_STALE_IMAGES);
@@ -34,8 +34,6 @@ import android.widget.GridView;
 import android.widget.ImageView;
 import android.widget.SimpleCursorAdapter;
 
-import com.squareup.picasso.Picasso;
-
 import org.totschnig.myexpenses.MyApplication;
 import org.totschnig.myexpenses.R;
 import org.totschnig.myexpenses.activity.ImageViewIntentProvider;
@@ -43,6 +41,7 @@ import org.totschnig.myexpenses.activity.ProtectedFragmentActivity;
 import org.totschnig.myexpenses.provider.DatabaseConstants;
 import org.totschnig.myexpenses.provider.TransactionProvider;
 import org.totschnig.myexpenses.task.TaskExecutionFragment;
+import org.totschnig.myexpenses.util.ThumbnailHelper;
 
 import javax.inject.Inject;
 
@@ -117,7 +116,7 @@ public class StaleImagesList extends ContextualActionBarFragment implements Load
           //already dealing with value; nothing to do
           return;
         }
-        Picasso.get().load(value).placeholder(R.drawable.empty_photo).fit().into(v);
+        ThumbnailHelper.load(Uri.parse(value)).placeholder(R.drawable.empty_photo).fit().into(v);
         v.setTag(value);
         v.setContentDescription(value);
       }
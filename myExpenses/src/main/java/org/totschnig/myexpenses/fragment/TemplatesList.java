@@ -61,6 +61,7 @@ import org.totschnig.myexpenses.model.Transfer;
 import org.totschnig.myexpenses.preference.PrefKey;
 import org.totschnig.myexpenses.provider.DatabaseConstants;
 import org.totschnig.myexpenses.provider.DbUtils;
+import org.totschnig.myexpenses.provider.PlanInstanceStore;
 import org.totschnig.myexpenses.provider.TransactionProvider;
 import org.totschnig.myexpenses.task.TaskExecutionFragment;
 import org.totschnig.myexpenses.util.CurrencyFormatter;
@@ -92,6 +93,7 @@ import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_TEMPLATEID
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_TITLE;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_TRANSFER_ACCOUNT;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_UUID;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_WINDOW_START;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.SPLIT_CATID;
 import static org.totschnig.myexpenses.util.PermissionHelper.PermissionGroup.CALENDAR;
 
@@ -113,8 +115,12 @@ public class TemplatesList extends SortableListFragment {
   private int columnIndexAmount, columnIndexLabelSub, columnIndexComment,
       columnIndexPayee, columnIndexColor,
       columnIndexCurrency, columnIndexTransferAccount, columnIndexPlanId,
-      columnIndexTitle, columnIndexRowId, columnIndexPlanInfo;
+      columnIndexTitle, columnIndexRowId, columnIndexPlanInfo, columnIndexWindowStart;
   private boolean indexesCalculated = false;
+  /**
+   * stored plan instances from a previous window are brought up to date once per fragment
+   */
+  private boolean refreshTriggered = false;
   /**
    * if we are called from the calendar app, we only need to handle display of plan once
    */
@@ -364,6 +370,7 @@ public class TemplatesList extends SortableListFragment {
           columnIndexPlanId = c.getColumnIndex(KEY_PLANID);
           columnIndexTitle = c.getColumnIndex(KEY_TITLE);
           columnIndexPlanInfo = c.getColumnIndex(KEY_PLAN_INFO);
+          columnIndexWindowStart = c.getColumnIndex(KEY_WINDOW_START);
           indexesCalculated = true;
         }
         mAdapter.swapCursor(mTemplatesCursor);
@@ -393,18 +400,32 @@ public class TemplatesList extends SortableListFragment {
               ((ProtectedFragmentActivity) getActivity()).showSnackbar(R.string.save_transaction_template_deleted, Snackbar.LENGTH_LONG);
             }
           }
-          //look for plans that we could possible relink
-          if (!repairTriggered && mTemplatesCursor.moveToFirst()) {
+          //look for plans that we could possible relink, plan info is only reliable, if the
+          //stored instances have been materialized for the current window
+          if (mTemplatesCursor.moveToFirst()) {
             final ArrayList<String> missingUuids = new ArrayList<>();
+            long windowStart = PlanInstanceStore.getWindowStart();
+            boolean stale = false;
             while (!mTemplatesCursor.isAfterLast()) {
-              if (!mTemplatesCursor.isNull(columnIndexPlanId) && mTemplatesCursor.isNull(columnIndexPlanInfo)) {
-                missingUuids.add(mTemplatesCursor.getString(mTemplatesCursor.getColumnIndex(KEY_UUID)));
+              if (!mTemplatesCursor.isNull(columnIndexPlanId)) {
+                if (mTemplatesCursor.isNull(columnIndexWindowStart) ||
+                    mTemplatesCursor.getLong(columnIndexWindowStart) != windowStart) {
+                  stale = true;
+                } else if (mTemplatesCursor.isNull(columnIndexPlanInfo)) {
+                  missingUuids.add(mTemplatesCursor.getString(mTemplatesCursor.getColumnIndex(KEY_UUID)));
+                }
               }
               mTemplatesCursor.moveToNext();
             }
-            if (missingUuids.size() > 0) {
-              new RepairHandler(this).obtainMessage(
-                  0, missingUuids.toArray(new String[missingUuids.size()]))
+            if (stale) {
+              //the provider notifies us once the instances have been stored
+              if (!refreshTriggered) {
+                refreshTriggered = true;
+                new RepairHandler(this).obtainMessage(RepairHandler.MSG_REFRESH).sendToTarget();
+              }
+            } else if (!repairTriggered && missingUuids.size() > 0) {
+              new RepairHandler(this).obtainMessage(RepairHandler.MSG_REPAIR,
+                  missingUuids.toArray(new String[missingUuids.size()]))
                   .sendToTarget();
             }
           }
@@ -414,6 +435,8 @@ public class TemplatesList extends SortableListFragment {
   }
 
   private static class RepairHandler extends Handler {
+    static final int MSG_REPAIR = 0;
+    static final int MSG_REFRESH = 1;
     private final WeakReference<TemplatesList> mFragment;
 
     public RepairHandler(TemplatesList fragment) {
@@ -422,9 +445,18 @@ public class TemplatesList extends SortableListFragment {
 
     @Override
     public void handleMessage(Message msg) {
-      String[] missingUuids = (String[]) msg.obj;
       TemplatesList fragment = mFragment.get();
-      if (fragment != null && fragment.getActivity() != null) {
+      if (fragment == null || fragment.getActivity() == null) {
+        return;
+      }
+      if (msg.what == MSG_REFRESH) {
+        ((ProtectedFragmentActivity) fragment.getActivity()).startTaskExecution(
+            TaskExecutionFragment.TASK_REFRESH_PLAN_INSTANCES,
+            new Long[]{},
+            null,
+            0);
+      } else {
+        String[] missingUuids = (String[]) msg.obj;
         fragment.repairTriggered = true;
         ((ProtectedFragmentActivity) fragment.getActivity()).startTaskExecution(
             TaskExecutionFragment.TASK_REPAIR_PLAN,
@@ -27,6 +27,7 @@ import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.RemoteException;
+import android.support.annotation.Nullable;
 import android.support.annotation.VisibleForTesting;
 
 import org.apache.commons.lang3.StringUtils;
@@ -63,9 +64,11 @@ import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_COLOR;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_CR_STATUS;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_CURRENCY;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_CURRENT_BALANCE;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_DATE;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_DESCRIPTION;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_EXCHANGE_RATE;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_EXCLUDE_FROM_TOTALS;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_EXPORT_WATERMARK;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_GROUPING;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_IS_AGGREGATE;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_LABEL;
@@ -91,6 +94,7 @@ import static org.totschnig.myexpenses.provider.DatabaseConstants.SELECT_AMOUNT_
 import static org.totschnig.myexpenses.provider.DatabaseConstants.STATUS_EXPORTED;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.STATUS_HELPER;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_ACCOUNTS;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_CR_STATUS_TOTALS;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_TRANSACTIONS;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.WHERE_EXPENSE;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.WHERE_INCOME;
@@ -185,14 +189,11 @@ public class Account extends Model {
     PROJECTION_FULL[baseLength + 4] =
         KEY_OPENING_BALANCE + " + (" + SELECT_AMOUNT_SUM + " AND " + WHERE_NOT_SPLIT_PART +
             " ) AS " + KEY_TOTAL;
+    //cleared and reconciled totals are maintained by triggers
     PROJECTION_FULL[baseLength + 5] =
-        KEY_OPENING_BALANCE + " + (" + SELECT_AMOUNT_SUM + " AND " + WHERE_NOT_SPLIT_PART +
-            " AND " + KEY_CR_STATUS + " IN " +
-            "('" + CrStatus.RECONCILED.name() + "','" + CrStatus.CLEARED.name() + "')" +
-            " ) AS " + KEY_CLEARED_TOTAL;
+        KEY_OPENING_BALANCE + " + " + selectCrStatusTotal(KEY_CLEARED_TOTAL) + " AS " + KEY_CLEARED_TOTAL;
     PROJECTION_FULL[baseLength + 6] =
-        KEY_OPENING_BALANCE + " + (" + SELECT_AMOUNT_SUM + " AND " + WHERE_NOT_SPLIT_PART +
-            " AND " + KEY_CR_STATUS + " = '" + CrStatus.RECONCILED.name() + "'  ) AS " + KEY_RECONCILED_TOTAL;
+        KEY_OPENING_BALANCE + " + " + selectCrStatusTotal(KEY_RECONCILED_TOTAL) + " AS " + KEY_RECONCILED_TOTAL;
     PROJECTION_FULL[baseLength + 7] = KEY_USAGES;
     PROJECTION_FULL[baseLength + 8] = "0 AS " + KEY_IS_AGGREGATE;//this is needed in the union with the aggregates to sort real accounts first
     PROJECTION_FULL[baseLength + 9] = HAS_FUTURE;
@@ -202,6 +203,11 @@ public class Account extends Model {
 
   }
 
+  private static String selectCrStatusTotal(String column) {
+    return "coalesce((SELECT " + TABLE_CR_STATUS_TOTALS + "." + column + " FROM " + TABLE_CR_STATUS_TOTALS +
+        " WHERE " + TABLE_CR_STATUS_TOTALS + "." + KEY_ACCOUNTID + " = " + TABLE_ACCOUNTS + "." + KEY_ROWID + "), 0)";
+  }
+
   public static final Uri CONTENT_URI = TransactionProvider.ACCOUNTS_URI;
 
   private AccountType type;
@@ -563,6 +569,32 @@ public class Account extends Model {
         selectionArgs);
   }
 
+  /**
+   * @return the highest id of the transactions of this account that were covered by an
+   * incremental export, 0 if there has been none yet
+   */
+  public long getExportWatermark() {
+    Cursor c = cr().query(CONTENT_URI.buildUpon().appendPath(String.valueOf(getId())).build(),
+        new String[]{KEY_EXPORT_WATERMARK}, null, null, null);
+    if (c == null) {
+      return 0L;
+    }
+    long result = c.moveToFirst() ? c.getLong(0) : 0L;
+    c.close();
+    return result;
+  }
+
+  /**
+   * Incremental exports only consider transactions with ids higher than the watermark. Since the
+   * transactions table uses AUTOINCREMENT, ids are never reused.
+   */
+  public void setExportWatermark(long watermark) {
+    ContentValues args = new ContentValues();
+    args.put(KEY_EXPORT_WATERMARK, watermark);
+    cr().update(CONTENT_URI.buildUpon().appendPath(String.valueOf(getId())).build(), args,
+        null, null);
+  }
+
   /**
    * @param accountId id of account or null
    * @return true if the account with id accountId has transactions marked as exported
@@ -738,12 +770,28 @@ public class Account extends Model {
    *               and reset opening balance
    */
   public void balance(boolean resetP) {
+    balance(resetP, null);
+  }
+
+  /**
+   * mark cleared transactions covered by a statement as reconciled, with one update
+   *
+   * @param resetP       if true immediately delete reconciled transactions
+   *                     and reset opening balance
+   * @param statementEnd if not null, only transactions dated until this timestamp (in seconds) are
+   *                     reconciled
+   */
+  public void balance(boolean resetP, @Nullable Long statementEnd) {
     ContentValues args = new ContentValues();
     args.put(KEY_CR_STATUS, CrStatus.RECONCILED.name());
-    cr().update(Transaction.CONTENT_URI, args,
-        KEY_ACCOUNTID + " = ? AND " + KEY_PARENTID + " is null AND " +
-            KEY_CR_STATUS + " = '" + CrStatus.CLEARED.name() + "'",
-        new String[]{String.valueOf(getId())});
+    String selection = KEY_ACCOUNTID + " = ? AND " + KEY_PARENTID + " is null AND " +
+        KEY_CR_STATUS + " = '" + CrStatus.CLEARED.name() + "'";
+    String[] selectionArgs = new String[]{String.valueOf(getId())};
+    if (statementEnd != null) {
+      selection += " AND " + KEY_DATE + " <= ?";
+      selectionArgs = new String[]{selectionArgs[0], String.valueOf(statementEnd)};
+    }
+    cr().update(Transaction.CONTENT_URI, args, selection, selectionArgs);
     if (resetP) {
       reset(reconciledFilter(), EXPORT_HANDLE_DELETED_UPDATE_BALANCE, null);
     }
@@ -6,6 +6,7 @@ import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteException;
 import android.net.Uri;
+import android.support.annotation.Nullable;
 import android.text.TextUtils;
 import android.text.format.Time;
 
@@ -38,6 +39,10 @@ import static org.totschnig.myexpenses.util.PermissionHelper.PermissionGroup.CAL
  * holds information about an event in the calendar
  */
 public class Plan extends Model implements Serializable {
+  /**
+   * precedes the uuid of the template in the description of its plan
+   */
+  public static final String DESCRIPTION_UUID_PREFIX = "UUID : ";
   public long dtstart;
   public String rrule;
   public String title;
@@ -227,6 +232,25 @@ public class Plan extends Model implements Serializable {
     }
   }
 
+  /**
+   * @return the uuid of the template that has been written by
+   * {@link Transaction#compileDescription} into the description of its plan, null if not found
+   */
+  @Nullable
+  public static String extractUuid(@Nullable String description) {
+    if (description == null) {
+      return null;
+    }
+    int start = description.lastIndexOf(DESCRIPTION_UUID_PREFIX);
+    if (start == -1) {
+      return null;
+    }
+    start += DESCRIPTION_UUID_PREFIX.length();
+    int end = description.indexOf('\n', start);
+    String result = (end == -1 ? description.substring(start) : description.substring(start, end)).trim();
+    return result.isEmpty() ? null : result;
+  }
+
   public void updateCustomAppUri(String customAppUri) {
     if (getId()==0) {
       throw new IllegalStateException("Can not set custom app uri on unsaved plan");
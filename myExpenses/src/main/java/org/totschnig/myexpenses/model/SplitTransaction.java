@@ -17,14 +17,17 @@ package org.totschnig.myexpenses.model;
 
 import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.RemoteException;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.text.TextUtils;
 
-import com.annimon.stream.Stream;
+import com.annimon.stream.function.IntConsumer;
 
 import org.apache.commons.lang3.ArrayUtils;
 import org.totschnig.myexpenses.MyApplication;
@@ -32,11 +35,11 @@ import org.totschnig.myexpenses.R;
 import org.totschnig.myexpenses.provider.DatabaseConstants;
 import org.totschnig.myexpenses.provider.DbUtils;
 import org.totschnig.myexpenses.provider.TransactionProvider;
-import org.totschnig.myexpenses.provider.filter.WhereFilter;
 import org.totschnig.myexpenses.util.Result;
 import org.totschnig.myexpenses.util.Utils;
 
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.Locale;
 
 import timber.log.Timber;
@@ -50,8 +53,10 @@ import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_DATE;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PARENTID;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PAYEEID;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ROWID;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_STATUS;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_TRANSFER_PEER;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_UUID;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.STATUS_NONE;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.STATUS_UNCOMMITTED;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_TRANSACTIONS;
 
@@ -124,11 +129,44 @@ public class SplitTransaction extends Transaction {
       ContentValues dateValues = new ContentValues();
       dateValues.put(KEY_DATE, getDate());
       ops.add(ContentProviderOperation.newUpdate(uri).withValues(dateValues)
-          .withSelection(PART_OR_PEER_SELECT, new String[]{idStr, idStr}).build());
+          .withSelection(PART_OR_PEER_SELECT + " AND " + KEY_DATE + " != ?",
+              new String[]{idStr, idStr, String.valueOf(getDate())}).build());
     }
     return ops;
   }
 
+  /**
+   * parts are cloned by the provider in one go, which remembers for each clone the committed part
+   * it stems from. When the split itself is cloned, the parts of the original split are copied
+   * into the new one.
+   */
+  @Override
+  public void prepareForEdit(boolean clone) {
+    long oldId = getId();
+    ContentValues values = null;
+    if (clone) {
+      status = STATUS_UNCOMMITTED;
+      setDate(new Date());
+      saveAsNew();
+      values = new ContentValues(1);
+      values.put(KEY_PARENTID, getId());
+    }
+    cr().update(ContentUris.withAppendedId(CONTENT_URI, oldId).buildUpon()
+        .appendPath(TransactionProvider.URI_SEGMENT_EDIT_SPLIT).build(), values, null, null);
+    inEditState = true;
+  }
+
+  /**
+   * parts that have been edited are written back to the committed parts they have been cloned
+   * from, unchanged parts are left alone
+   */
+  @Override
+  void addCommitOperations(Uri uri, ArrayList<ContentProviderOperation> ops) {
+    ops.add(ContentProviderOperation.newUpdate(ContentUris.appendId(uri.buildUpon(), getId())
+        .appendPath(TransactionProvider.URI_SEGMENT_COMMIT_SPLIT).build())
+        .withValue(KEY_STATUS, STATUS_NONE).build());
+  }
+
   @Override
   public String getPartOrPeerSelect() {
     return PART_OR_PEER_SELECT;
@@ -149,10 +187,7 @@ public class SplitTransaction extends Transaction {
     Result FAILURE = Result.ofFailure(count == 1 ? R.string.split_transaction_one_error : R.string.split_transaction_group_error);
     MyApplication application = MyApplication.getInstance();
     ContentResolver cr = application.getContentResolver();
-    final String where = KEY_ROWID + " " + WhereFilter.Operation.IN.getOp(count);
-    final String[] selectionArgs = Stream.of(ArrayUtils.toObject(ids))
-        .map(String::valueOf)
-        .toArray(String[]::new);
+    final String where = inSelection(ids);
     String[] projection = {
         KEY_ACCOUNTID, KEY_CURRENCY, KEY_PAYEEID, KEY_CR_STATUS, "avg(" + KEY_DATE + ")", "sum(" + KEY_AMOUNT + ")"
     };
@@ -168,7 +203,7 @@ public class SplitTransaction extends Transaction {
             .appendQueryParameter(TransactionProvider.QUERY_PARAMETER_GROUP_BY, groupBy)
             .appendQueryParameter(TransactionProvider.QUERY_PARAMETER_DISTINCT, "1")
             .build(),
-        projection, where, selectionArgs, null);
+        projection, where, null, null);
     if (cursor == null) return FAILURE;
     if (cursor.getCount() > 1) {
       cursor.close();
@@ -206,7 +241,7 @@ public class SplitTransaction extends Transaction {
     operations.add(ContentProviderOperation.newUpdate(TransactionProvider.TRANSACTIONS_URI)
         .withValues(values)
         .withValueBackReference(KEY_PARENTID, 0)
-        .withSelection(where, selectionArgs)
+        .withSelection(where, null)
         .withExpectedCount(count)
         .build());
     try {
@@ -220,15 +255,42 @@ public class SplitTransaction extends Transaction {
     }
   }
 
+  /**
+   * Number of splits that are ungrouped in one database transaction by {@link #unsplit(long[], IntConsumer)}
+   */
+  public static final int UNSPLIT_CHUNK_SIZE = 100;
+
+  /**
+   * Ungroups the split transactions with the given ids, in chunks of {@link #UNSPLIT_CHUNK_SIZE},
+   * each of them handled by the provider with a constant number of statements
+   *
+   * @param progress if not null, receives the number of ids processed after each chunk
+   * @return the number of split transactions that have been ungrouped
+   */
+  public static int unsplit(@NonNull long[] ids, @Nullable IntConsumer progress) {
+    ContentResolver cr = MyApplication.getInstance().getContentResolver();
+    final Uri uri = TransactionProvider.TRANSACTIONS_URI.buildUpon()
+        .appendPath(TransactionProvider.URI_SEGMENT_UNSPLIT).build();
+    int result = 0;
+    for (int start = 0; start < ids.length; start += UNSPLIT_CHUNK_SIZE) {
+      int end = Math.min(start + UNSPLIT_CHUNK_SIZE, ids.length);
+      result += cr.update(uri, null, inSelection(ArrayUtils.subarray(ids, start, end)), null);
+      if (progress != null) {
+        progress.accept(end);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * ids are inlined, since selection arguments are limited to 999 per statement
+   */
+  private static String inSelection(long[] ids) {
+    return KEY_ROWID + " IN (" + TextUtils.join(",", ArrayUtils.toObject(ids)) + ")";
+  }
+
   public boolean unsplit() {
-    MyApplication application = MyApplication.getInstance();
-    ContentResolver cr = application.getContentResolver();
-    ContentValues values = new ContentValues(1);
-    values.put(KEY_UUID, uuid);
-    return cr.update(
-        TransactionProvider.TRANSACTIONS_URI.buildUpon()
-            .appendPath(TransactionProvider.URI_SEGMENT_UNSPLIT)
-            .build(),
-        values, null, null) == 1;
+    return unsplit(new long[]{getId()}, null) == 1;
   }
+
 }
@@ -24,6 +24,7 @@ import android.database.Cursor;
 import android.database.sqlite.SQLiteConstraintException;
 import android.net.Uri;
 import android.os.RemoteException;
+import android.text.TextUtils;
 
 import org.totschnig.myexpenses.preference.PrefKey;
 import org.totschnig.myexpenses.provider.CalendarProviderProxy;
@@ -34,8 +35,11 @@ import org.totschnig.myexpenses.util.Utils;
 import org.totschnig.myexpenses.util.crashreporting.CrashHandler;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Currency;
+import java.util.HashMap;
 import java.util.Locale;
+import java.util.Map;
 
 import static org.totschnig.myexpenses.contract.TransactionsContract.Transactions.TYPE_SPLIT;
 import static org.totschnig.myexpenses.contract.TransactionsContract.Transactions.TYPE_TRANSACTION;
@@ -369,6 +373,35 @@ public class Template extends Transaction {
     return t;
   }
 
+  /**
+   * @param planIds ids of calendar events
+   * @return the templates linked to the given calendar events, keyed by the event id
+   */
+  public static Map<Long, Template> getInstancesForPlans(Collection<Long> planIds) {
+    Map<Long, Template> result = new HashMap<>();
+    if (planIds.isEmpty()) {
+      return result;
+    }
+    Cursor c = cr().query(
+        CONTENT_URI,
+        null,
+        KEY_PLANID + " IN (" + TextUtils.join(",", planIds) + ")",
+        null,
+        null);
+    if (c == null) {
+      return result;
+    }
+    if (c.moveToFirst()) {
+      while (!c.isAfterLast()) {
+        Template t = new Template(c);
+        result.put(t.planId, t);
+        c.moveToNext();
+      }
+    }
+    c.close();
+    return result;
+  }
+
   public static Template getInstanceFromDb(long id) {
     Cursor c = cr().query(
         CONTENT_URI.buildUpon().appendPath(String.valueOf(id)).build(), null, null, null, null);
@@ -448,6 +481,11 @@ public class Template extends Transaction {
     } else {
       uri = CONTENT_URI.buildUpon().appendPath(String.valueOf(getId())).build();
       ops.add(ContentProviderOperation.newUpdate(uri).withValues(initialValues).build());
+      //the plan might have changed, the list of templates finds the instances stale and has them
+      //materialized again in the background
+      ops.add(ContentProviderOperation.newDelete(TransactionProvider.PLAN_INSTANCE_SOURCES_URI)
+          .withSelection(KEY_TEMPLATEID + " = ?", new String[]{String.valueOf(getId())})
+          .build());
       if (withLinkedTransaction != null) {
         ops.add(ContentProviderOperation.newInsert(TransactionProvider.PLAN_INSTANCE_STATUS_URI)
             .withValue(KEY_TEMPLATEID, getId())
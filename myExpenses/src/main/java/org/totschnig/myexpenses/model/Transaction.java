@@ -22,10 +22,13 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.content.OperationApplicationException;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteConstraintException;
 import android.graphics.Color;
 import android.net.Uri;
+import android.os.Bundle;
 import android.os.RemoteException;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.support.annotation.StringRes;
 import android.support.annotation.VisibleForTesting;
 import android.support.v4.util.Pair;
@@ -41,6 +44,7 @@ import org.totschnig.myexpenses.provider.TransactionProvider;
 import org.totschnig.myexpenses.util.AppDirHelper;
 import org.totschnig.myexpenses.util.CurrencyFormatter;
 import org.totschnig.myexpenses.util.PictureDirHelper;
+import org.totschnig.myexpenses.util.ThumbnailHelper;
 import org.totschnig.myexpenses.util.TextUtils;
 import org.totschnig.myexpenses.util.Utils;
 import org.totschnig.myexpenses.util.io.FileCopyUtils;
@@ -560,6 +564,38 @@ public class Transaction extends Model {
     return tr;
   }
 
+  /**
+   * Creates a transaction from the template with one call to the content provider, without
+   * loading template and account into memory. For applying a template without editing it.
+   *
+   * @param date           in seconds, null for now
+   * @param planInstanceId id of the plan instance the transaction is linked to, or null
+   * @return bundle with {@link DatabaseConstants#KEY_TRANSACTIONID} and
+   * {@link DatabaseConstants#KEY_ACCOUNTID} of the new transaction, null if the template has been
+   * deleted or saving failed
+   */
+  @Nullable
+  public static Bundle instantiateTemplate(long templateId, @Nullable Long date, @Nullable Long planInstanceId) {
+    Bundle extras = new Bundle(2);
+    if (date != null) {
+      extras.putLong(KEY_DATE, date);
+    }
+    if (planInstanceId != null) {
+      extras.putLong(KEY_INSTANCEID, planInstanceId);
+    }
+    Bundle result;
+    try {
+      result = cr().call(TransactionProvider.DUAL_URI, TransactionProvider.METHOD_INSTANTIATE_TEMPLATE,
+          String.valueOf(templateId), extras);
+    } catch (SQLiteConstraintException e) {
+      return null;
+    }
+    if (result != null && DatabaseConstants.SPLIT_CATID.equals(result.getLong(KEY_CATID))) {
+      ContribFeature.SPLIT_TRANSACTION.recordUsage();
+    }
+    return result;
+  }
+
   /**
    * factory method for creating an object of the correct type and linked to a given account
    *
@@ -592,6 +628,32 @@ public class Transaction extends Model {
     cr().update(uri, null, null, null);
   }
 
+  /**
+   * deletes or marks as void all transactions with the given ids in one provider call
+   */
+  public static void delete(long[] ids, boolean markAsVoid) {
+    Bundle extras = new Bundle(1);
+    extras.putBoolean(TransactionProvider.QUERY_PARAMETER_MARK_VOID, markAsVoid);
+    bulkCall(TransactionProvider.METHOD_DELETE_TRANSACTIONS, null, ids, extras);
+  }
+
+  public static void undelete(long[] ids) {
+    bulkCall(TransactionProvider.METHOD_UNDELETE_TRANSACTIONS, null, ids, new Bundle(1));
+  }
+
+  public static void move(long[] ids, long whereAccountId) {
+    bulkCall(TransactionProvider.METHOD_MOVE_TRANSACTIONS, String.valueOf(whereAccountId), ids, new Bundle(1));
+  }
+
+  public static void toggleCrStatus(long[] ids) {
+    bulkCall(TransactionProvider.METHOD_TOGGLE_CRSTATUS, null, ids, new Bundle(1));
+  }
+
+  private static void bulkCall(String method, @Nullable String arg, long[] ids, Bundle extras) {
+    extras.putLongArray(KEY_ROWID, ids);
+    cr().call(TransactionProvider.DUAL_URI, method, arg, extras);
+  }
+
   protected Transaction() {
     setDate(ZonedDateTime.now());
     setValueDate(ZonedDateTime.now());
@@ -819,7 +881,7 @@ public class Transaction extends Model {
         builder.withValueBackReference(KEY_PARENTID, parentOffset);
       }
       ops.add(builder.build());
-      addOriginPlanInstance(ops);
+      addOriginPlanInstance(ops, offset);
     } else {
       ops.add(ContentProviderOperation
           .newUpdate(uri.buildUpon().appendPath(String.valueOf(getId())).build())
@@ -832,13 +894,16 @@ public class Transaction extends Model {
     return callerIsSyncAdapter ? CALLER_IS_SYNC_ADAPTER_URI : CONTENT_URI;
   }
 
-  protected void addOriginPlanInstance(ArrayList<ContentProviderOperation> ops) {
+  /**
+   * @param offset position in the batch of the insert operation for this transaction
+   */
+  protected void addOriginPlanInstance(ArrayList<ContentProviderOperation> ops, int offset) {
     if (originPlanInstanceId != null) {
       ContentValues values = new ContentValues();
       values.put(KEY_TEMPLATEID, originTemplate.getId());
       values.put(KEY_INSTANCEID, originPlanInstanceId);
       ops.add(ContentProviderOperation.newInsert(TransactionProvider.PLAN_INSTANCE_STATUS_URI)
-          .withValues(values).withValueBackReference(KEY_TRANSACTIONID, 0).build());
+          .withValues(values).withValueBackReference(KEY_TRANSACTIONID, offset).build());
     }
   }
 
@@ -916,6 +981,7 @@ public class Transaction extends Model {
           throw new UnknownPictureSaveException(pictureUri, homeUri, e);
         }
       }
+      ThumbnailHelper.requireThumbnail(pictureUri);
       initialValues.put(KEY_PICTURE_URI, pictureUri.toString());
     } else {
       initialValues.putNull(KEY_PICTURE_URI);
@@ -1088,7 +1154,7 @@ public class Transaction extends Model {
       sb.append(getMethodLabel());
       sb.append("\n");
     }
-    sb.append("UUID : ");
+    sb.append(Plan.DESCRIPTION_UUID_PREFIX);
     sb.append(requireUuid());
     return sb.toString();
   }
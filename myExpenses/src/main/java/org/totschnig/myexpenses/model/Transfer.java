@@ -187,7 +187,7 @@ public class Transfer extends Transaction {
             .build());
       }
 
-      addOriginPlanInstance(ops);
+      addOriginPlanInstance(ops, offset);
     } else {
       //we set the transfer peers uuid to null initially to prevent violation of unique index which
       //happens if the account after update is identical to transferAccountId before update
@@ -69,13 +69,18 @@ public enum PrefKey {
   DISTRIBUTION_SHOW_CHART("distributionShowChart"),
   DISTRIBUTION_AGGREGATE_TYPES("distributionAggregateTypes"),
   MANAGE_STALE_IMAGES(R.string.pref_manage_stale_images_key),
+  STALE_IMAGES_LAST_COLLECTED("stale_images_last_collected"),
   CSV_IMPORT_HEADER_TO_FIELD_MAP(R.string.pref_import_csv_header_to_field_map_key),
   CUSTOM_DECIMAL_FORMAT(R.string.pref_custom_decimal_format_key),
+  BACKUP_PASSWORD(R.string.pref_backup_password_key),
   AUTO_BACKUP(R.string.pref_auto_backup_key),
   AUTO_BACKUP_TIME(R.string.pref_auto_backup_time_key),
   AUTO_BACKUP_DIRTY("auto_backup_dirty"),
   AUTO_BACKUP_CLOUD(R.string.pref_auto_backup_cloud_key),
   AUTO_BACKUP_INFO(R.string.pref_auto_backup_info_key),
+  AUTO_BACKUP_KEEP_DAILY(R.string.pref_auto_backup_keep_daily_key),
+  AUTO_BACKUP_KEEP_WEEKLY(R.string.pref_auto_backup_keep_weekly_key),
+  AUTO_BACKUP_KEEP_MONTHLY(R.string.pref_auto_backup_keep_monthly_key),
   UI_HOME_SCREEN_SHORTCUTS(R.string.pref_ui_home_screen_shortcuts_key),
   CALENDAR_PERMISSION_REQUESTED("calendar_permission_requested"),
   STORAGE_PERMISSION_REQUESTED("storage_permission_requested"),
@@ -81,7 +81,8 @@ public class CalendarProviderProxy extends ContentProvider {
         String[] eventProjection = new String[]{
             CalendarContractCompat.Events._ID,
             CalendarContractCompat.Events.DTSTART,
-            CalendarContractCompat.Events.RRULE};
+            CalendarContractCompat.Events.RRULE,
+            CalendarContractCompat.Events.EVENT_TIMEZONE};
         Cursor eventcursor = getContext().getContentResolver().query(CalendarContractCompat.Events.CONTENT_URI,
             eventProjection, eventSelection, selectionArgs, sortOrder);
         DateTime end = DateTime.forInstant(endMilliseconds, TimeZone.getDefault());
@@ -90,9 +91,15 @@ public class CalendarProviderProxy extends ContentProvider {
             while (!eventcursor.isAfterLast()) {
               String eventId = eventcursor.getString(0);
               long dtstart = eventcursor.getLong(1);
-              if (dtstart <= endMilliseconds) {
+              String rrule = eventcursor.getString(2);
+              RecurrenceExpander expander = RecurrenceExpander.get(eventcursor.getLong(0),
+                  dtstart, rrule, eventcursor.getString(3));
+              if (expander != null) {
+                for (Long instance : expander.getInstances(startMilliseconds, endMilliseconds)) {
+                  result.addRow(new String[]{eventId, String.valueOf(instance)});
+                }
+              } else if (dtstart <= endMilliseconds) {
                 EventRecurrence recurrence = null;
-                String rrule = eventcursor.getString(2);
                 if (!TextUtils.isEmpty(rrule)) {
                   recurrence = new EventRecurrence();
                   recurrence.parse(rrule);
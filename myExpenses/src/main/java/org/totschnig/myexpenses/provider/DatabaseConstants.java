@@ -178,6 +178,23 @@ public class DatabaseConstants {
   public static final String KEY_KEY = "key";
   public static final String KEY_VALUE = "value";
   public static final String KEY_SORT_DIRECTION = "sort_direction";
+  /**
+   * highest {@link #KEY_ROWID} of the transactions of an account that were covered by an
+   * incremental export
+   */
+  public static final String KEY_EXPORT_WATERMARK = "export_watermark";
+  /**
+   * start of the period for which plan instances have been materialized
+   */
+  public static final String KEY_WINDOW_START = "window_start";
+  /**
+   * summary of the calendar event a plan instance table was materialized from
+   */
+  public static final String KEY_SIGNATURE = "signature";
+  /**
+   * committed split part an uncommitted part has been cloned from
+   */
+  public static final String KEY_ORIGINAL_ID = "original_id";
   public static final String KEY_CURRENCY_SELF = "currency_self";
   public static final String KEY_CURRENCY_OTHER= "currency_other";
   public static final String KEY_EXCHANGE_RATE = "exchange_rate";
@@ -229,6 +246,13 @@ public class DatabaseConstants {
   public static final String VIEW_CHANGES_EXTENDED = "changes_extended";
   public static final String VIEW_TEMPLATES_EXTENDED = "templates_extended";
   public static final String TABLE_PLAN_INSTANCE_STATUS = "planinstance_transaction";
+  public static final String TABLE_PLAN_INSTANCES = "plan_instances";
+  public static final String TABLE_PLAN_INSTANCE_SOURCES = "plan_instance_sources";
+  public static final String TABLE_SPLIT_PART_ORIGINS = "split_part_origins";
+  /**
+   * per account, sums of the cleared and reconciled transactions, maintained by triggers
+   */
+  public static final String TABLE_CR_STATUS_TOTALS = "cr_status_totals";
   public static final String TABLE_STALE_URIS = "stale_uris";
   public static final String TABLE_CHANGES = "changes";
   public static final String TABLE_SETTINGS = "settings";
@@ -355,6 +379,23 @@ public class DatabaseConstants {
   public static final String HAS_FUTURE =
       "(SELECT EXISTS(SELECT 1 FROM " + TABLE_TRANSACTIONS + " WHERE "
           + KEY_ACCOUNTID + " = " + TABLE_ACCOUNTS + "." + KEY_ROWID + " AND " + KEY_DATE + " > strftime('%s','now')  LIMIT 1)) AS " + KEY_HAS_FUTURE;
+  /**
+   * first instance of the plan of a template from now on, as materialized by
+   * {@link PlanInstanceStore}, can be used in the sort order of queries on
+   * {@link #VIEW_TEMPLATES_EXTENDED}
+   */
+  public static final String SELECT_NEXT_INSTANCE =
+      "(SELECT min(" + KEY_DATE + ") FROM " + TABLE_PLAN_INSTANCES + " WHERE "
+          + TABLE_PLAN_INSTANCES + "." + KEY_TEMPLATEID + " = " + VIEW_TEMPLATES_EXTENDED + "." + KEY_ROWID
+          + " AND " + KEY_DATE + " >= strftime('%s','now') * 1000)";
+  public static final String SELECT_PLAN_INFO =
+      "(SELECT " + KEY_PLAN_INFO + " FROM " + TABLE_PLAN_INSTANCE_SOURCES + " WHERE "
+          + TABLE_PLAN_INSTANCE_SOURCES + "." + KEY_TEMPLATEID + " = " + VIEW_TEMPLATES_EXTENDED + "." + KEY_ROWID
+          + ") AS " + KEY_PLAN_INFO;
+  public static final String SELECT_PLAN_WINDOW_START =
+      "(SELECT " + KEY_WINDOW_START + " FROM " + TABLE_PLAN_INSTANCE_SOURCES + " WHERE "
+          + TABLE_PLAN_INSTANCE_SOURCES + "." + KEY_TEMPLATEID + " = " + VIEW_TEMPLATES_EXTENDED + "." + KEY_ROWID
+          + ") AS " + KEY_WINDOW_START;
   public static final String SELECT_AMOUNT_SUM = "SELECT coalesce(sum(" + KEY_AMOUNT + "),0) FROM "
       + VIEW_COMMITTED
       + " WHERE " + KEY_ACCOUNTID + " = " + TABLE_ACCOUNTS + "." + KEY_ROWID
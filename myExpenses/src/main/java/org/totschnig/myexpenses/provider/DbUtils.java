@@ -17,14 +17,18 @@ package org.totschnig.myexpenses.provider;
 
 import android.accounts.AccountManager;
 import android.content.ContentProviderClient;
+import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
-import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.SharedPreferences;
 import android.database.Cursor;
-import android.net.Uri;
+import android.os.RemoteException;
+import android.support.annotation.Nullable;
+import android.text.TextUtils;
 
 import com.android.calendar.CalendarContractCompat;
+import com.annimon.stream.function.IntConsumer;
 
 import org.totschnig.myexpenses.MyApplication;
 import org.totschnig.myexpenses.model.Account;
@@ -40,6 +44,8 @@ import org.totschnig.myexpenses.util.Result;
 import org.totschnig.myexpenses.util.crashreporting.CrashHandler;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Locale;
 import java.util.Map;
@@ -56,13 +62,16 @@ public class DbUtils {
   private DbUtils() {
   }
 
-  public static Result backup(File backupDir) {
+  /**
+   * @param progress receives the percentage of the database that has been copied
+   */
+  public static Result backup(File backupDir, @Nullable IntConsumer progress) {
     cacheEventData();
     cacheSyncState();
     ContentResolver resolver = MyApplication.getInstance().getContentResolver();
     ContentProviderClient client = resolver.acquireContentProviderClient(TransactionProvider.AUTHORITY);
     TransactionProvider provider = (TransactionProvider) client.getLocalContentProvider();
-    Result result = provider.backup(backupDir);
+    Result result = provider.backup(backupDir, progress);
     client.release();
     return result;
   }
@@ -225,35 +234,49 @@ public class DbUtils {
     if (plannerCalendarId.equals("-1")) {
       return;
     }
-    ContentValues eventValues = new ContentValues();
     ContentResolver cr = MyApplication.getInstance().getContentResolver();
-    //remove old cache
-    cr.delete(
-        TransactionProvider.EVENT_CACHE_URI, null, null);
-
+    //plan id -> uuid of template
+    Map<Long, String> plans = new HashMap<>();
     Cursor planCursor = cr.query(Template.CONTENT_URI, new String[]{
-            DatabaseConstants.KEY_PLANID},
+            DatabaseConstants.KEY_PLANID, DatabaseConstants.KEY_UUID},
         DatabaseConstants.KEY_PLANID + " IS NOT null", null, null);
     if (planCursor != null) {
       if (planCursor.moveToFirst()) {
-        String[] projection = MyApplication.buildEventProjection();
         do {
-          long planId = planCursor.getLong(0);
-          Uri eventUri = ContentUris.withAppendedId(CalendarContractCompat.Events.CONTENT_URI,
-              planId);
-
-          Cursor eventCursor = cr.query(eventUri, projection,
-              CalendarContractCompat.Events.CALENDAR_ID + " = ?", new String[]{plannerCalendarId}, null);
-          if (eventCursor != null) {
-            if (eventCursor.moveToFirst()) {
-              MyApplication.copyEventData(eventCursor, eventValues);
-              cr.insert(TransactionProvider.EVENT_CACHE_URI, eventValues);
-            }
-            eventCursor.close();
-          }
+          plans.put(planCursor.getLong(0), planCursor.getString(1));
         } while (planCursor.moveToNext());
       }
       planCursor.close();
     }
+    ArrayList<ContentProviderOperation> ops = new ArrayList<>();
+    //remove old cache
+    ops.add(ContentProviderOperation.newDelete(TransactionProvider.EVENT_CACHE_URI).build());
+    if (!plans.isEmpty()) {
+      String[] projection = MyApplication.buildEventProjection();
+      String[] projectionWithId = Arrays.copyOf(projection, projection.length + 1);
+      projectionWithId[projection.length] = CalendarContractCompat.Events._ID;
+      Cursor eventCursor = cr.query(CalendarContractCompat.Events.CONTENT_URI, projectionWithId,
+          CalendarContractCompat.Events.CALENDAR_ID + " = ? AND " +
+              CalendarContractCompat.Events._ID + " IN (" + TextUtils.join(",", plans.keySet()) + ")",
+          new String[]{plannerCalendarId}, null);
+      if (eventCursor != null) {
+        if (eventCursor.moveToFirst()) {
+          do {
+            ContentValues eventValues = new ContentValues();
+            MyApplication.copyEventData(eventCursor, eventValues);
+            eventValues.put(DatabaseConstants.KEY_UUID,
+                plans.get(eventCursor.getLong(projection.length)));
+            ops.add(ContentProviderOperation.newInsert(TransactionProvider.EVENT_CACHE_URI)
+                .withValues(eventValues).build());
+          } while (eventCursor.moveToNext());
+        }
+        eventCursor.close();
+      }
+    }
+    try {
+      cr.applyBatch(TransactionProvider.AUTHORITY, ops);
+    } catch (RemoteException | OperationApplicationException e) {
+      CrashHandler.report(e);
+    }
   }
 }
@@ -0,0 +1,362 @@
+package org.totschnig.myexpenses.provider;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.support.annotation.Nullable;
+import android.text.TextUtils;
+
+import com.android.calendar.CalendarContractCompat.Events;
+import com.android.calendar.CalendarContractCompat.Instances;
+
+import org.threeten.bp.LocalDate;
+import org.threeten.bp.ZoneId;
+import org.totschnig.myexpenses.model.Plan;
+import org.totschnig.myexpenses.model.Template;
+import org.totschnig.myexpenses.util.crashreporting.CrashHandler;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import timber.log.Timber;
+
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_DATE;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_INSTANCEID;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PLANID;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PLAN_INFO;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ROWID;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_SIGNATURE;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_TEMPLATEID;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_WINDOW_START;
+import static org.totschnig.myexpenses.util.PermissionHelper.PermissionGroup.CALENDAR;
+
+/**
+ * Materializes the instances of plans linked to templates into
+ * {@link DatabaseConstants#TABLE_PLAN_INSTANCES} for a rolling window that starts with the previous
+ * month and extends {@link #HORIZON_MONTHS} months beyond the current one. The instances of a
+ * template are computed again only when the window has moved, or when the calendar event of its
+ * plan no longer matches the signature stored in {@link DatabaseConstants#TABLE_PLAN_INSTANCE_SOURCES}.
+ * Checking if the table is current hence costs a query on the events table instead of an expansion
+ * of instances by the calendar provider. The description of the recurrence is stored alongside,
+ * so that the list of templates can be loaded and sorted by next instance with a plain query.
+ */
+public final class PlanInstanceStore {
+  public static final int HORIZON_MONTHS = 13;
+  /**
+   * projection for {@link TransactionProvider#PLAN_INSTANCES_URI} that yields the same columns as
+   * {@link CalendarProviderProxy#INSTANCES_URI}
+   */
+  public static final String[] INSTANCES_PROJECTION = new String[]{
+      KEY_PLANID + " AS " + Instances.EVENT_ID,
+      KEY_DATE + " AS " + Instances.BEGIN
+  };
+  private static final String[] EVENT_PROJECTION = new String[]{
+      Events._ID,
+      Events.DTSTART,
+      Events.RRULE,
+      Events.EVENT_TIMEZONE,
+      Events.RDATE,
+      Events.EXDATE
+  };
+  private static final String TAG = "PlanInstanceStore";
+
+  private PlanInstanceStore() {
+  }
+
+  private static LocalDate getWindowStartDate() {
+    return LocalDate.now().withDayOfMonth(1).minusMonths(1);
+  }
+
+  private static long toEpochMilli(LocalDate date) {
+    return date.atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli();
+  }
+
+  public static long getWindowStart() {
+    return toEpochMilli(getWindowStartDate());
+  }
+
+  /**
+   * @return the last millisecond of the window
+   */
+  public static long getWindowEnd() {
+    return toEpochMilli(getWindowStartDate().plusMonths(HORIZON_MONTHS + 2)) - 1;
+  }
+
+  public static boolean covers(long from, long to) {
+    return from >= getWindowStart() && to <= getWindowEnd();
+  }
+
+  /**
+   * Brings the materialized instances of the given templates up to date.
+   *
+   * @param plans template id mapped to plan id, null for all templates linked to a plan
+   * @return ids of the templates whose instances are materialized for the current window
+   */
+  public static Set<Long> refresh(Context context, @Nullable Map<Long, Long> plans) {
+    Set<Long> result = new HashSet<>();
+    if (!CALENDAR.hasPermission(context)) {
+      return result;
+    }
+    ContentResolver cr = context.getContentResolver();
+    if (plans == null) {
+      plans = getPlans(cr);
+    }
+    if (plans.isEmpty()) {
+      return result;
+    }
+    long windowStart = getWindowStart();
+    long windowEnd = getWindowEnd();
+    Map<Long, StringBuilder> signatures = new HashMap<>();
+    Map<Long, String> planInfos = new HashMap<>();
+    //the description depends on the locale
+    String locale = Locale.getDefault().toString();
+    Map<Long, RecurrenceExpander> expanders = new HashMap<>();
+    String planSelection = TextUtils.join(",", new HashSet<>(plans.values()));
+    try {
+      Cursor c = cr.query(Events.CONTENT_URI, EVENT_PROJECTION,
+          Events._ID + " IN (" + planSelection + ")", null, null);
+      if (c == null) {
+        return result;
+      }
+      if (c.moveToFirst()) {
+        while (!c.isAfterLast()) {
+          long eventId = c.getLong(0);
+          long dtstart = c.getLong(1);
+          String rrule = c.getString(2);
+          String timeZone = c.getString(3);
+          String rdate = c.getString(4);
+          String exdate = c.getString(5);
+          planInfos.put(eventId, Plan.prettyTimeInfo(context, rrule, dtstart));
+          signatures.put(eventId, new StringBuilder(locale).append('|').append(dtstart)
+              .append('|').append(rrule).append('|').append(timeZone)
+              .append('|').append(rdate).append('|').append(exdate));
+          //additional and excluded dates are only known to the calendar provider
+          if (rdate == null && exdate == null) {
+            RecurrenceExpander expander = RecurrenceExpander.get(eventId, dtstart, rrule, timeZone);
+            if (expander != null) {
+              expanders.put(eventId, expander);
+            }
+          }
+          c.moveToNext();
+        }
+      }
+      c.close();
+      //the same holds for instances that have been modified or deleted individually
+      c = cr.query(Events.CONTENT_URI,
+          new String[]{Events.ORIGINAL_ID, Events._ID, Events.DTSTART},
+          Events.ORIGINAL_ID + " IN (" + planSelection + ")", null, Events._ID);
+      if (c != null) {
+        if (c.moveToFirst()) {
+          while (!c.isAfterLast()) {
+            long originalId = c.getLong(0);
+            StringBuilder signature = signatures.get(originalId);
+            if (signature != null) {
+              signature.append('|').append(c.getLong(1)).append(':').append(c.getLong(2));
+            }
+            expanders.remove(originalId);
+            c.moveToNext();
+          }
+        }
+        c.close();
+      }
+    } catch (Exception e) {
+      //see PlanExecutor for the exceptions thrown by calendar provider implementations
+      CrashHandler.report(e);
+      return result;
+    }
+    Map<Long, String> sources = getSources(cr, plans.keySet());
+    ArrayList<ContentProviderOperation> ops = new ArrayList<>();
+    List<Long> stale = new ArrayList<>();
+    for (Map.Entry<Long, Long> plan : plans.entrySet()) {
+      long templateId = plan.getKey();
+      long planId = plan.getValue();
+      StringBuilder eventSignature = signatures.get(planId);
+      //a plan whose event has been deleted from the calendar does not have instances
+      String signature = eventSignature == null ? "" : eventSignature.toString();
+      if (sourceKey(planId, windowStart, signature).equals(sources.get(templateId))) {
+        result.add(templateId);
+        continue;
+      }
+      List<Long> instances;
+      if (eventSignature == null) {
+        instances = Collections.emptyList();
+      } else {
+        RecurrenceExpander expander = expanders.get(planId);
+        if (expander != null) {
+          instances = expander.getInstances(windowStart, windowEnd);
+          //for sorting by next instance, we also need to know about the first one beyond the window
+          long next = expander.getNextInstance(windowEnd + 1);
+          if (next != Long.MAX_VALUE) {
+            instances.add(next);
+          }
+        } else {
+          instances = queryCalendar(cr, planId, windowStart, windowEnd);
+          if (instances == null) {
+            continue;
+          }
+        }
+      }
+      //an instance might be reported more than once
+      Map<Long, Long> distinct = new LinkedHashMap<>();
+      for (Long instance : instances) {
+        distinct.put(CalendarProviderProxy.calculateId(instance), instance);
+      }
+      ops.add(ContentProviderOperation.newDelete(TransactionProvider.PLAN_INSTANCES_URI)
+          .withSelection(KEY_TEMPLATEID + " = ?", new String[]{String.valueOf(templateId)})
+          .build());
+      for (Map.Entry<Long, Long> instance : distinct.entrySet()) {
+        ops.add(ContentProviderOperation.newInsert(TransactionProvider.PLAN_INSTANCES_URI)
+            .withValue(KEY_TEMPLATEID, templateId)
+            .withValue(KEY_PLANID, planId)
+            .withValue(KEY_INSTANCEID, instance.getKey())
+            .withValue(KEY_DATE, instance.getValue())
+            .build());
+      }
+      ContentValues values = new ContentValues();
+      values.put(KEY_TEMPLATEID, templateId);
+      values.put(KEY_PLANID, planId);
+      values.put(KEY_WINDOW_START, windowStart);
+      values.put(KEY_SIGNATURE, signature);
+      values.put(KEY_PLAN_INFO, planInfos.get(planId));
+      ops.add(ContentProviderOperation.newInsert(TransactionProvider.PLAN_INSTANCE_SOURCES_URI)
+          .withValues(values).build());
+      stale.add(templateId);
+    }
+    if (!ops.isEmpty()) {
+      try {
+        cr.applyBatch(TransactionProvider.AUTHORITY, ops);
+        cr.notifyChange(TransactionProvider.TEMPLATES_URI, null);
+        result.addAll(stale);
+        Timber.tag(TAG).i("materialized instances of %d templates", stale.size());
+      } catch (Exception e) {
+        CrashHandler.report(e);
+      }
+    }
+    return result;
+  }
+
+  private static String sourceKey(long planId, long windowStart, String signature) {
+    return String.format(Locale.ROOT, "%d_%d_%s", planId, windowStart, signature);
+  }
+
+  private static Map<Long, Long> getPlans(ContentResolver cr) {
+    Map<Long, Long> result = new HashMap<>();
+    Cursor c = cr.query(Template.CONTENT_URI, new String[]{KEY_ROWID, KEY_PLANID},
+        KEY_PLANID + " IS NOT NULL", null, null);
+    if (c != null) {
+      if (c.moveToFirst()) {
+        while (!c.isAfterLast()) {
+          result.put(c.getLong(0), c.getLong(1));
+          c.moveToNext();
+        }
+      }
+      c.close();
+    }
+    return result;
+  }
+
+  private static Map<Long, String> getSources(ContentResolver cr, Collection<Long> templateIds) {
+    Map<Long, String> result = new HashMap<>();
+    Cursor c = cr.query(TransactionProvider.PLAN_INSTANCE_SOURCES_URI,
+        new String[]{KEY_TEMPLATEID, KEY_PLANID, KEY_WINDOW_START, KEY_SIGNATURE},
+        KEY_TEMPLATEID + " IN (" + TextUtils.join(",", templateIds) + ")", null, null);
+    if (c != null) {
+      if (c.moveToFirst()) {
+        while (!c.isAfterLast()) {
+          result.put(c.getLong(0), sourceKey(c.getLong(1), c.getLong(2), c.getString(3)));
+          c.moveToNext();
+        }
+      }
+      c.close();
+    }
+    return result;
+  }
+
+  /**
+   * fallback for plans whose recurrence can not be expanded by {@link RecurrenceExpander}
+   *
+   * @return null if the calendar provider could not be queried
+   */
+  @Nullable
+  private static List<Long> queryCalendar(ContentResolver cr, long planId, long from, long to) {
+    Cursor c;
+    try {
+      c = cr.query(buildCalendarUri(from, to), null,
+          Instances.EVENT_ID + " = " + planId, null, null);
+    } catch (Exception e) {
+      CrashHandler.report(e);
+      return null;
+    }
+    if (c == null) {
+      return null;
+    }
+    List<Long> result = new ArrayList<>();
+    if (c.moveToFirst()) {
+      int columnIndexBegin = c.getColumnIndex(Instances.BEGIN);
+      while (!c.isAfterLast()) {
+        result.add(c.getLong(columnIndexBegin));
+        c.moveToNext();
+      }
+    }
+    c.close();
+    return result;
+  }
+
+  private static Uri buildCalendarUri(long from, long to) {
+    Uri.Builder builder = CalendarProviderProxy.INSTANCES_URI.buildUpon();
+    ContentUris.appendId(builder, from);
+    ContentUris.appendId(builder, to);
+    return builder.build();
+  }
+
+  /**
+   * @return the instances of all plans linked to templates that begin inside the range, with the
+   * columns of {@link CalendarProviderProxy#INSTANCES_URI}, null if the local table can not
+   * serve the range
+   */
+  @Nullable
+  public static Cursor queryInstances(Context context, long from, long to) {
+    if (!covers(from, to)) {
+      return null;
+    }
+    ContentResolver cr = context.getContentResolver();
+    Map<Long, Long> plans = getPlans(cr);
+    if (!refresh(context, plans).containsAll(plans.keySet())) {
+      return null;
+    }
+    return cr.query(TransactionProvider.PLAN_INSTANCES_URI, INSTANCES_PROJECTION,
+        KEY_DATE + " BETWEEN ? AND ?", new String[]{String.valueOf(from), String.valueOf(to)},
+        KEY_DATE);
+  }
+
+  /**
+   * @return the instances of the plan linked to the template that begin inside the range, with the
+   * columns of {@link CalendarProviderProxy#INSTANCES_URI}, from the local table if it can serve
+   * the range, otherwise from the calendar provider
+   */
+  @Nullable
+  public static Cursor queryInstances(Context context, long templateId, long planId, long from, long to) {
+    ContentResolver cr = context.getContentResolver();
+    if (covers(from, to) &&
+        refresh(context, Collections.singletonMap(templateId, planId)).contains(templateId)) {
+      return cr.query(TransactionProvider.PLAN_INSTANCES_URI, INSTANCES_PROJECTION,
+          KEY_TEMPLATEID + " = ? AND " + KEY_DATE + " BETWEEN ? AND ?",
+          new String[]{String.valueOf(templateId), String.valueOf(from), String.valueOf(to)},
+          KEY_DATE);
+    }
+    return cr.query(buildCalendarUri(from, to), null,
+        String.format(Locale.US, Instances.EVENT_ID + " = %d", planId), null, null);
+  }
+}
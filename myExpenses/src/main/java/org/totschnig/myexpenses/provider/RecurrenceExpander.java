@@ -0,0 +1,494 @@
+package org.totschnig.myexpenses.provider;
+
+import android.support.annotation.Nullable;
+import android.text.TextUtils;
+
+import com.android.calendarcommon2.EventRecurrence;
+
+import org.threeten.bp.DateTimeException;
+import org.threeten.bp.DayOfWeek;
+import org.threeten.bp.Instant;
+import org.threeten.bp.LocalDate;
+import org.threeten.bp.LocalDateTime;
+import org.threeten.bp.LocalTime;
+import org.threeten.bp.ZoneId;
+import org.threeten.bp.ZoneOffset;
+import org.threeten.bp.ZonedDateTime;
+import org.threeten.bp.temporal.ChronoUnit;
+import org.threeten.bp.temporal.TemporalAdjusters;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Expands the recurrence rule of a plan in memory, so that its next instance or its instances in
+ * a given range can be computed without querying the Instances table of the calendar provider.
+ * Only the subset of RFC 5545 that is created by calendar apps for plain repeating events is
+ * handled: FREQ DAILY, WEEKLY, MONTHLY and YEARLY together with INTERVAL, COUNT, UNTIL, WKST,
+ * BYDAY, BYMONTHDAY and BYMONTH. For any other rule {@link #get} returns null and callers need to
+ * fall back to the calendar provider. Instances are computed in the time zone of the event, in the
+ * same way as the calendar provider does.
+ */
+public final class RecurrenceExpander {
+  private static final int CACHE_SIZE = 128;
+  /**
+   * protects against rules that never match, like the 30th of February
+   */
+  private static final int MAX_EMPTY_PERIODS = 1000;
+
+  private static final Map<Long, RecurrenceExpander> cache =
+      new LinkedHashMap<Long, RecurrenceExpander>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, RecurrenceExpander> eldest) {
+          return size() > CACHE_SIZE;
+        }
+      };
+
+  private interface InstanceVisitor {
+    /**
+     * @return false if no further instances are needed
+     */
+    boolean visit(long instance);
+  }
+
+  private final long dtstart;
+  private final String rrule;
+  private final String timeZone;
+  private final ZoneId zone;
+  private final LocalDate startDate;
+  private final LocalTime startTime;
+  private final int freq;
+  private final int interval;
+  private final int count;
+  private final long until;
+  private final DayOfWeek weekStart;
+  private final DayOfWeek[] byDay;
+  private final int[] byDayNum;
+  private final int[] byMonthDay;
+  private final int[] byMonth;
+
+  private RecurrenceExpander(long dtstart, String rrule, String timeZone, ZoneId zone,
+                             EventRecurrence recurrence) {
+    this.dtstart = dtstart;
+    this.rrule = rrule;
+    this.timeZone = timeZone;
+    this.zone = zone;
+    ZonedDateTime start = Instant.ofEpochMilli(dtstart).atZone(zone);
+    this.startDate = start.toLocalDate();
+    this.startTime = start.toLocalTime();
+    if (recurrence == null) {
+      //one time event
+      freq = EventRecurrence.DAILY;
+      interval = 1;
+      count = 1;
+      until = Long.MAX_VALUE;
+      weekStart = DayOfWeek.MONDAY;
+      byDay = new DayOfWeek[0];
+      byDayNum = new int[0];
+      byMonthDay = new int[0];
+      byMonth = new int[0];
+    } else {
+      freq = recurrence.freq;
+      interval = Math.max(recurrence.interval, 1);
+      count = recurrence.count;
+      until = recurrence.until == null ? Long.MAX_VALUE : parseUntil(recurrence.until, zone);
+      weekStart = toDayOfWeek(recurrence.wkst);
+      byDay = new DayOfWeek[recurrence.bydayCount];
+      byDayNum = new int[recurrence.bydayCount];
+      for (int i = 0; i < recurrence.bydayCount; i++) {
+        byDay[i] = toDayOfWeek(recurrence.byday[i]);
+        byDayNum[i] = recurrence.bydayNum[i];
+      }
+      byMonthDay = copy(recurrence.bymonthday, recurrence.bymonthdayCount);
+      byMonth = copy(recurrence.bymonth, recurrence.bymonthCount);
+    }
+  }
+
+  /**
+   * @param eventId  id of the event in the calendar, used as cache key
+   * @param dtstart  DTSTART of the event
+   * @param rrule    RRULE of the event, null or empty for one time events
+   * @param timeZone EVENT_TIMEZONE of the event, if null the default time zone is used
+   * @return an expander for the given rule, or null if the rule is not supported
+   */
+  @Nullable
+  public static RecurrenceExpander get(long eventId, long dtstart, @Nullable String rrule,
+                                       @Nullable String timeZone) {
+    synchronized (cache) {
+      RecurrenceExpander cached = cache.get(eventId);
+      if (cached != null && cached.dtstart == dtstart && TextUtils.equals(cached.rrule, rrule) &&
+          TextUtils.equals(cached.timeZone, timeZone)) {
+        return cached;
+      }
+    }
+    RecurrenceExpander result = create(dtstart, rrule, timeZone);
+    synchronized (cache) {
+      if (result == null) {
+        cache.remove(eventId);
+      } else {
+        cache.put(eventId, result);
+      }
+    }
+    return result;
+  }
+
+  @Nullable
+  static RecurrenceExpander create(long dtstart, @Nullable String rrule, @Nullable String timeZone) {
+    ZoneId zone;
+    try {
+      zone = timeZone == null ? ZoneId.systemDefault() : ZoneId.of(timeZone);
+    } catch (DateTimeException e) {
+      return null;
+    }
+    EventRecurrence recurrence = null;
+    if (!TextUtils.isEmpty(rrule)) {
+      recurrence = new EventRecurrence();
+      try {
+        recurrence.parse(rrule);
+      } catch (EventRecurrence.InvalidFormatException e) {
+        return null;
+      }
+      if (!isSupported(recurrence)) {
+        return null;
+      }
+    }
+    RecurrenceExpander result;
+    try {
+      result = new RecurrenceExpander(dtstart, rrule, timeZone, zone, recurrence);
+    } catch (DateTimeException | IllegalArgumentException e) {
+      return null;
+    }
+    //RFC 5545 counts DTSTART as the first instance even if it does not match the rule, calendar
+    //implementations differ in how they handle this, hence we leave this case to the provider
+    return result.getNextInstance(dtstart) == dtstart ? result : null;
+  }
+
+  private static boolean isSupported(EventRecurrence recurrence) {
+    if (recurrence.freq < EventRecurrence.DAILY || recurrence.freq > EventRecurrence.YEARLY) {
+      return false;
+    }
+    if (recurrence.bysecondCount > 0 || recurrence.byminuteCount > 0 ||
+        recurrence.byhourCount > 0 || recurrence.byyeardayCount > 0 ||
+        recurrence.byweeknoCount > 0 || recurrence.bysetposCount > 0) {
+      return false;
+    }
+    if (recurrence.freq == EventRecurrence.WEEKLY && recurrence.bymonthdayCount > 0) {
+      return false;
+    }
+    //yearly rules are only expanded inside the month of DTSTART or the months given by BYMONTH
+    if (recurrence.freq == EventRecurrence.YEARLY && recurrence.bymonthCount == 0 &&
+        (recurrence.bydayCount > 0 || recurrence.bymonthdayCount > 0)) {
+      return false;
+    }
+    boolean allowsNumberedDays = recurrence.freq == EventRecurrence.MONTHLY ||
+        recurrence.freq == EventRecurrence.YEARLY;
+    for (int i = 0; i < recurrence.bydayCount; i++) {
+      if (recurrence.bydayNum[i] != 0 && !allowsNumberedDays) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return the first instance at or after from, {@link Long#MAX_VALUE} if there is none
+   */
+  public long getNextInstance(long from) {
+    final long[] result = {Long.MAX_VALUE};
+    expand(from, Long.MAX_VALUE, instance -> {
+      result[0] = instance;
+      return false;
+    });
+    return result[0];
+  }
+
+  /**
+   * @return instances that begin inside the given range, in ascending order
+   */
+  public List<Long> getInstances(long from, long to) {
+    final List<Long> result = new ArrayList<>();
+    expand(from, to, instance -> {
+      result.add(instance);
+      return true;
+    });
+    return result;
+  }
+
+  private void expand(long from, long to, InstanceVisitor visitor) {
+    LocalDate lastDate = to == Long.MAX_VALUE ? null : toLocalDate(to);
+    //without COUNT we do not need to know about instances before from, and can skip ahead
+    LocalDate periodStart = firstPeriodStart(count > 0 || from <= dtstart ?
+        startDate : toLocalDate(from));
+    int emitted = 0, emptyPeriods = 0;
+    boolean[] days = new boolean[32];
+    while (lastDate == null || !periodStart.isAfter(lastDate)) {
+      boolean found = false;
+      if (collectDays(periodStart, days)) {
+        for (int day = 1; day < days.length; day++) {
+          if (!days[day]) continue;
+          LocalDate date = freq == EventRecurrence.DAILY || freq == EventRecurrence.WEEKLY ?
+              periodStart.plusDays(day - 1) : periodStart.withDayOfMonth(day);
+          long instance = ZonedDateTime.of(date, startTime, zone).toInstant().toEpochMilli();
+          if (instance < dtstart) continue;
+          if (instance > until || (count > 0 && ++emitted > count) || instance > to) {
+            return;
+          }
+          found = true;
+          if (instance >= from && !visitor.visit(instance)) {
+            return;
+          }
+        }
+      }
+      if (found) {
+        emptyPeriods = 0;
+      } else if (++emptyPeriods > MAX_EMPTY_PERIODS) {
+        return;
+      }
+      periodStart = nextPeriodStart(periodStart);
+    }
+  }
+
+  /**
+   * @return the start of the period of the rule that contains date
+   */
+  private LocalDate firstPeriodStart(LocalDate date) {
+    switch (freq) {
+      case EventRecurrence.DAILY:
+        return startDate.plusDays(alignToInterval(ChronoUnit.DAYS.between(startDate, date)));
+      case EventRecurrence.WEEKLY: {
+        LocalDate firstWeek = weekOf(startDate);
+        return firstWeek.plusWeeks(alignToInterval(ChronoUnit.WEEKS.between(firstWeek, weekOf(date))));
+      }
+      case EventRecurrence.MONTHLY: {
+        LocalDate firstMonth = startDate.withDayOfMonth(1);
+        return firstMonth.plusMonths(alignToInterval(
+            ChronoUnit.MONTHS.between(firstMonth, date.withDayOfMonth(1))));
+      }
+      default:
+        //yearly rules are walked month by month
+        return startDate.withDayOfYear(1).plusYears(
+            alignToInterval(date.getYear() - startDate.getYear()));
+    }
+  }
+
+  private long alignToInterval(long distance) {
+    return Math.max(0, distance / interval * interval);
+  }
+
+  private LocalDate nextPeriodStart(LocalDate periodStart) {
+    switch (freq) {
+      case EventRecurrence.DAILY:
+        return periodStart.plusDays(interval);
+      case EventRecurrence.WEEKLY:
+        return periodStart.plusWeeks(interval);
+      case EventRecurrence.MONTHLY:
+        return periodStart.plusMonths(interval);
+      default:
+        return periodStart.getMonthValue() < 12 ? periodStart.plusMonths(1) :
+            periodStart.withMonth(1).plusYears(interval);
+    }
+  }
+
+  private LocalDate weekOf(LocalDate date) {
+    return date.with(TemporalAdjusters.previousOrSame(weekStart));
+  }
+
+  /**
+   * fills days with the candidates inside the period: for daily and weekly rules indexed by the
+   * offset from the period start plus one, for monthly and yearly rules by the day of month
+   *
+   * @return true if there is at least one candidate
+   */
+  private boolean collectDays(LocalDate periodStart, boolean[] days) {
+    Arrays.fill(days, false);
+    switch (freq) {
+      case EventRecurrence.DAILY:
+        days[1] = matchesFilters(periodStart);
+        return days[1];
+      case EventRecurrence.WEEKLY: {
+        boolean any = false;
+        for (int i = 0; i < 7; i++) {
+          LocalDate date = periodStart.plusDays(i);
+          DayOfWeek dayOfWeek = date.getDayOfWeek();
+          boolean matches = byDay.length == 0 ? dayOfWeek == startDate.getDayOfWeek() :
+              contains(byDay, dayOfWeek);
+          if (matches && matchesMonth(date)) {
+            days[i + 1] = true;
+            any = true;
+          }
+        }
+        return any;
+      }
+      default:
+        if (!matchesMonth(periodStart)) {
+          return false;
+        }
+        if (freq == EventRecurrence.YEARLY && byMonth.length == 0 &&
+            periodStart.getMonth() != startDate.getMonth()) {
+          return false;
+        }
+        return collectDaysOfMonth(periodStart, days);
+    }
+  }
+
+  private boolean collectDaysOfMonth(LocalDate firstOfMonth, boolean[] days) {
+    int length = firstOfMonth.lengthOfMonth();
+    boolean any = false;
+    if (byMonthDay.length == 0 && byDay.length == 0) {
+      int day = startDate.getDayOfMonth();
+      //months without this day are skipped, as required by RFC 5545
+      if (day <= length) {
+        days[day] = true;
+        any = true;
+      }
+      return any;
+    }
+    if (byMonthDay.length > 0) {
+      for (int monthDay : byMonthDay) {
+        int day = monthDay > 0 ? monthDay : length + 1 + monthDay;
+        if (day >= 1 && day <= length) {
+          days[day] = true;
+        }
+      }
+      if (byDay.length > 0) {
+        //BYDAY limits the days selected by BYMONTHDAY
+        for (int day = 1; day <= length; day++) {
+          if (days[day] && !matchesDay(firstOfMonth.withDayOfMonth(day))) {
+            days[day] = false;
+          }
+        }
+      }
+    } else {
+      for (int i = 0; i < byDay.length; i++) {
+        DayOfWeek dayOfWeek = byDay[i];
+        int num = byDayNum[i];
+        int first = firstOfMonth.with(TemporalAdjusters.firstInMonth(dayOfWeek)).getDayOfMonth();
+        if (num == 0) {
+          for (int day = first; day <= length; day += 7) {
+            days[day] = true;
+          }
+        } else {
+          int last = firstOfMonth.with(TemporalAdjusters.lastInMonth(dayOfWeek)).getDayOfMonth();
+          int day = num > 0 ? first + (num - 1) * 7 : last + (num + 1) * 7;
+          if (day >= 1 && day <= length) {
+            days[day] = true;
+          }
+        }
+      }
+    }
+    for (int day = 1; day <= length; day++) {
+      any |= days[day];
+    }
+    return any;
+  }
+
+  private boolean matchesFilters(LocalDate date) {
+    if (!matchesMonth(date)) {
+      return false;
+    }
+    if (byMonthDay.length > 0) {
+      int length = date.lengthOfMonth();
+      boolean matches = false;
+      for (int monthDay : byMonthDay) {
+        if (date.getDayOfMonth() == (monthDay > 0 ? monthDay : length + 1 + monthDay)) {
+          matches = true;
+          break;
+        }
+      }
+      if (!matches) {
+        return false;
+      }
+    }
+    return byDay.length == 0 || contains(byDay, date.getDayOfWeek());
+  }
+
+  private boolean matchesDay(LocalDate date) {
+    DayOfWeek dayOfWeek = date.getDayOfWeek();
+    int length = date.lengthOfMonth();
+    for (int i = 0; i < byDay.length; i++) {
+      if (byDay[i] != dayOfWeek) continue;
+      int num = byDayNum[i];
+      int day = date.getDayOfMonth();
+      if (num == 0 || (num > 0 && (day - 1) / 7 + 1 == num) ||
+          (num < 0 && (length - day) / 7 + 1 == -num)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private boolean matchesMonth(LocalDate date) {
+    if (byMonth.length == 0) {
+      return true;
+    }
+    for (int month : byMonth) {
+      if (month == date.getMonthValue()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private LocalDate toLocalDate(long millis) {
+    return Instant.ofEpochMilli(millis).atZone(zone).toLocalDate();
+  }
+
+  private static boolean contains(DayOfWeek[] days, DayOfWeek day) {
+    for (DayOfWeek candidate : days) {
+      if (candidate == day) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static int[] copy(int[] source, int count) {
+    int[] result = new int[count];
+    if (count > 0) {
+      System.arraycopy(source, 0, result, 0, count);
+    }
+    return result;
+  }
+
+  private static DayOfWeek toDayOfWeek(int day) {
+    switch (day) {
+      case EventRecurrence.SU:
+        return DayOfWeek.SUNDAY;
+      case EventRecurrence.TU:
+        return DayOfWeek.TUESDAY;
+      case EventRecurrence.WE:
+        return DayOfWeek.WEDNESDAY;
+      case EventRecurrence.TH:
+        return DayOfWeek.THURSDAY;
+      case EventRecurrence.FR:
+        return DayOfWeek.FRIDAY;
+      case EventRecurrence.SA:
+        return DayOfWeek.SATURDAY;
+      default:
+        return DayOfWeek.MONDAY;
+    }
+  }
+
+  /**
+   * UNTIL is either a date, a date time in UTC or a floating date time, the latter two are
+   * interpreted as inclusive limits, a date includes instances on that day.
+   */
+  private static long parseUntil(String until, ZoneId zone) {
+    if (until.length() < 8) {
+      throw new IllegalArgumentException("Invalid UNTIL " + until);
+    }
+    LocalDate date = LocalDate.of(Integer.parseInt(until.substring(0, 4)),
+        Integer.parseInt(until.substring(4, 6)), Integer.parseInt(until.substring(6, 8)));
+    if (until.length() < 15 || until.charAt(8) != 'T') {
+      return ZonedDateTime.of(date.plusDays(1), LocalTime.MIDNIGHT, zone).toInstant().toEpochMilli() - 1;
+    }
+    LocalDateTime dateTime = LocalDateTime.of(date, LocalTime.of(
+        Integer.parseInt(until.substring(9, 11)), Integer.parseInt(until.substring(11, 13)),
+        Integer.parseInt(until.substring(13, 15))));
+    return (until.endsWith("Z") ? dateTime.atZone(ZoneOffset.UTC) : dateTime.atZone(zone))
+        .toInstant().toEpochMilli();
+  }
+}
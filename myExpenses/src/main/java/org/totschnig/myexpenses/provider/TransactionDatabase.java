@@ -58,6 +58,7 @@ import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ACCOUNTID;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ACCOUNT_LABEL;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_AMOUNT;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_CATID;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_CLEARED_TOTAL;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_CODE;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_COLOR;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_COMMENT;
@@ -70,6 +71,7 @@ import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_DESCRIPTIO
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_EQUIVALENT_AMOUNT;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_EXCHANGE_RATE;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_EXCLUDE_FROM_TOTALS;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_EXPORT_WATERMARK;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_GROUPING;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_INSTANCEID;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_IS_NUMBERED;
@@ -82,6 +84,7 @@ import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_METHOD_LAB
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_OPENING_BALANCE;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ORIGINAL_AMOUNT;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ORIGINAL_CURRENCY;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ORIGINAL_ID;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PARENTID;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PARENT_UUID;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PAYEEID;
@@ -89,9 +92,12 @@ import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PAYEE_NAME
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PAYEE_NAME_NORMALIZED;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PICTURE_URI;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PLANID;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PLAN_INFO;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PLAN_EXECUTION;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_REFERENCE_NUMBER;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_RECONCILED_TOTAL;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ROWID;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_SIGNATURE;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_SORT_DIRECTION;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_SORT_KEY;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_STATUS;
@@ -108,6 +114,7 @@ import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_USAGES;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_UUID;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_VALUE;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_VALUE_DATE;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_WINDOW_START;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.SPLIT_CATID;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.STATUS_UNCOMMITTED;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_ACCOUNTS;
@@ -115,12 +122,16 @@ import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_ACCOUNTT
 import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_ACCOUNT_EXCHANGE_RATES;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_CATEGORIES;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_CHANGES;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_CR_STATUS_TOTALS;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_CURRENCIES;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_EVENT_CACHE;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_METHODS;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_PAYEES;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_PLAN_INSTANCES;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_PLAN_INSTANCE_SOURCES;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_PLAN_INSTANCE_STATUS;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_SETTINGS;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_SPLIT_PART_ORIGINS;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_STALE_URIS;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_SYNC_STATE;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_TEMPLATES;
@@ -136,7 +147,7 @@ import static org.totschnig.myexpenses.provider.DatabaseConstants.VIEW_UNCOMMITT
 import static org.totschnig.myexpenses.util.PermissionHelper.PermissionGroup.CALENDAR;
 
 public class TransactionDatabase extends SQLiteOpenHelper {
-  public static final int DATABASE_VERSION = 73;
+  public static final int DATABASE_VERSION = 79;
   private static final String DATABASE_NAME = "data";
   private Context mCtx;
 
@@ -259,7 +270,8 @@ public class TransactionDatabase extends SQLiteOpenHelper {
           + KEY_SYNC_SEQUENCE_LOCAL + " integer default 0,"
           + KEY_EXCLUDE_FROM_TOTALS + " boolean default 0, "
           + KEY_UUID + " text, "
-          + KEY_SORT_DIRECTION + " text not null check (" + KEY_SORT_DIRECTION + " in ('ASC','DESC')) default 'DESC');";
+          + KEY_SORT_DIRECTION + " text not null check (" + KEY_SORT_DIRECTION + " in ('ASC','DESC')) default 'DESC', "
+          + KEY_EXPORT_WATERMARK + " integer default 0);";
 
   private static final String SYNC_STATE_CREATE =
       "CREATE TABLE " + TABLE_SYNC_STATE + " ("
@@ -342,7 +354,11 @@ public class TransactionDatabase extends SQLiteOpenHelper {
           Events.ALL_DAY + " INTEGER NOT NULL DEFAULT 0," +
           Events.RRULE + " TEXT," +
           Events.CUSTOM_APP_PACKAGE + " TEXT," +
-          Events.CUSTOM_APP_URI + " TEXT);";
+          Events.CUSTOM_APP_URI + " TEXT," +
+          KEY_UUID + " TEXT);";
+
+  private static final String EVENT_CACHE_UUID_INDEX_CREATE = "CREATE INDEX event_cache_uuid ON "
+      + TABLE_EVENT_CACHE + "(" + KEY_UUID + ")";
 
 
   /**
@@ -371,6 +387,96 @@ public class TransactionDatabase extends SQLiteOpenHelper {
           KEY_INSTANCEID + " integer," + // NO LONGER references Instances._ID in calendar content provider; instanceId is calculated from day
           KEY_TRANSACTIONID + " integer UNIQUE references " + TABLE_TRANSACTIONS + "(" + KEY_ROWID + ") ON DELETE CASCADE);";
 
+  /**
+   * instances of plans materialized from their calendar events for a rolling window, thus
+   * sparing the expansion of recurrence rules by the calendar provider on each query,
+   * {@link DatabaseConstants#KEY_DATE} is stored in milliseconds as in the calendar provider
+   */
+  private static final String PLAN_INSTANCES_CREATE =
+      "CREATE TABLE " + TABLE_PLAN_INSTANCES
+          + " ( " + KEY_TEMPLATEID + " integer not null references " + TABLE_TEMPLATES + "(" + KEY_ROWID + ") ON DELETE CASCADE," +
+          KEY_PLANID + " integer not null," +
+          KEY_INSTANCEID + " integer not null," +
+          KEY_DATE + " integer not null);";
+
+  private static final String PLAN_INSTANCES_TEMPLATE_INDEX_CREATE = "CREATE INDEX plan_instances_template_date ON "
+      + TABLE_PLAN_INSTANCES + "(" + KEY_TEMPLATEID + "," + KEY_DATE + ")";
+
+  private static final String PLAN_INSTANCES_DATE_INDEX_CREATE = "CREATE INDEX plan_instances_date ON "
+      + TABLE_PLAN_INSTANCES + "(" + KEY_DATE + ")";
+
+  /**
+   * for each template, the window and the state of the calendar event its rows in
+   * {@link DatabaseConstants#TABLE_PLAN_INSTANCES} have been materialized from, together with the
+   * description of the recurrence, which is null if the event no longer exists
+   */
+  private static final String PLAN_INSTANCE_SOURCES_CREATE =
+      "CREATE TABLE " + TABLE_PLAN_INSTANCE_SOURCES
+          + " ( " + KEY_TEMPLATEID + " integer primary key references " + TABLE_TEMPLATES + "(" + KEY_ROWID + ") ON DELETE CASCADE," +
+          KEY_PLANID + " integer not null," +
+          KEY_WINDOW_START + " integer not null," +
+          KEY_SIGNATURE + " text not null," +
+          KEY_PLAN_INFO + " text);";
+
+  /**
+   * links the uncommitted clones of split parts, created when a split is edited, to the committed
+   * parts they have been cloned from, so that only the differences are committed
+   */
+  private static final String SPLIT_PART_ORIGINS_CREATE =
+      "CREATE TABLE " + TABLE_SPLIT_PART_ORIGINS
+          + " ( " + KEY_ROWID + " integer primary key references " + TABLE_TRANSACTIONS + "(" + KEY_ROWID + ") ON DELETE CASCADE," +
+          KEY_ORIGINAL_ID + " integer not null references " + TABLE_TRANSACTIONS + "(" + KEY_ROWID + ") ON DELETE CASCADE);";
+
+  private static final String CR_STATUS_TOTALS_CREATE =
+      "CREATE TABLE " + TABLE_CR_STATUS_TOTALS
+          + " ( " + KEY_ACCOUNTID + " integer primary key references " + TABLE_ACCOUNTS + "(" + KEY_ROWID + ") ON DELETE CASCADE,"
+          + KEY_CLEARED_TOTAL + " integer not null default 0,"
+          + KEY_RECONCILED_TOTAL + " integer not null default 0);";
+
+  /**
+   * @param row           new or old
+   * @param crStatusMatch condition on the row's cr_status
+   * @return the amount the row contributes to the total of committed transactions (that are not
+   * split parts) with matching cr_status
+   */
+  private static String crStatusTotalContribution(String row, String crStatusMatch) {
+    return "CASE WHEN " + row + "." + KEY_PARENTID + " IS NULL AND " + row + "." + KEY_STATUS + " != " + STATUS_UNCOMMITTED
+        + " AND " + row + "." + KEY_CR_STATUS + " " + crStatusMatch + " THEN " + row + "." + KEY_AMOUNT + " ELSE 0 END";
+  }
+
+  private static final String CR_STATUS_CLEARED_MATCH =
+      "IN ('" + Transaction.CrStatus.CLEARED.name() + "','" + Transaction.CrStatus.RECONCILED.name() + "')";
+  private static final String CR_STATUS_RECONCILED_MATCH = "= '" + Transaction.CrStatus.RECONCILED.name() + "'";
+
+  private static String crStatusTotalsUpdate(String row, String operator) {
+    return "UPDATE " + TABLE_CR_STATUS_TOTALS + " SET "
+        + KEY_CLEARED_TOTAL + " = " + KEY_CLEARED_TOTAL + " " + operator + " " + crStatusTotalContribution(row, CR_STATUS_CLEARED_MATCH) + ", "
+        + KEY_RECONCILED_TOTAL + " = " + KEY_RECONCILED_TOTAL + " " + operator + " " + crStatusTotalContribution(row, CR_STATUS_RECONCILED_MATCH)
+        + " WHERE " + KEY_ACCOUNTID + " = " + row + "." + KEY_ACCOUNTID + "; ";
+  }
+
+  private static final String CR_STATUS_TOTALS_ACCOUNT_INSERT_TRIGGER_CREATE =
+      "CREATE TRIGGER insert_account_cr_status_totals AFTER INSERT ON " + TABLE_ACCOUNTS
+          + " BEGIN INSERT INTO " + TABLE_CR_STATUS_TOTALS + " (" + KEY_ACCOUNTID + ") VALUES (new." + KEY_ROWID + "); END";
+
+  private static final String CR_STATUS_TOTALS_INSERT_TRIGGER_CREATE =
+      "CREATE TRIGGER insert_cr_status_totals AFTER INSERT ON " + TABLE_TRANSACTIONS
+          + " WHEN " + crStatusTotalContribution("new", CR_STATUS_CLEARED_MATCH) + " != 0"
+          + " BEGIN " + crStatusTotalsUpdate("new", "+") + "END";
+
+  private static final String CR_STATUS_TOTALS_DELETE_TRIGGER_CREATE =
+      "CREATE TRIGGER delete_cr_status_totals AFTER DELETE ON " + TABLE_TRANSACTIONS
+          + " WHEN " + crStatusTotalContribution("old", CR_STATUS_CLEARED_MATCH) + " != 0"
+          + " BEGIN " + crStatusTotalsUpdate("old", "-") + "END";
+
+  private static final String CR_STATUS_TOTALS_UPDATE_TRIGGER_CREATE =
+      "CREATE TRIGGER update_cr_status_totals AFTER UPDATE OF "
+          + KEY_AMOUNT + ", " + KEY_CR_STATUS + ", " + KEY_ACCOUNTID + ", " + KEY_PARENTID + ", " + KEY_STATUS
+          + " ON " + TABLE_TRANSACTIONS
+          + " WHEN " + crStatusTotalContribution("old", CR_STATUS_CLEARED_MATCH) + " != 0 OR "
+          + crStatusTotalContribution("new", CR_STATUS_CLEARED_MATCH) + " != 0"
+          + " BEGIN " + crStatusTotalsUpdate("old", "-") + crStatusTotalsUpdate("new", "+") + "END";
+
   private static final String STALE_URIS_CREATE =
       "CREATE TABLE " + TABLE_STALE_URIS
           + " ( " + KEY_PICTURE_URI + " text);";
@@ -622,6 +728,18 @@ public class TransactionDatabase extends SQLiteOpenHelper {
     return MyApplication.isInstrumentationTest() ? MyApplication.getTestId() : DATABASE_NAME;
   }
 
+  /**
+   * {@link TransactionProvider#backup(java.io.File, com.annimon.stream.function.IntConsumer)} copies
+   * the open database file page by page, which requires the rollback journal. Since Android 9
+   * databases are opened in write ahead log mode unless this is disabled explicitly.
+   */
+  @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+  @Override
+  public void onConfigure(SQLiteDatabase db) {
+    super.onConfigure(db);
+    db.disableWriteAheadLogging();
+  }
+
   @Override
   public void onOpen(SQLiteDatabase db) {
     super.onOpen(db);
@@ -649,6 +767,11 @@ public class TransactionDatabase extends SQLiteOpenHelper {
     db.execSQL(PAYMENT_METHODS_CREATE);
     db.execSQL(TEMPLATE_CREATE);
     db.execSQL(PLAN_INSTANCE_STATUS_CREATE);
+    db.execSQL(PLAN_INSTANCES_CREATE);
+    db.execSQL(PLAN_INSTANCES_TEMPLATE_INDEX_CREATE);
+    db.execSQL(PLAN_INSTANCES_DATE_INDEX_CREATE);
+    db.execSQL(PLAN_INSTANCE_SOURCES_CREATE);
+    db.execSQL(SPLIT_PART_ORIGINS_CREATE);
     db.execSQL(CATEGORIES_CREATE);
     db.execSQL(ACCOUNTS_CREATE);
     db.execSQL(ACCOUNTS_UUID_INDEX_CREATE);
@@ -664,6 +787,7 @@ public class TransactionDatabase extends SQLiteOpenHelper {
     db.insertOrThrow(TABLE_CATEGORIES, null, initialValues);
     insertCurrencies(db);
     db.execSQL(EVENT_CACHE_CREATE);
+    db.execSQL(EVENT_CACHE_UUID_INDEX_CREATE);
     db.execSQL(STALE_URIS_CREATE);
     db.execSQL(STALE_URI_TRIGGER_CREATE);
     db.execSQL(CHANGES_CREATE);
@@ -682,6 +806,8 @@ public class TransactionDatabase extends SQLiteOpenHelper {
     db.execSQL(INCREASE_ACCOUNT_USAGE_INSERT_TRIGGER);
     db.execSQL(INCREASE_ACCOUNT_USAGE_UPDATE_TRIGGER);
     createOrRefreshAccountTriggers(db);
+    db.execSQL(CR_STATUS_TOTALS_CREATE);
+    createOrRefreshCrStatusTotals(db);
     db.execSQL(SETTINGS_CREATE);
     //TODO evaluate if we should get rid of the split transaction category id
     db.execSQL("CREATE TRIGGER protect_split_transaction" +
@@ -1193,7 +1319,9 @@ public class TransactionDatabase extends SQLiteOpenHelper {
 
       if (oldVersion < 47) {
         db.execSQL("ALTER TABLE templates add column uuid text");
-        db.execSQL(EVENT_CACHE_CREATE);
+        db.execSQL("CREATE TABLE event_cache ( title TEXT, description TEXT, dtstart INTEGER, " +
+            "dtend INTEGER, eventTimezone TEXT, duration TEXT, allDay INTEGER NOT NULL DEFAULT 0, " +
+            "rrule TEXT, customAppPackage TEXT, customAppUri TEXT);");
       }
 
       if (oldVersion < 48) {
@@ -1669,6 +1797,35 @@ public class TransactionDatabase extends SQLiteOpenHelper {
         db.execSQL("ALTER TABLE changes add column value_date");
         createOrRefreshChangelogTriggers(db);
       }
+      if (oldVersion < 74) {
+        db.execSQL("ALTER TABLE accounts add column export_watermark integer default 0");
+      }
+      if (oldVersion < 75) {
+        db.execSQL("CREATE TABLE plan_instances ( template_id integer not null references templates(_id) ON DELETE CASCADE," +
+            "plan_id integer not null, instance_id integer not null, date integer not null);");
+        db.execSQL("CREATE INDEX plan_instances_template_date ON plan_instances(template_id,date)");
+        db.execSQL("CREATE INDEX plan_instances_date ON plan_instances(date)");
+        db.execSQL("CREATE TABLE plan_instance_sources ( template_id integer primary key references templates(_id) ON DELETE CASCADE," +
+            "plan_id integer not null, window_start integer not null, signature text not null);");
+      }
+      if (oldVersion < 76) {
+        db.execSQL("ALTER TABLE event_cache add column uuid text");
+        db.execSQL("CREATE INDEX event_cache_uuid ON event_cache(uuid)");
+      }
+      if (oldVersion < 77) {
+        db.execSQL("ALTER TABLE plan_instance_sources add column plan_info text");
+        //force materialization, so that plan_info gets populated
+        db.execSQL("DELETE FROM plan_instance_sources");
+      }
+      if (oldVersion < 78) {
+        db.execSQL("CREATE TABLE split_part_origins ( _id integer primary key references transactions(_id) ON DELETE CASCADE," +
+            "original_id integer not null references transactions(_id) ON DELETE CASCADE);");
+      }
+      if (oldVersion < 79) {
+        db.execSQL("CREATE TABLE cr_status_totals ( account_id integer primary key references accounts(_id) ON DELETE CASCADE," +
+            "cleared_total integer not null default 0, reconciled_total integer not null default 0);");
+        createOrRefreshCrStatusTotals(db);
+      }
     } catch (SQLException e) {
       throw Utils.hasApiLevel(Build.VERSION_CODES.JELLY_BEAN) ?
           new SQLiteUpgradeFailedException("Database upgrade failed", e) :
@@ -1683,6 +1840,29 @@ public class TransactionDatabase extends SQLiteOpenHelper {
     db.execSQL(ACCOUNTS_TRIGGER_CREATE);
   }
 
+  /**
+   * (re)creates the triggers that maintain {@link DatabaseConstants#TABLE_CR_STATUS_TOTALS} and
+   * computes the totals from scratch
+   */
+  private void createOrRefreshCrStatusTotals(SQLiteDatabase db) {
+    db.execSQL("DROP TRIGGER IF EXISTS insert_account_cr_status_totals");
+    db.execSQL("DROP TRIGGER IF EXISTS insert_cr_status_totals");
+    db.execSQL("DROP TRIGGER IF EXISTS delete_cr_status_totals");
+    db.execSQL("DROP TRIGGER IF EXISTS update_cr_status_totals");
+    db.execSQL(CR_STATUS_TOTALS_ACCOUNT_INSERT_TRIGGER_CREATE);
+    db.execSQL(CR_STATUS_TOTALS_INSERT_TRIGGER_CREATE);
+    db.execSQL(CR_STATUS_TOTALS_DELETE_TRIGGER_CREATE);
+    db.execSQL(CR_STATUS_TOTALS_UPDATE_TRIGGER_CREATE);
+    db.execSQL("DELETE FROM " + TABLE_CR_STATUS_TOTALS);
+    db.execSQL("INSERT INTO " + TABLE_CR_STATUS_TOTALS + " (" + KEY_ACCOUNTID + ", " + KEY_CLEARED_TOTAL + ", " + KEY_RECONCILED_TOTAL + ") "
+        + "SELECT " + KEY_ROWID + ", "
+        + "(SELECT coalesce(sum(" + crStatusTotalContribution(TABLE_TRANSACTIONS, CR_STATUS_CLEARED_MATCH) + "), 0) FROM " + TABLE_TRANSACTIONS
+        + " WHERE " + TABLE_TRANSACTIONS + "." + KEY_ACCOUNTID + " = " + TABLE_ACCOUNTS + "." + KEY_ROWID + "), "
+        + "(SELECT coalesce(sum(" + crStatusTotalContribution(TABLE_TRANSACTIONS, CR_STATUS_RECONCILED_MATCH) + "), 0) FROM " + TABLE_TRANSACTIONS
+        + " WHERE " + TABLE_TRANSACTIONS + "." + KEY_ACCOUNTID + " = " + TABLE_ACCOUNTS + "." + KEY_ROWID + ") "
+        + "FROM " + TABLE_ACCOUNTS);
+  }
+
   private void createOrRefreshChangelogTriggers(SQLiteDatabase db) {
     db.execSQL("DROP TRIGGER IF EXISTS insert_change_log");
     db.execSQL("DROP TRIGGER IF EXISTS insert_after_update_change_log");
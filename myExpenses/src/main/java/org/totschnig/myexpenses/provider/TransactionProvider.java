@@ -22,9 +22,12 @@ import android.content.ContentValues;
 import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteConstraintException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 import android.os.Bundle;
 import android.support.annotation.NonNull;
@@ -33,6 +36,9 @@ import android.support.annotation.VisibleForTesting;
 import android.test.ProviderTestCase2;
 import android.text.TextUtils;
 
+import com.annimon.stream.function.IntConsumer;
+
+import org.apache.commons.lang3.ArrayUtils;
 import org.totschnig.myexpenses.BuildConfig;
 import org.totschnig.myexpenses.MyApplication;
 import org.totschnig.myexpenses.model.Account;
@@ -50,13 +56,18 @@ import org.totschnig.myexpenses.model.Transaction;
 import org.totschnig.myexpenses.preference.PrefKey;
 import org.totschnig.myexpenses.sync.json.TransactionChange;
 import org.totschnig.myexpenses.util.BackupUtils;
-import org.totschnig.myexpenses.util.PlanInfoCursorWrapper;
 import org.totschnig.myexpenses.util.Result;
 import org.totschnig.myexpenses.util.Utils;
 import org.totschnig.myexpenses.util.crashreporting.CrashHandler;
 import org.totschnig.myexpenses.util.io.FileCopyUtils;
+import org.totschnig.myexpenses.util.io.StreamReader;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Currency;
@@ -64,6 +75,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.regex.Pattern;
 
 import timber.log.Timber;
 
@@ -108,6 +120,10 @@ public class TransactionProvider extends ContentProvider {
       Uri.parse("content://" + AUTHORITY + "/sqlite_sequence/" + TABLE_TRANSACTIONS);
   public static final Uri PLAN_INSTANCE_STATUS_URI =
       Uri.parse("content://" + AUTHORITY + "/planinstance_transaction");
+  public static final Uri PLAN_INSTANCES_URI =
+      Uri.parse("content://" + AUTHORITY + "/planinstances");
+  public static final Uri PLAN_INSTANCE_SOURCES_URI =
+      Uri.parse("content://" + AUTHORITY + "/planinstances/sources");
   public static final Uri CURRENCIES_URI =
       Uri.parse("content://" + AUTHORITY + "/currencies");
   public static final Uri TRANSACTIONS_SUM_URI =
@@ -139,12 +155,28 @@ public class TransactionProvider extends ContentProvider {
   public static final String URI_SEGMENT_TOGGLE_CRSTATUS = "toggleCrStatus";
   public static final String URI_SEGMENT_UNDELETE = "undelete";
   public static final String URI_SEGMENT_INCREASE_USAGE = "increaseUsage";
+  /**
+   * inserting into templates/#/instantiate creates a transaction from the template, see
+   * {@link #METHOD_INSTANTIATE_TEMPLATE}, values might hold {@link DatabaseConstants#KEY_DATE}
+   * and {@link DatabaseConstants#KEY_INSTANCEID}, so that it can take part in a batch
+   */
+  public static final String URI_SEGMENT_INSTANTIATE = "instantiate";
   public static final String URI_SEGMENT_GROUPS = "groups";
   public static final String URI_SEGMENT_CHANGE_FRACTION_DIGITS = "changeFractionDigits";
   public static final String URI_SEGMENT_TYPE_FILTER = "typeFilter";
   public static final String URI_SEGMENT_LAST_EXCHANGE = "lastExchange";
   public static final String URI_SEGMENT_SWAP_SORT_KEY = "swapSortKey";
   public static final String URI_SEGMENT_UNSPLIT = "unsplit";
+  /**
+   * update on a split transaction clones its parts into uncommitted rows, unless this has already
+   * happened
+   */
+  public static final String URI_SEGMENT_EDIT_SPLIT = "editSplit";
+  /**
+   * update on a split transaction commits its uncommitted parts, values hold the
+   * {@link DatabaseConstants#KEY_STATUS} they are committed with
+   */
+  public static final String URI_SEGMENT_COMMIT_SPLIT = "commitSplit";
   public static final String QUERY_PARAMETER_MERGE_CURRENCY_AGGREGATES = "mergeCurrencyAggregates";
   public static final String QUERY_PARAMETER_EXTENDED = "extended";
   public static final String QUERY_PARAMETER_DISTINCT = "distinct";
@@ -156,6 +188,13 @@ public class TransactionProvider extends ContentProvider {
   public static final String QUERY_PARAMETER_MERGE_TRANSFERS = "mergeTransfers";
   private static final String QUERY_PARAMETER_SYNC_BEGIN = "syncBegin";
   private static final String QUERY_PARAMETER_SYNC_END = "syncEnd";
+
+  private static final int BACKUP_PAGES_PER_STEP = 256;
+  private static final int BACKUP_MAX_RESTARTS = 5;
+  /**
+   * https://www.sqlite.org/fileformat2.html#file_change_counter
+   */
+  private static final int DB_HEADER_CHANGE_COUNTER_OFFSET = 24;
   public static final String QUERY_PARAMETER_WITH_START = "withStart";
   /**
    * Transfers are included into in and out sums, instead of reported in extra field
@@ -164,6 +203,36 @@ public class TransactionProvider extends ContentProvider {
   public static final String METHOD_INIT = "init";
   public static final String METHOD_BULK_START = "bulkStart";
   public static final String METHOD_BULK_END = "bulkEnd";
+  /**
+   * Creates a transaction from the template whose id is passed as argument, in one database
+   * transaction, including the parts of a split and the peer of a transfer. Extras may hold
+   * {@link DatabaseConstants#KEY_DATE} in seconds and the {@link DatabaseConstants#KEY_INSTANCEID}
+   * of the plan instance the transaction is linked to. Returns a bundle with
+   * {@link DatabaseConstants#KEY_TRANSACTIONID}, {@link DatabaseConstants#KEY_ACCOUNTID} and
+   * {@link DatabaseConstants#KEY_CATID} of the new transaction, null if the template does not exist.
+   */
+  public static final String METHOD_INSTANTIATE_TEMPLATE = "instantiateTemplate";
+  /**
+   * Deletes the transactions whose ids are passed as long array in extras under
+   * {@link DatabaseConstants#KEY_ROWID}, or marks them as void if extras hold
+   * {@link #QUERY_PARAMETER_MARK_VOID}. Like the other bulk methods below it applies the same
+   * command as the corresponding transaction URI to each id, in one database transaction and with
+   * one notification, and returns a bundle with the number of affected rows under {@link #KEY_RESULT}.
+   */
+  public static final String METHOD_DELETE_TRANSACTIONS = "deleteTransactions";
+  /**
+   * @see #METHOD_DELETE_TRANSACTIONS
+   */
+  public static final String METHOD_UNDELETE_TRANSACTIONS = "undeleteTransactions";
+  /**
+   * @see #METHOD_DELETE_TRANSACTIONS, the target account is passed as argument
+   */
+  public static final String METHOD_MOVE_TRANSACTIONS = "moveTransactions";
+  /**
+   * @see #METHOD_DELETE_TRANSACTIONS
+   */
+  public static final String METHOD_TOGGLE_CRSTATUS = "toggleCrStatus";
+  public static final String KEY_RESULT = "result";
 
   static final String TAG = "TransactionProvider";
 
@@ -215,6 +284,21 @@ public class TransactionProvider extends ContentProvider {
   private static final int AUTOFILL = 47;
   private static final int ACCOUNT_EXCHANGE_RATE = 48;
   private static final int UNSPLIT = 49;
+  private static final int PLAN_INSTANCES = 50;
+  private static final int PLAN_INSTANCE_SOURCES = 51;
+  private static final int TRANSACTION_EDIT_SPLIT = 52;
+  private static final int TRANSACTION_COMMIT_SPLIT = 53;
+  private static final int TEMPLATE_INSTANTIATE = 54;
+
+  /**
+   * columns that are copied when a split part is cloned for editing, and written back when it is
+   * committed
+   */
+  private static final String[] SPLIT_PART_COLUMNS = {
+      KEY_COMMENT, KEY_DATE, KEY_VALUE_DATE, KEY_AMOUNT, KEY_CATID, KEY_ACCOUNTID, KEY_PAYEEID,
+      KEY_TRANSFER_ACCOUNT, KEY_METHODID, KEY_CR_STATUS, KEY_REFERENCE_NUMBER, KEY_PICTURE_URI,
+      KEY_ORIGINAL_AMOUNT, KEY_ORIGINAL_CURRENCY, KEY_EQUIVALENT_AMOUNT
+  };
 
   private boolean mDirty = false;
   private boolean bulkInProgress = false;
@@ -705,6 +789,9 @@ public class TransactionProvider extends ContentProvider {
         }
         if (projection == null)
           projection = Template.PROJECTION_EXTENDED;
+        if (uri.getQueryParameter(QUERY_PARAMETER_WITH_PLAN_INFO) != null) {
+          projection = ArrayUtils.addAll(projection, SELECT_PLAN_INFO, SELECT_PLAN_WINDOW_START);
+        }
         break;
       case TEMPLATES_UNCOMMITED:
         qb.setTables(VIEW_TEMPLATES_UNCOMMITTED);
@@ -726,6 +813,12 @@ public class TransactionProvider extends ContentProvider {
       case PLANINSTANCE_TRANSACTION_STATUS:
         qb.setTables(TABLE_PLAN_INSTANCE_STATUS);
         break;
+      case PLAN_INSTANCES:
+        qb.setTables(TABLE_PLAN_INSTANCES);
+        break;
+      case PLAN_INSTANCE_SOURCES:
+        qb.setTables(TABLE_PLAN_INSTANCE_SOURCES);
+        break;
       //only called from unit test
       case CURRENCIES:
         qb.setTables(TABLE_CURRENCIES);
@@ -814,9 +907,6 @@ public class TransactionProvider extends ContentProvider {
     //long endTime = System.nanoTime();
     //Log.d("TIMER",uri.toString() + Arrays.toString(selectionArgs) + " : "+(endTime-startTime));
 
-    if (uriMatch == TEMPLATES && uri.getQueryParameter(QUERY_PARAMETER_WITH_PLAN_INFO) != null) {
-      c = new PlanInfoCursorWrapper(getContext(), c, sortOrder == null);
-    }
     c.setNotificationUri(getContext().getContentResolver(), uri);
     return c;
   }
@@ -893,6 +983,14 @@ public class TransactionProvider extends ContentProvider {
         id = db.insertWithOnConflict(TABLE_PLAN_INSTANCE_STATUS, null, values, SQLiteDatabase.CONFLICT_REPLACE);
         newUri = PLAN_INSTANCE_STATUS_URI + "/" + id;
         break;
+      case PLAN_INSTANCES:
+        id = db.insertOrThrow(TABLE_PLAN_INSTANCES, null, values);
+        newUri = PLAN_INSTANCES_URI + "/" + id;
+        break;
+      case PLAN_INSTANCE_SOURCES:
+        id = db.insertWithOnConflict(TABLE_PLAN_INSTANCE_SOURCES, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+        newUri = PLAN_INSTANCE_SOURCES_URI + "/" + id;
+        break;
       case EVENT_CACHE:
         id = db.insertOrThrow(TABLE_EVENT_CACHE, null, values);
         newUri = EVENT_CACHE_URI + "/" + id;
@@ -922,6 +1020,23 @@ public class TransactionProvider extends ContentProvider {
         newUri = SETTINGS_URI + "/" + id;
         break;
       }
+      case TEMPLATE_INSTANTIATE: {
+        Long date = values == null ? null : values.getAsLong(KEY_DATE);
+        Long instanceId = values == null ? null : values.getAsLong(KEY_INSTANCEID);
+        Bundle result;
+        db.beginTransaction();
+        try {
+          result = instantiateTemplate(db, Long.parseLong(uri.getPathSegments().get(1)),
+              date != null ? date : System.currentTimeMillis() / 1000, instanceId);
+          db.setTransactionSuccessful();
+        } finally {
+          db.endTransaction();
+        }
+        //template has been deleted
+        id = result == null ? 0 : result.getLong(KEY_TRANSACTIONID);
+        newUri = TRANSACTIONS_URI + "/" + id;
+        break;
+      }
       default:
         throw unknownUri(uri);
     }
@@ -935,6 +1050,11 @@ public class TransactionProvider extends ContentProvider {
       notifyChange(ACCOUNTS_BASE_URI, false);
     } else if (uriMatch == TEMPLATES) {
       notifyChange(TEMPLATES_UNCOMMITTED_URI, false);
+    } else if (uriMatch == TEMPLATE_INSTANTIATE && id > 0) {
+      notifyChange(TRANSACTIONS_URI, true);
+      notifyChange(ACCOUNTS_URI, false);
+      notifyChange(TEMPLATES_URI, false);
+      notifyChange(PLAN_INSTANCE_STATUS_URI, false);
     }
     return id > 0 ? Uri.parse(newUri) : null;
   }
@@ -954,39 +1074,10 @@ public class TransactionProvider extends ContentProvider {
         break;
       case TRANSACTION_ID:
         //maybe TODO ?: where and whereArgs are ignored
-        segment = uri.getPathSegments().get(1);
-        //when we are deleting a transfer whose peer is part of a split, we cannot delete the peer,
-        //because the split would be left in an invalid state, hence we transform the peer to a normal split part
-        //first we find out the account label
         db.beginTransaction();
         try {
-          Cursor c = db.query(
-              TABLE_ACCOUNTS,
-              new String[]{KEY_LABEL},
-              KEY_ROWID + " = (SELECT " + KEY_ACCOUNTID + " FROM " + TABLE_TRANSACTIONS + " WHERE " + KEY_ROWID + " = ?)",
-              new String[]{segment},
-              null, null, null);
-          c.moveToFirst();
-          //cursor should not be empty, but has been observed to be (bug report 67a7942fe8b6c9c96859b226767a9000)
-          String accountLabel = c.moveToFirst() ? c.getString(0) : "UNKNOWN";
-          c.close();
-          ContentValues args = new ContentValues();
-          args.putNull(KEY_TRANSFER_ACCOUNT);
-          args.putNull(KEY_TRANSFER_PEER);
-          db.update(TABLE_TRANSACTIONS,
-              args,
-              KEY_TRANSFER_PEER + " = ? AND " + KEY_PARENTID + " IS NOT null",
-              new String[]{segment});
-          //we delete the transaction, its children and its transfer peer, and transfer peers of its children
-          if (uri.getQueryParameter(QUERY_PARAMETER_MARK_VOID) == null) {
-            //we delete the parent separately, so that the changes trigger can correctly record the parent uuid
-            count = db.delete(TABLE_TRANSACTIONS, WHERE_DEPENDENT, new String[]{segment, segment});
-            count += db.delete(TABLE_TRANSACTIONS, WHERE_SELF_OR_PEER, new String[]{segment, segment});
-          } else {
-            ContentValues v = new ContentValues();
-            v.put(KEY_CR_STATUS, Transaction.CrStatus.VOID.name());
-            count = db.update(TABLE_TRANSACTIONS, v, WHERE_SELF_OR_DEPENDENT, new String[]{segment, segment, segment});
-          }
+          count = deleteTransaction(db, uri.getPathSegments().get(1),
+              uri.getQueryParameter(QUERY_PARAMETER_MARK_VOID) != null);
           db.setTransactionSuccessful();
         } finally {
           db.endTransaction();
@@ -1065,6 +1156,14 @@ public class TransactionProvider extends ContentProvider {
       case PLANINSTANCE_TRANSACTION_STATUS:
         count = db.delete(TABLE_PLAN_INSTANCE_STATUS, where, whereArgs);
         break;
+      case PLAN_INSTANCES:
+        count = db.delete(TABLE_PLAN_INSTANCES, where, whereArgs);
+        break;
+      case PLAN_INSTANCE_SOURCES:
+        count = db.delete(TABLE_PLAN_INSTANCE_SOURCES, where, whereArgs);
+        //the list of templates shows the plan info stored with the sources
+        notifyChange(TEMPLATES_URI, false);
+        break;
       case EVENT_CACHE:
         count = db.delete(TABLE_EVENT_CACHE, where, whereArgs);
         break;
@@ -1132,12 +1231,29 @@ public class TransactionProvider extends ContentProvider {
         count = db.update(TABLE_TRANSACTIONS, values, "_id=" + segment + whereString,
             whereArgs);
         break;
+      case TRANSACTION_EDIT_SPLIT:
+        db.beginTransaction();
+        try {
+          long parentId = Long.parseLong(uri.getPathSegments().get(1));
+          Long targetId = values == null ? null : values.getAsLong(KEY_PARENTID);
+          count = cloneSplitParts(db, parentId, targetId == null ? parentId : targetId);
+          db.setTransactionSuccessful();
+        } finally {
+          db.endTransaction();
+        }
+        break;
+      case TRANSACTION_COMMIT_SPLIT:
+        db.beginTransaction();
+        try {
+          count = commitSplitParts(db, Long.parseLong(uri.getPathSegments().get(1)),
+              values.getAsInteger(KEY_STATUS));
+          db.setTransactionSuccessful();
+        } finally {
+          db.endTransaction();
+        }
+        break;
       case TRANSACTION_UNDELETE:
-        segment = uri.getPathSegments().get(1);
-        whereArgs = new String[]{segment, segment, segment};
-        ContentValues v = new ContentValues();
-        v.put(KEY_CR_STATUS, Transaction.CrStatus.UNRECONCILED.name());
-        count = db.update(TABLE_TRANSACTIONS, v, WHERE_SELF_OR_DEPENDENT, whereArgs);
+        count = undeleteTransaction(db, uri.getPathSegments().get(1));
         break;
       case ACCOUNTS:
         count = db.update(TABLE_ACCOUNTS, values, where, whereArgs);
@@ -1256,48 +1372,14 @@ public class TransactionProvider extends ContentProvider {
             KEY_LAST_USED + " = strftime('%s', 'now') WHERE " + KEY_ROWID + " = " + segment);
         count = 1;
         break;
-      //   when we move a transaction to a new target we apply two checks
-      //1) we do not move a transfer to its own transfer_account
-      //2) we check if the transactions method_id is also available in the target account, if not we set it to null
       case TRANSACTION_MOVE:
-        segment = uri.getPathSegments().get(1);
-        String target = uri.getPathSegments().get(3);
-        db.execSQL("UPDATE " + TABLE_TRANSACTIONS +
-                " SET " +
-                KEY_ACCOUNTID + " = ?, " +
-                KEY_METHODID + " = " +
-                " CASE " +
-                " WHEN exists " +
-                " (SELECT 1 FROM " + TABLE_ACCOUNTTYES_METHODS +
-                " WHERE " + KEY_TYPE + " = " +
-                " (SELECT " + KEY_TYPE + " FROM " + TABLE_ACCOUNTS +
-                " WHERE " + DatabaseConstants.KEY_ROWID + " = ?) " +
-                " AND " + KEY_METHODID + " = " + TABLE_TRANSACTIONS + "." + KEY_METHODID + ")" +
-                " THEN " + KEY_METHODID +
-                " ELSE null " +
-                " END " +
-                " WHERE " + DatabaseConstants.KEY_ROWID + " = ? " +
-                " AND ( " + KEY_TRANSFER_ACCOUNT + " IS NULL OR " + KEY_TRANSFER_ACCOUNT + "  != ? )",
-            new String[]{target, target, segment, target});
-        count = 1;
+        count = moveTransaction(db, uri.getPathSegments().get(1), uri.getPathSegments().get(3));
         break;
       case PLANINSTANCE_TRANSACTION_STATUS:
         count = db.update(TABLE_PLAN_INSTANCE_STATUS, values, where, whereArgs);
         break;
       case TRANSACTION_TOGGLE_CRSTATUS:
-        segment = uri.getPathSegments().get(1);
-        db.execSQL("UPDATE " + TABLE_TRANSACTIONS +
-                " SET " + KEY_CR_STATUS +
-                " = CASE " + KEY_CR_STATUS +
-                " WHEN '" + "CLEARED" + "'" +
-                " THEN '" + "UNRECONCILED" + "'" +
-                " WHEN '" + "UNRECONCILED" + "'" +
-                " THEN '" + "CLEARED" + "'" +
-                " ELSE " + KEY_CR_STATUS +
-                " END" +
-                " WHERE " + DatabaseConstants.KEY_ROWID + " = ? ",
-            new String[]{segment});
-        count = 1;
+        count = toggleCrStatus(db, uri.getPathSegments().get(1));
         break;
       case CURRENCIES_CHANGE_FRACTION_DIGITS:
         synchronized (MyApplication.getInstance()) {
@@ -1442,29 +1524,46 @@ public class TransactionProvider extends ContentProvider {
         break;
       }
       case UNSPLIT: {
-        String uuid = values.getAsString(KEY_UUID);
-
-        final String subselectTemplate = String.format("(SELECT %%1$s FROM %s WHERE %s = ?)", TABLE_TRANSACTIONS, KEY_UUID);
-        String crStatusSubSelect = String.format(Locale.ROOT, subselectTemplate, KEY_CR_STATUS);
-        String payeeIdSubSelect = String.format(Locale.ROOT, subselectTemplate, KEY_PAYEEID);
-        String rowIdSubSelect = String.format(Locale.ROOT, subselectTemplate, KEY_ROWID);
-        String accountIdSubSelect = String.format(Locale.ROOT, subselectTemplate, KEY_ACCOUNTID);
+        //either one split identified by its uuid, or all splits matched by the selection
+        String parentSelection;
+        String[] parentSelectionArgs;
+        String uuid = values == null ? null : values.getAsString(KEY_UUID);
+        if (uuid != null) {
+          parentSelection = KEY_UUID + " = ?";
+          parentSelectionArgs = new String[]{uuid};
+        } else if (!TextUtils.isEmpty(where)) {
+          parentSelection = "(" + where + ")";
+          parentSelectionArgs = whereArgs;
+        } else {
+          throw new IllegalArgumentException("Unsplit requires uuid or selection");
+        }
+        parentSelection += " AND " + KEY_CATID + " = " + SPLIT_CATID;
+        final String parentIdSubSelect = String.format(Locale.ROOT, "(SELECT %s FROM %s WHERE %s)",
+            KEY_ROWID, TABLE_TRANSACTIONS, parentSelection);
+        final String columnOfParentTemplate = String.format(Locale.ROOT,
+            "(SELECT %%1$s FROM %1$s parent WHERE parent.%2$s = %1$s.%3$s)",
+            TABLE_TRANSACTIONS, KEY_ROWID, KEY_PARENTID);
+        String crStatusSubSelect = String.format(Locale.ROOT, columnOfParentTemplate, KEY_CR_STATUS);
+        String payeeIdSubSelect = String.format(Locale.ROOT, columnOfParentTemplate, KEY_PAYEEID);
 
         try {
           db.beginTransaction();
           pauseChangeTrigger(db);
-          //parts are promoted to independence
-          db.execSQL(String.format(Locale.ROOT, "UPDATE %s SET %s = null, %s = %s, %s = %s WHERE %s = %s ",
-              TABLE_TRANSACTIONS, KEY_PARENTID, KEY_CR_STATUS, crStatusSubSelect, KEY_PAYEEID, payeeIdSubSelect, KEY_PARENTID, rowIdSubSelect),
-              new String[]{uuid, uuid, uuid});
+          //parts are promoted to independence, they inherit status and payee from their parent
+          db.execSQL(String.format(Locale.ROOT, "UPDATE %s SET %s = null, %s = %s, %s = %s WHERE %s IN %s",
+              TABLE_TRANSACTIONS, KEY_PARENTID, KEY_CR_STATUS, crStatusSubSelect, KEY_PAYEEID, payeeIdSubSelect,
+              KEY_PARENTID, parentIdSubSelect),
+              parentSelectionArgs == null ? new String[0] : parentSelectionArgs);
           //Change is recorded
           if (callerIsNotSyncAdatper(uri)) {
-            db.execSQL(String.format(Locale.ROOT, "INSERT INTO %1$s (%2$s, %3$s, %4$s, %5$s) SELECT '%6$s', %7$s, %4$s, ? FROM %8$s WHERE %7$s = %9$s",
+            db.execSQL(String.format(Locale.ROOT, "INSERT INTO %1$s (%2$s, %3$s, %4$s, %5$s) SELECT '%6$s', %7$s.%3$s, %8$s.%4$s, %7$s.%5$s FROM %7$s JOIN %8$s ON %7$s.%3$s = %8$s.%9$s WHERE %7$s.%9$s IN %10$s",
                 TABLE_CHANGES, KEY_TYPE, KEY_ACCOUNTID, KEY_SYNC_SEQUENCE_LOCAL, KEY_UUID,
-                TransactionChange.Type.unsplit.name(), KEY_ROWID, TABLE_ACCOUNTS, accountIdSubSelect), new String[]{uuid, uuid});
+                TransactionChange.Type.unsplit.name(), TABLE_TRANSACTIONS, TABLE_ACCOUNTS, KEY_ROWID,
+                parentIdSubSelect),
+                parentSelectionArgs == null ? new String[0] : parentSelectionArgs);
           }
-          //parent is deleted
-          count = db.delete(TABLE_TRANSACTIONS, KEY_UUID + " = ?", new String[]{uuid});
+          //parents are deleted
+          count = db.delete(TABLE_TRANSACTIONS, parentSelection, parentSelectionArgs);
           resumeChangeTrigger(db);
           db.setTransactionSuccessful();
         } finally {
@@ -1475,7 +1574,7 @@ public class TransactionProvider extends ContentProvider {
       default:
         throw unknownUri(uri);
     }
-    if (uriMatch == TRANSACTIONS || uriMatch == TRANSACTION_ID ||
+    if (uriMatch == TRANSACTIONS || uriMatch == TRANSACTION_ID || uriMatch == TRANSACTION_COMMIT_SPLIT ||
         uriMatch == CURRENCIES_CHANGE_FRACTION_DIGITS || uriMatch == TRANSACTION_UNDELETE ||
         uriMatch == TRANSACTION_MOVE || uriMatch == TRANSACTION_TOGGLE_CRSTATUS) {
       notifyChange(TRANSACTIONS_URI, callerIsNotSyncAdatper(uri));
@@ -1562,10 +1661,370 @@ public class TransactionProvider extends ContentProvider {
         notifyChange(METHODS_URI, true);
         break;
       }
+      case METHOD_INSTANTIATE_TEMPLATE: {
+        if (arg == null) {
+          return null;
+        }
+        setDirty();
+        Long date = extras != null && extras.containsKey(KEY_DATE) ? extras.getLong(KEY_DATE) : null;
+        Long instanceId = extras != null && extras.containsKey(KEY_INSTANCEID) ?
+            extras.getLong(KEY_INSTANCEID) : null;
+        Bundle result;
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+          result = instantiateTemplate(db, Long.parseLong(arg),
+              date != null ? date : System.currentTimeMillis() / 1000, instanceId);
+          db.setTransactionSuccessful();
+        } finally {
+          db.endTransaction();
+        }
+        if (result != null) {
+          notifyChange(TRANSACTIONS_URI, true);
+          notifyChange(ACCOUNTS_URI, false);
+          notifyChange(TEMPLATES_URI, false);
+          if (instanceId != null) {
+            notifyChange(PLAN_INSTANCE_STATUS_URI, false);
+          }
+        }
+        return result;
+      }
+      case METHOD_DELETE_TRANSACTIONS:
+      case METHOD_UNDELETE_TRANSACTIONS:
+      case METHOD_MOVE_TRANSACTIONS:
+      case METHOD_TOGGLE_CRSTATUS: {
+        long[] ids = extras == null ? null : extras.getLongArray(KEY_ROWID);
+        if (ids == null || (method.equals(METHOD_MOVE_TRANSACTIONS) && arg == null)) {
+          return null;
+        }
+        setDirty();
+        boolean markVoid = extras.getBoolean(QUERY_PARAMETER_MARK_VOID);
+        int count = 0;
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+          for (long id : ids) {
+            String segment = String.valueOf(id);
+            switch (method) {
+              case METHOD_DELETE_TRANSACTIONS:
+                count += deleteTransaction(db, segment, markVoid);
+                break;
+              case METHOD_UNDELETE_TRANSACTIONS:
+                count += undeleteTransaction(db, segment);
+                break;
+              case METHOD_MOVE_TRANSACTIONS:
+                count += moveTransaction(db, segment, arg);
+                break;
+              case METHOD_TOGGLE_CRSTATUS:
+                count += toggleCrStatus(db, segment);
+                break;
+            }
+          }
+          db.setTransactionSuccessful();
+        } finally {
+          db.endTransaction();
+        }
+        notifyChange(TRANSACTIONS_URI, true);
+        notifyChange(ACCOUNTS_URI, false);
+        notifyChange(UNCOMMITTED_URI, false);
+        notifyChange(CATEGORIES_URI, false);
+        Bundle result = new Bundle(1);
+        result.putInt(KEY_RESULT, count);
+        return result;
+      }
     }
     return null;
   }
 
+  /**
+   * Deletes the transaction, its children and its transfer peer, and transfer peers of its
+   * children, or marks them as void. Must be called inside a database transaction.
+   */
+  private int deleteTransaction(SQLiteDatabase db, String id, boolean markVoid) {
+    int count;
+    //when we are deleting a transfer whose peer is part of a split, we cannot delete the peer,
+    //because the split would be left in an invalid state, hence we transform the peer to a normal split part
+    ContentValues args = new ContentValues();
+    args.putNull(KEY_TRANSFER_ACCOUNT);
+    args.putNull(KEY_TRANSFER_PEER);
+    db.update(TABLE_TRANSACTIONS,
+        args,
+        KEY_TRANSFER_PEER + " = ? AND " + KEY_PARENTID + " IS NOT null",
+        new String[]{id});
+    if (!markVoid) {
+      //we delete the parent separately, so that the changes trigger can correctly record the parent uuid
+      count = db.delete(TABLE_TRANSACTIONS, WHERE_DEPENDENT, new String[]{id, id});
+      count += db.delete(TABLE_TRANSACTIONS, WHERE_SELF_OR_PEER, new String[]{id, id});
+    } else {
+      ContentValues v = new ContentValues();
+      v.put(KEY_CR_STATUS, Transaction.CrStatus.VOID.name());
+      count = db.update(TABLE_TRANSACTIONS, v, WHERE_SELF_OR_DEPENDENT, new String[]{id, id, id});
+    }
+    return count;
+  }
+
+  private int undeleteTransaction(SQLiteDatabase db, String id) {
+    ContentValues v = new ContentValues();
+    v.put(KEY_CR_STATUS, Transaction.CrStatus.UNRECONCILED.name());
+    return db.update(TABLE_TRANSACTIONS, v, WHERE_SELF_OR_DEPENDENT, new String[]{id, id, id});
+  }
+
+  //   when we move a transaction to a new target we apply two checks
+  //1) we do not move a transfer to its own transfer_account
+  //2) we check if the transactions method_id is also available in the target account, if not we set it to null
+  private int moveTransaction(SQLiteDatabase db, String id, String target) {
+    db.execSQL("UPDATE " + TABLE_TRANSACTIONS +
+            " SET " +
+            KEY_ACCOUNTID + " = ?, " +
+            KEY_METHODID + " = " +
+            " CASE " +
+            " WHEN exists " +
+            " (SELECT 1 FROM " + TABLE_ACCOUNTTYES_METHODS +
+            " WHERE " + KEY_TYPE + " = " +
+            " (SELECT " + KEY_TYPE + " FROM " + TABLE_ACCOUNTS +
+            " WHERE " + DatabaseConstants.KEY_ROWID + " = ?) " +
+            " AND " + KEY_METHODID + " = " + TABLE_TRANSACTIONS + "." + KEY_METHODID + ")" +
+            " THEN " + KEY_METHODID +
+            " ELSE null " +
+            " END " +
+            " WHERE " + DatabaseConstants.KEY_ROWID + " = ? " +
+            " AND ( " + KEY_TRANSFER_ACCOUNT + " IS NULL OR " + KEY_TRANSFER_ACCOUNT + "  != ? )",
+        new String[]{target, target, id, target});
+    return 1;
+  }
+
+  private int toggleCrStatus(SQLiteDatabase db, String id) {
+    db.execSQL("UPDATE " + TABLE_TRANSACTIONS +
+            " SET " + KEY_CR_STATUS +
+            " = CASE " + KEY_CR_STATUS +
+            " WHEN '" + "CLEARED" + "'" +
+            " THEN '" + "UNRECONCILED" + "'" +
+            " WHEN '" + "UNRECONCILED" + "'" +
+            " THEN '" + "CLEARED" + "'" +
+            " ELSE " + KEY_CR_STATUS +
+            " END" +
+            " WHERE " + DatabaseConstants.KEY_ROWID + " = ? ",
+        new String[]{id});
+    return 1;
+  }
+
+  /**
+   * Clones the committed parts of a split, together with the peers of transfer parts, into
+   * uncommitted rows, and records in {@link DatabaseConstants#TABLE_SPLIT_PART_ORIGINS} which part
+   * each clone has been created from. If the parts are cloned into another split, as happens when
+   * a split is cloned, they are new parts of that split, and no origins are recorded.
+   *
+   * @param parentId split whose committed parts are cloned
+   * @param targetId split the clones are attached to
+   * @return number of parts cloned, 0 if uncommitted parts already exist
+   */
+  private int cloneSplitParts(SQLiteDatabase db, long parentId, long targetId) {
+    String[] parentArgs = new String[]{String.valueOf(parentId)};
+    if (DatabaseUtils.queryNumEntries(db, TABLE_TRANSACTIONS,
+        KEY_PARENTID + " = ? AND " + KEY_STATUS + " = " + STATUS_UNCOMMITTED,
+        new String[]{String.valueOf(targetId)}) > 0) {
+      return 0;
+    }
+    boolean recordOrigins = parentId == targetId;
+    String columns = TextUtils.join(", ", SPLIT_PART_COLUMNS);
+    SQLiteStatement clone = db.compileStatement("INSERT INTO " + TABLE_TRANSACTIONS + " (" + columns +
+        ", " + KEY_PARENTID + ", " + KEY_STATUS + ", " + KEY_UUID + ") SELECT " + columns + ", ?3, " +
+        STATUS_UNCOMMITTED + ", ?1 FROM " + TABLE_TRANSACTIONS + " WHERE " + KEY_ROWID + " = ?2");
+    clone.bindLong(3, targetId);
+    //both parts of a transfer share uuid
+    SQLiteStatement clonePeer = db.compileStatement("INSERT INTO " + TABLE_TRANSACTIONS + " (" + columns +
+        ", " + KEY_TRANSFER_PEER + ", " + KEY_STATUS + ", " + KEY_UUID + ") SELECT " + columns + ", ?1, " +
+        STATUS_UNCOMMITTED + ", ?2 FROM " + TABLE_TRANSACTIONS + " WHERE " + KEY_ROWID + " = ?3");
+    SQLiteStatement linkPeer = db.compileStatement("UPDATE " + TABLE_TRANSACTIONS + " SET " +
+        KEY_TRANSFER_PEER + " = ? WHERE " + KEY_ROWID + " = ?");
+    SQLiteStatement origin = db.compileStatement("INSERT INTO " + TABLE_SPLIT_PART_ORIGINS + " (" +
+        KEY_ROWID + ", " + KEY_ORIGINAL_ID + ") VALUES (?, ?)");
+    int count = 0;
+    Cursor c = db.query(TABLE_TRANSACTIONS, new String[]{KEY_ROWID, KEY_TRANSFER_PEER},
+        KEY_PARENTID + " = ? AND " + KEY_STATUS + " != " + STATUS_UNCOMMITTED, parentArgs,
+        null, null, KEY_ROWID);
+    try {
+      while (c.moveToNext()) {
+        long partId = c.getLong(0);
+        String uuid = Model.generateUuid();
+        clone.bindString(1, uuid);
+        clone.bindLong(2, partId);
+        long cloneId = clone.executeInsert();
+        if (recordOrigins) {
+          origin.bindLong(1, cloneId);
+          origin.bindLong(2, partId);
+          origin.executeInsert();
+        }
+        if (!c.isNull(1)) {
+          clonePeer.bindLong(1, cloneId);
+          clonePeer.bindString(2, uuid);
+          clonePeer.bindLong(3, c.getLong(1));
+          linkPeer.bindLong(1, clonePeer.executeInsert());
+          linkPeer.bindLong(2, cloneId);
+          linkPeer.executeUpdateDelete();
+        }
+        count++;
+      }
+    } finally {
+      c.close();
+      clone.close();
+      clonePeer.close();
+      linkPeer.close();
+      origin.close();
+    }
+    return count;
+  }
+
+  /**
+   * Commits the uncommitted parts of a split. A part that is no transfer and has been cloned from a
+   * committed part is written back to its original, if it differs, so that the change log only
+   * records the columns that have been edited. All other committed parts are replaced by their
+   * uncommitted counterparts, as before.
+   *
+   * @return number of rows committed or written back
+   */
+  private int commitSplitParts(SQLiteDatabase db, long parentId, int status) {
+    String parent = String.valueOf(parentId);
+    //clones and originals that can be diffed, transfers are replaced, since their peers would need
+    //to be kept in sync
+    String pairsFrom = " FROM " + TABLE_SPLIT_PART_ORIGINS + " JOIN " + TABLE_TRANSACTIONS +
+        " clone ON clone." + KEY_ROWID + " = " + TABLE_SPLIT_PART_ORIGINS + "." + KEY_ROWID +
+        " JOIN " + TABLE_TRANSACTIONS + " original ON original." + KEY_ROWID + " = " +
+        TABLE_SPLIT_PART_ORIGINS + "." + KEY_ORIGINAL_ID +
+        " WHERE clone." + KEY_PARENTID + " = " + parent +
+        " AND clone." + KEY_TRANSFER_PEER + " IS NULL AND original." + KEY_TRANSFER_PEER + " IS NULL";
+    StringBuilder set = new StringBuilder();
+    StringBuilder differs = new StringBuilder();
+    for (String column : SPLIT_PART_COLUMNS) {
+      if (set.length() > 0) {
+        set.append(", ");
+        differs.append(" OR ");
+      }
+      set.append(column).append(" = (SELECT ").append(column).append(" FROM ").append(TABLE_TRANSACTIONS)
+          .append(" clone WHERE clone.").append(KEY_ROWID).append(" = (SELECT ").append(KEY_ROWID)
+          .append(" FROM ").append(TABLE_SPLIT_PART_ORIGINS).append(" WHERE ").append(KEY_ORIGINAL_ID)
+          .append(" = ").append(TABLE_TRANSACTIONS).append(".").append(KEY_ROWID).append("))");
+      differs.append("clone.").append(column).append(" IS NOT original.").append(column);
+    }
+    SQLiteStatement writeBack = db.compileStatement("UPDATE " + TABLE_TRANSACTIONS + " SET " + set +
+        " WHERE " + KEY_ROWID + " IN (SELECT original." + KEY_ROWID + pairsFrom + " AND (" + differs + "))");
+    int count = writeBack.executeUpdateDelete();
+    writeBack.close();
+    //committed parts without a clone that can be diffed are replaced
+    db.delete(TABLE_TRANSACTIONS, "(" + WHERE_DEPENDENT + ") AND " + KEY_STATUS + " != " + STATUS_UNCOMMITTED +
+            " AND " + KEY_ROWID + " NOT IN (SELECT original." + KEY_ROWID + pairsFrom + ")",
+        new String[]{parent, parent});
+    //remaining links belong to clones that have been written back
+    db.delete(TABLE_TRANSACTIONS, KEY_ROWID + " IN (SELECT " + TABLE_SPLIT_PART_ORIGINS + "." + KEY_ROWID +
+        " FROM " + TABLE_SPLIT_PART_ORIGINS + " JOIN " + TABLE_TRANSACTIONS + " clone ON clone." + KEY_ROWID +
+        " = " + TABLE_SPLIT_PART_ORIGINS + "." + KEY_ROWID + " WHERE clone." + KEY_PARENTID + " = ?)",
+        new String[]{parent});
+    ContentValues statusValues = new ContentValues(1);
+    statusValues.put(KEY_STATUS, status);
+    //for a new split, both the parent and the parts are in state uncommitted, the parent is
+    //committed first, so that the change log lists it before its parts
+    db.update(TABLE_TRANSACTIONS, statusValues, KEY_ROWID + " = ? AND " + KEY_STATUS + " = " + STATUS_UNCOMMITTED,
+        new String[]{parent});
+    count += db.update(TABLE_TRANSACTIONS, statusValues, "(" + WHERE_DEPENDENT + ") AND " + KEY_STATUS + " = " +
+        STATUS_UNCOMMITTED, new String[]{parent, parent});
+    return count;
+  }
+
+  /**
+   * Copies the template and its split parts into the transactions table with INSERT ... SELECT,
+   * so that neither the template nor its account need to be loaded. Mirrors
+   * {@link Transaction#getInstanceFromTemplate(Template)} followed by saving the transaction:
+   * transfers do not store category, payee and method, their peer receives the negated amount.
+   */
+  @Nullable
+  private Bundle instantiateTemplate(SQLiteDatabase db, long templateId, long date, @Nullable Long instanceId) {
+    //the template itself comes first, followed by its split parts
+    Cursor c = db.query(TABLE_TEMPLATES, new String[]{KEY_ROWID, KEY_TRANSFER_ACCOUNT, KEY_ACCOUNTID, KEY_CATID},
+        KEY_ROWID + " = ? OR " + KEY_PARENTID + " = ?",
+        new String[]{String.valueOf(templateId), String.valueOf(templateId)},
+        null, null, KEY_PARENTID + " IS NOT NULL, " + KEY_ROWID);
+    if (c == null) {
+      return null;
+    }
+    Bundle result = null;
+    try {
+      if (c.moveToFirst() && c.getLong(0) == templateId) {
+        SQLiteStatement insert = db.compileStatement("INSERT INTO " + TABLE_TRANSACTIONS + " (" +
+            KEY_COMMENT + ", " + KEY_DATE + ", " + KEY_VALUE_DATE + ", " + KEY_AMOUNT + ", " +
+            KEY_CATID + ", " + KEY_ACCOUNTID + ", " + KEY_PAYEEID + ", " + KEY_TRANSFER_ACCOUNT + ", " +
+            KEY_METHODID + ", " + KEY_PARENTID + ", " + KEY_STATUS + ", " + KEY_CR_STATUS + ", " + KEY_UUID +
+            ") SELECT " + KEY_COMMENT + ", ?1, ?1, " + KEY_AMOUNT + ", " +
+            "CASE WHEN " + KEY_TRANSFER_ACCOUNT + " IS NULL THEN " + KEY_CATID + " END, " + KEY_ACCOUNTID + ", " +
+            "CASE WHEN " + KEY_TRANSFER_ACCOUNT + " IS NULL THEN " + KEY_PAYEEID + " END, " + KEY_TRANSFER_ACCOUNT + ", " +
+            "CASE WHEN " + KEY_TRANSFER_ACCOUNT + " IS NULL THEN " + KEY_METHODID + " END, ?2, " +
+            STATUS_NONE + ", '" + Transaction.CrStatus.UNRECONCILED.name() + "', ?3 FROM " + TABLE_TEMPLATES +
+            " WHERE " + KEY_ROWID + " = ?4");
+        //the peer of a transfer is never part of a split
+        SQLiteStatement insertPeer = db.compileStatement("INSERT INTO " + TABLE_TRANSACTIONS + " (" +
+            KEY_COMMENT + ", " + KEY_DATE + ", " + KEY_VALUE_DATE + ", " + KEY_AMOUNT + ", " +
+            KEY_ACCOUNTID + ", " + KEY_TRANSFER_ACCOUNT + ", " + KEY_TRANSFER_PEER + ", " +
+            KEY_STATUS + ", " + KEY_CR_STATUS + ", " + KEY_UUID +
+            ") SELECT " + KEY_COMMENT + ", ?1, ?1, - " + KEY_AMOUNT + ", " +
+            KEY_TRANSFER_ACCOUNT + ", " + KEY_ACCOUNTID + ", ?2, " +
+            STATUS_NONE + ", '" + Transaction.CrStatus.UNRECONCILED.name() + "', ?3 FROM " + TABLE_TEMPLATES +
+            " WHERE " + KEY_ROWID + " = ?4");
+        SQLiteStatement linkPeer = db.compileStatement("UPDATE " + TABLE_TRANSACTIONS + " SET " +
+            KEY_TRANSFER_PEER + " = ? WHERE " + KEY_ROWID + " = ?");
+        long parentId = 0;
+        while (!c.isAfterLast()) {
+          long rowId = c.getLong(0);
+          //both parts of a transfer share uuid
+          String uuid = Model.generateUuid();
+          insert.bindLong(1, date);
+          if (parentId == 0) {
+            insert.bindNull(2);
+          } else {
+            insert.bindLong(2, parentId);
+          }
+          insert.bindString(3, uuid);
+          insert.bindLong(4, rowId);
+          long id = insert.executeInsert();
+          if (!c.isNull(1)) {
+            insertPeer.bindLong(1, date);
+            insertPeer.bindLong(2, id);
+            insertPeer.bindString(3, uuid);
+            insertPeer.bindLong(4, rowId);
+            linkPeer.bindLong(1, insertPeer.executeInsert());
+            linkPeer.bindLong(2, id);
+            linkPeer.executeUpdateDelete();
+          }
+          if (parentId == 0) {
+            parentId = id;
+            result = new Bundle(3);
+            result.putLong(KEY_TRANSACTIONID, id);
+            result.putLong(KEY_ACCOUNTID, c.getLong(2));
+            if (!c.isNull(3)) {
+              result.putLong(KEY_CATID, c.getLong(3));
+            }
+          }
+          c.moveToNext();
+        }
+        insert.close();
+        insertPeer.close();
+        linkPeer.close();
+        if (instanceId != null) {
+          ContentValues values = new ContentValues();
+          values.put(KEY_TEMPLATEID, templateId);
+          values.put(KEY_INSTANCEID, instanceId);
+          values.put(KEY_TRANSACTIONID, parentId);
+          //like inserts into PLAN_INSTANCE_STATUS_URI, an existing link of the instance is replaced
+          db.insertWithOnConflict(TABLE_PLAN_INSTANCE_STATUS, null, values,
+              SQLiteDatabase.CONFLICT_REPLACE);
+        }
+        db.execSQL("UPDATE " + TABLE_TEMPLATES + " SET " + KEY_USAGES + " = " + KEY_USAGES + " + 1, " +
+            KEY_LAST_USED + " = strftime('%s', 'now') WHERE " + KEY_ROWID + " = " + templateId);
+      }
+    } finally {
+      c.close();
+    }
+    return result;
+  }
+
   static {
     URI_MATCHER = new UriMatcher(UriMatcher.NO_MATCH);
     URI_MATCHER.addURI(AUTHORITY, "transactions", TRANSACTIONS);
@@ -1577,6 +2036,8 @@ public class TransactionProvider extends ContentProvider {
     URI_MATCHER.addURI(AUTHORITY, "transactions/#/" + URI_SEGMENT_MOVE + "/#", TRANSACTION_MOVE);
     URI_MATCHER.addURI(AUTHORITY, "transactions/#/" + URI_SEGMENT_TOGGLE_CRSTATUS, TRANSACTION_TOGGLE_CRSTATUS);
     URI_MATCHER.addURI(AUTHORITY, "transactions/#/" + URI_SEGMENT_UNDELETE, TRANSACTION_UNDELETE);
+    URI_MATCHER.addURI(AUTHORITY, "transactions/#/" + URI_SEGMENT_EDIT_SPLIT, TRANSACTION_EDIT_SPLIT);
+    URI_MATCHER.addURI(AUTHORITY, "transactions/#/" + URI_SEGMENT_COMMIT_SPLIT, TRANSACTION_COMMIT_SPLIT);
     //uses uuid in order to be usable from sync adapter
     URI_MATCHER.addURI(AUTHORITY, "transactions/" + URI_SEGMENT_UNSPLIT, UNSPLIT);
     URI_MATCHER.addURI(AUTHORITY, "categories", CATEGORIES);
@@ -1600,8 +2061,11 @@ public class TransactionProvider extends ContentProvider {
     URI_MATCHER.addURI(AUTHORITY, "templates/uncommitted", TEMPLATES_UNCOMMITED);
     URI_MATCHER.addURI(AUTHORITY, "templates/#", TEMPLATE_ID);
     URI_MATCHER.addURI(AUTHORITY, "templates/#/" + URI_SEGMENT_INCREASE_USAGE, TEMPLATES_INCREASE_USAGE);
+    URI_MATCHER.addURI(AUTHORITY, "templates/#/" + URI_SEGMENT_INSTANTIATE, TEMPLATE_INSTANTIATE);
     URI_MATCHER.addURI(AUTHORITY, "sqlite_sequence/*", SQLITE_SEQUENCE_TABLE);
     URI_MATCHER.addURI(AUTHORITY, "planinstance_transaction", PLANINSTANCE_TRANSACTION_STATUS);
+    URI_MATCHER.addURI(AUTHORITY, "planinstances", PLAN_INSTANCES);
+    URI_MATCHER.addURI(AUTHORITY, "planinstances/sources", PLAN_INSTANCE_SOURCES);
     URI_MATCHER.addURI(AUTHORITY, "currencies", CURRENCIES);
     URI_MATCHER.addURI(AUTHORITY, "currencies/" + URI_SEGMENT_CHANGE_FRACTION_DIGITS + "/*/#", CURRENCIES_CHANGE_FRACTION_DIGITS);
     URI_MATCHER.addURI(AUTHORITY, "accounts/aggregates/*", AGGREGATE_ID);
@@ -1633,49 +2097,163 @@ public class TransactionProvider extends ContentProvider {
     return mOpenHelper;
   }
 
-  public Result backup(File backupDir) {
-    File currentDb = new File(mOpenHelper.getReadableDatabase().getPath());
-    mOpenHelper.close();
-    try {
-      File backupPrefFile, sharedPrefFile;
-      Result result = backupDb(new File(backupDir, BackupUtils.BACKUP_DB_FILE_NAME), currentDb);
-      if (result.isSuccess()) {
-        backupPrefFile = new File(backupDir, BackupUtils.BACKUP_PREF_FILE_NAME);
-        // Samsung has special path on some devices
-        // http://stackoverflow.com/questions/5531289/copy-the-shared-preferences-xml-file-from-data-on-samsung-device-failed
-        final MyApplication application = MyApplication.getInstance();
-        String sharedPrefPath = "/shared_prefs/" + application.getPackageName() + "_preferences.xml";
-        sharedPrefFile = new File("/dbdata/databases/" + application.getPackageName() + sharedPrefPath);
+  /**
+   * Writes a snapshot of the database and the shared preferences into backupDir. The database
+   * stays open while the snapshot is taken, see {@link #backupDb(File, IntConsumer)}.
+   *
+   * @param progress receives the percentage of the database that has been copied
+   */
+  public Result backup(File backupDir, @Nullable IntConsumer progress) {
+    File backupPrefFile, sharedPrefFile;
+    Result result = backupDb(new File(backupDir, BackupUtils.BACKUP_DB_FILE_NAME), progress);
+    if (result.isSuccess()) {
+      backupPrefFile = new File(backupDir, BackupUtils.BACKUP_PREF_FILE_NAME);
+      // Samsung has special path on some devices
+      // http://stackoverflow.com/questions/5531289/copy-the-shared-preferences-xml-file-from-data-on-samsung-device-failed
+      final MyApplication application = MyApplication.getInstance();
+      String sharedPrefPath = "/shared_prefs/" + application.getPackageName() + "_preferences.xml";
+      sharedPrefFile = new File("/dbdata/databases/" + application.getPackageName() + sharedPrefPath);
+      if (!sharedPrefFile.exists()) {
+        sharedPrefFile = new File(getInternalAppDir().getPath() + sharedPrefPath);
+        Timber.d(sharedPrefFile.getPath());
         if (!sharedPrefFile.exists()) {
-          sharedPrefFile = new File(getInternalAppDir().getPath() + sharedPrefPath);
-          Timber.d(sharedPrefFile.getPath());
-          if (!sharedPrefFile.exists()) {
-            final String message = "Unable to find shared preference file at " +
-                sharedPrefFile.getPath();
-            CrashHandler.report(message);
-            return Result.ofFailure(message);
+          final String message = "Unable to find shared preference file at " +
+              sharedPrefFile.getPath();
+          CrashHandler.report(message);
+          return Result.ofFailure(message);
+        }
+      }
+      if (copyPreferences(sharedPrefFile, backupPrefFile)) {
+        PrefKey.AUTO_BACKUP_DIRTY.putBoolean(false);
+        mDirty = false;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * copies the shared preferences file without the backup password, which must not end up in
+   * backups, that are written to shared storage and, if incremental, are not encrypted
+   */
+  private static boolean copyPreferences(File sharedPrefFile, File backupPrefFile) {
+    try {
+      String prefs = new StreamReader(sharedPrefFile).read();
+      //values are escaped, hence the closing tag can not occur inside the value
+      prefs = prefs.replaceAll("(?s)\\s*<string name=\"" +
+          Pattern.quote(PrefKey.BACKUP_PASSWORD.getKey()) + "\">.*?</string>", "");
+      Writer writer = new OutputStreamWriter(new FileOutputStream(backupPrefFile), "UTF-8");
+      try {
+        writer.write(prefs);
+      } finally {
+        writer.close();
+      }
+      return true;
+    } catch (IOException e) {
+      Timber.w(e);
+      return false;
+    }
+  }
+
+  /**
+   * Copies the live database page by page, like the SQLite online backup API does, which is not
+   * exposed by the Android framework. Each step of {@link #BACKUP_PAGES_PER_STEP} pages is read
+   * inside a transaction, hence no commit can happen while it is read, but writers are only
+   * blocked for the duration of one step. A commit between two steps is detected through the file
+   * change counter in the database header, and the copy is restarted. After
+   * {@link #BACKUP_MAX_RESTARTS} restarts, all pages are copied in one step.
+   * <p>
+   * This relies on the rollback journal, which {@link TransactionDatabase#onConfigure(SQLiteDatabase)}
+   * enforces. In WAL mode committed pages are not found in the database file, and the database is
+   * closed and copied as a whole instead.
+   */
+  private Result backupDb(File backupDb, @Nullable IntConsumer progress) {
+    SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+    File currentDb = new File(db.getPath());
+    if (!currentDb.exists()) {
+      return Result.ofFailure("Could not find database at " + currentDb.getPath());
+    }
+    if ("wal".equalsIgnoreCase(DatabaseUtils.stringForQuery(db, "PRAGMA journal_mode", null))) {
+      Timber.w("Database is in WAL mode, copying it closed");
+      return copyClosedDb(currentDb, backupDb);
+    }
+    RandomAccessFile in = null, out = null;
+    try {
+      in = new RandomAccessFile(currentDb, "r");
+      out = new RandomAccessFile(backupDb, "rw");
+      long changeCounter = -1, copied = 0, pageCount;
+      int restarts = 0;
+      byte[] page = new byte[0];
+      do {
+        db.beginTransactionNonExclusive();
+        try {
+          int pageSize = (int) DatabaseUtils.longForQuery(db, "PRAGMA page_size", null);
+          pageCount = DatabaseUtils.longForQuery(db, "PRAGMA page_count", null);
+          in.seek(DB_HEADER_CHANGE_COUNTER_OFFSET);
+          long counter = in.readInt() & 0xffffffffL;
+          if (counter != changeCounter) {
+            if (changeCounter != -1) {
+              restarts++;
+              Timber.d("Database changed during backup, restarting");
+            }
+            changeCounter = counter;
+            copied = 0;
+          }
+          if (page.length != pageSize) {
+            page = new byte[pageSize];
           }
+          long end = restarts < BACKUP_MAX_RESTARTS ?
+              Math.min(pageCount, copied + BACKUP_PAGES_PER_STEP) : pageCount;
+          in.seek(copied * pageSize);
+          out.seek(copied * pageSize);
+          for (; copied < end; copied++) {
+            in.readFully(page);
+            out.write(page);
+          }
+          if (copied == pageCount) {
+            out.setLength(pageCount * pageSize);
+          }
+        } finally {
+          db.endTransaction();
         }
-        if (FileCopyUtils.copy(sharedPrefFile, backupPrefFile)) {
-          PrefKey.AUTO_BACKUP_DIRTY.putBoolean(false);
-          mDirty = false;
+        if (progress != null && pageCount > 0) {
+          progress.accept((int) (copied * 100 / pageCount));
         }
-      }
-      return result;
+      } while (copied < pageCount);
+      return Result.SUCCESS;
+    } catch (IOException | SQLiteException e) {
+      CrashHandler.report(e);
+      return Result.ofFailure(String.format(
+          "Error while copying %s to %s: %s", currentDb.getPath(), backupDb.getPath(), e.getMessage()));
     } finally {
-      initOpenHelper();
+      closeQuietly(in);
+      closeQuietly(out);
     }
   }
 
-  private Result backupDb(File backupDb, File currentDb) {
-    if (currentDb.exists()) {
+  /**
+   * closing the last connection checkpoints the write ahead log into the database file
+   */
+  private Result copyClosedDb(File currentDb, File backupDb) {
+    mOpenHelper.close();
+    try {
       if (FileCopyUtils.copy(currentDb, backupDb)) {
         return Result.SUCCESS;
       }
       return Result.ofFailure(String.format(
           "Error while copying %s to %s", currentDb.getPath(), backupDb.getPath()));
+    } finally {
+      initOpenHelper();
+    }
+  }
+
+  private static void closeQuietly(@Nullable RandomAccessFile file) {
+    if (file != null) {
+      try {
+        file.close();
+      } catch (IOException e) {
+        Timber.e(e);
+      }
     }
-    return Result.ofFailure("Could not find database at " + currentDb.getPath());
   }
 
   private File getInternalAppDir() {
@@ -1691,7 +2269,7 @@ public class TransactionProvider extends ContentProvider {
     boolean result = false;
     mOpenHelper.close();
     try {
-      result = FileCopyUtils.copy(backupFile, currentDb);
+      result = FileCopyUtils.copy(backupFile, currentDb, true);
     } finally {
       initOpenHelper();
     }
@@ -37,6 +37,7 @@ import org.totschnig.myexpenses.util.Result;
 import org.totschnig.myexpenses.util.Utils;
 import org.totschnig.myexpenses.util.crashreporting.CrashHandler;
 
+import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Locale;
@@ -66,29 +67,28 @@ public class AutoBackupService extends JobIntentService {
   protected void onHandleWork(@NonNull Intent intent) {
     String action = intent.getAction();
     if (ACTION_AUTO_BACKUP.equals(action)) {
-      Result<DocumentFile> result = BackupUtils.doBackup();
+      //the local backup only writes what changed, the upload to a sync backend streams a zip
+      //archive that is produced while it is uploaded
+      Result<DocumentFile> result = BackupUtils.doBackup(true, null);
       if (result.isSuccess()) {
         int remaining = ContribFeature.AUTO_BACKUP.recordUsage();
         if (remaining < 1) {
           ContribUtils.showContribNotification(this, ContribFeature.AUTO_BACKUP);
         }
+        try {
+          BackupUtils.pruneBackups(this);
+        } catch (IOException e) {
+          CrashHandler.report(e);
+        }
         String syncAccount = PrefKey.AUTO_BACKUP_CLOUD.getString(AccountPreference.SYNCHRONIZATION_NONE);
         if (!syncAccount.equals(AccountPreference.SYNCHRONIZATION_NONE)) {
-          final DocumentFile backupFile = result.getExtra();
-          if (backupFile != null) {
-            Bundle bundle = new Bundle();
-            bundle.putBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, true);
-            bundle.putBoolean(ContentResolver.SYNC_EXTRAS_EXPEDITED, true);
-            bundle.putString(SyncAdapter.KEY_UPLOAD_AUTO_BACKUP_URI, backupFile.getUri().toString());
-            String backupFileName = backupFile.getName();
-            if (backupFileName == null) {
-              CrashHandler.report(String.format("Could not get name from uri %s", backupFile.getUri()));
-              backupFileName = "backup-" + new SimpleDateFormat("yyyMMdd", Locale.US)
-                  .format(new Date());
-            }
-            bundle.putString(SyncAdapter.KEY_UPLOAD_AUTO_BACKUP_NAME, backupFileName);
-            ContentResolver.requestSync(GenericAccountService.GetAccount(syncAccount), TransactionProvider.AUTHORITY, bundle);
-          }
+          Bundle bundle = new Bundle();
+          bundle.putBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, true);
+          bundle.putBoolean(ContentResolver.SYNC_EXTRAS_EXPEDITED, true);
+          bundle.putString(SyncAdapter.KEY_UPLOAD_AUTO_BACKUP_NAME, "backup-" +
+              new SimpleDateFormat("yyyMMdd-HHmmss", Locale.US).format(new Date()) + "." +
+              BackupUtils.getArchiveExtension());
+          ContentResolver.requestSync(GenericAccountService.GetAccount(syncAccount), TransactionProvider.AUTHORITY, bundle);
         }
       } else {
         String notifTitle = Utils.concatResStrings(this, " ", R.string.app_name, R.string.contrib_feature_auto_backup_label);
@@ -14,18 +14,23 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 
+import org.totschnig.myexpenses.BuildConfig;
 import org.totschnig.myexpenses.model.Account;
 
 public class GenericAlarmReceiver extends BroadcastReceiver {
 
   static final String BOOT_COMPLETED = "android.intent.action.BOOT_COMPLETED";
   static final String ACCOUNT_CHANGED = "android.accounts.LOGIN_ACCOUNTS_CHANGED";
+  static final String COLLECT_STALE_IMAGES = BuildConfig.APPLICATION_ID + ".COLLECT_STALE_IMAGES";
 
   @Override
   public void onReceive(Context context, Intent intent) {
     String action = intent.getAction();
     if (BOOT_COMPLETED.equals(action)) {
       requestScheduleAutoBackup(context);
+      StaleImagesCollectorService.scheduleCollection(context);
+    } else if (COLLECT_STALE_IMAGES.equals(action)) {
+      StaleImagesCollectorService.enqueueWork(context);
     } else if (ACCOUNT_CHANGED.equals(action)) {
       Account.checkSyncAccounts(context);
     }
@@ -10,8 +10,8 @@ import android.content.Context;
 import android.content.Intent;
 import android.database.Cursor;
 import android.net.Uri;
+import android.support.annotation.Nullable;
 
-import com.android.calendar.CalendarContractCompat;
 import com.android.calendar.CalendarContractCompat.Events;
 
 import org.threeten.bp.LocalDateTime;
@@ -23,17 +23,16 @@ import org.totschnig.myexpenses.MyApplication;
 import org.totschnig.myexpenses.R;
 import org.totschnig.myexpenses.activity.ExpenseEdit;
 import org.totschnig.myexpenses.activity.MyExpenses;
-import org.totschnig.myexpenses.model.Account;
 import org.totschnig.myexpenses.model.Template;
-import org.totschnig.myexpenses.model.Transaction;
 import org.totschnig.myexpenses.preference.PrefKey;
 import org.totschnig.myexpenses.provider.CalendarProviderProxy;
+import org.totschnig.myexpenses.provider.PlanInstanceStore;
 import org.totschnig.myexpenses.util.CurrencyFormatter;
 import org.totschnig.myexpenses.util.NotificationBuilderWrapper;
 import org.totschnig.myexpenses.util.PermissionHelper;
 import org.totschnig.myexpenses.util.crashreporting.CrashHandler;
 
-import java.util.Date;
+import java.util.List;
 
 import timber.log.Timber;
 
@@ -43,6 +42,7 @@ import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_INSTANCEID
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ROWID;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_TEMPLATEID;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_TRANSACTIONID;
+import static org.totschnig.myexpenses.util.NotificationBuilderWrapper.NOTIFICATION_PLANNER;
 import static org.totschnig.myexpenses.util.PermissionHelper.PermissionGroup.CALENDAR;
 
 public class PlanExecutor extends IntentService {
@@ -92,16 +92,20 @@ public class PlanExecutor extends IntentService {
     log("now %d compared to end of day %d", now, instancesTo);
     log("executing plans from %d to %d", instancesFrom, instancesTo);
 
-    Uri.Builder eventsUriBuilder = CalendarProviderProxy.INSTANCES_URI.buildUpon();
-    ContentUris.appendId(eventsUriBuilder, instancesFrom);
-    ContentUris.appendId(eventsUriBuilder, instancesTo);
-    Uri eventsUri = eventsUriBuilder.build();
     Cursor cursor;
     try {
-      cursor = getContentResolver().query(eventsUri, null,
-          Events.CALENDAR_ID + " = " + plannerCalendarId,
-          null,
-          null);
+      //1) we get the instances from our local table, if it covers the range and is up to date
+      cursor = PlanInstanceStore.queryInstances(this, instancesFrom, instancesTo);
+      if (cursor == null) {
+        log("local plan instances do not cover range, querying calendar");
+        Uri.Builder eventsUriBuilder = CalendarProviderProxy.INSTANCES_URI.buildUpon();
+        ContentUris.appendId(eventsUriBuilder, instancesFrom);
+        ContentUris.appendId(eventsUriBuilder, instancesTo);
+        cursor = getContentResolver().query(eventsUriBuilder.build(), null,
+            Events.CALENDAR_ID + " = " + plannerCalendarId,
+            null,
+            null);
+      }
     } catch (Exception e) {
       //} catch (SecurityException | IllegalArgumentException e) {
       CrashHandler.report(e);
@@ -110,109 +114,157 @@ public class PlanExecutor extends IntentService {
       //sqlite database not yet available observed on samsung GT-N7100 (SQLiteException)
       return;
     }
+    boolean committed = true;
     if (cursor != null) {
-      if (cursor.moveToFirst()) {
-        while (!cursor.isAfterLast()) {
-          long planId = cursor.getLong(cursor.getColumnIndex(CalendarContractCompat.Instances.EVENT_ID));
-          long date = cursor.getLong(cursor.getColumnIndex(CalendarContractCompat.Instances.BEGIN));
-          long instanceId = CalendarProviderProxy.calculateId(date);
-          //2) check if they are part of a plan linked to a template
-          //3) execute the template
-          log("found instance %d of plan %d", instanceId, planId);
-          //TODO if we have multiple Event instances for one plan, we should maybe cache the template objects
-          Template template = Template.getInstanceForPlanIfInstanceIsOpen(planId, instanceId);
-          if (template != null) {
-            log("belongs to template %d", template.getId());
-            Notification notification;
-            int notificationId = (int) ((instanceId * planId) % Integer.MAX_VALUE);
-            log("notification id %d", notificationId);
-            PendingIntent resultIntent;
-            Account account = Account.getInstanceFromDb(template.getAccountId());
-            NotificationManager notificationManager =
-                (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
-            String content = template.getLabel();
-            if (!content.equals("")) {
-              content += " : ";
-            }
-            content += CurrencyFormatter.instance().formatCurrency(template.getAmount());
-            String title = account.getLabel() + " : " + template.getTitle();
-            NotificationBuilderWrapper builder =
-                new NotificationBuilderWrapper(this, NotificationBuilderWrapper.CHANNEL_ID_PLANNER)
-                    .setSmallIcon(R.drawable.ic_stat_notification_sigma)
-                    .setContentTitle(title)
-                    .setContentText(content);
-            if (template.isPlanExecutionAutomatic()) {
-              Transaction t = Transaction.getInstanceFromTemplate(template);
-              t.originPlanInstanceId = instanceId;
-              t.setDate(new Date(date));
-              if (t.save() != null) {
-                Intent displayIntent = new Intent(this, MyExpenses.class)
-                    .putExtra(KEY_ROWID, template.getAccountId())
-                    .putExtra(KEY_TRANSACTIONID, t.getId());
-                resultIntent = PendingIntent.getActivity(this, notificationId, displayIntent,
-                    FLAG_UPDATE_CURRENT);
-                builder.setContentIntent(resultIntent);
-              } else {
-                builder.setContentText(getString(R.string.save_transaction_error));
-              }
-              builder.setAutoCancel(true);
-              notification = builder.build();
-            } else {
-              Intent cancelIntent = new Intent(this, PlanNotificationClickHandler.class)
-                  .setAction(ACTION_CANCEL)
-                  .putExtra(MyApplication.KEY_NOTIFICATION_ID, notificationId)
-                  .putExtra(KEY_TEMPLATEID, template.getId())
-                  .putExtra(KEY_INSTANCEID, instanceId)
-                  //we also put the title in the intent, because we need it while we update the notification
-                  .putExtra(KEY_TITLE, title);
-              builder.addAction(
-                  android.R.drawable.ic_menu_close_clear_cancel,
-                  R.drawable.ic_menu_close_clear_cancel,
-                  getString(android.R.string.cancel),
-                  PendingIntent.getService(this, notificationId, cancelIntent, FLAG_UPDATE_CURRENT));
-              Intent editIntent = new Intent(this, ExpenseEdit.class)
-                  .putExtra(MyApplication.KEY_NOTIFICATION_ID, notificationId)
-                  .putExtra(KEY_TEMPLATEID, template.getId())
-                  .putExtra(KEY_INSTANCEID, instanceId)
-                  .putExtra(KEY_DATE, date);
-              resultIntent = PendingIntent.getActivity(this, notificationId, editIntent, FLAG_UPDATE_CURRENT);
-              builder.addAction(
-                  android.R.drawable.ic_menu_edit,
-                  R.drawable.ic_menu_edit,
-                  getString(R.string.menu_edit),
-                  resultIntent);
-              Intent applyIntent = new Intent(this, PlanNotificationClickHandler.class);
-              applyIntent.setAction(ACTION_APPLY)
-                  .putExtra(MyApplication.KEY_NOTIFICATION_ID, notificationId)
-                  .putExtra(KEY_TITLE, title)
-                  .putExtra(KEY_TEMPLATEID, template.getId())
-                  .putExtra(KEY_INSTANCEID, instanceId)
-                  .putExtra(KEY_DATE, date);
-              builder.addAction(
-                  android.R.drawable.ic_menu_save,
-                  R.drawable.ic_menu_save,
-                  getString(R.string.menu_apply_template),
-                  PendingIntent.getService(this, notificationId, applyIntent, FLAG_UPDATE_CURRENT));
-              builder.setContentIntent(resultIntent);
-              notification = builder.build();
-              notification.flags |= Notification.FLAG_NO_CLEAR;
-            }
-            notificationManager.notify(notificationId, notification);
-          } else {
-            log("Template.getInstanceForPlanIfInstanceIsOpen returned null, instance might already have been dealt with");
-          }
-          cursor.moveToNext();
-        }
-      }
+      //2) check if they are part of a plan linked to a template
+      PlanInstanceBatch batch = PlanInstanceBatch.fromInstances(cursor);
       cursor.close();
+      log("found %d open instances", batch.getOpenInstances().size());
+      //3) execute the templates
+      NotificationManager notificationManager =
+          (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+      List<PlanInstanceBatch.Instance> executed = batch.executeAutomatic();
+      committed = executed != null;
+      notifyExecuted(notificationManager, executed);
+      for (PlanInstanceBatch.Instance instance : batch.getManualInstances()) {
+        notifyManual(notificationManager, instance);
+      }
     }
 
-    PrefKey.PLANNER_LAST_EXECUTION_TIMESTAMP.putLong(now);
+    //if the batch has been rolled back, the next run looks at the same instances again
+    if (committed) {
+      PrefKey.PLANNER_LAST_EXECUTION_TIMESTAMP.putLong(now);
+    }
 
     setAlarm(this, ZonedDateTime.of(nextRun, ZoneId.systemDefault()).toEpochSecond() * 1000);
 
   }
 
+  /**
+   * a single executed instance gets its own notification that leads to the new transaction,
+   * several ones are grouped into one notification
+   */
+  private void notifyExecuted(NotificationManager notificationManager,
+                              @Nullable List<PlanInstanceBatch.Instance> executed) {
+    if (executed == null) {
+      notificationManager.notify(NOTIFICATION_PLANNER,
+          new NotificationBuilderWrapper(this, NotificationBuilderWrapper.CHANNEL_ID_PLANNER)
+              .setSmallIcon(R.drawable.ic_stat_notification_sigma)
+              .setContentTitle(getString(R.string.planner_notification_channel_name))
+              .setContentText(getString(R.string.save_transaction_error))
+              .setAutoCancel(true)
+              .build());
+      return;
+    }
+    if (executed.isEmpty()) {
+      return;
+    }
+    if (executed.size() == 1) {
+      PlanInstanceBatch.Instance instance = executed.get(0);
+      int notificationId = notificationId(instance);
+      Intent displayIntent = new Intent(this, MyExpenses.class)
+          .putExtra(KEY_ROWID, instance.template.getAccountId())
+          .putExtra(KEY_TRANSACTIONID, instance.getTransactionId());
+      Notification notification = buildNotification(instance)
+          .setContentIntent(PendingIntent.getActivity(this, notificationId, displayIntent,
+              FLAG_UPDATE_CURRENT))
+          .setAutoCancel(true)
+          .build();
+      notificationManager.notify(notificationId, notification);
+      return;
+    }
+    StringBuilder content = new StringBuilder();
+    for (PlanInstanceBatch.Instance instance : executed) {
+      if (content.length() > 0) {
+        content.append("\n");
+      }
+      content.append(getTitle(instance)).append(" : ").append(getContent(instance));
+    }
+    Notification notification = NotificationBuilderWrapper.bigTextStyleBuilder(this,
+        NotificationBuilderWrapper.CHANNEL_ID_PLANNER,
+        getResources().getQuantityString(R.plurals.save_transaction_from_template_success,
+            executed.size(), executed.size()),
+        content)
+        .setContentIntent(PendingIntent.getActivity(this, NOTIFICATION_PLANNER,
+            new Intent(this, MyExpenses.class), FLAG_UPDATE_CURRENT))
+        .setAutoCancel(true)
+        .build();
+    notificationManager.notify(NOTIFICATION_PLANNER, notification);
+  }
+
+  private void notifyManual(NotificationManager notificationManager,
+                            PlanInstanceBatch.Instance instance) {
+    Template template = instance.template;
+    long instanceId = instance.instanceId;
+    long date = instance.date;
+    int notificationId = notificationId(instance);
+    log("notification id %d", notificationId);
+    String title = getTitle(instance);
+    NotificationBuilderWrapper builder = buildNotification(instance);
+    Intent cancelIntent = new Intent(this, PlanNotificationClickHandler.class)
+        .setAction(ACTION_CANCEL)
+        .putExtra(MyApplication.KEY_NOTIFICATION_ID, notificationId)
+        .putExtra(KEY_TEMPLATEID, template.getId())
+        .putExtra(KEY_INSTANCEID, instanceId)
+        //we also put the title in the intent, because we need it while we update the notification
+        .putExtra(KEY_TITLE, title);
+    builder.addAction(
+        android.R.drawable.ic_menu_close_clear_cancel,
+        R.drawable.ic_menu_close_clear_cancel,
+        getString(android.R.string.cancel),
+        PendingIntent.getService(this, notificationId, cancelIntent, FLAG_UPDATE_CURRENT));
+    Intent editIntent = new Intent(this, ExpenseEdit.class)
+        .putExtra(MyApplication.KEY_NOTIFICATION_ID, notificationId)
+        .putExtra(KEY_TEMPLATEID, template.getId())
+        .putExtra(KEY_INSTANCEID, instanceId)
+        .putExtra(KEY_DATE, date);
+    PendingIntent resultIntent = PendingIntent.getActivity(this, notificationId, editIntent, FLAG_UPDATE_CURRENT);
+    builder.addAction(
+        android.R.drawable.ic_menu_edit,
+        R.drawable.ic_menu_edit,
+        getString(R.string.menu_edit),
+        resultIntent);
+    Intent applyIntent = new Intent(this, PlanNotificationClickHandler.class);
+    applyIntent.setAction(ACTION_APPLY)
+        .putExtra(MyApplication.KEY_NOTIFICATION_ID, notificationId)
+        .putExtra(KEY_TITLE, title)
+        .putExtra(KEY_TEMPLATEID, template.getId())
+        .putExtra(KEY_INSTANCEID, instanceId)
+        .putExtra(KEY_DATE, date);
+    builder.addAction(
+        android.R.drawable.ic_menu_save,
+        R.drawable.ic_menu_save,
+        getString(R.string.menu_apply_template),
+        PendingIntent.getService(this, notificationId, applyIntent, FLAG_UPDATE_CURRENT));
+    builder.setContentIntent(resultIntent);
+    Notification notification = builder.build();
+    notification.flags |= Notification.FLAG_NO_CLEAR;
+    notificationManager.notify(notificationId, notification);
+  }
+
+  private NotificationBuilderWrapper buildNotification(PlanInstanceBatch.Instance instance) {
+    return new NotificationBuilderWrapper(this, NotificationBuilderWrapper.CHANNEL_ID_PLANNER)
+        .setSmallIcon(R.drawable.ic_stat_notification_sigma)
+        .setContentTitle(getTitle(instance))
+        .setContentText(getContent(instance));
+  }
+
+  private static int notificationId(PlanInstanceBatch.Instance instance) {
+    return (int) ((instance.instanceId * instance.planId) % Integer.MAX_VALUE);
+  }
+
+  private static String getTitle(PlanInstanceBatch.Instance instance) {
+    return instance.account.getLabel() + " : " + instance.template.getTitle();
+  }
+
+  private static String getContent(PlanInstanceBatch.Instance instance) {
+    String content = instance.template.getLabel();
+    if (!content.equals("")) {
+      content += " : ";
+    }
+    return content + CurrencyFormatter.instance().formatCurrency(instance.template.getAmount());
+  }
+
   private void log(Exception e) {
     Timber.tag(TAG).w(e);
   }
@@ -0,0 +1,212 @@
+package org.totschnig.myexpenses.service;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.os.RemoteException;
+import android.text.TextUtils;
+
+import com.android.calendar.CalendarContractCompat;
+
+import org.totschnig.myexpenses.model.Account;
+import org.totschnig.myexpenses.model.ContribFeature;
+import org.totschnig.myexpenses.model.Model;
+import org.totschnig.myexpenses.model.Template;
+import org.totschnig.myexpenses.provider.CalendarProviderProxy;
+import org.totschnig.myexpenses.provider.TransactionProvider;
+import org.totschnig.myexpenses.util.crashreporting.CrashHandler;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_DATE;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_INSTANCEID;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_TEMPLATEID;
+
+/**
+ * Collects the open instances of plans found in a cursor on
+ * {@link CalendarProviderProxy#INSTANCES_URI}, resolves the linked templates and their accounts
+ * once, and creates the transactions for all automatically executed instances in one batch.
+ */
+public class PlanInstanceBatch {
+  public static class Instance {
+    public final long planId;
+    public final long instanceId;
+    public final long date;
+    public final Template template;
+    public final Account account;
+    private Long transactionId;
+
+    Instance(long planId, long instanceId, long date, Template template, Account account) {
+      this.planId = planId;
+      this.instanceId = instanceId;
+      this.date = date;
+      this.template = template;
+      this.account = account;
+    }
+
+    /**
+     * @return the id of the transaction created for this instance, null if it has not been
+     * executed
+     */
+    public Long getTransactionId() {
+      return transactionId;
+    }
+  }
+
+  private final List<Instance> openInstances = new ArrayList<>();
+
+  private PlanInstanceBatch() {
+  }
+
+  /**
+   * @param instances cursor with columns {@link CalendarContractCompat.Instances#EVENT_ID} and
+   *                  {@link CalendarContractCompat.Instances#BEGIN}, is not closed
+   */
+  public static PlanInstanceBatch fromInstances(Cursor instances) {
+    PlanInstanceBatch batch = new PlanInstanceBatch();
+    //plan id -> instance id -> begin, an instance might be reported more than once
+    Map<Long, Map<Long, Long>> found = new LinkedHashMap<>();
+    if (instances.moveToFirst()) {
+      int columnIndexEventId = instances.getColumnIndex(CalendarContractCompat.Instances.EVENT_ID);
+      int columnIndexBegin = instances.getColumnIndex(CalendarContractCompat.Instances.BEGIN);
+      while (!instances.isAfterLast()) {
+        long planId = instances.getLong(columnIndexEventId);
+        long date = instances.getLong(columnIndexBegin);
+        Map<Long, Long> planInstances = found.get(planId);
+        if (planInstances == null) {
+          planInstances = new LinkedHashMap<>();
+          found.put(planId, planInstances);
+        }
+        planInstances.put(CalendarProviderProxy.calculateId(date), date);
+        instances.moveToNext();
+      }
+    }
+    Map<Long, Template> templates = Template.getInstancesForPlans(found.keySet());
+    if (templates.isEmpty()) {
+      return batch;
+    }
+    Set<String> handled = findHandledInstances(templates.values());
+    Map<Long, Account> accounts = new HashMap<>();
+    for (Map.Entry<Long, Map<Long, Long>> plan : found.entrySet()) {
+      Template template = templates.get(plan.getKey());
+      if (template == null) {
+        continue;
+      }
+      for (Map.Entry<Long, Long> instance : plan.getValue().entrySet()) {
+        if (handled.contains(statusKey(template.getId(), instance.getKey()))) {
+          continue;
+        }
+        Account account = accounts.get(template.getAccountId());
+        if (account == null) {
+          account = Account.getInstanceFromDb(template.getAccountId());
+          if (account == null) {
+            continue;
+          }
+          accounts.put(template.getAccountId(), account);
+        }
+        batch.openInstances.add(new Instance(plan.getKey(), instance.getKey(), instance.getValue(),
+            template, account));
+      }
+    }
+    return batch;
+  }
+
+  /**
+   * @return keys built by {@link #statusKey} for instances that have been applied or cancelled
+   */
+  private static Set<String> findHandledInstances(Iterable<Template> templates) {
+    Set<String> result = new HashSet<>();
+    List<Long> templateIds = new ArrayList<>();
+    for (Template template : templates) {
+      templateIds.add(template.getId());
+    }
+    Cursor c = Model.cr().query(TransactionProvider.PLAN_INSTANCE_STATUS_URI,
+        new String[]{KEY_TEMPLATEID, KEY_INSTANCEID},
+        KEY_TEMPLATEID + " IN (" + TextUtils.join(",", templateIds) + ")",
+        null, null);
+    if (c != null) {
+      if (c.moveToFirst()) {
+        while (!c.isAfterLast()) {
+          result.add(statusKey(c.getLong(0), c.getLong(1)));
+          c.moveToNext();
+        }
+      }
+      c.close();
+    }
+    return result;
+  }
+
+  private static String statusKey(long templateId, long instanceId) {
+    return String.format(Locale.ROOT, "%d_%d", templateId, instanceId);
+  }
+
+  public List<Instance> getOpenInstances() {
+    return openInstances;
+  }
+
+  public List<Instance> getManualInstances() {
+    List<Instance> result = new ArrayList<>();
+    for (Instance instance : openInstances) {
+      if (!instance.template.isPlanExecutionAutomatic()) {
+        result.add(instance);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Creates the transactions for all open instances of automatically executed plans, together
+   * with their split parts and their plan instance status, in one provider transaction. Each
+   * instance is created by the provider from its template, see
+   * {@link TransactionProvider#URI_SEGMENT_INSTANTIATE}, hence if one of them fails, none of them
+   * is left behind.
+   *
+   * @return the executed instances, null if saving failed
+   */
+  public List<Instance> executeAutomatic() {
+    List<Instance> automatic = new ArrayList<>();
+    ArrayList<ContentProviderOperation> ops = new ArrayList<>();
+    for (Instance instance : openInstances) {
+      if (!instance.template.isPlanExecutionAutomatic()) {
+        continue;
+      }
+      ContentValues values = new ContentValues();
+      values.put(KEY_DATE, instance.date / 1000);
+      values.put(KEY_INSTANCEID, instance.instanceId);
+      ops.add(ContentProviderOperation.newInsert(TransactionProvider.TEMPLATES_URI.buildUpon()
+          .appendPath(String.valueOf(instance.template.getId()))
+          .appendPath(TransactionProvider.URI_SEGMENT_INSTANTIATE).build())
+          .withValues(values).build());
+      automatic.add(instance);
+    }
+    if (ops.isEmpty()) {
+      return automatic;
+    }
+    ContentProviderResult[] results;
+    try {
+      results = Model.cr().applyBatch(TransactionProvider.AUTHORITY, ops);
+    } catch (RemoteException | OperationApplicationException | SQLException e) {
+      CrashHandler.report(e);
+      return null;
+    }
+    for (int i = 0; i < automatic.size(); i++) {
+      Instance instance = automatic.get(i);
+      if (instance.template.isSplit()) {
+        ContribFeature.SPLIT_TRANSACTION.recordUsage();
+      }
+      instance.transactionId = ContentUris.parseId(results[i].uri);
+    }
+    return automatic;
+  }
+}
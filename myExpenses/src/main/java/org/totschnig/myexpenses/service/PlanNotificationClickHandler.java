@@ -18,8 +18,6 @@ import org.totschnig.myexpenses.provider.DatabaseConstants;
 import org.totschnig.myexpenses.provider.TransactionProvider;
 import org.totschnig.myexpenses.util.NotificationBuilderWrapper;
 
-import java.util.Date;
-
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_INSTANCEID;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_TEMPLATEID;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_TRANSACTIONID;
@@ -51,25 +49,20 @@ public class PlanNotificationClickHandler extends IntentService {
     Long instanceId = extras.getLong(DatabaseConstants.KEY_INSTANCEID);
     switch (action) {
       case PlanExecutor.ACTION_APPLY:
-        Transaction t = Transaction.getInstanceFromTemplate(templateId);
-        if (t == null) {
+        Bundle result = Transaction.instantiateTemplate(templateId,
+            extras.getLong(DatabaseConstants.KEY_DATE) / 1000, instanceId);
+        if (result == null) {
           message = getString(R.string.save_transaction_template_deleted);
         } else {
-          t.setDate(new Date(extras.getLong(DatabaseConstants.KEY_DATE)));
-          t.originPlanInstanceId = instanceId;
-          if (t.save() == null) {
-            message = getString(R.string.save_transaction_error);
-          } else {
-            message = getResources().getQuantityString(
-                R.plurals.save_transaction_from_template_success, 1, 1);
-            Intent displayIntent = new Intent(this, MyExpenses.class)
-                .putExtra(DatabaseConstants.KEY_ROWID, t.getAccountId())
-                .putExtra(DatabaseConstants.KEY_TRANSACTIONID, t.getId());
-            PendingIntent resultIntent = PendingIntent.getActivity(this, notificationId, displayIntent,
-                PendingIntent.FLAG_UPDATE_CURRENT);
-            builder.setContentIntent(resultIntent);
-            builder.setAutoCancel(true);
-          }
+          message = getResources().getQuantityString(
+              R.plurals.save_transaction_from_template_success, 1, 1);
+          Intent displayIntent = new Intent(this, MyExpenses.class)
+              .putExtra(DatabaseConstants.KEY_ROWID, result.getLong(DatabaseConstants.KEY_ACCOUNTID))
+              .putExtra(DatabaseConstants.KEY_TRANSACTIONID, result.getLong(KEY_TRANSACTIONID));
+          PendingIntent resultIntent = PendingIntent.getActivity(this, notificationId, displayIntent,
+              PendingIntent.FLAG_UPDATE_CURRENT);
+          builder.setContentIntent(resultIntent);
+          builder.setAutoCancel(true);
         }
         break;
       case PlanExecutor.ACTION_CANCEL:
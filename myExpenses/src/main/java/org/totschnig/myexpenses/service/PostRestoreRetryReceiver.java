@@ -0,0 +1,19 @@
+package org.totschnig.myexpenses.service;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+
+/**
+ * Restarts {@link PostRestoreService} from the notification of a restore that could not restore
+ * all pictures, with the extras the notification was created with.
+ */
+public class PostRestoreRetryReceiver extends BroadcastReceiver {
+
+  @Override
+  public void onReceive(Context context, Intent intent) {
+    Intent serviceIntent = new Intent(context, PostRestoreService.class);
+    serviceIntent.putExtras(intent);
+    PostRestoreService.enqueueWork(context, serviceIntent);
+  }
+}
@@ -0,0 +1,275 @@
+package org.totschnig.myexpenses.service;
+
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.Intent;
+import android.database.Cursor;
+import android.net.Uri;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.v4.app.JobIntentService;
+import android.support.v4.provider.DocumentFile;
+import android.text.TextUtils;
+
+import org.totschnig.myexpenses.MyApplication;
+import org.totschnig.myexpenses.R;
+import org.totschnig.myexpenses.provider.DatabaseConstants;
+import org.totschnig.myexpenses.provider.TransactionProvider;
+import org.totschnig.myexpenses.util.AppDirHelper;
+import org.totschnig.myexpenses.util.BackupEncryption;
+import org.totschnig.myexpenses.util.BackupRepository;
+import org.totschnig.myexpenses.util.BackupUtils;
+import org.totschnig.myexpenses.util.NotificationBuilderWrapper;
+import org.totschnig.myexpenses.util.PictureDirHelper;
+import org.totschnig.myexpenses.util.Result;
+import org.totschnig.myexpenses.util.ThumbnailHelper;
+import org.totschnig.myexpenses.util.ZipUtils;
+import org.totschnig.myexpenses.util.crashreporting.CrashHandler;
+import org.totschnig.myexpenses.util.io.FileCopyUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import timber.log.Timber;
+
+import static org.totschnig.myexpenses.task.TaskExecutionFragment.KEY_FILE_PATH;
+import static org.totschnig.myexpenses.util.NotificationBuilderWrapper.NOTIFICATION_RESTORE;
+
+/**
+ * Finishes a restore once the database and preferences are in place, while the app is already
+ * usable: relinks plans to the calendar, and streams the pictures from the backup directly into
+ * the picture directory, updating the transactions that refer to them.
+ */
+public class PostRestoreService extends JobIntentService {
+  public static final String KEY_RESTORE_PLANNER = "restorePlanner";
+  public static final String KEY_DELETE_BACKUP = "deleteBackup";
+
+  /**
+   * Unique job ID for this service.
+   */
+  static final int JOB_ID = 1001;
+
+  private NotificationBuilderWrapper progressBuilder;
+
+  /**
+   * @param extras the source of the backup in {@link org.totschnig.myexpenses.task.TaskExecutionFragment#KEY_FILE_PATH},
+   *               {@link #KEY_RESTORE_PLANNER}, and {@link #KEY_DELETE_BACKUP} if the source is a
+   *               file downloaded from a sync backend, that should be deleted once all pictures
+   *               have been restored
+   */
+  public static void enqueueWork(Context context, Intent extras) {
+    enqueueWork(context, PostRestoreService.class, JOB_ID, extras);
+  }
+
+  @Override
+  protected void onHandleWork(@NonNull Intent intent) {
+    MyApplication application = MyApplication.getInstance();
+    ContentResolver cr = getContentResolver();
+    List<String> messages = new ArrayList<>();
+    progressBuilder = NotificationBuilderWrapper.bigTextStyleBuilder(this,
+        NotificationBuilderWrapper.CHANNEL_ID_DEFAULT, getString(R.string.restore_in_background_title), "")
+        .setOnlyAlertOnce(true);
+    notifyProgress(0, 0);
+    if (intent.getBooleanExtra(KEY_RESTORE_PLANNER, false)) {
+      Result result = application.restorePlanner();
+      String print = result.print(this);
+      if (print != null) {
+        messages.add(print);
+      }
+    }
+    Timber.i("now emptying event cache");
+    cr.delete(TransactionProvider.EVENT_CACHE_URI, null, null);
+    boolean picturesComplete = restorePictures(intent, cr, messages);
+    //the pictures that have not been restored are still read from the backup by a retry
+    if (picturesComplete && intent.getBooleanExtra(KEY_DELETE_BACKUP, false)) {
+      Uri fileUri = intent.getParcelableExtra(KEY_FILE_PATH);
+      if (fileUri != null && !new File(fileUri.getPath()).delete()) {
+        Timber.w("Unable to delete downloaded backup %s", fileUri);
+      }
+    }
+    NotificationManager notificationManager = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
+    if (messages.isEmpty()) {
+      notificationManager.cancel(NOTIFICATION_RESTORE);
+    } else {
+      NotificationBuilderWrapper builder = NotificationBuilderWrapper.defaultBigTextStyleBuilder(this,
+          getString(R.string.restore_in_background_title), TextUtils.join(" ", messages));
+      if (!picturesComplete) {
+        Uri fileUri = intent.getParcelableExtra(KEY_FILE_PATH);
+        Intent retryIntent = new Intent(this, PostRestoreRetryReceiver.class)
+            .putExtra(KEY_FILE_PATH, fileUri)
+            .putExtra(KEY_DELETE_BACKUP, intent.getBooleanExtra(KEY_DELETE_BACKUP, false));
+        builder.addAction(
+            android.R.drawable.ic_popup_sync,
+            R.drawable.ic_sync,
+            getString(R.string.restore_pictures_retry),
+            PendingIntent.getBroadcast(this, NOTIFICATION_RESTORE, retryIntent,
+                PendingIntent.FLAG_UPDATE_CURRENT));
+      }
+      notificationManager.notify(NOTIFICATION_RESTORE, builder.build());
+    }
+  }
+
+  /**
+   * Each picture is written to a temporary file, which is only moved into place and linked once
+   * it has been read completely, which verifies its content. A picture that fails keeps its link,
+   * as do all pictures if the backup can not be read to its end, so that a later run can resume,
+   * pictures that have already been restored are skipped. Only pictures that a complete run does
+   * not find in the backup are unlinked.
+   *
+   * @param messages receives a message describing the outcome, if the backup refers to pictures
+   * @return true if every picture has either been restored or unlinked, hence the backup is no
+   * longer needed
+   */
+  private boolean restorePictures(Intent intent, ContentResolver cr, List<String> messages) {
+    //file name in the backup -> ids of transactions referring to it
+    Map<String, List<Long>> pictures = new HashMap<>();
+    Cursor c = cr.query(TransactionProvider.TRANSACTIONS_URI,
+        new String[]{DatabaseConstants.KEY_ROWID, DatabaseConstants.KEY_PICTURE_URI},
+        DatabaseConstants.KEY_PICTURE_URI + " IS NOT NULL", null, null);
+    if (c == null) {
+      return false;
+    }
+    if (c.moveToFirst()) {
+      do {
+        Uri pictureUri = Uri.parse(c.getString(1));
+        if (isRestored(pictureUri)) {
+          continue;
+        }
+        String fileName = pictureUri.getLastPathSegment();
+        List<Long> ids = pictures.get(fileName);
+        if (ids == null) {
+          ids = new ArrayList<>();
+          pictures.put(fileName, ids);
+        }
+        ids.add(c.getLong(0));
+      } while (c.moveToNext());
+    }
+    c.close();
+    if (pictures.isEmpty()) {
+      return true;
+    }
+    final int total = pictures.size();
+    final boolean secure = MyApplication.getInstance().isProtected();
+    final int[] restoredCount = {0};
+    final Set<String> failed = new HashSet<>();
+    boolean complete = false;
+    try {
+      InputStream in = openBackup(intent);
+      notifyProgress(total, 0);
+      BackupUtils.PictureHandler handler = (name, pictureIn) -> {
+        List<Long> ids = pictures.get(name);
+        if (ids == null) {
+          return;
+        }
+        int extension = name.lastIndexOf('.');
+        File restoredImage = PictureDirHelper.getOutputMediaFile(
+            extension == -1 ? name : name.substring(0, extension), false, secure);
+        if (restoredImage == null) {
+          Timber.e("Could not restore file %s from backup", name);
+          failed.add(name);
+          return;
+        }
+        File temp = new File(restoredImage.getPath() + ".tmp");
+        try {
+          OutputStream out = new FileOutputStream(temp);
+          try {
+            FileCopyUtils.copy(pictureIn, out);
+          } finally {
+            out.close();
+          }
+          if (!temp.renameTo(restoredImage)) {
+            throw new IOException("Unable to move " + temp.getPath());
+          }
+        } catch (IOException e) {
+          Timber.e(e, "Could not restore file %s from backup", name);
+          //noinspection ResultOfMethodCallIgnored
+          temp.delete();
+          failed.add(name);
+          return;
+        }
+        pictures.remove(name);
+        Uri restoredUri = AppDirHelper.getContentUriForFile(restoredImage);
+        updatePictureUri(cr, ids, restoredUri);
+        ThumbnailHelper.requireThumbnail(restoredUri);
+        restoredCount[0]++;
+        notifyProgress(total, restoredCount[0]);
+      };
+      Uri fileUri = intent.getParcelableExtra(KEY_FILE_PATH);
+      if (fileUri != null && BackupRepository.isManifest(fileUri)) {
+        DocumentFile appDir = AppDirHelper.getAppDir(this);
+        BackupRepository repository = appDir == null ? null : BackupRepository.open(appDir);
+        if (repository == null) {
+          in.close();
+          throw new IOException("Backup repository not found");
+        }
+        repository.readPictures(in, handler);
+      } else {
+        ZipUtils.readPictures(BackupEncryption.decryptIfNeeded(in, BackupEncryption.getPassword()), handler);
+      }
+      complete = true;
+    } catch (IOException e) {
+      CrashHandler.report(e);
+    }
+    if (complete) {
+      //pictures not found in the backup
+      for (Map.Entry<String, List<Long>> picture : pictures.entrySet()) {
+        if (!failed.contains(picture.getKey())) {
+          updatePictureUri(cr, picture.getValue(), null);
+        }
+      }
+    }
+    messages.add(getString(R.string.restore_pictures_success, restoredCount[0], total));
+    return complete && failed.isEmpty();
+  }
+
+  /**
+   * @return true if pictureUri refers to an existing file in the picture directory, which is the
+   * case for pictures restored by an earlier run
+   */
+  private static boolean isRestored(Uri pictureUri) {
+    try {
+      return PictureDirHelper.doesPictureExist(pictureUri);
+    } catch (IllegalArgumentException e) {
+      return false;
+    }
+  }
+
+  private void updatePictureUri(ContentResolver cr, List<Long> ids, @Nullable Uri restored) {
+    ContentValues uriValues = new ContentValues();
+    if (restored != null) {
+      uriValues.put(DatabaseConstants.KEY_PICTURE_URI, restored.toString());
+    } else {
+      uriValues.putNull(DatabaseConstants.KEY_PICTURE_URI);
+    }
+    cr.update(TransactionProvider.TRANSACTIONS_URI, uriValues,
+        DatabaseConstants.KEY_ROWID + " IN (" + TextUtils.join(",", ids) + ")", null);
+  }
+
+  @NonNull
+  private InputStream openBackup(Intent intent) throws IOException {
+    Uri fileUri = intent.getParcelableExtra(KEY_FILE_PATH);
+    InputStream in = fileUri == null ? null : getContentResolver().openInputStream(fileUri);
+    if (in == null) {
+      throw new IOException("Unable to open backup file");
+    }
+    return in;
+  }
+
+  private void notifyProgress(int max, int progress) {
+    progressBuilder.setProgress(max, progress, max == 0);
+    ((NotificationManager) getSystemService(NOTIFICATION_SERVICE)).notify(NOTIFICATION_RESTORE,
+        progressBuilder.build());
+  }
+}
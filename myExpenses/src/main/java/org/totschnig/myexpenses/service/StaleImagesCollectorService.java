@@ -0,0 +1,230 @@
+package org.totschnig.myexpenses.service;
+
+import android.app.AlarmManager;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.Intent;
+import android.database.Cursor;
+import android.net.Uri;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.v4.app.JobIntentService;
+import android.text.TextUtils;
+import android.text.format.Formatter;
+
+import org.totschnig.myexpenses.R;
+import org.totschnig.myexpenses.preference.PrefKey;
+import org.totschnig.myexpenses.provider.DatabaseConstants;
+import org.totschnig.myexpenses.provider.TransactionProvider;
+import org.totschnig.myexpenses.util.AppDirHelper;
+import org.totschnig.myexpenses.util.NotificationBuilderWrapper;
+import org.totschnig.myexpenses.util.PictureDirHelper;
+import org.totschnig.myexpenses.util.ThumbnailHelper;
+import org.totschnig.myexpenses.util.Utils;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import timber.log.Timber;
+
+import static org.totschnig.myexpenses.util.NotificationBuilderWrapper.NOTIFICATION_STALE_IMAGES;
+
+/**
+ * Deletes pictures that are no longer referenced by any transaction. The content of the picture
+ * directories is reconciled in one pass against the set of picture file names referenced in the
+ * database, orphans are deleted in batches, together with their thumbnails and their entries in
+ * the table of stale uris.
+ */
+public class StaleImagesCollectorService extends JobIntentService {
+
+  /**
+   * Unique job ID for this service.
+   */
+  static final int JOB_ID = 1002;
+
+  static final long COLLECT_INTERVAL = AlarmManager.INTERVAL_DAY * 7;
+
+  /**
+   * pictures modified more recently are left alone, since they might belong to a transaction that
+   * is just being saved or restored
+   */
+  private static final long GRACE_PERIOD = AlarmManager.INTERVAL_DAY;
+
+  /**
+   * number of files deleted before their stale uris are removed with one statement, stays below
+   * the limit of host parameters in SQLite
+   */
+  private static final int BATCH_SIZE = 100;
+
+  private long reclaimedBytes;
+  private int deletedCount;
+
+  public static void scheduleCollection(Context context) {
+    AlarmManager service = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+    long lastCollected = PrefKey.STALE_IMAGES_LAST_COLLECTED.getLong(0L);
+    long firstRun = Math.max(lastCollected + COLLECT_INTERVAL,
+        System.currentTimeMillis() + AlarmManager.INTERVAL_HOUR);
+    service.setInexactRepeating(AlarmManager.RTC, firstRun, COLLECT_INTERVAL,
+        createPendingIntent(context));
+  }
+
+  private static PendingIntent createPendingIntent(Context context) {
+    Intent intent = new Intent(context, GenericAlarmReceiver.class);
+    intent.setAction(GenericAlarmReceiver.COLLECT_STALE_IMAGES);
+    return PendingIntent.getBroadcast(context, -101, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+  }
+
+  static void enqueueWork(Context context) {
+    enqueueWork(context, StaleImagesCollectorService.class, JOB_ID, new Intent());
+  }
+
+  @Override
+  protected void onHandleWork(@NonNull Intent intent) {
+    ContentResolver cr = getContentResolver();
+    Set<String> referencedUris = getReferencedUris(cr);
+    if (referencedUris == null) {
+      Timber.w("Unable to determine referenced pictures, skipping collection");
+      return;
+    }
+    Set<String> referencedNames = new HashSet<>(referencedUris.size());
+    Set<String> referencedThumbnails = new HashSet<>(referencedUris.size());
+    for (String uri : referencedUris) {
+      referencedNames.add(Uri.parse(uri).getLastPathSegment());
+      referencedThumbnails.add(Utils.md5(uri) + ".jpg");
+    }
+    reclaimedBytes = 0;
+    deletedCount = 0;
+    long threshold = System.currentTimeMillis() - GRACE_PERIOD;
+    List<File> batch = new ArrayList<>(BATCH_SIZE);
+    for (boolean secure : new boolean[]{false, true}) {
+      File[] files = listFiles(PictureDirHelper.getPictureDir(secure));
+      for (File file : files) {
+        if (file.isFile() && !referencedNames.contains(file.getName()) &&
+            file.lastModified() < threshold) {
+          batch.add(file);
+          if (batch.size() == BATCH_SIZE) {
+            deleteBatch(cr, batch);
+            batch.clear();
+          }
+        }
+      }
+    }
+    deleteBatch(cr, batch);
+    //thumbnails of pictures that have been deleted by other means
+    for (File file : listFiles(ThumbnailHelper.getThumbnailDir())) {
+      if (!referencedThumbnails.contains(file.getName()) && file.lastModified() < threshold) {
+        long length = file.length();
+        if (file.delete()) {
+          reclaimedBytes += length;
+        }
+      }
+    }
+    purgeStaleUris(cr, referencedNames);
+    PrefKey.STALE_IMAGES_LAST_COLLECTED.putLong(System.currentTimeMillis());
+    Timber.i("Deleted %d stale pictures, reclaimed %d bytes", deletedCount, reclaimedBytes);
+    if (deletedCount > 0) {
+      ((NotificationManager) getSystemService(NOTIFICATION_SERVICE)).notify(NOTIFICATION_STALE_IMAGES,
+          NotificationBuilderWrapper.defaultBigTextStyleBuilder(this,
+              getString(R.string.pref_manage_stale_images_title),
+              getString(R.string.stale_images_collected, deletedCount,
+                  Formatter.formatShortFileSize(this, reclaimedBytes)))
+              .build());
+    }
+  }
+
+  /**
+   * @return the uris of all pictures referenced by committed and uncommitted transactions, null if
+   * the database could not be queried
+   */
+  @Nullable
+  private Set<String> getReferencedUris(ContentResolver cr) {
+    Set<String> result = new HashSet<>();
+    for (Uri uri : new Uri[]{TransactionProvider.TRANSACTIONS_URI, TransactionProvider.UNCOMMITTED_URI}) {
+      Cursor c = cr.query(uri, new String[]{DatabaseConstants.KEY_PICTURE_URI},
+          DatabaseConstants.KEY_PICTURE_URI + " IS NOT NULL", null, null);
+      if (c == null) {
+        return null;
+      }
+      if (c.moveToFirst()) {
+        do {
+          result.add(c.getString(0));
+        } while (c.moveToNext());
+      }
+      c.close();
+    }
+    return result;
+  }
+
+  @NonNull
+  private File[] listFiles(@Nullable File dir) {
+    File[] files = dir == null ? null : dir.listFiles();
+    return files == null ? new File[0] : files;
+  }
+
+  private void deleteBatch(ContentResolver cr, List<File> batch) {
+    if (batch.isEmpty()) {
+      return;
+    }
+    List<String> deletedUris = new ArrayList<>(batch.size() * 2);
+    for (File file : batch) {
+      long length = file.length();
+      if (file.delete()) {
+        reclaimedBytes += length;
+        deletedCount++;
+        Uri fileUri = Uri.fromFile(file);
+        deletedUris.add(fileUri.toString());
+        ThumbnailHelper.deleteThumbnail(fileUri);
+        try {
+          Uri contentUri = AppDirHelper.getContentUriForFile(file);
+          deletedUris.add(contentUri.toString());
+          ThumbnailHelper.deleteThumbnail(contentUri);
+        } catch (IllegalArgumentException e) {
+          Timber.w(e);
+        }
+      } else {
+        Timber.e("Unable to delete file %s", file.getPath());
+      }
+    }
+    if (!deletedUris.isEmpty()) {
+      cr.delete(TransactionProvider.STALE_IMAGES_URI,
+          DatabaseConstants.KEY_PICTURE_URI + " IN (" +
+              TextUtils.join(",", Collections.nCopies(deletedUris.size(), "?")) + ")",
+          deletedUris.toArray(new String[deletedUris.size()]));
+    }
+  }
+
+  /**
+   * removes stale uris that point into our picture directories to files that no longer exist
+   */
+  private void purgeStaleUris(ContentResolver cr, Set<String> referencedNames) {
+    Cursor c = cr.query(TransactionProvider.STALE_IMAGES_URI, null, null, null, null);
+    if (c == null) {
+      return;
+    }
+    List<Long> obsolete = new ArrayList<>();
+    if (c.moveToFirst()) {
+      do {
+        Uri staleUri = Uri.parse(c.getString(1));
+        try {
+          if (!referencedNames.contains(staleUri.getLastPathSegment()) &&
+              !PictureDirHelper.doesPictureExist(staleUri)) {
+            obsolete.add(c.getLong(0));
+          }
+        } catch (IllegalArgumentException e) {
+          //not one of ours, left to the user
+        }
+      } while (c.moveToNext());
+    }
+    c.close();
+    for (int i = 0; i < obsolete.size(); i += BATCH_SIZE) {
+      cr.delete(TransactionProvider.STALE_IMAGES_URI, "rowid IN (" +
+          TextUtils.join(",", obsolete.subList(i, Math.min(i + BATCH_SIZE, obsolete.size()))) + ")", null);
+    }
+  }
+}
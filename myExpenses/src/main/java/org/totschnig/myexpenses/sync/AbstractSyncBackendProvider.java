@@ -24,10 +24,13 @@ import org.totschnig.myexpenses.sync.json.AccountMetaData;
 import org.totschnig.myexpenses.sync.json.AdapterFactory;
 import org.totschnig.myexpenses.sync.json.ChangeSet;
 import org.totschnig.myexpenses.sync.json.TransactionChange;
+import org.totschnig.myexpenses.util.BackupRepository;
 import org.totschnig.myexpenses.util.PictureDirHelper;
+import org.totschnig.myexpenses.util.ResumableDownload;
 import org.totschnig.myexpenses.util.Utils;
 import org.totschnig.myexpenses.util.crashreporting.CrashHandler;
 import org.totschnig.myexpenses.util.io.FileCopyUtils;
+import org.totschnig.myexpenses.util.io.StreamReader;
 
 import java.io.BufferedReader;
 import java.io.File;
@@ -35,6 +38,8 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Locale;
@@ -49,6 +54,7 @@ import static org.totschnig.myexpenses.sync.SyncAdapter.LOCK_TIMEOUT_MINUTES;
 abstract class AbstractSyncBackendProvider implements SyncBackendProvider {
   static final String KEY_LOCK_TOKEN = "lockToken";
   static final String BACKUP_FOLDER_NAME = "BACKUPS";
+  static final String BACKUP_CHECKSUM_EXTENSION = ".sha256";
   static final String MIMETYPE_JSON = "application/json";
   static final String ACCOUNT_METADATA_FILENAME = "metadata.json";
   private static final Pattern FILE_PATTERN = Pattern.compile("_\\d+");
@@ -227,6 +233,51 @@ abstract class AbstractSyncBackendProvider implements SyncBackendProvider {
 
   protected abstract void saveUriToAccountDir(String fileName, Uri uri) throws IOException;
 
+  @Override
+  public void storeBackup(String fileName, BackupWriter writer) throws IOException {
+    //backends might write the backup more than once, e.g. when an upload is retried after an
+    //authentication challenge, each pass takes a new snapshot, the last one is the one stored
+    final MessageDigest[] lastPass = new MessageDigest[1];
+    writeBackup(fileName, out -> {
+      MessageDigest digest = BackupRepository.newDigest();
+      lastPass[0] = digest;
+      writer.writeTo(new DigestOutputStream(out, digest));
+    });
+    if (lastPass[0] == null) {
+      throw new IOException("Backup " + fileName + " has not been written");
+    }
+    saveBackupContents(fileName + BACKUP_CHECKSUM_EXTENSION, BackupRepository.toHex(lastPass[0].digest()));
+  }
+
+  /**
+   * uploads the backup produced by writer to the backup folder
+   */
+  protected abstract void writeBackup(String fileName, BackupWriter writer) throws IOException;
+
+  protected abstract void saveBackupContents(String fileName, String fileContents) throws IOException;
+
+  /**
+   * @return false for files stored in the backup folder alongside the backups
+   */
+  boolean isBackup(String fileName) {
+    return !fileName.endsWith(BACKUP_CHECKSUM_EXTENSION) &&
+        !fileName.endsWith(ResumableDownload.PARTIAL_EXTENSION);
+  }
+
+  @Override
+  public void downloadBackup(android.accounts.Account account, String backupFile, File target) throws IOException {
+    String checksum = null;
+    try {
+      checksum = new StreamReader(getInputStreamForBackup(account,
+          backupFile + BACKUP_CHECKSUM_EXTENSION, 0)).read().trim();
+    } catch (IOException e) {
+      //backups uploaded by earlier versions do not have a checksum
+      log().w(e, "No checksum found for %s", backupFile);
+    }
+    ResumableDownload.download(offset -> getInputStreamForBackup(account, backupFile, offset),
+        target, checksum);
+  }
+
   String buildMetadata(Account account) {
     return gson.toJson(AccountMetaData.from(account));
   }
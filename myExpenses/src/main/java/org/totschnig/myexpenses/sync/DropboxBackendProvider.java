@@ -15,9 +15,14 @@ import com.dropbox.core.DbxException;
 import com.dropbox.core.DbxRequestConfig;
 import com.dropbox.core.InvalidAccessTokenException;
 import com.dropbox.core.v2.DbxClientV2;
+import com.dropbox.core.v2.DbxDownloadStyleBuilder;
+import com.dropbox.core.v2.files.CommitInfo;
+import com.dropbox.core.v2.files.DownloadErrorException;
+import com.dropbox.core.v2.files.FileMetadata;
 import com.dropbox.core.v2.files.FolderMetadata;
 import com.dropbox.core.v2.files.GetMetadataErrorException;
 import com.dropbox.core.v2.files.Metadata;
+import com.dropbox.core.v2.files.UploadSessionCursor;
 import com.dropbox.core.v2.files.WriteMode;
 
 import org.totschnig.myexpenses.BuildConfig;
@@ -31,8 +36,10 @@ import org.totschnig.myexpenses.util.Utils;
 import org.totschnig.myexpenses.util.io.StreamReader;
 
 import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
@@ -41,6 +48,10 @@ import timber.log.Timber;
 
 public class DropboxBackendProvider extends AbstractSyncBackendProvider {
   private static final String LOCK_FILE = ".lock";
+  /**
+   * Dropbox recommends multiples of 4 MB for upload sessions
+   */
+  private static final int UPLOAD_CHUNK_SIZE = 4 * 1024 * 1024;
   private DbxClientV2 mDbxClient;
   private String basePath;
 
@@ -206,23 +217,121 @@ public class DropboxBackendProvider extends AbstractSyncBackendProvider {
   }
 
   @Override
-  public InputStream getInputStreamForBackup(android.accounts.Account account, String backupFile) throws IOException {
+  public InputStream getInputStreamForBackup(android.accounts.Account account, String backupFile, long offset) throws IOException {
     if (requireSetup(account)) {
-      return getInputStream(getBackupPath() + "/" + backupFile);
+      String path = getBackupPath() + "/" + backupFile;
+      try {
+        DbxDownloadStyleBuilder<FileMetadata> builder = mDbxClient.files().downloadBuilder(path);
+        if (offset > 0) {
+          builder.range(offset);
+        }
+        return builder.start().getInputStream();
+      } catch (DownloadErrorException e) {
+        if (e.errorValue.isPath() && e.errorValue.getPathValue().isNotFound()) {
+          throw new FileNotFoundException(path);
+        }
+        throw new IOException(e);
+      } catch (DbxException e) {
+        throw new IOException(e);
+      }
     } else {
       throw new IOException(getContext().getString(R.string.sync_io_error_cannot_connect));
     }
   }
 
+  /**
+   * single uploads are limited to 150 MB, backups are hence sent in chunks through an upload
+   * session
+   */
   @Override
-  public void storeBackup(Uri uri, String fileName) throws IOException {
+  protected void writeBackup(String fileName, BackupWriter writer) throws IOException {
+    String backupPath = getBackupPath();
     try {
-      String backupPath = getBackupPath();
       requireFolder(backupPath);
-      saveUriToFolder(fileName, uri, backupPath);
     } catch (DbxException e) {
       throw new IOException(e);
     }
+    UploadSessionOutputStream out = new UploadSessionOutputStream(backupPath + "/" + fileName);
+    writer.writeTo(out);
+    out.finish();
+  }
+
+  /**
+   * buffers {@link #UPLOAD_CHUNK_SIZE} bytes and appends them to an upload session, which is
+   * committed to path by {@link #finish()}. Content that fits into one chunk is uploaded with a
+   * single request.
+   */
+  private class UploadSessionOutputStream extends OutputStream {
+    private final String path;
+    private final byte[] buffer = new byte[UPLOAD_CHUNK_SIZE];
+    private int count = 0;
+    private long offset = 0;
+    private String sessionId;
+
+    UploadSessionOutputStream(String path) {
+      this.path = path;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      if (count == buffer.length) {
+        uploadChunk();
+      }
+      buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(@NonNull byte[] b, int off, int len) throws IOException {
+      while (len > 0) {
+        if (count == buffer.length) {
+          uploadChunk();
+        }
+        int n = Math.min(len, buffer.length - count);
+        System.arraycopy(b, off, buffer, count, n);
+        count += n;
+        off += n;
+        len -= n;
+      }
+    }
+
+    private void uploadChunk() throws IOException {
+      InputStream chunk = new ByteArrayInputStream(buffer, 0, count);
+      try {
+        if (sessionId == null) {
+          sessionId = mDbxClient.files().uploadSessionStart().uploadAndFinish(chunk, count)
+              .getSessionId();
+        } else {
+          mDbxClient.files().uploadSessionAppendV2(new UploadSessionCursor(sessionId, offset))
+              .uploadAndFinish(chunk, count);
+        }
+      } catch (DbxException e) {
+        throw new IOException(e);
+      }
+      offset += count;
+      count = 0;
+    }
+
+    void finish() throws IOException {
+      InputStream rest = new ByteArrayInputStream(buffer, 0, count);
+      try {
+        if (sessionId == null) {
+          mDbxClient.files().uploadBuilder(path)
+              .withMode(WriteMode.OVERWRITE)
+              .uploadAndFinish(rest, count);
+        } else {
+          mDbxClient.files().uploadSessionFinish(new UploadSessionCursor(sessionId, offset),
+              CommitInfo.newBuilder(path).withMode(WriteMode.OVERWRITE).build())
+              .uploadAndFinish(rest, count);
+        }
+      } catch (DbxException e) {
+        throw new IOException(e);
+      }
+    }
+  }
+
+  @Override
+  protected void saveBackupContents(String fileName, String fileContents) throws IOException {
+    saveInputStream(getBackupPath() + "/" + fileName, new ByteArrayInputStream(fileContents.getBytes()));
   }
 
   @Override
@@ -305,6 +414,7 @@ public class DropboxBackendProvider extends AbstractSyncBackendProvider {
       try {
         return Stream.of(mDbxClient.files().listFolder(getBackupPath()).getEntries())
             .map(Metadata::getName)
+            .filter(this::isBackup)
             .toList();
       } catch (DbxException ignored) {}
     }
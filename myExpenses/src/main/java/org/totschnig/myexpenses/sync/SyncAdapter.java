@@ -49,6 +49,7 @@ import org.totschnig.myexpenses.provider.TransactionProvider;
 import org.totschnig.myexpenses.service.SyncNotificationDismissHandler;
 import org.totschnig.myexpenses.sync.json.ChangeSet;
 import org.totschnig.myexpenses.sync.json.TransactionChange;
+import org.totschnig.myexpenses.util.BackupUtils;
 import org.totschnig.myexpenses.util.NotificationBuilderWrapper;
 import org.totschnig.myexpenses.util.Utils;
 import org.totschnig.myexpenses.util.crashreporting.CrashHandler;
@@ -90,7 +91,6 @@ import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_VALUE;
 public class SyncAdapter extends AbstractThreadedSyncAdapter {
   public static final int BATCH_SIZE = 100;
   public static final String KEY_RESET_REMOTE_ACCOUNT = "reset_remote_account";
-  public static final String KEY_UPLOAD_AUTO_BACKUP_URI = "upload_auto_backup_uri";
   public static final String KEY_UPLOAD_AUTO_BACKUP_NAME = "upload_auto_backup_name";
   public static final String KEY_NOTIFICATION_CANCELLED = "notification_cancelled";
   private static final ThreadLocal<org.totschnig.myexpenses.model.Account>
@@ -194,11 +194,10 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
       return;
     }
 
-    String autoBackupFileUri = extras.getString(KEY_UPLOAD_AUTO_BACKUP_URI);
-    if (autoBackupFileUri != null) {
-      String fileName = extras.getString(KEY_UPLOAD_AUTO_BACKUP_NAME);
+    String fileName = extras.getString(KEY_UPLOAD_AUTO_BACKUP_NAME);
+    if (fileName != null) {
       try {
-        backend.storeBackup(Uri.parse(autoBackupFileUri), fileName);
+        backend.storeBackup(fileName, BackupUtils::zipBackup);
       } catch (IOException e) {
         log().w(e);
         if (handleAuthException(backend, e, account)) {
@@ -2,7 +2,6 @@ package org.totschnig.myexpenses.sync;
 
 import android.app.PendingIntent;
 import android.content.Context;
-import android.net.Uri;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
@@ -14,8 +13,10 @@ import org.totschnig.myexpenses.sync.json.AccountMetaData;
 import org.totschnig.myexpenses.sync.json.ChangeSet;
 import org.totschnig.myexpenses.sync.json.TransactionChange;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.List;
 
 public interface SyncBackendProvider {
@@ -40,12 +41,24 @@ public interface SyncBackendProvider {
 
   void tearDown();
 
-  void storeBackup(Uri uri, String fileName) throws IOException;
+  /**
+   * uploads the backup produced by writer while it is being written, together with its checksum
+   */
+  void storeBackup(String fileName, BackupWriter writer) throws IOException;
 
   @NonNull
   List<String> getStoredBackups(android.accounts.Account account) throws IOException;
 
-  InputStream getInputStreamForBackup(android.accounts.Account account, String backupFile) throws IOException;
+  /**
+   * @param offset number of bytes to skip, the returned stream starts at this position
+   */
+  InputStream getInputStreamForBackup(android.accounts.Account account, String backupFile, long offset) throws IOException;
+
+  /**
+   * downloads backupFile to target, resuming a partial download left by an earlier attempt, and
+   * verifies it against the checksum stored with the backup
+   */
+  void downloadBackup(android.accounts.Account account, String backupFile, File target) throws IOException;
 
   /**
    *
@@ -54,6 +67,13 @@ public interface SyncBackendProvider {
    */
   boolean isAuthException(IOException e);
 
+  interface BackupWriter {
+    /**
+     * @param out must not be closed by the writer
+     */
+    void writeTo(OutputStream out) throws IOException;
+  }
+
   class SyncParseException extends Exception {
     SyncParseException(Exception e) {
       super(e);
@@ -164,8 +164,8 @@ public class WebDavBackendProvider extends AbstractSyncBackendProvider {
   }
 
   @Override
-  public InputStream getInputStreamForBackup(android.accounts.Account account, String backupFile) throws IOException {
-    return getInputStream(BACKUP_FOLDER_NAME, backupFile);
+  public InputStream getInputStreamForBackup(android.accounts.Account account, String backupFile, long offset) throws IOException {
+    return webDavClient.download(BACKUP_FOLDER_NAME, backupFile, offset);
   }
 
   private InputStream getInputStream(String folderName, String resourceName) throws IOException {
@@ -213,13 +213,34 @@ public class WebDavBackendProvider extends AbstractSyncBackendProvider {
   }
 
   @Override
-  public void storeBackup(Uri uri, String fileName) throws IOException {
+  protected void writeBackup(String fileName, BackupWriter writer) throws IOException {
     try {
       webDavClient.mkCol(BACKUP_FOLDER_NAME);
+      //the body has unknown length and is sent chunked while the backup is written
+      RequestBody requestBody = new RequestBody() {
+        @Override
+        public MediaType contentType() {
+          return MediaType.parse(getMimeType(fileName));
+        }
+
+        @Override
+        public void writeTo(BufferedSink sink) throws IOException {
+          writer.writeTo(sink.outputStream());
+        }
+      };
+      webDavClient.upload(BACKUP_FOLDER_NAME, fileName, requestBody);
+    } catch (HttpException e) {
+      throw new IOException(e);
+    }
+  }
+
+  @Override
+  protected void saveBackupContents(String fileName, String fileContents) throws IOException {
+    try {
+      webDavClient.upload(BACKUP_FOLDER_NAME, fileName, fileContents, MediaType.parse("text/plain"));
     } catch (HttpException e) {
       throw new IOException(e);
     }
-    saveUriToFolder(fileName, uri, BACKUP_FOLDER_NAME);
   }
 
   @NonNull
@@ -228,6 +249,7 @@ public class WebDavBackendProvider extends AbstractSyncBackendProvider {
     try {
       return Stream.of(webDavClient.getFolderMembers(BACKUP_FOLDER_NAME))
           .map(DavResource::fileName)
+          .filter(this::isBackup)
           .toList();
     } catch (IOException e) {
       return new ArrayList<>();
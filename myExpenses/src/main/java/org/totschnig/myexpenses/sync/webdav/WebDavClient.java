@@ -24,7 +24,10 @@ import org.totschnig.myexpenses.util.crashreporting.CrashHandler;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
+import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.security.cert.CertPathValidatorException;
 import java.security.cert.X509Certificate;
 import java.util.Locale;
@@ -50,6 +53,7 @@ import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.RequestBody;
 import okhttp3.Response;
+import okio.BufferedSource;
 import timber.log.Timber;
 
 public class WebDavClient {
@@ -119,6 +123,45 @@ public class WebDavClient {
         .put(requestBody, buildIfHeader(folderName));
   }
 
+  /**
+   * @param offset if larger than 0, the content is requested starting at offset with a range
+   *               request, if the server does not support ranges, the skipped part is discarded
+   * @return an empty stream if offset is not before the end of the content, which happens when
+   * an earlier attempt has received the complete content, but did not see its end
+   * @throws FileNotFoundException if the resource does not exist
+   */
+  public InputStream download(String folderName, String resourceName, long offset) throws IOException {
+    Request.Builder builder = new Request.Builder()
+        .url(buildResourceUri(folderName, resourceName))
+        .get();
+    if (offset > 0) {
+      builder.header("Range", "bytes=" + offset + "-");
+    }
+    Response response = httpClient.newCall(builder.build()).execute();
+    if (!response.isSuccessful()) {
+      cleanUp(response);
+      if (response.code() == 404) {
+        throw new FileNotFoundException(resourceName);
+      }
+      if (response.code() == 416 && offset > 0) {
+        //Range Not Satisfiable, the content is verified by the caller
+        return new ByteArrayInputStream(new byte[0]);
+      }
+      throw new IOException(String.format(Locale.ROOT, "Download of %s failed with %d %s",
+          resourceName, response.code(), response.message()));
+    }
+    BufferedSource source = response.body().source();
+    if (offset > 0 && response.code() != 206) {
+      try {
+        source.skip(offset);
+      } catch (IOException e) {
+        cleanUp(response);
+        throw e;
+      }
+    }
+    return source.inputStream();
+  }
+
   @Nullable
   private String buildIfHeader(String folderName) {
     if (currentLockToken == null) {
@@ -0,0 +1,21 @@
+package org.totschnig.myexpenses.task;
+
+import android.os.Bundle;
+import android.support.v4.provider.DocumentFile;
+
+import org.totschnig.myexpenses.util.BackupUtils;
+import org.totschnig.myexpenses.util.Result;
+
+/**
+ * Creates a zip backup and reports the progress of the database snapshot in percent
+ */
+class BackupTask extends ExtraTask<Result<DocumentFile>> {
+  BackupTask(TaskExecutionFragment taskExecutionFragment, int taskId) {
+    super(taskExecutionFragment, taskId);
+  }
+
+  @Override
+  protected Result<DocumentFile> doInBackground(Bundle... bundles) {
+    return BackupUtils.doBackup(false, percent -> publishProgress(percent));
+  }
+}
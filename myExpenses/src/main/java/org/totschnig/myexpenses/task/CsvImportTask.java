@@ -42,11 +42,11 @@ import org.totschnig.myexpenses.util.Result;
 import org.totschnig.myexpenses.util.SparseBooleanArrayParcelable;
 import org.totschnig.myexpenses.util.Utils;
 
-import java.math.BigDecimal;
 import java.util.ArrayList;
 import java.util.Currency;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.TimeZone;
 
 public class CsvImportTask extends AsyncTask<Void, Integer, Result> {
   private final TaskExecutionFragment taskExecutionFragment;
@@ -118,6 +118,7 @@ public class CsvImportTask extends AsyncTask<Void, Integer, Result> {
     boolean isSplitParent = false, isSplitPart = false;
     Transaction t;
     Long splitParent = null;
+    TimeZone timeZone = TimeZone.getDefault();
     contentResolver.call(TransactionProvider.DUAL_URI, TransactionProvider.METHOD_BULK_START, null, null);
     for (int i = 0; i < data.size(); i++) {
       long transferAccountId = -1;
@@ -125,7 +126,7 @@ public class CsvImportTask extends AsyncTask<Void, Integer, Result> {
         totalDiscarded++;
       } else {
         CSVRecord record = data.get(i);
-        BigDecimal amount;
+        long amount;
         String categoryInfo = null;
         if (columnIndexSplit != -1) {
           isSplitPart = saveGetFromRecord(record, columnIndexSplit).equals(SplitTransaction.CSV_PART_INDICATOR);
@@ -133,15 +134,15 @@ public class CsvImportTask extends AsyncTask<Void, Integer, Result> {
         }
         try {
           if (columnIndexAmount != -1) {
-            amount = QifUtils.parseMoney(saveGetFromRecord(record, columnIndexAmount), mCurrency);
+            amount = QifUtils.parseMoneyMinor(saveGetFromRecord(record, columnIndexAmount), a.currency);
           } else {
-            BigDecimal income = columnIndexIncome != -1 ?
-                QifUtils.parseMoney(saveGetFromRecord(record, columnIndexIncome), mCurrency).abs() :
-                new BigDecimal(0);
-            BigDecimal expense = columnIndexExpense != -1 ?
-                QifUtils.parseMoney(saveGetFromRecord(record, columnIndexExpense), mCurrency).abs() :
-                new BigDecimal(0);
-            amount = income.subtract(expense);
+            long income = columnIndexIncome != -1 ?
+                Math.abs(QifUtils.parseMoneyMinor(saveGetFromRecord(record, columnIndexIncome), a.currency)) :
+                0L;
+            long expense = columnIndexExpense != -1 ?
+                Math.abs(QifUtils.parseMoneyMinor(saveGetFromRecord(record, columnIndexExpense), a.currency)) :
+                0L;
+            amount = income - expense;
           }
         } catch (IllegalArgumentException e) {
           return Result.ofFailure("Amounts in data exceed storage limit");
@@ -194,7 +195,7 @@ public class CsvImportTask extends AsyncTask<Void, Integer, Result> {
           t.setCatId(categoryToId.get(categoryInfo));
         }
         if (columnIndexDate != -1) {
-          t.setDate(QifUtils.parseDate(saveGetFromRecord(record, columnIndexDate), dateFormat));
+          t.setDate(QifUtils.parseDateSeconds(saveGetFromRecord(record, columnIndexDate), dateFormat, timeZone));
         }
 
         if (columnIndexPayee != -1) {
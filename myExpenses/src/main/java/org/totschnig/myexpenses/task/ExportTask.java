@@ -1,11 +1,14 @@
 package org.totschnig.myexpenses.task;
 
+import android.content.Context;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Bundle;
 import android.support.v4.provider.DocumentFile;
 
+import com.google.gson.GsonBuilder;
+
 import org.totschnig.myexpenses.MyApplication;
 import org.totschnig.myexpenses.R;
 import org.totschnig.myexpenses.export.Exporter;
@@ -20,12 +23,21 @@ import org.totschnig.myexpenses.provider.filter.WhereFilter;
 import org.totschnig.myexpenses.util.AppDirHelper;
 import org.totschnig.myexpenses.util.Result;
 import org.totschnig.myexpenses.util.Utils;
+import org.totschnig.myexpenses.util.ZipUtils;
+import org.totschnig.myexpenses.util.io.FileUtils;
 
 import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_CURRENCY;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ROWID;
@@ -36,13 +48,19 @@ public class ExportTask extends AsyncTask<Void, String, ArrayList<Uri>> {
   public static final String KEY_DELETE_P = "deleteP";
   public static final String KEY_EXPORT_HANDLE_DELETED = "export_handle_deleted";
   public static final String KEY_FILE_NAME = "file_name";
+  public static final String KEY_ZIP_P = "zipP";
+  public static final String KEY_INCREMENTAL_P = "incrementalP";
+  private static final String MANIFEST_FILE_NAME = "manifest.json";
+  private static final int MAX_EXPORT_THREADS = 4;
   private final TaskExecutionFragment taskExecutionFragment;
   //we store the label of the account as progress
   private String progress ="";
   private final ArrayList<Uri> result = new ArrayList<>();
   private ExportFormat format;
   private boolean deleteP;
+  private boolean zipP;
   private boolean notYetExportedP;
+  private boolean incrementalP;
   private String dateFormat;
   private char decimalSeparator;
   private long accountId;
@@ -60,7 +78,9 @@ public class ExportTask extends AsyncTask<Void, String, ArrayList<Uri>> {
   public ExportTask(TaskExecutionFragment taskExecutionFragment, Bundle extras) {
     this.taskExecutionFragment = taskExecutionFragment;
     deleteP = extras.getBoolean(KEY_DELETE_P);
+    zipP = extras.getBoolean(KEY_ZIP_P);
     notYetExportedP = extras.getBoolean(KEY_NOT_YET_EXPORTED_P);
+    incrementalP = extras.getBoolean(KEY_INCREMENTAL_P);
     dateFormat = extras.getString(TaskExecutionFragment.KEY_DATE_FORMAT);
     decimalSeparator = extras.getChar(KEY_DECIMAL_SEPARATOR);
     encoding = extras.getString(TaskExecutionFragment.KEY_ENCODING);
@@ -77,7 +97,9 @@ public class ExportTask extends AsyncTask<Void, String, ArrayList<Uri>> {
     }
     accountId = extras.getLong(KEY_ROWID);
     filter = new WhereFilter(extras.getSparseParcelableArray(TransactionList.KEY_FILTER));
-    
+    if (incrementalP && (deleteP || !filter.isEmpty()))
+      throw new IllegalStateException(
+          "Incremental export can neither be filtered nor delete transactions");
   }
   String getProgress() {
     return progress;
@@ -145,41 +167,95 @@ public class ExportTask extends AsyncTask<Void, String, ArrayList<Uri>> {
       destDir = appDir;
     }
     ArrayList<Account> successfullyExported = new ArrayList<>();
-    for (Long id : accountIds) {
-      account = Account.getInstanceFromDb(id);
-      if (account == null) continue;
-      publishProgress(account.getLabel() + " ...");
-      try {
+    List<Map<String, String>> manifest = new ArrayList<>();
+    String now = new SimpleDateFormat("yyyMMdd-HHmmss", Locale.US).format(new Date());
+    List<Account> accounts = new ArrayList<>();
+    List<Future<Result<Uri>>> futures = new ArrayList<>();
+    int poolSize = Math.max(1, Math.min(accountIds.length,
+        Math.min(MAX_EXPORT_THREADS, Runtime.getRuntime().availableProcessors())));
+    ExecutorService executor = Executors.newFixedThreadPool(poolSize);
+    try {
+      for (Long id : accountIds) {
+        account = Account.getInstanceFromDb(id);
+        if (account == null) continue;
         String fileNameForAccount = accountIds.length > 1 ?
-            Utils.escapeForFileName(account.getLabel()) + "-" + new SimpleDateFormat("yyyMMdd-HHmmss", Locale.US)
-                .format(new Date()) :
+            Utils.escapeForFileName(account.getLabel()) + "-" + now :
             fileName;
-        Result<Uri> result = new Exporter(account,filter, destDir, fileNameForAccount, format,
-            notYetExportedP, dateFormat, decimalSeparator, encoding).export();
-        publishProgress("... " + result.print(application));
-        if (result.isSuccess()) {
+        final Exporter exporter = new Exporter(account, filter, destDir, fileNameForAccount, format,
+            notYetExportedP, dateFormat, decimalSeparator, encoding, incrementalP);
+        accounts.add(account);
+        futures.add(executor.submit(exporter::export));
+      }
+      //results are reported in the order of the accounts, while the exports run concurrently
+      for (int i = 0; i < futures.size(); i++) {
+        account = accounts.get(i);
+        publishProgress(account.getLabel() + " ...");
+        try {
+          Result<Uri> result = futures.get(i).get();
+          publishProgress("... " + result.print(application));
+          if (result.isSuccess()) {
+            if (PrefKey.PERFORM_SHARE.getBoolean(false) && !zipP) {
+              addResult(result.getExtra());
+            }
+            successfullyExported.add(account);
+            manifest.add(manifestEntry(application, account, result.getExtra()));
+          }
+        } catch (ExecutionException e) {
+          publishProgress("... " + application.getString(
+              R.string.export_sdcard_failure,
+              appDir.getName(),
+              e.getCause().getMessage()));
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return getResult();
+        }
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    if (zipP && accountIds.length > 1 && !successfullyExported.isEmpty()) {
+      DocumentFile zipFile = AppDirHelper.newFile(appDir, fileName, "application/zip", true);
+      if (zipFile == null) {
+        publishProgress(application.getString(R.string.io_error_unable_to_create_file,
+            fileName, FileUtils.getPath(application, appDir.getUri())));
+      } else {
+        try {
+          ZipUtils.zipDocumentDir(destDir, MANIFEST_FILE_NAME,
+              new GsonBuilder().setPrettyPrinting().create().toJson(manifest), zipFile);
+          destDir.delete();
+          publishProgress(application.getString(R.string.export_sdcard_success,
+              FileUtils.getPath(application, zipFile.getUri())));
           if (PrefKey.PERFORM_SHARE.getBoolean(false)) {
-            addResult(result.getExtra());
+            addResult(zipFile.getUri());
           }
-          successfullyExported.add(account);
+        } catch (IOException e) {
+          zipFile.delete();
+          publishProgress(application.getString(
+              R.string.export_sdcard_failure,
+              appDir.getName(),
+              e.getMessage()));
         }
-      } catch (IOException e) {
-        publishProgress("... " + application.getString(
-            R.string.export_sdcard_failure,
-            appDir.getName(),
-            e.getMessage()));
       }
     }
     for (Account a : successfullyExported) {
       if (deleteP) {
         a.reset(filter,handleDelete, fileName);
       }
-      else {
+      else if (!incrementalP) {
         a.markAsExported(filter);
       }
     }
     return getResult();
   }
+  private static Map<String, String> manifestEntry(Context context, Account account, Uri exported) {
+    Map<String, String> entry = new LinkedHashMap<>();
+    entry.put("account", account.getLabel());
+    entry.put("currency", account.currency.getCurrencyCode());
+    DocumentFile file = exported == null ? null : DocumentFile.fromSingleUri(context, exported);
+    entry.put("file", file == null ? null : file.getName());
+    return entry;
+  }
+
   public ArrayList<Uri> getResult() {
     return result;
   }
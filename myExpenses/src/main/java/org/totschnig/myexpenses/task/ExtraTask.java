@@ -6,7 +6,7 @@ import android.os.Bundle;
 /**
  * {@link AsyncTask} that takes {@link Bundle} as parameter and communicates with {@link TaskExecutionFragment}
  */
-abstract class ExtraTask<T> extends AsyncTask<Bundle, Void, T> {
+abstract class ExtraTask<T> extends AsyncTask<Bundle, Integer, T> {
   private final TaskExecutionFragment taskExecutionFragment;
   private final int taskId;
 
@@ -22,6 +22,13 @@ abstract class ExtraTask<T> extends AsyncTask<Bundle, Void, T> {
     }
   }
 
+  @Override
+  protected void onProgressUpdate(Integer... values) {
+    if (this.taskExecutionFragment.mCallbacks != null) {
+      this.taskExecutionFragment.mCallbacks.onProgressUpdate(values[0]);
+    }
+  }
+
   @Override
   protected void onCancelled() {
     if (this.taskExecutionFragment.mCallbacks != null) {
@@ -22,6 +22,7 @@ import com.annimon.stream.Collectors;
 import com.annimon.stream.Optional;
 import com.annimon.stream.Stream;
 
+import org.apache.commons.lang3.ArrayUtils;
 import org.totschnig.myexpenses.MyApplication;
 import org.totschnig.myexpenses.R;
 import org.totschnig.myexpenses.model.Account;
@@ -33,6 +34,7 @@ import org.totschnig.myexpenses.model.Template;
 import org.totschnig.myexpenses.model.Transaction;
 import org.totschnig.myexpenses.preference.PrefKey;
 import org.totschnig.myexpenses.provider.DatabaseConstants;
+import org.totschnig.myexpenses.provider.PlanInstanceStore;
 import org.totschnig.myexpenses.provider.TransactionProvider;
 import org.totschnig.myexpenses.provider.filter.WhereFilter;
 import org.totschnig.myexpenses.sync.GenericAccountService;
@@ -42,8 +44,8 @@ import org.totschnig.myexpenses.sync.SyncBackendProvider;
 import org.totschnig.myexpenses.sync.SyncBackendProviderFactory;
 import org.totschnig.myexpenses.sync.json.AccountMetaData;
 import org.totschnig.myexpenses.util.AppDirHelper;
-import org.totschnig.myexpenses.util.BackupUtils;
 import org.totschnig.myexpenses.util.Result;
+import org.totschnig.myexpenses.util.ThumbnailHelper;
 import org.totschnig.myexpenses.util.Utils;
 import org.totschnig.myexpenses.util.crashreporting.CrashHandler;
 import org.totschnig.myexpenses.util.io.FileCopyUtils;
@@ -54,7 +56,6 @@ import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.io.Serializable;
 import java.util.Arrays;
-import java.util.Date;
 import java.util.List;
 
 import timber.log.Timber;
@@ -133,16 +134,14 @@ public class GenericTask<T> extends AsyncTask<T, Void, Object> {
         return Transaction.getInstanceFromTemplate((Long) ids[0]);
       case TaskExecutionFragment.TASK_NEW_FROM_TEMPLATE:
         for (int i = 0; i < ids.length; i++) {
-          t = Transaction.getInstanceFromTemplate((Long) ids[i]);
-          if (t != null) {
-            if (mExtra != null) {
-              extraInfo2d = (Long[][]) mExtra;
-              t.setDate(new Date(extraInfo2d[i][1]));
-              t.originPlanInstanceId = extraInfo2d[i][0];
-            }
-            if (t.save() != null) {
-              successCount++;
-            }
+          Long date = null, planInstanceId = null;
+          if (mExtra != null) {
+            extraInfo2d = (Long[][]) mExtra;
+            date = extraInfo2d[i][1] / 1000;
+            planInstanceId = extraInfo2d[i][0];
+          }
+          if (Transaction.instantiateTemplate((Long) ids[i], date, planInstanceId) != null) {
+            successCount++;
           }
         }
         return successCount;
@@ -150,9 +149,7 @@ public class GenericTask<T> extends AsyncTask<T, Void, Object> {
         return Plan.getInstanceFromDb((Long) ids[0]);
       case TaskExecutionFragment.TASK_DELETE_TRANSACTION:
         try {
-          for (long id : (Long[]) ids) {
-            Transaction.delete(id, (boolean) mExtra);
-          }
+          Transaction.delete(ArrayUtils.toPrimitive((Long[]) ids), (boolean) mExtra);
         } catch (SQLiteConstraintException e) {
           CrashHandler.reportWithDbSchema(e);
           return Result.FAILURE;
@@ -160,9 +157,7 @@ public class GenericTask<T> extends AsyncTask<T, Void, Object> {
         return Result.SUCCESS;
       case TaskExecutionFragment.TASK_UNDELETE_TRANSACTION:
         try {
-          for (long id : (Long[]) ids) {
-            Transaction.undelete(id);
-          }
+          Transaction.undelete(ArrayUtils.toPrimitive((Long[]) ids));
         } catch (SQLiteConstraintException e) {
           CrashHandler.reportWithDbSchema(e);
           return Result.FAILURE;
@@ -212,13 +207,7 @@ public class GenericTask<T> extends AsyncTask<T, Void, Object> {
         }
         return Result.SUCCESS;
       case TaskExecutionFragment.TASK_TOGGLE_CRSTATUS:
-        cr.update(
-            TransactionProvider.TRANSACTIONS_URI
-                .buildUpon()
-                .appendPath(String.valueOf(ids[0]))
-                .appendPath(TransactionProvider.URI_SEGMENT_TOGGLE_CRSTATUS)
-                .build(),
-            null, null, null);
+        Transaction.toggleCrStatus(ArrayUtils.toPrimitive((Long[]) ids));
         return null;
       case TaskExecutionFragment.TASK_SWAP_SORT_KEY:
         cr.update(
@@ -231,7 +220,7 @@ public class GenericTask<T> extends AsyncTask<T, Void, Object> {
             null, null, null);
         return null;
       case TaskExecutionFragment.TASK_MOVE:
-        Transaction.move((Long) ids[0], (Long) mExtra);
+        Transaction.move(ArrayUtils.toPrimitive((Long[]) ids), (Long) mExtra);
         return null;
       case TaskExecutionFragment.TASK_MOVE_CATEGORY:
         for (long id : (Long[]) ids) {
@@ -283,10 +272,9 @@ public class GenericTask<T> extends AsyncTask<T, Void, Object> {
               new String[]{String.valueOf(ids[i]), String.valueOf(templateId)});
         }
         return null;
-      case TaskExecutionFragment.TASK_BACKUP:
-        return BackupUtils.doBackup();
       case TaskExecutionFragment.TASK_BALANCE:
-        Account.getInstanceFromDb((Long) ids[0]).balance((Boolean) mExtra);
+        Account.getInstanceFromDb((Long) ids[0]).balance((Boolean) mExtra,
+            ids.length > 1 ? (Long) ids[1] : null);
         return null;
       case TaskExecutionFragment.TASK_UPDATE_SORT_KEY:
         values = new ContentValues();
@@ -327,6 +315,7 @@ public class GenericTask<T> extends AsyncTask<T, Void, Object> {
                 success = cr.delete(imageFileUri, null, null) > 0;
               }
               if (success) {
+                ThumbnailHelper.deleteThumbnail(imageFileUri);
                 Timber.d("Successfully deleted file %s", imageFileUri.toString());
               } else {
                 Timber.e("Unable to delete file %s ", imageFileUri.toString());
@@ -484,6 +473,9 @@ public class GenericTask<T> extends AsyncTask<T, Void, Object> {
           }
         }
         return true;
+      case TaskExecutionFragment.TASK_REFRESH_PLAN_INSTANCES:
+        PlanInstanceStore.refresh(application, null);
+        return true;
       case TaskExecutionFragment.TASK_SYNC_UNLINK: {
         String uuid = (String) ids[0];
         if (TextUtils.isEmpty(uuid)) {
@@ -3,6 +3,7 @@ package org.totschnig.myexpenses.task;
 import android.accounts.AccountManager;
 import android.content.ContentResolver;
 import android.content.ContentValues;
+import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.Editor;
 import android.database.Cursor;
@@ -13,6 +14,7 @@ import android.os.AsyncTask;
 import android.os.Bundle;
 import android.support.annotation.Nullable;
 import android.support.v4.content.FileProvider;
+import android.support.v4.provider.DocumentFile;
 
 import com.android.calendar.CalendarContractCompat.Calendars;
 import com.annimon.stream.Collectors;
@@ -26,11 +28,15 @@ import org.totschnig.myexpenses.provider.DatabaseConstants;
 import org.totschnig.myexpenses.provider.DbUtils;
 import org.totschnig.myexpenses.provider.TransactionDatabase;
 import org.totschnig.myexpenses.provider.TransactionProvider;
+import org.totschnig.myexpenses.service.PostRestoreService;
 import org.totschnig.myexpenses.sync.GenericAccountService;
 import org.totschnig.myexpenses.sync.SyncAdapter;
 import org.totschnig.myexpenses.sync.SyncBackendProvider;
 import org.totschnig.myexpenses.sync.SyncBackendProviderFactory;
 import org.totschnig.myexpenses.util.AppDirHelper;
+import org.totschnig.myexpenses.util.BackupEncryption;
+import org.totschnig.myexpenses.util.BackupIndex;
+import org.totschnig.myexpenses.util.BackupRepository;
 import org.totschnig.myexpenses.util.BackupUtils;
 import org.totschnig.myexpenses.util.PictureDirHelper;
 import org.totschnig.myexpenses.util.Result;
@@ -39,9 +45,11 @@ import org.totschnig.myexpenses.util.crashreporting.CrashHandler;
 import org.totschnig.myexpenses.util.io.FileCopyUtils;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Collections;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -58,6 +66,7 @@ public class RestoreTask extends AsyncTask<Void, Result, Result> {
   private int restorePlanStrategy;
   private Uri fileUri;
   private String syncAccountName, backupFromSync;
+  private Uri downloadedBackupUri;
 
   RestoreTask(TaskExecutionFragment taskExecutionFragment, Bundle b) {
     this.taskExecutionFragment = taskExecutionFragment;
@@ -108,18 +117,52 @@ public class RestoreTask extends AsyncTask<Void, Result, Result> {
           CrashHandler.report(new Exception(errorMessage, throwable));
           return Result.ofFailure(errorMessage);
         }
+        //a download interrupted in an earlier attempt is resumed
+        File downloadedBackup = new File(workingDir, backupFromSync);
         try {
-          is = syncBackendProvider.getInputStreamForBackup(account, backupFromSync);
+          syncBackendProvider.downloadBackup(account, backupFromSync, downloadedBackup);
         } catch (IOException e) {
           return Result.ofFailure(e.getMessage());
         }
+        downloadedBackupUri = Uri.fromFile(downloadedBackup);
+        is = new FileInputStream(downloadedBackup);
       } else {
         is = cr.openInputStream(fileUri);
       }
       if (is == null) {
         return Result.ofFailure("Unable to open backup file");
       }
-      boolean zipResult = ZipUtils.unzip(is, workingDir);
+      boolean zipResult;
+      if (fileUri != null && BackupRepository.isManifest(fileUri)) {
+        DocumentFile appDir = AppDirHelper.getAppDir(application);
+        BackupRepository repository = appDir == null ? null : BackupRepository.open(appDir);
+        zipResult = repository != null && repository.restore(is, workingDir);
+      } else {
+        Result decryptionFailure = null;
+        try {
+          //chunks of encrypted archives are verified while they are read
+          is = BackupEncryption.decryptIfNeeded(is, BackupEncryption.getPassword());
+        } catch (BackupEncryption.PasswordRequiredException e) {
+          decryptionFailure = Result.ofFailure(R.string.restore_backup_password_required);
+        } catch (BackupEncryption.VerificationException e) {
+          Timber.w(e);
+          decryptionFailure = Result.ofFailure(R.string.restore_backup_password_wrong);
+        } catch (IOException e) {
+          Timber.w(e);
+          decryptionFailure = Result.ofFailure(R.string.restore_backup_archive_not_valid, fileUri);
+        }
+        if (decryptionFailure != null) {
+          try {
+            is.close();
+          } catch (IOException e) {
+            Timber.e(e);
+          }
+          return decryptionFailure;
+        }
+        //pictures are streamed from the archive by PostRestoreService
+        zipResult = ZipUtils.unzip(is, workingDir,
+            BackupUtils.BACKUP_DB_FILE_NAME, BackupUtils.BACKUP_PREF_FILE_NAME);
+      }
       try {
         is.close();
       } catch (IOException e) {
@@ -131,7 +174,11 @@ public class RestoreTask extends AsyncTask<Void, Result, Result> {
             fileUri);
       }
     } catch (FileNotFoundException | SecurityException e) {
-      CrashHandler.report(e, "fileUri", fileUri.toString());
+      if (e instanceof FileNotFoundException && fileUri != null) {
+        //the backup has been deleted since the index was built
+        BackupIndex.remove(application, Collections.singletonList(fileUri));
+      }
+      CrashHandler.report(e, "fileUri", String.valueOf(fileUri != null ? fileUri : downloadedBackupUri));
       return Result.ofFailure(
           R.string.parse_error_other_exception,
           e.getMessage());
@@ -247,14 +294,15 @@ public class RestoreTask extends AsyncTask<Void, Result, Result> {
       for (Map.Entry<String, ?> entry : application.getSettings().getAll().entrySet()) {
         String key = entry.getKey();
         if (!key.equals(PrefKey.NEW_LICENCE.getKey()) && !key.equals(PrefKey.LICENCE_EMAIL.getKey())
-            && !key.startsWith("acra")) {
+            && !key.equals(PrefKey.BACKUP_PASSWORD.getKey()) && !key.startsWith("acra")) {
           edit.remove(key);
         }
       }
 
       for (Map.Entry<String, ?> entry : backupPref.getAll().entrySet()) {
         String key = entry.getKey();
-        if (key.equals(PrefKey.LICENCE_LEGACY.getKey())) {
+        //the backup password is not part of backups, older ones might still hold it
+        if (key.equals(PrefKey.LICENCE_LEGACY.getKey()) || key.equals(PrefKey.BACKUP_PASSWORD.getKey())) {
           continue;
         }
         Object val = entry.getValue();
@@ -288,19 +336,13 @@ public class RestoreTask extends AsyncTask<Void, Result, Result> {
       //if a user restores a backup we do not want past plan instances to flood the database
       PrefKey.PLANNER_LAST_EXECUTION_TIMESTAMP
           .putLong(System.currentTimeMillis());
-      //now handling plans
-      if (restorePlanStrategy != R.id.restore_calendar_handling_ignore) {
-        publishProgress(application.restorePlanner());
-      } else {
+      if (restorePlanStrategy == R.id.restore_calendar_handling_ignore) {
         //we remove all links to plans we did not restore
         ContentValues planValues = new ContentValues();
         planValues.putNull(DatabaseConstants.KEY_PLANID);
         cr.update(Template.CONTENT_URI,
             planValues, null, null);
       }
-      Timber.i("now emptying event cache");
-      cr.delete(
-          TransactionProvider.EVENT_CACHE_URI, null, null);
 
       //now handling pictures
       //1.stale uris in the backup can be ignored1
@@ -312,45 +354,18 @@ public class RestoreTask extends AsyncTask<Void, Result, Result> {
       registerAsStale(false);
       registerAsStale(true);
 
-      //3. move pictures home and update uri
-      File backupPictureDir = new File(workingDir, ZipUtils.PICTURES);
-      Cursor c = cr.query(TransactionProvider.TRANSACTIONS_URI,
-          new String[]{DatabaseConstants.KEY_ROWID, DatabaseConstants.KEY_PICTURE_URI},
-          DatabaseConstants.KEY_PICTURE_URI + " IS NOT NULL", null, null);
-      if (c == null)
-        return Result.ofFailure(R.string.restore_db_failure);
-      if (c.moveToFirst()) {
-        do {
-          ContentValues uriValues = new ContentValues();
-          int rowId = c.getInt(0);
-          Uri fromBackup = Uri.parse(c.getString(1));
-          String fileName = fromBackup.getLastPathSegment();
-          File backupImage = new File(backupPictureDir, fileName);
-          Uri restored = null;
-          if (backupImage.exists()) {
-            File restoredImage = PictureDirHelper.getOutputMediaFile(
-                fileName.substring(0, fileName.lastIndexOf('.')), false, application.isProtected());
-            if (restoredImage == null || !FileCopyUtils.copy(backupImage, restoredImage)) {
-              Timber.e("Could not restore file %s from backup", fromBackup.toString());
-            } else {
-              restored = AppDirHelper.getContentUriForFile(restoredImage);
-            }
-          } else {
-            Timber.e("Could not restore file %s from backup", fromBackup.toString());
-          }
-          if (restored != null) {
-            uriValues.put(DatabaseConstants.KEY_PICTURE_URI, restored.toString());
-          } else {
-            uriValues.putNull(DatabaseConstants.KEY_PICTURE_URI);
-          }
-          cr.update(
-              TransactionProvider.TRANSACTIONS_URI,
-              uriValues,
-              DatabaseConstants.KEY_ROWID + " = ?",
-              new String[]{String.valueOf(rowId)});
-        } while (c.moveToNext());
+      //3. relinking plans and moving pictures home does not need to block the user
+      Intent postRestore = new Intent();
+      if (fileUri != null) {
+        postRestore.putExtra(TaskExecutionFragment.KEY_FILE_PATH, fileUri);
+      } else {
+        postRestore.putExtra(TaskExecutionFragment.KEY_FILE_PATH, downloadedBackupUri);
+        postRestore.putExtra(PostRestoreService.KEY_DELETE_BACKUP, true);
       }
-      c.close();
+      postRestore.putExtra(PostRestoreService.KEY_RESTORE_PLANNER,
+          restorePlanStrategy != R.id.restore_calendar_handling_ignore);
+      PostRestoreService.enqueueWork(application, postRestore);
+      publishProgress(Result.ofSuccess(R.string.restore_continues_in_background));
       Result restoreSyncStateResult = restoreSyncState();
       if (restoreSyncStateResult != null) {
         publishProgress(restoreSyncStateResult);
@@ -5,7 +5,6 @@ import android.os.Bundle;
 import org.totschnig.myexpenses.MyApplication;
 import org.totschnig.myexpenses.R;
 import org.totschnig.myexpenses.model.SplitTransaction;
-import org.totschnig.myexpenses.model.Transaction;
 import org.totschnig.myexpenses.util.Result;
 
 import static org.totschnig.myexpenses.util.Result.FAILURE;
@@ -21,15 +20,7 @@ class RevokeSplitCommandTask extends ExtraTask<Result> {
     if (ids == null) return FAILURE;
     final int count = ids.length;
     if (count == 0) return FAILURE;
-    int success = 0;
-    for (long id: ids ) {
-      Transaction split = Transaction.getInstanceFromDb(id);
-      if (split != null && split instanceof SplitTransaction) {
-        if (((SplitTransaction) split).unsplit()) {
-          success++;
-        }
-      }
-    }
+    int success = SplitTransaction.unsplit(ids, done -> publishProgress(done));
     if (success == count) {
       return Result.ofSuccess(MyApplication.getInstance().getResources().getQuantityString(R.plurals.ungroup_split_transaction_success, count, count));
     }
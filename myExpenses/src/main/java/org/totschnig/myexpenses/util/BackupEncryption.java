@@ -0,0 +1,437 @@
+package org.totschnig.myexpenses.util;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.text.TextUtils;
+
+import org.totschnig.myexpenses.preference.PrefKey;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Encrypted backup archives. The zip archive is split into chunks of {@link #CHUNK_SIZE} bytes,
+ * each of which is encrypted and authenticated on its own with AES-GCM, hence neither writing nor
+ * reading holds more than a few chunks in memory, and no plaintext is handed out before the chunk
+ * it belongs to has been verified.
+ * <p>
+ * The file starts with {@link #MAGIC}, the format version, the number of PBKDF2 iterations, the
+ * salt from which the key is derived together with the password, and a random nonce prefix. Each
+ * chunk is stored as a flag marking the last chunk, the length of its ciphertext and the ciphertext
+ * including the tag. The nonce of a chunk consists of the prefix, the index of the chunk and the
+ * flag, so that chunks can neither be reordered nor dropped from the end without failing
+ * verification.
+ */
+@TargetApi(Build.VERSION_CODES.KITKAT)
+public class BackupEncryption {
+  public static final String EXTENSION = "enc";
+  public static final String MIME_TYPE = "application/" + EXTENSION;
+  private static final byte[] MAGIC = {'M', 'E', 'B', 'K'};
+  private static final int VERSION = 1;
+  static final int CHUNK_SIZE = 64 * 1024;
+  private static final int TAG_LENGTH = 16;
+  private static final int SALT_LENGTH = 16;
+  private static final int NONCE_PREFIX_LENGTH = 7;
+  private static final int NONCE_LENGTH = NONCE_PREFIX_LENGTH + 5;
+  /**
+   * the key is derived once per archive, hence we can afford a high count. Since the count is stored
+   * in the header, archives written with a lower count can still be read.
+   */
+  private static final int ITERATIONS = 310000;
+  /**
+   * protects against headers that would keep us busy deriving the key forever
+   */
+  private static final int MAX_ITERATIONS = 10000000;
+  /**
+   * number of chunks that can be on their way between the stream and the thread that encrypts and
+   * writes them
+   */
+  private static final int PIPELINE_DEPTH = 4;
+  private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+
+  private BackupEncryption() {
+  }
+
+  /**
+   * Thrown when the content of an encrypted backup cannot be verified, either because the password
+   * is wrong or because the backup has been modified
+   */
+  public static class VerificationException extends IOException {
+    VerificationException(Throwable cause) {
+      super(cause);
+    }
+  }
+
+  /**
+   * Thrown when an encrypted backup is read without a password
+   */
+  public static class PasswordRequiredException extends IOException {
+  }
+
+  public static boolean isAvailable() {
+    return Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+  }
+
+  /**
+   * @return the password set in the preferences, null if backups should not be encrypted
+   */
+  @Nullable
+  public static String getPassword() {
+    String password = PrefKey.BACKUP_PASSWORD.getString(null);
+    return !isAvailable() || TextUtils.isEmpty(password) ? null : password;
+  }
+
+  public static boolean isEnabled() {
+    return getPassword() != null;
+  }
+
+  /**
+   * @return stream that encrypts what is written to it and writes it to out, after
+   * {@link EncryptingOutputStream#finish()}, out can be closed by the caller
+   */
+  @NonNull
+  public static EncryptingOutputStream encrypt(@NonNull OutputStream out, @NonNull String password) throws IOException {
+    SecureRandom random = new SecureRandom();
+    byte[] salt = new byte[SALT_LENGTH];
+    random.nextBytes(salt);
+    byte[] noncePrefix = new byte[NONCE_PREFIX_LENGTH];
+    random.nextBytes(noncePrefix);
+    SecretKey key = deriveKey(password, salt, ITERATIONS);
+    DataOutputStream header = new DataOutputStream(out);
+    header.write(MAGIC);
+    header.writeByte(VERSION);
+    header.writeInt(ITERATIONS);
+    header.write(salt);
+    header.write(noncePrefix);
+    header.flush();
+    return new EncryptingOutputStream(out, key, noncePrefix);
+  }
+
+  /**
+   * @return in itself if it does not hold an encrypted backup, otherwise a stream of the decrypted
+   * content
+   * @throws PasswordRequiredException if in holds an encrypted backup, and password is null
+   * @throws VerificationException     if the first chunk cannot be verified with password
+   */
+  @NonNull
+  public static InputStream decryptIfNeeded(@NonNull InputStream in, @Nullable String password) throws IOException {
+    PushbackInputStream pushbackIn = new PushbackInputStream(in, MAGIC.length);
+    byte[] magic = new byte[MAGIC.length];
+    int read = 0;
+    int len;
+    while (read < magic.length && (len = pushbackIn.read(magic, read, magic.length - read)) != -1) {
+      read += len;
+    }
+    if (read < MAGIC.length || !Arrays.equals(magic, MAGIC)) {
+      pushbackIn.unread(magic, 0, read);
+      return pushbackIn;
+    }
+    if (password == null) {
+      throw new PasswordRequiredException();
+    }
+    DataInputStream header = new DataInputStream(pushbackIn);
+    int version = header.readUnsignedByte();
+    if (version != VERSION) {
+      throw new IOException("Unknown version of encrypted backup: " + version);
+    }
+    int iterations = header.readInt();
+    if (iterations < 1 || iterations > MAX_ITERATIONS) {
+      throw new IOException("Invalid header of encrypted backup");
+    }
+    byte[] salt = new byte[SALT_LENGTH];
+    header.readFully(salt);
+    byte[] noncePrefix = new byte[NONCE_PREFIX_LENGTH];
+    header.readFully(noncePrefix);
+    DecryptingInputStream result = new DecryptingInputStream(header,
+        deriveKey(password, salt, iterations), noncePrefix);
+    //a wrong password is detected before anybody starts reading
+    result.readChunk();
+    return result;
+  }
+
+  private static SecretKey deriveKey(String password, byte[] salt, int iterations) throws IOException {
+    try {
+      //PBKDF2 with SHA-256 is only available from Android 8 on
+      SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
+      byte[] keyBytes = factory.generateSecret(
+          new PBEKeySpec(password.toCharArray(), salt, iterations, 256)).getEncoded();
+      return new SecretKeySpec(keyBytes, "AES");
+    } catch (GeneralSecurityException e) {
+      throw new IOException(e);
+    }
+  }
+
+  private static GCMParameterSpec nonce(byte[] noncePrefix, int index, boolean last) {
+    byte[] nonce = Arrays.copyOf(noncePrefix, NONCE_LENGTH);
+    nonce[NONCE_PREFIX_LENGTH] = (byte) (index >>> 24);
+    nonce[NONCE_PREFIX_LENGTH + 1] = (byte) (index >>> 16);
+    nonce[NONCE_PREFIX_LENGTH + 2] = (byte) (index >>> 8);
+    nonce[NONCE_PREFIX_LENGTH + 3] = (byte) index;
+    nonce[NONCE_PREFIX_LENGTH + 4] = (byte) (last ? 1 : 0);
+    return new GCMParameterSpec(TAG_LENGTH * 8, nonce);
+  }
+
+  /**
+   * Chunks are encrypted and written to the underlying stream on a background thread, while the
+   * writer produces the next chunks, hence encryption overlaps with compressing the archive.
+   */
+  public static class EncryptingOutputStream extends OutputStream {
+    private final DataOutputStream out;
+    private final SecretKey key;
+    private final byte[] noncePrefix;
+    private final BlockingQueue<byte[]> freeBuffers = new ArrayBlockingQueue<>(PIPELINE_DEPTH);
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    //only accessed from the executor
+    private Cipher cipher;
+    private final byte[] cipherText = new byte[CHUNK_SIZE + TAG_LENGTH];
+    private byte[] buffer;
+    private int count;
+    private int chunkIndex;
+    private boolean finished;
+    private volatile IOException failure;
+
+    EncryptingOutputStream(OutputStream out, SecretKey key, byte[] noncePrefix) {
+      this.out = new DataOutputStream(out);
+      this.key = key;
+      this.noncePrefix = noncePrefix;
+      for (int i = 0; i < PIPELINE_DEPTH; i++) {
+        freeBuffers.add(new byte[CHUNK_SIZE]);
+      }
+      buffer = freeBuffers.poll();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(@NonNull byte[] b, int off, int len) throws IOException {
+      checkState();
+      while (len > 0) {
+        //a full chunk is only submitted once we know it is not the last one
+        if (count == CHUNK_SIZE) {
+          submit(false);
+          buffer = takeBuffer();
+        }
+        int n = Math.min(len, CHUNK_SIZE - count);
+        System.arraycopy(b, off, buffer, count, n);
+        count += n;
+        off += n;
+        len -= n;
+      }
+    }
+
+    @Override
+    public void flush() throws IOException {
+      //an incomplete chunk cannot be written before we know if more data follows
+      checkState();
+    }
+
+    /**
+     * writes the last chunk and waits until all chunks have been written, without closing the
+     * underlying stream
+     */
+    public void finish() throws IOException {
+      checkState();
+      finished = true;
+      submit(true);
+      buffer = null;
+      executor.shutdown();
+      try {
+        while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+          //keep waiting
+        }
+      } catch (InterruptedException e) {
+        executor.shutdownNow();
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException();
+      }
+      if (failure != null) {
+        throw failure;
+      }
+      out.flush();
+    }
+
+    /**
+     * stops the background thread, if {@link #finish()} has not been called, for example because
+     * the archive could not be produced
+     */
+    public void release() {
+      if (!executor.isShutdown()) {
+        finished = true;
+        executor.shutdownNow();
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (!finished) {
+        finish();
+      }
+      out.close();
+    }
+
+    private void checkState() throws IOException {
+      if (finished) {
+        throw new IOException("Stream is finished");
+      }
+      if (failure != null) {
+        throw failure;
+      }
+    }
+
+    private byte[] takeBuffer() throws IOException {
+      try {
+        return freeBuffers.take();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException();
+      }
+    }
+
+    private void submit(final boolean last) {
+      final byte[] chunk = buffer;
+      final int length = count;
+      final int index = chunkIndex++;
+      count = 0;
+      executor.execute(() -> {
+        try {
+          if (failure == null) {
+            writeChunk(chunk, length, index, last);
+          }
+        } catch (IOException e) {
+          failure = e;
+        } catch (GeneralSecurityException e) {
+          failure = new IOException(e);
+        } finally {
+          freeBuffers.add(chunk);
+        }
+      });
+    }
+
+    private void writeChunk(byte[] chunk, int length, int index, boolean last) throws IOException, GeneralSecurityException {
+      if (cipher == null) {
+        cipher = Cipher.getInstance(TRANSFORMATION);
+      }
+      cipher.init(Cipher.ENCRYPT_MODE, key, nonce(noncePrefix, index, last));
+      int cipherTextLength = cipher.doFinal(chunk, 0, length, cipherText);
+      out.writeBoolean(last);
+      out.writeInt(cipherTextLength);
+      out.write(cipherText, 0, cipherTextLength);
+    }
+  }
+
+  private static class DecryptingInputStream extends InputStream {
+    private final DataInputStream in;
+    private final SecretKey key;
+    private final byte[] noncePrefix;
+    private final Cipher cipher;
+    private final byte[] cipherText = new byte[CHUNK_SIZE + TAG_LENGTH];
+    //some providers ask for room for the tag, even when decrypting
+    private final byte[] plainText = new byte[CHUNK_SIZE + TAG_LENGTH];
+    private int position;
+    private int limit;
+    private int chunkIndex;
+    private boolean last;
+
+    DecryptingInputStream(DataInputStream in, SecretKey key, byte[] noncePrefix) throws IOException {
+      this.in = in;
+      this.key = key;
+      this.noncePrefix = noncePrefix;
+      try {
+        cipher = Cipher.getInstance(TRANSFORMATION);
+      } catch (GeneralSecurityException e) {
+        throw new IOException(e);
+      }
+    }
+
+    /**
+     * reads and verifies the next chunk
+     */
+    void readChunk() throws IOException {
+      boolean isLast;
+      int length;
+      try {
+        isLast = in.readBoolean();
+        length = in.readInt();
+      } catch (EOFException e) {
+        //the last chunk is missing
+        throw new VerificationException(e);
+      }
+      if (length < TAG_LENGTH || length > cipherText.length) {
+        throw new VerificationException(null);
+      }
+      try {
+        in.readFully(cipherText, 0, length);
+      } catch (EOFException e) {
+        //the chunk has been truncated
+        throw new VerificationException(e);
+      }
+      try {
+        cipher.init(Cipher.DECRYPT_MODE, key, nonce(noncePrefix, chunkIndex++, isLast));
+        limit = cipher.doFinal(cipherText, 0, length, plainText);
+      } catch (GeneralSecurityException e) {
+        throw new VerificationException(e);
+      }
+      position = 0;
+      last = isLast;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(@NonNull byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      while (position == limit) {
+        if (last) {
+          return -1;
+        }
+        readChunk();
+      }
+      int n = Math.min(len, limit - position);
+      System.arraycopy(plainText, position, b, off, n);
+      position += n;
+      return n;
+    }
+
+    @Override
+    public int available() {
+      return limit - position;
+    }
+
+    @Override
+    public void close() throws IOException {
+      in.close();
+    }
+  }
+}
@@ -0,0 +1,260 @@
+package org.totschnig.myexpenses.util;
+
+import android.content.Context;
+import android.net.Uri;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
+import android.support.v4.provider.DocumentFile;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+
+import timber.log.Timber;
+
+/**
+ * Small index of the backups stored in the app dir, kept in the internal files dir, so that
+ * backups can be listed without enumerating the app dir, which is slow for document trees holding
+ * many files. The index is rebuilt from a listing if it does not exist yet, if it is empty, if
+ * another app dir has been selected or if the modification time of the app dir differs from the
+ * one recorded when the index was written, which detects archives copied into or deleted from
+ * the app dir by the user. It is also rebuilt each time {@link BackupUtils#pruneBackups(Context)}
+ * runs.
+ * <p>
+ * File format: the uri and the modification time of the app dir on the first line, followed by one
+ * line per backup:
+ * <pre>
+ * &lt;uri&gt;\t&lt;lastModified&gt;
+ * &lt;timestamp&gt;\t&lt;uri&gt;\t&lt;name&gt;
+ * </pre>
+ */
+public class BackupIndex {
+  static final String FILE_NAME = "backup_index";
+  /**
+   * format used by {@link AppDirHelper#timeStampedFile(DocumentFile, String, String, boolean)}
+   */
+  private static final String TIMESTAMP_FORMAT = "yyyyMMdd-HHmmss";
+  private static final String PREFIX = "backup-";
+  /**
+   * marks archives written by auto backup, which are subject to the {@link BackupRetentionPolicy}
+   */
+  static final String AUTO_PREFIX = "auto-";
+
+  public static class Entry {
+    @NonNull
+    public final String name;
+    @NonNull
+    public final Uri uri;
+    public final long timestamp;
+
+    Entry(@NonNull String name, @NonNull Uri uri, long timestamp) {
+      this.name = name;
+      this.uri = uri;
+      this.timestamp = timestamp;
+    }
+
+    /**
+     * @return true for incremental backups, which are created by auto backup
+     */
+    public boolean isManifest() {
+      return name.endsWith(BackupRepository.MANIFEST_EXTENSION);
+    }
+
+    /**
+     * @return true for backups created by auto backup, incremental ones and the encrypted archives
+     * written instead of them while a backup password is set
+     */
+    public boolean isAutomatic() {
+      return isManifest() || name.startsWith(AUTO_PREFIX);
+    }
+
+    @Override
+    public String toString() {
+      return name;
+    }
+  }
+
+  private BackupIndex() {
+  }
+
+  /**
+   * @return backups in the app dir, newest first
+   */
+  @NonNull
+  public static List<Entry> getEntries(Context context) {
+    DocumentFile appDir = AppDirHelper.getAppDir(context);
+    if (appDir == null) {
+      return new ArrayList<>();
+    }
+    return getEntries(context, appDir);
+  }
+
+  @VisibleForTesting
+  @NonNull
+  static synchronized List<Entry> getEntries(Context context, @NonNull DocumentFile appDir) {
+    List<Entry> entries = read(context, appDir);
+    //not every document provider reports the modification time of directories, listing an app
+    //dir without backups is cheap
+    return entries != null && !entries.isEmpty() ? entries :
+        rebuild(context, appDir, BackupUtils.listBackupFiles(appDir));
+  }
+
+  /**
+   * replaces the index with the given listing of the app dir
+   *
+   * @return backups in the app dir, newest first
+   */
+  @NonNull
+  static synchronized List<Entry> rebuild(Context context, @NonNull DocumentFile appDir,
+                                          @NonNull DocumentFile[] backups) {
+    List<Entry> entries = new ArrayList<>(backups.length);
+    for (DocumentFile backup : backups) {
+      String name = backup.getName();
+      if (name != null) {
+        entries.add(new Entry(name, backup.getUri(), getTimestamp(name, backup)));
+      }
+    }
+    sort(entries);
+    write(context, appDir, entries);
+    return entries;
+  }
+
+  public static synchronized void add(Context context, @NonNull DocumentFile backup) {
+    String name = backup.getName();
+    DocumentFile appDir = AppDirHelper.getAppDir(context);
+    if (name == null || appDir == null) {
+      return;
+    }
+    List<Entry> entries = read(context, appDir);
+    if (entries == null) {
+      //the next read lists the app dir, which includes the new backup
+      return;
+    }
+    entries.add(new Entry(name, backup.getUri(), getTimestamp(name, backup)));
+    sort(entries);
+    write(context, appDir, entries);
+  }
+
+  public static synchronized void remove(Context context, @NonNull List<Uri> backups) {
+    DocumentFile appDir = AppDirHelper.getAppDir(context);
+    if (appDir == null) {
+      return;
+    }
+    List<Entry> entries = read(context, appDir);
+    if (entries == null) {
+      return;
+    }
+    for (Iterator<Entry> iterator = entries.iterator(); iterator.hasNext(); ) {
+      if (backups.contains(iterator.next().uri)) {
+        iterator.remove();
+      }
+    }
+    write(context, appDir, entries);
+  }
+
+  /**
+   * @return entries of the index, null if there is no index yet for appDir, or if appDir has been
+   * modified since the index was written
+   */
+  @Nullable
+  private static List<Entry> read(Context context, DocumentFile appDir) {
+    File file = getFile(context);
+    try {
+      BufferedReader reader = new BufferedReader(new InputStreamReader(
+          new FileInputStream(file), "UTF-8"));
+      try {
+        if (!getHeader(appDir).equals(reader.readLine())) {
+          return null;
+        }
+        List<Entry> result = new ArrayList<>();
+        String line;
+        while ((line = reader.readLine()) != null) {
+          String[] fields = line.split("\t", 3);
+          if (fields.length == 3) {
+            result.add(new Entry(fields[2], Uri.parse(fields[1]), Long.parseLong(fields[0])));
+          }
+        }
+        return result;
+      } finally {
+        reader.close();
+      }
+    } catch (FileNotFoundException e) {
+      return null;
+    } catch (IOException | NumberFormatException e) {
+      Timber.w(e);
+      return null;
+    }
+  }
+
+  private static void write(Context context, DocumentFile appDir, List<Entry> entries) {
+    File file = getFile(context);
+    File temp = new File(file.getPath() + ".tmp");
+    try {
+      Writer writer = new OutputStreamWriter(new FileOutputStream(temp), "UTF-8");
+      try {
+        writer.write(getHeader(appDir));
+        writer.write('\n');
+        for (Entry entry : entries) {
+          writer.write(entry.timestamp + "\t" + entry.uri + "\t" + entry.name + "\n");
+        }
+      } finally {
+        writer.close();
+      }
+      if (!temp.renameTo(file)) {
+        throw new IOException("Unable to replace " + file.getPath());
+      }
+    } catch (IOException e) {
+      Timber.w(e);
+      //an outdated index is worse than none, the next read will list the app dir
+      //noinspection ResultOfMethodCallIgnored
+      file.delete();
+    }
+  }
+
+  private static String getHeader(DocumentFile appDir) {
+    return appDir.getUri() + "\t" + appDir.lastModified();
+  }
+
+  @VisibleForTesting
+  static File getFile(Context context) {
+    return new File(context.getFilesDir(), FILE_NAME);
+  }
+
+  private static void sort(List<Entry> entries) {
+    //Long.compare requires API 19
+    Collections.sort(entries, (lhs, rhs) ->
+        lhs.timestamp == rhs.timestamp ? 0 : (lhs.timestamp < rhs.timestamp ? 1 : -1));
+  }
+
+  /**
+   * @return the time encoded in the name given to backups by the app, or the modification time of
+   * the file for backups that have been renamed
+   */
+  private static long getTimestamp(String name, DocumentFile backup) {
+    if (name.startsWith(AUTO_PREFIX)) {
+      name = name.substring(AUTO_PREFIX.length());
+    }
+    if (name.startsWith(PREFIX) && name.length() >= PREFIX.length() + TIMESTAMP_FORMAT.length()) {
+      try {
+        return new SimpleDateFormat(TIMESTAMP_FORMAT, Locale.US).parse(
+            name.substring(PREFIX.length(), PREFIX.length() + TIMESTAMP_FORMAT.length())).getTime();
+      } catch (ParseException ignored) {
+      }
+    }
+    return backup.lastModified();
+  }
+}
@@ -0,0 +1,578 @@
+package org.totschnig.myexpenses.util;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.v4.provider.DocumentFile;
+
+import org.totschnig.myexpenses.MyApplication;
+import org.totschnig.myexpenses.provider.DatabaseConstants;
+import org.totschnig.myexpenses.provider.TransactionProvider;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import timber.log.Timber;
+
+/**
+ * Incremental backups stored in a content addressed repository inside the app dir. The database
+ * is split into chunks of {@link #CHUNK_SIZE} bytes, preferences and pictures are stored as a
+ * whole, each object is named by the SHA-256 of its content and only written if the repository
+ * does not hold it yet. Every backup is described by a manifest that lists the objects it is
+ * made of, hence any backup can be reconstructed as long as its manifest is kept.
+ * <p>
+ * Manifest format, one entry per line:
+ * <pre>
+ * db &lt;hash&gt;              (repeated for each chunk, in order)
+ * prefs &lt;hash&gt;
+ * picture &lt;hash&gt; &lt;name&gt;
+ * </pre>
+ */
+public class BackupRepository {
+  public static final String REPOSITORY_DIR_NAME = "backups";
+  public static final String OBJECTS_DIR_NAME = "objects";
+  public static final String MANIFEST_EXTENSION = ".manifest";
+  /**
+   * a multiple of the SQLite page size, so that changes to a page only affect one chunk
+   */
+  static final int CHUNK_SIZE = 64 * 1024;
+  private static final String MANIFEST_MIME_TYPE = "application/manifest";
+  private static final String OBJECT_MIME_TYPE = "application/octet-stream";
+  private static final String ENTRY_DB = "db";
+  private static final String ENTRY_PREFS = "prefs";
+  private static final String ENTRY_PICTURE = "picture";
+  /**
+   * objects are written under a temporary name when their hash is only known after writing them,
+   * leftovers of interrupted backups are not referenced by any manifest and removed by
+   * {@link #delete(List)}
+   */
+  private static final String TEMP_PREFIX = "tmp-";
+
+  private final ContentResolver cr;
+  private final DocumentFile repositoryDir;
+  private final DocumentFile objectsDir;
+  /**
+   * hash -> object, listed once, since looking up files one by one is slow on document trees
+   */
+  private final Map<String, DocumentFile> objects = new HashMap<>();
+  private int written = 0;
+
+  private BackupRepository(ContentResolver cr, DocumentFile repositoryDir, DocumentFile objectsDir) {
+    this.cr = cr;
+    this.repositoryDir = repositoryDir;
+    this.objectsDir = objectsDir;
+    for (DocumentFile file : objectsDir.listFiles()) {
+      String name = file.getName();
+      if (name != null) {
+        //document providers might append an extension
+        int extension = name.indexOf('.');
+        objects.put(extension == -1 ? name : name.substring(0, extension), file);
+      }
+    }
+  }
+
+  /**
+   * @return the repository found in appDir, created if it does not exist yet, null if it can not
+   * be created
+   */
+  @Nullable
+  public static BackupRepository open(@NonNull DocumentFile appDir) {
+    DocumentFile repositoryDir = requireDirectory(appDir, REPOSITORY_DIR_NAME);
+    if (repositoryDir == null) {
+      return null;
+    }
+    DocumentFile objectsDir = requireDirectory(repositoryDir, OBJECTS_DIR_NAME);
+    if (objectsDir == null) {
+      return null;
+    }
+    return new BackupRepository(MyApplication.getInstance().getContentResolver(), repositoryDir,
+        objectsDir);
+  }
+
+  @Nullable
+  private static DocumentFile requireDirectory(DocumentFile parent, String name) {
+    DocumentFile dir = parent.findFile(name);
+    if (dir == null) {
+      dir = parent.createDirectory(name);
+    }
+    return dir != null && dir.isDirectory() ? dir : null;
+  }
+
+  public static boolean isManifest(@NonNull Uri uri) {
+    String lastPathSegment = uri.getLastPathSegment();
+    return lastPathSegment != null && lastPathSegment.endsWith(MANIFEST_EXTENSION);
+  }
+
+  /**
+   * @return manifests of the backups stored in the repository in appDir
+   */
+  @NonNull
+  public static DocumentFile[] listManifests(@NonNull DocumentFile appDir) {
+    DocumentFile repositoryDir = appDir.findFile(REPOSITORY_DIR_NAME);
+    if (repositoryDir == null) {
+      return new DocumentFile[]{};
+    }
+    return listManifestFiles(repositoryDir);
+  }
+
+  @NonNull
+  private static DocumentFile[] listManifestFiles(@NonNull DocumentFile repositoryDir) {
+    DocumentFile[] files = repositoryDir.listFiles();
+    int count = 0;
+    for (DocumentFile file : files) {
+      if (file.isFile() && file.getName() != null && file.getName().endsWith(MANIFEST_EXTENSION)) {
+        files[count++] = file;
+      }
+    }
+    DocumentFile[] result = new DocumentFile[count];
+    System.arraycopy(files, 0, result, 0, count);
+    return result;
+  }
+
+  public DocumentFile getRepositoryDir() {
+    return repositoryDir;
+  }
+
+  /**
+   * @return number of objects written by the last call to {@link #store(File)}
+   */
+  public int getWritten() {
+    return written;
+  }
+
+  /**
+   * Stores the database and preferences found in cacheDir (as written by
+   * {@link org.totschnig.myexpenses.provider.DbUtils#backup(File)}) together with all pictures
+   * referenced by transactions and writes a manifest for them.
+   *
+   * @return the manifest
+   */
+  @NonNull
+  public DocumentFile store(File cacheDir) throws IOException {
+    written = 0;
+    StringBuilder manifest = new StringBuilder();
+    InputStream db = new FileInputStream(BackupUtils.getBackupDbFile(cacheDir));
+    try {
+      byte[] chunk = new byte[CHUNK_SIZE];
+      int length;
+      while ((length = readFully(db, chunk)) > 0) {
+        appendEntry(manifest, ENTRY_DB, storeObject(chunk, length));
+      }
+    } finally {
+      db.close();
+    }
+    appendEntry(manifest, ENTRY_PREFS,
+        storeObject(new FileInputStream(BackupUtils.getBackupPrefFile(cacheDir))));
+    for (Map.Entry<String, Uri> picture : collectPictures().entrySet()) {
+      InputStream in;
+      try {
+        in = cr.openInputStream(picture.getValue());
+      } catch (FileNotFoundException e) {
+        Timber.e(e);
+        continue;
+      }
+      if (in != null) {
+        appendEntry(manifest, ENTRY_PICTURE, storeObject(in), picture.getKey());
+      }
+    }
+    DocumentFile manifestFile = AppDirHelper.timeStampedFile(repositoryDir, "backup",
+        MANIFEST_MIME_TYPE, true);
+    if (manifestFile == null) {
+      throw new IOException("Unable to create manifest in " + repositoryDir.getUri());
+    }
+    Writer writer = new OutputStreamWriter(openOutputStream(manifestFile), "UTF-8");
+    try {
+      writer.write(manifest.toString());
+    } finally {
+      writer.close();
+    }
+    Timber.i("Backup %s written, %d new objects", manifestFile.getName(), written);
+    return manifestFile;
+  }
+
+  /**
+   * @return file name -> uri of the pictures referenced by transactions, pictures are stored under
+   * the name {@link org.totschnig.myexpenses.task.RestoreTask} looks them up with
+   */
+  private Map<String, Uri> collectPictures() {
+    Map<String, Uri> result = new LinkedHashMap<>();
+    Cursor c = cr.query(TransactionProvider.TRANSACTIONS_URI.buildUpon().appendQueryParameter(
+        TransactionProvider.QUERY_PARAMETER_DISTINCT, "1").build(),
+        new String[]{DatabaseConstants.KEY_PICTURE_URI},
+        DatabaseConstants.KEY_PICTURE_URI + " IS NOT NULL",
+        null, null);
+    if (c != null) {
+      if (c.moveToFirst()) {
+        do {
+          Uri imageFileUri = Uri.parse(c.getString(0));
+          if ("file".equals(imageFileUri.getScheme()) && !new File(imageFileUri.getPath()).exists()) {
+            continue;
+          }
+          result.put(imageFileUri.getLastPathSegment(), imageFileUri);
+        } while (c.moveToNext());
+      }
+      c.close();
+    }
+    return result;
+  }
+
+  /**
+   * Deletes the given manifests, and the objects that are no longer referenced by any of the
+   * remaining manifests. Objects are only deleted if all remaining manifests could be read.
+   *
+   * @return number of deleted objects
+   */
+  public int delete(@NonNull List<DocumentFile> manifests) throws IOException {
+    for (DocumentFile manifest : manifests) {
+      if (!manifest.delete()) {
+        //its objects are still referenced, since it is found by the listing below
+        Timber.w("Unable to delete %s", manifest.getName());
+      }
+    }
+    Set<String> referenced = new HashSet<>();
+    for (DocumentFile manifest : listManifestFiles(repositoryDir)) {
+      InputStream in = cr.openInputStream(manifest.getUri());
+      if (in == null) {
+        throw new IOException("Unable to open " + manifest.getUri());
+      }
+      BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+      try {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          String[] fields = line.split(" ", 3);
+          if (fields.length > 1) {
+            referenced.add(fields[1]);
+          }
+        }
+      } finally {
+        reader.close();
+      }
+    }
+    int deleted = 0;
+    for (Iterator<Map.Entry<String, DocumentFile>> iterator = objects.entrySet().iterator();
+         iterator.hasNext(); ) {
+      Map.Entry<String, DocumentFile> object = iterator.next();
+      if (!referenced.contains(object.getKey()) && object.getValue().delete()) {
+        iterator.remove();
+        deleted++;
+      }
+    }
+    Timber.i("%d backups deleted, %d objects no longer referenced", manifests.size(), deleted);
+    return deleted;
+  }
+
+  private static void appendEntry(StringBuilder manifest, String... fields) {
+    for (int i = 0; i < fields.length; i++) {
+      if (i > 0) {
+        manifest.append(' ');
+      }
+      manifest.append(fields[i]);
+    }
+    manifest.append('\n');
+  }
+
+  private String storeObject(byte[] content, int length) throws IOException {
+    String hash = hash(content, length);
+    if (!objects.containsKey(hash)) {
+      writeObject(hash, content, length);
+    }
+    return hash;
+  }
+
+  /**
+   * stores the content of in, which is closed. The content is hashed while it is streamed into a
+   * temporary object, which is renamed to its hash, or deleted if the repository already holds it,
+   * so that pictures need not be held in memory.
+   */
+  private String storeObject(InputStream in) throws IOException {
+    String tempName = TEMP_PREFIX + UUID.randomUUID();
+    DocumentFile object;
+    DigestInputStream digestIn = new DigestInputStream(in, newDigest());
+    try {
+      object = objectsDir.createFile(OBJECT_MIME_TYPE, tempName);
+      if (object == null) {
+        throw new IOException("Unable to create object " + tempName);
+      }
+      OutputStream out = openOutputStream(object);
+      try {
+        byte[] buf = new byte[8192];
+        int len;
+        while ((len = digestIn.read(buf)) != -1) {
+          out.write(buf, 0, len);
+        }
+      } catch (IOException e) {
+        out.close();
+        object.delete();
+        throw e;
+      }
+      out.close();
+    } finally {
+      digestIn.close();
+    }
+    String hash = toHex(digestIn.getMessageDigest().digest());
+    if (objects.containsKey(hash)) {
+      object.delete();
+    } else if (object.renameTo(hash)) {
+      objects.put(hash, object);
+      written++;
+    } else {
+      object.delete();
+      throw new IOException("Unable to rename object " + tempName);
+    }
+    return hash;
+  }
+
+  private void writeObject(String hash, byte[] content, int length) throws IOException {
+    DocumentFile object = objectsDir.createFile(OBJECT_MIME_TYPE, hash);
+    if (object == null) {
+      throw new IOException("Unable to create object " + hash);
+    }
+    OutputStream out = openOutputStream(object);
+    try {
+      out.write(content, 0, length);
+    } catch (IOException e) {
+      out.close();
+      //do not leave truncated objects behind, they would be trusted by later backups
+      object.delete();
+      throw e;
+    }
+    out.close();
+    objects.put(hash, object);
+    written++;
+  }
+
+  private OutputStream openOutputStream(DocumentFile file) throws IOException {
+    OutputStream out = cr.openOutputStream(file.getUri());
+    if (out == null) {
+      throw new IOException("Unable to open " + file.getUri());
+    }
+    return out;
+  }
+
+  /**
+   * Reconstructs database and preferences of the backup described by manifest into dirOut, with
+   * the same layout as {@link ZipUtils#zipBackup(File, OutputStream)} uses. Pictures are read with
+   * {@link #readPictures(InputStream, BackupUtils.PictureHandler)}. The content of each object is
+   * verified against its hash.
+   *
+   * @param manifest is closed
+   * @return true on success
+   */
+  public boolean restore(InputStream manifest, File dirOut) {
+    try {
+      BufferedReader reader = new BufferedReader(new InputStreamReader(manifest, "UTF-8"));
+      OutputStream db = new FileOutputStream(BackupUtils.getBackupDbFile(dirOut));
+      try {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          if (line.isEmpty()) {
+            continue;
+          }
+          String[] fields = line.split(" ", 3);
+          switch (fields[0]) {
+            case ENTRY_DB:
+              copyObject(fields[1], db);
+              break;
+            case ENTRY_PREFS:
+              copyObject(fields[1], BackupUtils.getBackupPrefFile(dirOut));
+              break;
+            case ENTRY_PICTURE:
+              break;
+            default:
+              throw new IOException("Unknown manifest entry " + fields[0]);
+          }
+        }
+      } finally {
+        db.close();
+        reader.close();
+      }
+      return true;
+    } catch (IOException | ArrayIndexOutOfBoundsException e) {
+      Timber.w(e);
+      return false;
+    }
+  }
+
+  /**
+   * passes each picture of the backup described by manifest to handler. The stream passed to the
+   * handler throws an IOException when its end is reached and the content does not match the
+   * hash, hence the handler must have read it completely before it keeps the picture. Pictures
+   * whose object is missing are skipped, and an IOException is thrown once all other pictures have
+   * been passed to handler.
+   *
+   * @param manifest is closed
+   */
+  public void readPictures(InputStream manifest, BackupUtils.PictureHandler handler)
+      throws IOException {
+    BufferedReader reader = new BufferedReader(new InputStreamReader(manifest, "UTF-8"));
+    int missing = 0;
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        String[] fields = line.split(" ", 3);
+        if (fields.length == 3 && fields[0].equals(ENTRY_PICTURE)) {
+          InputStream in;
+          try {
+            in = new VerifyingInputStream(openObject(fields[1]), fields[1]);
+          } catch (IOException e) {
+            Timber.w(e);
+            missing++;
+            continue;
+          }
+          try {
+            handler.onPicture(fields[2], in);
+          } finally {
+            in.close();
+          }
+        }
+      }
+    } finally {
+      reader.close();
+    }
+    if (missing > 0) {
+      throw new IOException(missing + " pictures missing from repository");
+    }
+  }
+
+  /**
+   * compares the digest of the content with hash once the end of the stream is reached
+   */
+  private static class VerifyingInputStream extends DigestInputStream {
+    private final String hash;
+    private boolean verified = false;
+
+    VerifyingInputStream(InputStream in, String hash) {
+      super(in, newDigest());
+      this.hash = hash;
+    }
+
+    @Override
+    public int read() throws IOException {
+      int result = super.read();
+      if (result == -1) {
+        verify();
+      }
+      return result;
+    }
+
+    @Override
+    public int read(@NonNull byte[] b, int off, int len) throws IOException {
+      int result = super.read(b, off, len);
+      if (result == -1) {
+        verify();
+      }
+      return result;
+    }
+
+    private void verify() throws IOException {
+      if (!verified) {
+        if (!hash.equals(toHex(getMessageDigest().digest()))) {
+          throw new IOException("Corrupt object " + hash);
+        }
+        verified = true;
+      }
+    }
+  }
+
+  private void copyObject(String hash, File destination) throws IOException {
+    OutputStream out = new FileOutputStream(destination);
+    try {
+      copyObject(hash, out);
+    } finally {
+      out.close();
+    }
+  }
+
+  private void copyObject(String hash, OutputStream out) throws IOException {
+    InputStream in = openObject(hash);
+    MessageDigest digest = newDigest();
+    try {
+      byte[] buf = new byte[8192];
+      int len;
+      while ((len = in.read(buf)) != -1) {
+        digest.update(buf, 0, len);
+        out.write(buf, 0, len);
+      }
+    } finally {
+      in.close();
+    }
+    if (!hash.equals(toHex(digest.digest()))) {
+      throw new IOException("Corrupt object " + hash);
+    }
+  }
+
+  private InputStream openObject(String hash) throws IOException {
+    DocumentFile object = objects.get(hash);
+    if (object == null) {
+      throw new IOException("Missing object " + hash);
+    }
+    InputStream in = cr.openInputStream(object.getUri());
+    if (in == null) {
+      throw new IOException("Unable to open object " + hash);
+    }
+    return in;
+  }
+
+  /**
+   * fills buffer from in unless the end of the stream is reached
+   *
+   * @return number of bytes read
+   */
+  private static int readFully(InputStream in, byte[] buffer) throws IOException {
+    int total = 0;
+    int len;
+    while (total < buffer.length && (len = in.read(buffer, total, buffer.length - total)) != -1) {
+      total += len;
+    }
+    return total;
+  }
+
+  static String hash(byte[] content, int length) {
+    MessageDigest digest = newDigest();
+    digest.update(content, 0, length);
+    return toHex(digest.digest());
+  }
+
+  /**
+   * @return a SHA-256 digest, the hash function used to identify objects and verify backups
+   */
+  public static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      //SHA-256 is guaranteed to be available on every Android version
+      throw new IllegalStateException(e);
+    }
+  }
+
+  public static String toHex(byte[] bytes) {
+    StringBuilder result = new StringBuilder(bytes.length * 2);
+    for (byte b : bytes) {
+      result.append(String.format(Locale.ROOT, "%02x", b));
+    }
+    return result.toString();
+  }
+}
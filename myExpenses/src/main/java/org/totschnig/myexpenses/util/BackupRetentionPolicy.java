@@ -0,0 +1,98 @@
+package org.totschnig.myexpenses.util;
+
+import android.support.annotation.NonNull;
+
+import org.totschnig.myexpenses.preference.PrefKey;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Decides which automatic backups are kept: the latest backup of each of the last {@link #daily}
+ * days, of each of the last {@link #weekly} weeks and of each of the last {@link #monthly} months
+ * that have a backup. The rules are applied independently, a backup is kept if any of them keeps
+ * it. The latest backup is always kept.
+ */
+public class BackupRetentionPolicy {
+  public static final int DEFAULT_DAILY = 7;
+  public static final int DEFAULT_WEEKLY = 4;
+  public static final int DEFAULT_MONTHLY = 12;
+
+  private final int daily;
+  private final int weekly;
+  private final int monthly;
+
+  public BackupRetentionPolicy(int daily, int weekly, int monthly) {
+    this.daily = daily;
+    this.weekly = weekly;
+    this.monthly = monthly;
+  }
+
+  @NonNull
+  public static BackupRetentionPolicy fromPreferences() {
+    return new BackupRetentionPolicy(
+        PrefKey.AUTO_BACKUP_KEEP_DAILY.getInt(DEFAULT_DAILY),
+        PrefKey.AUTO_BACKUP_KEEP_WEEKLY.getInt(DEFAULT_WEEKLY),
+        PrefKey.AUTO_BACKUP_KEEP_MONTHLY.getInt(DEFAULT_MONTHLY));
+  }
+
+  /**
+   * @param backups newest first, as returned by {@link BackupIndex#getEntries(android.content.Context)}
+   * @return the backups that are not kept by any rule
+   */
+  @NonNull
+  public List<BackupIndex.Entry> selectObsolete(@NonNull List<BackupIndex.Entry> backups) {
+    Set<BackupIndex.Entry> kept = new HashSet<>();
+    if (!backups.isEmpty()) {
+      kept.add(backups.get(0));
+    }
+    Calendar calendar = Calendar.getInstance();
+    keepLatestPerPeriod(backups, calendar, Calendar.DAY_OF_YEAR, daily, kept);
+    keepLatestPerPeriod(backups, calendar, Calendar.WEEK_OF_YEAR, weekly, kept);
+    keepLatestPerPeriod(backups, calendar, Calendar.MONTH, monthly, kept);
+    List<BackupIndex.Entry> result = new ArrayList<>();
+    for (BackupIndex.Entry backup : backups) {
+      if (!kept.contains(backup)) {
+        result.add(backup);
+      }
+    }
+    return result;
+  }
+
+  private static void keepLatestPerPeriod(List<BackupIndex.Entry> backups, Calendar calendar,
+                                          int period, int count, Set<BackupIndex.Entry> kept) {
+    long lastPeriod = Long.MIN_VALUE;
+    int periods = 0;
+    for (BackupIndex.Entry backup : backups) {
+      if (periods >= count) {
+        return;
+      }
+      long currentPeriod = getPeriod(calendar, backup.timestamp, period);
+      if (currentPeriod != lastPeriod) {
+        kept.add(backup);
+        lastPeriod = currentPeriod;
+        periods++;
+      }
+    }
+  }
+
+  /**
+   * @return a number identifying the day, week or month timestamp falls into
+   */
+  private static long getPeriod(Calendar calendar, long timestamp, int period) {
+    calendar.setTimeInMillis(timestamp);
+    switch (period) {
+      case Calendar.MONTH:
+        return calendar.get(Calendar.YEAR) * 12 + calendar.get(Calendar.MONTH);
+      case Calendar.WEEK_OF_YEAR:
+        //weeks are identified by their first day, since week numbers wrap within a year
+        calendar.set(Calendar.DAY_OF_WEEK, calendar.getFirstDayOfWeek());
+        //fall through
+      default:
+        return calendar.get(Calendar.YEAR) * 1000 + calendar.get(Calendar.DAY_OF_YEAR);
+    }
+  }
+}
@@ -1,8 +1,15 @@
 package org.totschnig.myexpenses.util;
 
+import android.content.Context;
+import android.net.Uri;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.support.v4.provider.DocumentFile;
 
+import com.annimon.stream.Collectors;
+import com.annimon.stream.Stream;
+import com.annimon.stream.function.IntConsumer;
+
 import org.totschnig.myexpenses.MyApplication;
 import org.totschnig.myexpenses.R;
 import org.totschnig.myexpenses.provider.DbUtils;
@@ -11,13 +18,43 @@ import org.totschnig.myexpenses.util.io.FileUtils;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import timber.log.Timber;
 
 public class BackupUtils {
   public static final String BACKUP_DB_FILE_NAME = "BACKUP";
   public static final String BACKUP_PREF_FILE_NAME = "BACKUP_PREF";
 
+  public interface PictureHandler {
+    /**
+     * @param name file name of the picture when it was backed up
+     * @param in   content of the picture, must not be closed by the handler. The content is
+     *             verified when the end of in is reached, a corrupt picture results in an
+     *             IOException from the last read.
+     */
+    void onPicture(String name, InputStream in) throws IOException;
+  }
+
   @NonNull
   public static Result<DocumentFile> doBackup() {
+    return doBackup(false, null);
+  }
+
+  /**
+   * @param incremental if true, the backup is stored in the {@link BackupRepository} in the app
+   *                    dir, and only the parts that changed since earlier backups are written,
+   *                    otherwise, or if backups are encrypted, a zip archive is created, whose
+   *                    name marks it as automatic backup if incremental is true
+   * @param progress    receives the percentage of the database snapshot that has been taken
+   * @return on success, extra holds the zip archive or the manifest of the backup
+   */
+  @NonNull
+  public static Result<DocumentFile> doBackup(boolean incremental,
+                                              @Nullable IntConsumer progress) {
     MyApplication application = MyApplication.getInstance();
     if (!AppDirHelper.isExternalStorageAvailable()) {
       return Result.ofFailure(R.string.external_storage_unavailable);
@@ -30,23 +67,46 @@ public class BackupUtils {
       return Result.ofFailure(R.string.app_dir_not_accessible, null,
           FileUtils.getPath(application, appDir.getUri()));
     }
-    DocumentFile backupFile = requireBackupFile(appDir);
-    if (backupFile == null) {
-      return Result.ofFailure(R.string.io_error_backupdir_null);
+    BackupRepository repository = null;
+    DocumentFile backupFile = null;
+    //objects in the repository are not encrypted, with a password we write an encrypted archive
+    if (incremental && !BackupEncryption.isEnabled()) {
+      repository = BackupRepository.open(appDir);
+      if (repository == null) {
+        return Result.ofFailure(R.string.io_error_backupdir_null);
+      }
+    } else {
+      backupFile = requireBackupFile(appDir, incremental);
+      if (backupFile == null) {
+        return Result.ofFailure(R.string.io_error_backupdir_null);
+      }
     }
     File cacheDir = AppDirHelper.getCacheDir();
     if (cacheDir == null) {
       CrashHandler.report(application.getString(R.string.io_error_cachedir_null));
       return Result.ofFailure(R.string.io_error_cachedir_null);
     }
-    Result result = DbUtils.backup(cacheDir);
+    Result result = DbUtils.backup(cacheDir, progress);
     String failureMessage = application.getString(R.string.backup_failure,
-        FileUtils.getPath(application, backupFile.getUri()));
+        FileUtils.getPath(application,
+            (repository != null ? repository.getRepositoryDir() : backupFile).getUri()));
     if (result.isSuccess()) {
       try {
-        ZipUtils.zipBackup(
-            cacheDir,
-            backupFile);
+        if (repository != null) {
+          DocumentFile manifest = repository.store(cacheDir);
+          BackupIndex.add(application, manifest);
+          return Result.ofSuccess(R.string.backup_success, manifest);
+        }
+        OutputStream out = application.getContentResolver().openOutputStream(backupFile.getUri());
+        if (out == null) {
+          throw new IOException("Could not open " + backupFile.getUri());
+        }
+        try {
+          writeArchive(cacheDir, out);
+        } finally {
+          out.close();
+        }
+        BackupIndex.add(application, backupFile);
         return Result.ofSuccess(R.string.backup_success, backupFile);
       } catch (IOException e) {
         CrashHandler.report(e);
@@ -59,8 +119,138 @@ public class BackupUtils {
     return Result.ofFailure(failureMessage + " " + result.print(application));
   }
 
-  private static DocumentFile requireBackupFile(@NonNull DocumentFile appDir) {
-    return AppDirHelper.timeStampedFile(appDir, "backup", "application/zip", false);
+  /**
+   * Takes a snapshot of database and preferences and writes it together with the pictures as zip
+   * archive to out, without storing the archive locally
+   */
+  public static void zipBackup(OutputStream out) throws IOException {
+    MyApplication application = MyApplication.getInstance();
+    File cacheDir = AppDirHelper.getCacheDir();
+    if (cacheDir == null) {
+      throw new IOException(application.getString(R.string.io_error_cachedir_null));
+    }
+    Result result = DbUtils.backup(cacheDir, null);
+    if (!result.isSuccess()) {
+      throw new IOException(result.print(application));
+    }
+    try {
+      writeArchive(cacheDir, out);
+    } finally {
+      getBackupDbFile(cacheDir).delete();
+      getBackupPrefFile(cacheDir).delete();
+    }
+  }
+
+  /**
+   * writes the zip archive to out, encrypted while it is produced, if a backup password is set
+   */
+  private static void writeArchive(File cacheDir, OutputStream out) throws IOException {
+    String password = BackupEncryption.getPassword();
+    if (password == null) {
+      ZipUtils.zipBackup(cacheDir, out);
+      return;
+    }
+    BackupEncryption.EncryptingOutputStream encrypted = BackupEncryption.encrypt(out, password);
+    try {
+      ZipUtils.zipBackup(cacheDir, encrypted);
+      encrypted.finish();
+    } finally {
+      encrypted.release();
+    }
+  }
+
+  /**
+   * @return extension of backup archives, depending on whether they are encrypted
+   */
+  public static String getArchiveExtension() {
+    return BackupEncryption.isEnabled() ? BackupEncryption.EXTENSION : "zip";
+  }
+
+  private static DocumentFile requireBackupFile(@NonNull DocumentFile appDir, boolean automatic) {
+    //automatic backups are recognized by their name, which is kept when the index is rebuilt
+    String prefix = automatic ? BackupIndex.AUTO_PREFIX + "backup" : "backup";
+    return BackupEncryption.isEnabled() ?
+        AppDirHelper.timeStampedFile(appDir, prefix, BackupEncryption.MIME_TYPE, true) :
+        AppDirHelper.timeStampedFile(appDir, prefix, "application/zip", false);
+  }
+
+  /**
+   * @return backups found in the app dir, newest first, read from the {@link BackupIndex}
+   */
+  @NonNull
+  public static List<BackupIndex.Entry> listBackups(Context context) {
+    return BackupIndex.getEntries(context);
+  }
+
+  /**
+   * @return zip archives, encrypted archives and manifests of incremental backups found in the
+   * app dir
+   */
+  @NonNull
+  static DocumentFile[] listBackupFiles(@NonNull DocumentFile appDir) {
+    return Stream.concat(
+        Stream.of(appDir.listFiles())
+            .filter(documentFile -> documentFile.getName() != null &&
+                (documentFile.getName().endsWith(".zip") ||
+                    documentFile.getName().endsWith("." + BackupEncryption.EXTENSION))),
+        Stream.of(BackupRepository.listManifests(appDir)))
+        .toArray(DocumentFile[]::new);
+  }
+
+  /**
+   * Deletes the automatic backups, incremental ones as well as encrypted archives, that are not
+   * kept by the {@link BackupRetentionPolicy}, together with the objects of the repository that
+   * only they referenced. Backups created manually are never deleted. The {@link BackupIndex} is
+   * rebuilt from the listing of the app dir on the way.
+   *
+   * @return number of deleted backups
+   */
+  public static int pruneBackups(Context context) throws IOException {
+    DocumentFile appDir = AppDirHelper.getAppDir(context);
+    if (appDir == null) {
+      return 0;
+    }
+    DocumentFile[] files = listBackupFiles(appDir);
+    //one timeline, auto backups switch from the repository to archives when a password is set
+    List<BackupIndex.Entry> automatic = Stream.of(BackupIndex.rebuild(context, appDir, files))
+        .filter(BackupIndex.Entry::isAutomatic)
+        .collect(Collectors.toList());
+    List<BackupIndex.Entry> obsolete = BackupRetentionPolicy.fromPreferences()
+        .selectObsolete(automatic);
+    if (obsolete.isEmpty()) {
+      return 0;
+    }
+    List<Uri> obsoleteUris = Stream.of(obsolete).map(entry -> entry.uri).collect(Collectors.toList());
+    List<DocumentFile> obsoleteFiles = Stream.of(files)
+        .filter(file -> obsoleteUris.contains(file.getUri()))
+        .collect(Collectors.toList());
+    List<DocumentFile> manifests = Stream.of(obsoleteFiles)
+        .filter(file -> BackupRepository.isManifest(file.getUri()))
+        .collect(Collectors.toList());
+    List<Uri> deleted = new ArrayList<>();
+    for (DocumentFile file : obsoleteFiles) {
+      if (manifests.contains(file)) {
+        continue;
+      }
+      if (file.delete()) {
+        deleted.add(file.getUri());
+      } else {
+        Timber.w("Unable to delete %s", file.getName());
+      }
+    }
+    try {
+      if (!manifests.isEmpty()) {
+        BackupRepository repository = BackupRepository.open(appDir);
+        if (repository == null) {
+          throw new IOException(context.getString(R.string.io_error_backupdir_null));
+        }
+        repository.delete(manifests);
+        deleted.addAll(Stream.of(manifests).map(DocumentFile::getUri).collect(Collectors.toList()));
+      }
+    } finally {
+      BackupIndex.remove(context, deleted);
+    }
+    return deleted.size();
   }
 
   public static File getBackupDbFile(File backupDir) {
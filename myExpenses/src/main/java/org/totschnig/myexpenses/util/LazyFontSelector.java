@@ -1,6 +1,7 @@
 package org.totschnig.myexpenses.util;
 
 import android.util.SparseArray;
+import android.util.SparseIntArray;
 
 import com.itextpdf.text.BaseColor;
 import com.itextpdf.text.Chunk;
@@ -48,7 +49,11 @@ public class LazyFontSelector {
     }
   }
 
+  private static final int UNKNOWN = -2;
+  private static final int NOT_FOUND = -1;
+
   protected File[] files;
+  private final SparseIntArray fontIndexCache = new SparseIntArray();
   protected ArrayList<BaseFont> baseFonts = new ArrayList<>();
   protected Font currentFont = null;
   protected FontType type;
@@ -99,51 +104,49 @@ public class LazyFontSelector {
       sb.append(c);
     } else {
       Font font;
-      if (Utilities.isSurrogatePair(cc, k)) {
-        int u = Utilities.convertToUtf32(cc, k);
-        for (int f = 0; f < files.length; ++f) {
-          font = getFont(f);
-          if (font.getBaseFont().charExists(u)
-              || Character.getType(u) == Character.FORMAT) {
-            if (currentFont != font) {
-              if (sb.length() > 0 && currentFont != null) {
-                newChunk = new Chunk(sb.toString(), currentFont);
-                sb.setLength(0);
-              }
-              currentFont = font;
-            }
-            sb.append(c);
-            sb.append(cc[++k]);
-            break;
-          }
-        }
-      } else {
-        boolean found = false;
-        for (int f = 0; f < files.length; ++f) {
-          font = getFont(f);
-          if (font.getBaseFont().charExists(c)
-              || Character.getType(c) == Character.FORMAT) {
-            if (currentFont != font) {
-              if (sb.length() > 0 && currentFont != null) {
-                newChunk = new Chunk(sb.toString(), currentFont);
-                sb.setLength(0);
-              }
-              currentFont = font;
-            }
-            sb.append(c);
-            found = true;
-            //Log.d("MyExpenses","Character " + c + " was found in font " + currentFont.getBaseFont().getPostscriptFontName());
-            break;
+      boolean isSurrogatePair = Utilities.isSurrogatePair(cc, k);
+      int codePoint = isSurrogatePair ? Utilities.convertToUtf32(cc, k) : c;
+      int index = findFontIndex(codePoint);
+      if (index != NOT_FOUND) {
+        font = getFont(index);
+        if (currentFont != font) {
+          if (sb.length() > 0 && currentFont != null) {
+            newChunk = new Chunk(sb.toString(), currentFont);
+            sb.setLength(0);
           }
+          currentFont = font;
         }
-        if (!found && BuildConfig.DEBUG) {
-          Timber.d("Character %c was not found in any fonts", c);
+        sb.append(c);
+        if (isSurrogatePair) {
+          sb.append(cc[++k]);
         }
+      } else if (!isSurrogatePair && BuildConfig.DEBUG) {
+        Timber.d("Character %c was not found in any fonts", c);
       }
     }
     return newChunk;
   }
 
+  /**
+   * @return index of the first font that can render codePoint, or {@link #NOT_FOUND}. Results are
+   * cached, since the lookup is done for every character printed.
+   */
+  private int findFontIndex(int codePoint) throws DocumentException, IOException {
+    int index = fontIndexCache.get(codePoint, UNKNOWN);
+    if (index == UNKNOWN) {
+      index = NOT_FOUND;
+      for (int f = 0; f < files.length; ++f) {
+        if (getFont(f).getBaseFont().charExists(codePoint)
+            || Character.getType(codePoint) == Character.FORMAT) {
+          index = f;
+          break;
+        }
+      }
+      fontIndexCache.put(codePoint, index);
+    }
+    return index;
+  }
+
   private BaseFont getBaseFont(int index) throws DocumentException, IOException {
     if (baseFonts.size()<index+1) {
       String file = files[index].getAbsolutePath();
@@ -16,6 +16,9 @@ public class NotificationBuilderWrapper {
   public static int NOTIFICATION_SYNC = -1;
   public static int NOTIFICATION_AUTO_BACKUP = -2;
   public static int NOTIFICATION_CONTRIB = -3;
+  public static int NOTIFICATION_PLANNER = -4;
+  public static int NOTIFICATION_RESTORE = -5;
+  public static int NOTIFICATION_STALE_IMAGES = -6;
   public static String CHANNEL_ID_SYNC = "sync";
   public static String CHANNEL_ID_PLANNER = "planner";
   public static String CHANNEL_ID_DEFAULT = "default";
@@ -140,6 +143,24 @@ public class NotificationBuilderWrapper {
     return this;
   }
 
+  public NotificationBuilderWrapper setProgress(int max, int progress, boolean indeterminate) {
+    if (shouldUseNative()) {
+      api23Builder.setProgress(max, progress, indeterminate);
+    } else {
+      compatBuilder.setProgress(max, progress, indeterminate);
+    }
+    return this;
+  }
+
+  public NotificationBuilderWrapper setOnlyAlertOnce(boolean onlyAlertOnce) {
+    if (shouldUseNative()) {
+      api23Builder.setOnlyAlertOnce(onlyAlertOnce);
+    } else {
+      compatBuilder.setOnlyAlertOnce(onlyAlertOnce);
+    }
+    return this;
+  }
+
   public NotificationBuilderWrapper addAction(int iconCompat, int iconApi23, String title, PendingIntent intent) {
     if (shouldUseNative()) {
       api23Builder.addAction(new Notification.Action.Builder(
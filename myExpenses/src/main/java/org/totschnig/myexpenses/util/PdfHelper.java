@@ -28,7 +28,7 @@ import java.util.regex.Pattern;
 public class PdfHelper {
   
   private static final Pattern HAS_ANY_RTL_RE =
-             Pattern.compile(".*[\\p{InArabic}\\p{InHebrew}].*");
+             Pattern.compile("[\\p{InArabic}\\p{InHebrew}]");
   
   private LazyFontSelector lfs;
   private Font fNormal, fTitle, fHeader, fBold, fItalic, fUnderline, fIncome,
@@ -138,7 +138,7 @@ public class PdfHelper {
     return null;
   }
   public static boolean hasAnyRtl(String str) {
-        return HAS_ANY_RTL_RE.matcher(str).matches();
+        return HAS_ANY_RTL_RE.matcher(str).find();
       }
 
   public PdfPCell emptyCell() {
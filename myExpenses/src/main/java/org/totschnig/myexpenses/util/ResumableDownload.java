@@ -0,0 +1,119 @@
+package org.totschnig.myexpenses.util;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.totschnig.myexpenses.util.io.FileCopyUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.zip.ZipFile;
+
+import timber.log.Timber;
+
+/**
+ * Downloads a file into a partial file next to its target, which survives interrupted
+ * connections and failed attempts: each attempt asks the source to continue at the length of the
+ * partial file. Only after the content has been verified, the partial file is renamed to the
+ * target.
+ */
+public class ResumableDownload {
+  public static final String PARTIAL_EXTENSION = ".part";
+  /**
+   * number of consecutive attempts that did not make any progress, before we give up
+   */
+  static final int MAX_ATTEMPTS = 5;
+
+  public interface RangeSource {
+    /**
+     * @return stream of the content starting at offset
+     * @throws FileNotFoundException if the content does not exist, which is not retried
+     */
+    InputStream open(long offset) throws IOException;
+  }
+
+  private ResumableDownload() {
+  }
+
+  /**
+   * @param checksum hex encoded SHA-256 of the content, if null, the content is expected to be a
+   *                 zip archive, and is verified by opening it
+   * @throws IOException if the download does not succeed within {@link #MAX_ATTEMPTS} or if the
+   *                     content cannot be verified, in the latter case the partial file is deleted
+   */
+  public static void download(@NonNull RangeSource source, @NonNull File target,
+                              @Nullable String checksum) throws IOException {
+    File partial = new File(target.getPath() + PARTIAL_EXTENSION);
+    int failedAttempts = 0;
+    boolean verified = false;
+    while (true) {
+      long offset = partial.length();
+      try {
+        InputStream in = source.open(offset);
+        try {
+          OutputStream out = new FileOutputStream(partial, true);
+          try {
+            FileCopyUtils.copy(in, out);
+          } finally {
+            out.close();
+          }
+        } finally {
+          in.close();
+        }
+        break;
+      } catch (FileNotFoundException e) {
+        throw e;
+      } catch (IOException e) {
+        failedAttempts = partial.length() > offset ? 1 : failedAttempts + 1;
+        if (failedAttempts >= MAX_ATTEMPTS) {
+          //sources that fail when asked to continue at the end of the content
+          if (offset > 0 && verify(partial, checksum)) {
+            verified = true;
+            break;
+          }
+          throw e;
+        }
+        Timber.w(e, "Download of %s interrupted at %d bytes, resuming", target.getName(), partial.length());
+      }
+    }
+    if (!verified && !verify(partial, checksum)) {
+      //noinspection ResultOfMethodCallIgnored
+      partial.delete();
+      throw new IOException("Verification of downloaded file " + target.getName() + " failed");
+    }
+    if ((target.exists() && !target.delete()) || !partial.renameTo(target)) {
+      throw new IOException("Unable to move downloaded file to " + target.getPath());
+    }
+  }
+
+  private static boolean verify(File file, @Nullable String checksum) throws IOException {
+    if (checksum == null) {
+      try {
+        //requires the central directory at the end of the archive
+        new ZipFile(file).close();
+        return true;
+      } catch (IOException e) {
+        Timber.w(e);
+        return false;
+      }
+    }
+    MessageDigest digest = BackupRepository.newDigest();
+    InputStream in = new FileInputStream(file);
+    try {
+      byte[] buffer = new byte[8192];
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        digest.update(buffer, 0, read);
+      }
+    } finally {
+      in.close();
+    }
+    return checksum.equalsIgnoreCase(BackupRepository.toHex(digest.digest()));
+  }
+}
@@ -0,0 +1,107 @@
+package org.totschnig.myexpenses.util;
+
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.squareup.picasso.Picasso;
+import com.squareup.picasso.RequestCreator;
+
+import org.totschnig.myexpenses.MyApplication;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import timber.log.Timber;
+
+/**
+ * Downsampled copies of pictures attached to transactions, persisted in the internal files dir
+ * and keyed by the picture uri, so that lists and previews do not need to decode the full size
+ * picture. Decoded bitmaps are kept in the size bounded memory cache of {@link Picasso}.
+ */
+public class ThumbnailHelper {
+  /**
+   * longest edge of thumbnails in pixels
+   */
+  static final int THUMBNAIL_SIZE = 512;
+  private static final String THUMBNAIL_DIR = "thumbnails";
+
+  private ThumbnailHelper() {
+  }
+
+  @Nullable
+  public static File getThumbnailDir() {
+    File result = new File(MyApplication.getInstance().getFilesDir(), THUMBNAIL_DIR);
+    result.mkdir();
+    return result.isDirectory() ? result : null;
+  }
+
+  @Nullable
+  public static File getThumbnailFile(@NonNull Uri pictureUri) {
+    File thumbnailDir = getThumbnailDir();
+    return thumbnailDir == null ? null : new File(thumbnailDir, Utils.md5(pictureUri.toString()) + ".jpg");
+  }
+
+  /**
+   * Creates the thumbnail for pictureUri if it does not exist yet. Decoding happens synchronously,
+   * hence when called on the main thread, nothing is done, and {@link #load(Uri)} falls back to the
+   * picture itself.
+   *
+   * @return true if the thumbnail exists after the call
+   */
+  public static boolean requireThumbnail(@NonNull Uri pictureUri) {
+    File thumbnail = getThumbnailFile(pictureUri);
+    if (thumbnail == null) {
+      return false;
+    }
+    if (thumbnail.exists()) {
+      return true;
+    }
+    if (Looper.myLooper() == Looper.getMainLooper()) {
+      return false;
+    }
+    File tempFile = new File(thumbnail.getPath() + ".tmp");
+    try {
+      //Picasso samples the picture while decoding and respects its EXIF orientation
+      Bitmap bitmap = Picasso.get().load(pictureUri)
+          .resize(THUMBNAIL_SIZE, THUMBNAIL_SIZE)
+          .centerInside()
+          .onlyScaleDown()
+          .get();
+      OutputStream out = new FileOutputStream(tempFile);
+      try {
+        bitmap.compress(Bitmap.CompressFormat.JPEG, 85, out);
+      } finally {
+        out.close();
+      }
+      return tempFile.renameTo(thumbnail);
+    } catch (IOException | IllegalStateException e) {
+      Timber.w(e, "Unable to create thumbnail for %s", pictureUri);
+      //noinspection ResultOfMethodCallIgnored
+      tempFile.delete();
+      return false;
+    }
+  }
+
+  public static void deleteThumbnail(@NonNull Uri pictureUri) {
+    File thumbnail = getThumbnailFile(pictureUri);
+    if (thumbnail != null && thumbnail.exists() && !thumbnail.delete()) {
+      Timber.e("Unable to delete thumbnail for %s", pictureUri);
+    }
+  }
+
+  /**
+   * @return request for the thumbnail of pictureUri, or for the picture itself if there is no
+   * thumbnail, callers should resize it (e.g. with {@link RequestCreator#fit()}), so that the
+   * picture is sampled while decoding
+   */
+  public static RequestCreator load(@NonNull Uri pictureUri) {
+    File thumbnail = getThumbnailFile(pictureUri);
+    return Picasso.get().load(thumbnail != null && thumbnail.exists() ?
+        Uri.fromFile(thumbnail) : pictureUri);
+  }
+}
@@ -98,6 +98,7 @@ import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_AMOUNT;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_LAST_USED;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_SORT_KEY;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_USAGES;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.SELECT_NEXT_INSTANCE;
 
 /**
  * Util class with helper methods
@@ -219,8 +220,10 @@ public class Utils {
         sortOrder = "abs(" + KEY_AMOUNT + ") DESC, " + sortOrder;
         break;
       case ProtectedFragmentActivity.SORT_ORDER_NEXT_INSTANCE:
-        sortOrder = null; //handled by PlanInfoCursorWrapper
-        //default is textColumn
+        //templates without plan or without instance in the future come last
+        sortOrder = SELECT_NEXT_INSTANCE + " IS NULL, " + SELECT_NEXT_INSTANCE + ", " + sortOrder;
+        break;
+      //default is textColumn
     }
     return sortOrder;
   }
@@ -458,32 +461,6 @@ public class Utils {
     return "";
   }
 
-  public static class StringBuilderWrapper {
-    public StringBuilderWrapper() {
-      this.sb = new StringBuilder();
-    }
-
-    private StringBuilder sb;
-
-    public StringBuilderWrapper append(String s) {
-      sb.append(s);
-      return this;
-    }
-
-    public StringBuilderWrapper appendQ(String s) {
-      sb.append(s.replace("\"", "\"\""));
-      return this;
-    }
-
-    public String toString() {
-      return sb.toString();
-    }
-
-    public void clear() {
-      sb = new StringBuilder();
-    }
-  }
-
   /**
    * Credit:
    * https://groups.google.com/forum/?fromgroups#!topic/actionbarsherlock
@@ -1,20 +1,30 @@
 package org.totschnig.myexpenses.util;
 
+import android.content.ContentResolver;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Environment;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.support.v4.provider.DocumentFile;
 
 import org.totschnig.myexpenses.MyApplication;
 import org.totschnig.myexpenses.provider.DatabaseConstants;
 import org.totschnig.myexpenses.provider.TransactionProvider;
+import org.totschnig.myexpenses.util.io.FileCopyUtils;
 
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.Deflater;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 import java.util.zip.ZipOutputStream;
@@ -38,58 +48,135 @@ public class ZipUtils {
    * @throws Exception
    */
   public static void zipBackup(File cacheDir, DocumentFile destZipFile) throws IOException {
-    /*
-     * create the output stream to zip file result
-     */
-    ZipOutputStream zip = new ZipOutputStream(MyApplication.getInstance().getContentResolver().openOutputStream(destZipFile.getUri()));
-    /*
-     * add the folder to the zip
-     */
-    addFileToZip("", BackupUtils.getBackupDbFile(cacheDir), zip);
-    addFileToZip("", BackupUtils.getBackupPrefFile(cacheDir), zip);
-    Cursor c= MyApplication.getInstance().getContentResolver()
-        .query(TransactionProvider.TRANSACTIONS_URI.buildUpon().appendQueryParameter(
-                TransactionProvider.QUERY_PARAMETER_DISTINCT,"1").build(),
-            new String[]{DatabaseConstants.KEY_PICTURE_URI},
-            DatabaseConstants.KEY_PICTURE_URI + " IS NOT NULL",
-            null,null);
-    if (c!=null) {
-      if (c.moveToFirst()) {
-        try {
-          do {
-            Uri imageFileUri = Uri.parse(c.getString(0));
-            if (imageFileUri.getScheme().equals("file")) {
-              File imageFile = new File(imageFileUri.getPath());
-              if (imageFile.exists()) {
-                addFileToZip(PICTURES, imageFile, zip);
-              }
-            } else {
-              InputStream in;
-              try {
-                in = MyApplication.getInstance().getContentResolver().openInputStream(imageFileUri);
-                addInputStreamToZip(PICTURES + "/" + imageFileUri.getLastPathSegment(),
-                    in,
-                    zip);
-                in.close();
-              } catch (FileNotFoundException e) {
-                Timber.e(e);
+    OutputStream out = MyApplication.getInstance().getContentResolver().openOutputStream(destZipFile.getUri());
+    if (out == null) {
+      throw new IOException("Could not open " + destZipFile.getUri());
+    }
+    try {
+      zipBackup(cacheDir, out);
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * writes the backup found in cacheDir together with the pictures as zip archive to out, which
+   * is not closed, so that the archive can be streamed to its destination while it is produced.
+   * Pictures are already compressed, hence they are stored without compressing them again.
+   */
+  public static void zipBackup(File cacheDir, OutputStream out) throws IOException {
+    //the archive is closed, which releases the native memory held by its deflater, but not out
+    ZipOutputStream zip = new ZipOutputStream(new NonClosingOutputStream(out));
+    try {
+      addFileToZip("", BackupUtils.getBackupDbFile(cacheDir), zip);
+      addFileToZip("", BackupUtils.getBackupPrefFile(cacheDir), zip);
+      //takes effect from the next entry on
+      zip.setLevel(Deflater.NO_COMPRESSION);
+      Cursor c= MyApplication.getInstance().getContentResolver()
+          .query(TransactionProvider.TRANSACTIONS_URI.buildUpon().appendQueryParameter(
+                  TransactionProvider.QUERY_PARAMETER_DISTINCT,"1").build(),
+              new String[]{DatabaseConstants.KEY_PICTURE_URI},
+              DatabaseConstants.KEY_PICTURE_URI + " IS NOT NULL",
+              null,null);
+      if (c!=null) {
+        if (c.moveToFirst()) {
+          try {
+            do {
+              Uri imageFileUri = Uri.parse(c.getString(0));
+              if (imageFileUri.getScheme().equals("file")) {
+                File imageFile = new File(imageFileUri.getPath());
+                if (imageFile.exists()) {
+                  addFileToZip(PICTURES, imageFile, zip);
+                }
+              } else {
+                InputStream in;
+                try {
+                  in = MyApplication.getInstance().getContentResolver().openInputStream(imageFileUri);
+                } catch (FileNotFoundException e) {
+                  Timber.e(e);
+                  continue;
+                }
+                if (in == null) {
+                  Timber.e("Could not open %s", imageFileUri);
+                  continue;
+                }
+                try {
+                  addInputStreamToZip(PICTURES + "/" + imageFileUri.getLastPathSegment(),
+                      in,
+                      zip);
+                } finally {
+                  in.close();
+                }
               }
-            }
-          } while (c.moveToNext());
-        } catch (IOException e) {
-          c.close();
-          throw e;
+            } while (c.moveToNext());
+          } catch (IOException e) {
+            c.close();
+            throw e;
+          }
         }
+        c.close();
       }
-      c.close();
+      zip.finish();
+      zip.flush();
+    } finally {
+      zip.close();
+    }
+  }
+
+  private static class NonClosingOutputStream extends FilterOutputStream {
+    NonClosingOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    @Override
+    public void write(@NonNull byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+    }
+
+    @Override
+    public void close() throws IOException {
+      flush();
     }
-    /*
-     * close the zip objects
-     */
-    zip.flush();
-    zip.close();
   }
-  
+
+  /**
+   * packs all files found in srcDir together with a manifest into destZipFile
+   * @param srcDir directory whose (non-directory) children are added to the zip
+   * @param manifestName name of the manifest entry
+   * @param manifest content of the manifest entry, written as UTF-8
+   * @param destZipFile
+   * @throws IOException
+   */
+  public static void zipDocumentDir(DocumentFile srcDir, String manifestName, String manifest,
+                                    DocumentFile destZipFile) throws IOException {
+    ContentResolver cr = MyApplication.getInstance().getContentResolver();
+    OutputStream out = cr.openOutputStream(destZipFile.getUri());
+    if (out == null) {
+      throw new IOException("Could not open " + destZipFile.getUri());
+    }
+    ZipOutputStream zip = new ZipOutputStream(out);
+    try {
+      zip.putNextEntry(new ZipEntry(manifestName));
+      zip.write(manifest.getBytes("UTF-8"));
+      for (DocumentFile file : srcDir.listFiles()) {
+        if (file.isFile()) {
+          InputStream in = cr.openInputStream(file.getUri());
+          if (in == null) {
+            throw new IOException("Could not open " + file.getUri());
+          }
+          try {
+            addInputStreamToZip(file.getName(), in, zip);
+          } finally {
+            in.close();
+          }
+        }
+      }
+      zip.flush();
+    } finally {
+      zip.close();
+    }
+  }
+
   /*
    * zip the folders
    */
@@ -120,17 +207,23 @@ public class ZipUtils {
 
     FileInputStream in = new FileInputStream(srcFile);
     String filePath = path + (path.equals("") ? "" : "/") + srcFile.getName();
-    addInputStreamToZip(filePath,in,zip);
-    in.close();
+    try {
+      addInputStreamToZip(filePath, in, zip);
+    } finally {
+      in.close();
+    }
   }
 
+  /**
+   * in is not closed, this is left to the caller
+   */
   private static void addInputStreamToZip(String path, InputStream in,
                                    ZipOutputStream zip) throws IOException {
 
     /*
      * write the file to the output
      */
-    byte[] buf = new byte[1024];
+    byte[] buf = new byte[8192];
     int len;
     zip.putNextEntry(new ZipEntry(path));
     while ((len = in.read(buf)) > 0) {
@@ -139,7 +232,6 @@ public class ZipUtils {
        */
       zip.write(buf, 0, len);
     }
-    in.close();
   }
 
   /*
@@ -172,10 +264,27 @@ public class ZipUtils {
    * @return true on success
    */
   public static boolean unzip(InputStream fileIn, File dirOut) {
+    return unzip(fileIn, dirOut, (String[]) null);
+  }
+
+  /**
+   * The CRC of each entry is verified by {@link ZipInputStream} once the entry has been read.
+   *
+   * @param fileIn
+   * @param dirOut
+   * @param names if not null, only the entries with these names are extracted, and reading stops
+   *              as soon as all of them have been found
+   * @return true on success, false if one of names is not found
+   */
+  public static boolean unzip(InputStream fileIn, File dirOut, @Nullable String... names) {
+    Set<String> missing = names == null ? null : new HashSet<>(Arrays.asList(names));
     try  {
       ZipInputStream zin = new ZipInputStream(fileIn);
       ZipEntry ze;
-      while ((ze = zin.getNextEntry()) != null) {
+      while ((missing == null || !missing.isEmpty()) && (ze = zin.getNextEntry()) != null) {
+        if (missing != null && !missing.remove(ze.getName())) {
+          continue;
+        }
         Timber.v("Unzipping %s", ze.getName());
         File newFile = new File(dirOut,ze.getName());
         newFile.getParentFile().mkdirs();
@@ -184,27 +293,43 @@ public class ZipUtils {
         } else {
           FileOutputStream fout = new FileOutputStream(newFile);
           long startTime = System.currentTimeMillis();
-
-//          for (int c = zin.read(); c != -1; c = zin.read()) {
-//            fout.write(c);
-
-          byte[] buffer = new byte[1024];
-          int count;
-          while ((count = zin.read(buffer)) != -1) {
-              fout.write(buffer, 0, count);
+          try {
+            FileCopyUtils.copy(zin, fout);
+          } finally {
+            fout.close();
           }
           long endTime = System.currentTimeMillis();
 
           Timber.d("That took %d milliseconds", (endTime - startTime));
           zin.closeEntry();
-          fout.close();
         }
       }
       zin.close();
-      return true;
+      return missing == null || missing.isEmpty();
     } catch(IOException e) {
       Timber.w(e);
       return false;
     }
   }
-}
\ No newline at end of file
+
+  /**
+   * passes each picture stored in the zip archive read from fileIn to handler, without extracting
+   * it first
+   */
+  public static void readPictures(InputStream fileIn, BackupUtils.PictureHandler handler)
+      throws IOException {
+    ZipInputStream zin = new ZipInputStream(fileIn);
+    try {
+      ZipEntry ze;
+      String prefix = PICTURES + "/";
+      while ((ze = zin.getNextEntry()) != null) {
+        if (!ze.isDirectory() && ze.getName().startsWith(prefix)) {
+          handler.onPicture(ze.getName().substring(prefix.length()), zin);
+        }
+        zin.closeEntry();
+      }
+    } finally {
+      zin.close();
+    }
+  }
+}
@@ -1,41 +1,62 @@
 package org.totschnig.myexpenses.util.io;
 
 import android.net.Uri;
+import android.os.Build;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
 
 import org.totschnig.myexpenses.MyApplication;
 
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.FileChannel;
 
 import timber.log.Timber;
 
 public class FileCopyUtils {
+  /**
+   * size of the buffer used when one of the streams is not backed by a file
+   */
+  static final int BUFFER_SIZE = 64 * 1024;
+  /**
+   * maximum number of bytes handed to the kernel with one transfer between file channels
+   */
+  static final long TRANSFER_SIZE = 8 * 1024 * 1024;
 
   public static boolean copy(File src, File dst) {
-    FileInputStream srcStream = null;
-    FileOutputStream dstStream = null;
+    return copy(src, dst, false);
+  }
+
+  /**
+   * @param sync if true, returns only after the content of dst has been written to the storage
+   *             device
+   */
+  public static boolean copy(File src, File dst, boolean sync) {
     try {
-      srcStream = new FileInputStream(src);
-      dstStream = new FileOutputStream(dst);
-      dstStream.getChannel().transferFrom(srcStream.getChannel(), 0,
-          srcStream.getChannel().size());
+      FileInputStream input = new FileInputStream(src);
+      try {
+        FileOutputStream output = new FileOutputStream(dst);
+        try {
+          copy(input, output);
+          if (sync) {
+            output.getFD().sync();
+          }
+        } finally {
+          output.close();
+        }
+      } finally {
+        input.close();
+      }
       return true;
     } catch (IOException e) {
       Timber.w(e);
       return false;
-    } finally {
-      try {
-        srcStream.close();
-      } catch (Exception e) {
-      }
-      try {
-        dstStream.close();
-      } catch (Exception e) {
-      }
     }
   }
 
@@ -74,13 +95,71 @@ public class FileCopyUtils {
     }
   }
 
-  public static void copy(InputStream input, OutputStream output) throws IOException {
-    final byte[] buffer = new byte[1024];
+  /**
+   * Copies the remaining content of input to output, neither of which is closed. If both are
+   * streams on regular files, which includes the streams the content resolver opens for file uris,
+   * the content is transferred between their channels without passing through the Java heap.
+   * Streams the content resolver opens on pipes, as streaming providers do, are file streams as
+   * well, but can not be positioned, they are copied through a buffer.
+   *
+   * @return number of bytes copied
+   */
+  public static long copy(InputStream input, OutputStream output) throws IOException {
+    long copied = 0;
+    if (input instanceof FileInputStream && output instanceof FileOutputStream &&
+        isRegularFile(((FileInputStream) input).getFD()) &&
+        isRegularFile(((FileOutputStream) output).getFD())) {
+      copied = transfer(((FileInputStream) input).getChannel(),
+          ((FileOutputStream) output).getChannel());
+    }
+    //streams not backed by a regular file, or content appended while we were transferring
+    final byte[] buffer = new byte[BUFFER_SIZE];
     int read;
-
     while ((read = input.read(buffer)) != -1) {
       output.write(buffer, 0, read);
+      copied += read;
     }
     output.flush();
+    return copied;
+  }
+
+  /**
+   * @return false if fd is known not to refer to a regular file. Before Lollipop, the file type
+   * can not be queried, and {@link #transfer(FileChannel, FileChannel)} copes with channels that
+   * can not be positioned.
+   */
+  private static boolean isRegularFile(FileDescriptor fd) {
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+      try {
+        return OsConstants.S_ISREG(Os.fstat(fd).st_mode);
+      } catch (ErrnoException e) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static long transfer(FileChannel in, FileChannel out) throws IOException {
+    long start;
+    try {
+      start = in.position();
+    } catch (IOException e) {
+      //pipes and sockets can not be positioned, nothing has been read yet
+      return 0;
+    }
+    //size is 0 for pipes and sockets
+    long remaining = in.size() - start;
+    long copied = 0;
+    while (copied < remaining) {
+      long transferred = in.transferTo(start + copied,
+          Math.min(TRANSFER_SIZE, remaining - copied), out);
+      if (transferred <= 0) {
+        break;
+      }
+      copied += transferred;
+    }
+    //transferTo does not move the position of the source channel
+    in.position(start + copied);
+    return copied;
   }
 }
@@ -171,8 +171,7 @@ public class TemplateWidget extends AbstractWidget<Template> {
         int widgetId = intent.getIntExtra(WIDGET_ID, INVALID_APPWIDGET_ID);
         if (widgetId != INVALID_APPWIDGET_ID) {
           long objectId = loadForWidget(context, widgetId);
-          Transaction t = Transaction.getInstanceFromTemplate(objectId);
-          if (t != null && t.save() != null) {
+          if (Transaction.instantiateTemplate(objectId, null, null) != null) {
             Toast.makeText(context,
                 context.getResources().getQuantityString(R.plurals.save_transaction_from_template_success, 1, 1),
                 Toast.LENGTH_LONG).show();
@@ -0,0 +1,88 @@
+package org.totschnig.myexpenses.export;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.math.BigDecimal;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+public class RowFormatterTest extends TestCase {
+  private static final long[] AMOUNTS = {0, 1, -1, 9, -9, 10, 99, -100, 12345, -12345, 100000,
+      987654321, Long.MAX_VALUE, Long.MIN_VALUE};
+
+  private DecimalFormat decimalFormat(int fractionDigits, char separator) {
+    DecimalFormat nf = new DecimalFormat();
+    DecimalFormatSymbols symbols = new DecimalFormatSymbols();
+    symbols.setDecimalSeparator(separator);
+    nf.setDecimalFormatSymbols(symbols);
+    nf.setMinimumFractionDigits(fractionDigits);
+    nf.setMaximumFractionDigits(fractionDigits);
+    nf.setGroupingUsed(false);
+    return nf;
+  }
+
+  private void assertAmountsMatchDecimalFormat(int fractionDigits, char separator) {
+    DecimalFormat nf = decimalFormat(fractionDigits, separator);
+    RowFormatter formatter = new RowFormatter(nf, new SimpleDateFormat("yyyy-MM-dd", Locale.US));
+    for (long amount : AMOUNTS) {
+      BigDecimal major = new BigDecimal(amount).movePointLeft(fractionDigits);
+      formatter.appendAmount(amount, false).append('|').appendAmount(amount, true);
+      String expected = nf.format(major) + "|" + nf.format(major.abs());
+      StringWriter out = new StringWriter();
+      try {
+        formatter.writeTo(out);
+      } catch (IOException e) {
+        fail(e.getMessage());
+      }
+      assertEquals(expected, out.toString());
+    }
+  }
+
+  public void testAmountWithTwoFractionDigits() {
+    assertAmountsMatchDecimalFormat(2, '.');
+    assertAmountsMatchDecimalFormat(2, ',');
+  }
+
+  public void testAmountWithThreeFractionDigits() {
+    assertAmountsMatchDecimalFormat(3, '.');
+  }
+
+  public void testAmountWithoutFractionDigits() {
+    assertAmountsMatchDecimalFormat(0, '.');
+  }
+
+  public void testAmountWithEightFractionDigits() {
+    assertAmountsMatchDecimalFormat(8, ',');
+  }
+
+  public void testDateMatchesSimpleDateFormat() {
+    for (String pattern : new String[]{"dd.MM.yyyy", "yyyy-MM-dd HH:mm", "'at' d MMM yyyy"}) {
+      SimpleDateFormat dateFormat = new SimpleDateFormat(pattern, Locale.US);
+      RowFormatter formatter = new RowFormatter(decimalFormat(2, '.'), dateFormat);
+      long start = 1500000000L;
+      for (long seconds = start; seconds < start + 5 * 86400; seconds += 3917) {
+        assertEquals(dateFormat.format(new Date(seconds * 1000)), formatter.formatDate(seconds));
+      }
+    }
+  }
+
+  public void testIsDateOnly() {
+    assertTrue(RowFormatter.isDateOnly("dd.MM.yyyy"));
+    assertTrue(RowFormatter.isDateOnly("'at' EEE d MMM yyyy"));
+    assertFalse(RowFormatter.isDateOnly("yyyy-MM-dd HH:mm"));
+    assertFalse(RowFormatter.isDateOnly("yyyy-MM-dd a"));
+  }
+
+  public void testQuotesAreEscaped() throws IOException {
+    RowFormatter formatter = new RowFormatter(decimalFormat(2, '.'),
+        new SimpleDateFormat("yyyy-MM-dd", Locale.US));
+    StringWriter out = new StringWriter();
+    formatter.appendQ("a \"quoted\" word").writeTo(out);
+    assertEquals("a \"\"quoted\"\" word", out.toString());
+  }
+}
@@ -5,6 +5,7 @@ import org.junit.runner.RunWith;
 
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.TimeZone;
 
 import junitparams.JUnitParamsRunner;
 import junitparams.Parameters;
@@ -76,4 +77,26 @@ public class QifUtilParseDateTest {
     Date date = QifUtils.parseDate(dateTimeString, QifDateFormat.EU);
     assertEquals(VERIFICATION_WITH_TIME, VERIFICATION_FORMAT_WITH_TIME.format(date));
   }
+
+  @Test
+  @Parameters({
+      "21.06.2001",
+      "21.06.2001 14:58",
+      "21/6' 1",
+      "31/02/2001",
+      "21.06.2001 14.58",
+      "  21.06.2001 14:58",
+      "21/6' 1 14:58"
+  })
+  public void fastPathShouldMatchFallback(String dateString) {
+    assertEquals(QifUtils.parseDateFallback(dateString, QifDateFormat.EU).getTime(),
+        QifUtils.parseDate(dateString, QifDateFormat.EU).getTime());
+  }
+
+  @Test
+  public void shouldParseToEpochSeconds() {
+    Date date = QifUtils.parseDate("21.06.2001 14:58", QifDateFormat.EU);
+    assertEquals(date.getTime() / 1000,
+        QifUtils.parseDateSeconds("21.06.2001 14:58", QifDateFormat.EU, TimeZone.getDefault()));
+  }
 }
@@ -3,6 +3,7 @@ package org.totschnig.myexpenses.export.qif;
 import junit.framework.TestCase;
 
 import java.math.BigDecimal;
+import java.util.Currency;
 
 public class QifUtilParseMoneyTest extends TestCase {
 
@@ -44,4 +45,22 @@ public class QifUtilParseMoneyTest extends TestCase {
   public void testShouldParseMoneyWithGroupSeparator() {
     assertEquals(new BigDecimal("-2600.66"), QifUtils.parseMoney("-2,600.66"));
   }
+
+  public void testShouldParseMinorUnits() {
+    Currency eur = Currency.getInstance("EUR");
+    assertEquals(413L, QifUtils.parseMoneyMinor("4,13", eur));
+    assertEquals(-260066L, QifUtils.parseMoneyMinor("-2,600.66", eur));
+    assertEquals(500L, QifUtils.parseMoneyMinor("+5", eur));
+    assertEquals(123L, QifUtils.parseMoneyMinor("1.239", eur));
+    assertEquals(1234L, QifUtils.parseMoneyMinor("1234", Currency.getInstance("JPY")));
+    assertEquals(2345L, QifUtils.parseMoneyMinor("2.345", Currency.getInstance("BHD")));
+  }
+
+  public void testFastPathShouldMatchFallback() {
+    for (String money : new String[]{"4,13", "-4.13", "+5", "-.5", ",5", "1,", "1.", "0.00",
+        "000123", "  -12.345 ", "1e3", "1 000,5", "12345678901234567890"}) {
+      assertEquals(money, QifUtils.parseMoneyFallback(money, Integer.MAX_VALUE),
+          QifUtils.parseMoney(money, Integer.MAX_VALUE));
+    }
+  }
 }
@@ -0,0 +1,32 @@
+package org.totschnig.myexpenses.model;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(packageName = "org.totschnig.myexpenses")
+public class PlanExtractUuidTest {
+  private static final String UUID = "0b7e8a5e-4bd5-4a83-9f0c-3a1d3c0a9b4e";
+
+  @Test
+  public void uuidAtEndOfDescription() {
+    assertEquals(UUID, Plan.extractUuid("Amount : 10,00 €\nCategory : Food\nUUID : " + UUID));
+  }
+
+  @Test
+  public void uuidFollowedByText() {
+    assertEquals(UUID, Plan.extractUuid("UUID : " + UUID + " \nedited in calendar"));
+  }
+
+  @Test
+  public void descriptionWithoutUuid() {
+    assertNull(Plan.extractUuid(null));
+    assertNull(Plan.extractUuid("Amount : 10,00 €"));
+    assertNull(Plan.extractUuid("UUID : "));
+  }
+}
@@ -0,0 +1,121 @@
+package org.totschnig.myexpenses.provider;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.threeten.bp.LocalDateTime;
+import org.threeten.bp.ZoneId;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(packageName = "org.totschnig.myexpenses")
+public class RecurrenceExpanderTest {
+  private static final String TIME_ZONE = "Europe/Berlin";
+
+  private static long at(int year, int month, int day) {
+    return LocalDateTime.of(year, month, day, 12, 0).atZone(ZoneId.of(TIME_ZONE))
+        .toInstant().toEpochMilli();
+  }
+
+  private static RecurrenceExpander expander(long dtstart, String rrule) {
+    RecurrenceExpander result = RecurrenceExpander.create(dtstart, rrule, TIME_ZONE);
+    assertNotNull(result);
+    return result;
+  }
+
+  private static List<Long> list(long... instances) {
+    List<Long> result = new ArrayList<>();
+    for (long instance : instances) {
+      result.add(instance);
+    }
+    return result;
+  }
+
+  @Test
+  public void monthlySkipsMonthsWithoutTheDay() {
+    RecurrenceExpander expander = expander(at(2018, 1, 31), "FREQ=MONTHLY;INTERVAL=1;WKST=MO");
+    assertEquals(list(at(2018, 1, 31), at(2018, 3, 31), at(2018, 5, 31)),
+        expander.getInstances(at(2018, 1, 1), at(2018, 6, 1)));
+  }
+
+  @Test
+  public void weeklyWithIntervalAndSeveralDays() {
+    RecurrenceExpander expander = expander(at(2018, 1, 1),
+        "FREQ=WEEKLY;INTERVAL=2;WKST=MO;BYDAY=MO,WE");
+    assertEquals(list(at(2018, 1, 1), at(2018, 1, 3), at(2018, 1, 15), at(2018, 1, 17)),
+        expander.getInstances(at(2018, 1, 1), at(2018, 1, 28)));
+  }
+
+  @Test
+  public void monthlyOnLastFriday() {
+    RecurrenceExpander expander = expander(at(2018, 1, 26), "FREQ=MONTHLY;BYDAY=-1FR");
+    assertEquals(list(at(2018, 1, 26), at(2018, 2, 23), at(2018, 3, 30)),
+        expander.getInstances(at(2018, 1, 1), at(2018, 3, 31)));
+  }
+
+  @Test
+  public void countAndUntilEndTheRecurrence() {
+    assertEquals(list(at(2018, 1, 1), at(2018, 1, 2), at(2018, 1, 3)),
+        expander(at(2018, 1, 1), "FREQ=DAILY;COUNT=3").getInstances(at(2017, 1, 1), at(2019, 1, 1)));
+    assertEquals(Long.MAX_VALUE,
+        expander(at(2018, 1, 1), "FREQ=DAILY;COUNT=3").getNextInstance(at(2018, 1, 4)));
+    assertEquals(5, expander(at(2018, 1, 1), "FREQ=DAILY;UNTIL=20180105")
+        .getInstances(at(2017, 1, 1), at(2019, 1, 1)).size());
+    assertEquals(Long.MAX_VALUE, expander(at(2018, 1, 1), "FREQ=DAILY;UNTIL=20180105T000000Z")
+        .getNextInstance(at(2018, 1, 5)));
+  }
+
+  @Test
+  public void yearlyOnLeapDay() {
+    assertEquals(at(2020, 2, 29),
+        expander(at(2016, 2, 29), "FREQ=YEARLY").getNextInstance(at(2016, 3, 1)));
+  }
+
+  @Test
+  public void nextInstanceSkipsAheadAlignedToInterval() {
+    RecurrenceExpander expander = expander(at(2010, 1, 1), "FREQ=DAILY;INTERVAL=3");
+    //2018-01-01 is 2922 days after 2010-01-01, the next multiple of 3 is 2925
+    assertEquals(at(2018, 1, 4), expander.getNextInstance(at(2018, 1, 1) + 1));
+    assertEquals(at(2018, 1, 4), expander.getNextInstance(at(2018, 1, 4)));
+  }
+
+  @Test
+  public void instancesKeepLocalTimeAcrossDaylightSavingTime() {
+    RecurrenceExpander expander = expander(at(2018, 3, 24), "FREQ=DAILY");
+    assertEquals(list(at(2018, 3, 24), at(2018, 3, 25), at(2018, 3, 26)),
+        expander.getInstances(at(2018, 3, 24), at(2018, 3, 26)));
+  }
+
+  @Test
+  public void oneTimeEventHasSingleInstance() {
+    RecurrenceExpander expander = expander(at(2018, 5, 5), null);
+    assertEquals(at(2018, 5, 5), expander.getNextInstance(at(2018, 1, 1)));
+    assertEquals(Long.MAX_VALUE, expander.getNextInstance(at(2018, 5, 5) + 1));
+  }
+
+  @Test
+  public void unsupportedRulesAreRejected() {
+    assertNull(RecurrenceExpander.create(at(2018, 1, 1), "FREQ=HOURLY", TIME_ZONE));
+    assertNull(RecurrenceExpander.create(at(2018, 1, 1), "FREQ=MONTHLY;BYDAY=MO;BYSETPOS=1", TIME_ZONE));
+    assertNull(RecurrenceExpander.create(at(2018, 1, 1), "FREQ=YEARLY;BYDAY=20MO", TIME_ZONE));
+    assertNull(RecurrenceExpander.create(at(2018, 1, 1), "NOT A RULE", TIME_ZONE));
+    //2018-01-01 is a Monday, hence DTSTART is not an instance of the rule
+    assertNull(RecurrenceExpander.create(at(2018, 1, 1), "FREQ=WEEKLY;BYDAY=TU", TIME_ZONE));
+  }
+
+  @Test
+  public void cacheIsKeyedByEventAndRule() {
+    RecurrenceExpander first = RecurrenceExpander.get(1L, at(2018, 1, 1), "FREQ=DAILY", TIME_ZONE);
+    assertSame(first, RecurrenceExpander.get(1L, at(2018, 1, 1), "FREQ=DAILY", TIME_ZONE));
+    assertNotSame(first, RecurrenceExpander.get(1L, at(2018, 1, 1), "FREQ=WEEKLY", TIME_ZONE));
+  }
+}
@@ -0,0 +1,181 @@
+package org.totschnig.myexpenses.sync.webdav;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.totschnig.myexpenses.util.BackupRepository;
+import org.totschnig.myexpenses.util.ResumableDownload;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Random;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okhttp3.mockwebserver.SocketPolicy;
+import okio.Buffer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * Downloads backups from a {@link MockWebServer} standing in for a WebDAV server, that serves a
+ * single backup and optionally drops the connection or ignores range requests.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(packageName = "org.totschnig.myexpenses")
+public class WebDavClientDownloadTest {
+  private static final String FOLDER = "BACKUPS";
+  private static final String BACKUP = "backup-20180101-120000.zip";
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private MockWebServer server;
+  private WebDavClient client;
+  private byte[] content;
+  private boolean dropFirstResponse;
+  private boolean supportsRange = true;
+
+  @Before
+  public void setUp() throws Exception {
+    content = new byte[256 * 1024];
+    new Random(42).nextBytes(content);
+    server = new MockWebServer();
+    server.setDispatcher(new Dispatcher() {
+      @Override
+      public MockResponse dispatch(RecordedRequest request) {
+        return serve(request);
+      }
+    });
+    server.start();
+    client = new WebDavClient(server.url("/").toString(), null, null, null);
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    server.shutdown();
+  }
+
+  private MockResponse serve(RecordedRequest request) {
+    if (!request.getPath().equals("/" + FOLDER + "/" + BACKUP)) {
+      return new MockResponse().setResponseCode(404);
+    }
+    String range = request.getHeader("Range");
+    if (range == null || !supportsRange) {
+      MockResponse response = new MockResponse().setBody(new Buffer().write(content));
+      if (dropFirstResponse) {
+        dropFirstResponse = false;
+        response.setSocketPolicy(SocketPolicy.DISCONNECT_DURING_RESPONSE_BODY);
+      }
+      return response;
+    }
+    int offset = Integer.parseInt(range.substring("bytes=".length(), range.length() - 1));
+    if (offset >= content.length) {
+      return new MockResponse().setResponseCode(416)
+          .setHeader("Content-Range", "bytes */" + content.length);
+    }
+    return new MockResponse().setResponseCode(206)
+        .setHeader("Content-Range", "bytes " + offset + "-" + (content.length - 1) + "/" + content.length)
+        .setBody(new Buffer().write(content, offset, content.length - offset));
+  }
+
+  private void download(File target, String checksum) throws IOException {
+    ResumableDownload.download(offset -> client.download(FOLDER, BACKUP, offset), target, checksum);
+  }
+
+  private String checksum(byte[] bytes) {
+    MessageDigest digest = BackupRepository.newDigest();
+    digest.update(bytes);
+    return BackupRepository.toHex(digest.digest());
+  }
+
+  @Test
+  public void shouldResumeInterruptedDownload() throws Exception {
+    dropFirstResponse = true;
+    File target = new File(temporaryFolder.getRoot(), BACKUP);
+    download(target, checksum(content));
+    assertThat(Files.readAllBytes(target.toPath())).isEqualTo(content);
+    assertThat(server.getRequestCount()).isEqualTo(2);
+    server.takeRequest();
+    RecordedRequest resumed = server.takeRequest();
+    assertThat(resumed.getHeader("Range")).startsWith("bytes=").endsWith("-");
+    assertThat(new File(target.getPath() + ResumableDownload.PARTIAL_EXTENSION)).doesNotExist();
+  }
+
+  @Test
+  public void shouldContinuePartialDownloadFromEarlierAttempt() throws Exception {
+    File target = new File(temporaryFolder.getRoot(), BACKUP);
+    writePartial(target, 1000);
+    download(target, checksum(content));
+    assertThat(Files.readAllBytes(target.toPath())).isEqualTo(content);
+    assertThat(server.takeRequest().getHeader("Range")).isEqualTo("bytes=1000-");
+  }
+
+  @Test
+  public void shouldVerifyCompletePartialDownloadFromEarlierAttempt() throws Exception {
+    File target = new File(temporaryFolder.getRoot(), BACKUP);
+    writePartial(target, content.length);
+    download(target, checksum(content));
+    assertThat(Files.readAllBytes(target.toPath())).isEqualTo(content);
+    assertThat(server.getRequestCount()).isEqualTo(1);
+    assertThat(server.takeRequest().getHeader("Range")).isEqualTo("bytes=" + content.length + "-");
+    assertThat(new File(target.getPath() + ResumableDownload.PARTIAL_EXTENSION)).doesNotExist();
+  }
+
+  @Test
+  public void shouldVerifyCompletePartialDownloadIfSourceFailsAtEnd() throws Exception {
+    File target = new File(temporaryFolder.getRoot(), BACKUP);
+    writePartial(target, content.length);
+    ResumableDownload.download(offset -> {
+      throw new IOException("Range not satisfiable");
+    }, target, checksum(content));
+    assertThat(Files.readAllBytes(target.toPath())).isEqualTo(content);
+  }
+
+  @Test
+  public void shouldSkipContentIfServerIgnoresRange() throws Exception {
+    supportsRange = false;
+    File target = new File(temporaryFolder.getRoot(), BACKUP);
+    writePartial(target, 1000);
+    download(target, checksum(content));
+    assertThat(Files.readAllBytes(target.toPath())).isEqualTo(content);
+  }
+
+  @Test
+  public void shouldRejectDownloadWithWrongChecksum() throws Exception {
+    File target = new File(temporaryFolder.getRoot(), BACKUP);
+    try {
+      download(target, checksum(new byte[]{1}));
+      fail("IOException expected");
+    } catch (IOException expected) {
+      assertThat(target).doesNotExist();
+      assertThat(new File(target.getPath() + ResumableDownload.PARTIAL_EXTENSION)).doesNotExist();
+    }
+  }
+
+  @Test(expected = FileNotFoundException.class)
+  public void shouldReportMissingBackup() throws Exception {
+    client.download(FOLDER, "missing.zip", 0);
+  }
+
+  private void writePartial(File target, int length) throws IOException {
+    FileOutputStream out = new FileOutputStream(target.getPath() + ResumableDownload.PARTIAL_EXTENSION);
+    try {
+      out.write(content, 0, length);
+    } finally {
+      out.close();
+    }
+  }
+}
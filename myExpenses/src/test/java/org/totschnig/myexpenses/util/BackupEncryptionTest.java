@@ -0,0 +1,173 @@
+package org.totschnig.myexpenses.util;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(packageName = "org.totschnig.myexpenses")
+public class BackupEncryptionTest {
+  private static final String PASSWORD = "secret";
+  /**
+   * magic, version, iterations, salt and nonce prefix
+   */
+  private static final int HEADER_LENGTH = 4 + 1 + 4 + 16 + 7;
+  /**
+   * last flag, length and ciphertext including the tag of a full chunk
+   */
+  private static final int FULL_CHUNK_LENGTH = 1 + 4 + BackupEncryption.CHUNK_SIZE + 16;
+
+  private static byte[] content(int length) {
+    byte[] result = new byte[length];
+    new Random(length).nextBytes(result);
+    return result;
+  }
+
+  private static byte[] encrypt(byte[] plainText) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    BackupEncryption.EncryptingOutputStream encrypting = BackupEncryption.encrypt(out, PASSWORD);
+    //several writes, so that chunk boundaries fall inside them
+    int position = 0;
+    while (position < plainText.length) {
+      int length = Math.min(10000, plainText.length - position);
+      encrypting.write(plainText, position, length);
+      position += length;
+    }
+    encrypting.finish();
+    return out.toByteArray();
+  }
+
+  private static byte[] decrypt(byte[] encrypted, String password) throws IOException {
+    InputStream in = BackupEncryption.decryptIfNeeded(new ByteArrayInputStream(encrypted), password);
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buffer = new byte[8192];
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        out.write(buffer, 0, read);
+      }
+      return out.toByteArray();
+    } finally {
+      in.close();
+    }
+  }
+
+  private void assertRoundTrip(int length) throws IOException {
+    byte[] plainText = content(length);
+    byte[] encrypted = encrypt(plainText);
+    assertThat(Arrays.copyOf(encrypted, 4)).isEqualTo(new byte[]{'M', 'E', 'B', 'K'});
+    assertThat(decrypt(encrypted, PASSWORD)).isEqualTo(plainText);
+  }
+
+  @Test
+  public void shouldRoundTripEmptyArchive() throws IOException {
+    assertRoundTrip(0);
+  }
+
+  @Test
+  public void shouldRoundTripAcrossChunkBoundaries() throws IOException {
+    assertRoundTrip(1);
+    assertRoundTrip(BackupEncryption.CHUNK_SIZE - 1);
+    assertRoundTrip(BackupEncryption.CHUNK_SIZE + 1);
+    assertRoundTrip(3 * BackupEncryption.CHUNK_SIZE + 12345);
+  }
+
+  @Test
+  public void shouldRoundTripExactMultipleOfChunkSize() throws IOException {
+    assertRoundTrip(BackupEncryption.CHUNK_SIZE);
+    assertRoundTrip(3 * BackupEncryption.CHUNK_SIZE);
+  }
+
+  @Test
+  public void shouldPassUnencryptedArchiveThrough() throws IOException {
+    byte[] zip = content(1000);
+    zip[0] = 'P';
+    zip[1] = 'K';
+    assertThat(decrypt(zip, PASSWORD)).isEqualTo(zip);
+    assertThat(decrypt(zip, null)).isEqualTo(zip);
+    assertThat(decrypt(new byte[]{'M', 'E'}, null)).isEqualTo(new byte[]{'M', 'E'});
+  }
+
+  @Test(expected = BackupEncryption.VerificationException.class)
+  public void shouldRejectWrongPassword() throws IOException {
+    byte[] encrypted = encrypt(content(1000));
+    //detected before anything is read
+    BackupEncryption.decryptIfNeeded(new ByteArrayInputStream(encrypted), "wrong");
+  }
+
+  @Test(expected = BackupEncryption.PasswordRequiredException.class)
+  public void shouldRequirePassword() throws IOException {
+    byte[] encrypted = encrypt(content(1000));
+    BackupEncryption.decryptIfNeeded(new ByteArrayInputStream(encrypted), null);
+  }
+
+  @Test(expected = BackupEncryption.VerificationException.class)
+  public void shouldDetectFlippedByte() throws IOException {
+    byte[] encrypted = encrypt(content(3 * BackupEncryption.CHUNK_SIZE));
+    //inside the ciphertext of the second chunk, hence only detected while reading
+    encrypted[HEADER_LENGTH + FULL_CHUNK_LENGTH + 5 + 100] ^= 1;
+    decrypt(encrypted, PASSWORD);
+  }
+
+  @Test(expected = BackupEncryption.VerificationException.class)
+  public void shouldDetectReorderedChunks() throws IOException {
+    byte[] encrypted = encrypt(content(3 * BackupEncryption.CHUNK_SIZE));
+    int second = HEADER_LENGTH + FULL_CHUNK_LENGTH;
+    int third = second + FULL_CHUNK_LENGTH;
+    byte[] secondChunk = Arrays.copyOfRange(encrypted, second, third);
+    //the third chunk is the last one, hence swapping it with the second one would also change
+    //the last flag, the first two chunks differ only in their index
+    System.arraycopy(encrypted, HEADER_LENGTH, encrypted, second, FULL_CHUNK_LENGTH);
+    System.arraycopy(secondChunk, 0, encrypted, HEADER_LENGTH, FULL_CHUNK_LENGTH);
+    decrypt(encrypted, PASSWORD);
+  }
+
+  @Test(expected = BackupEncryption.VerificationException.class)
+  public void shouldDetectTruncationAtChunkBoundary() throws IOException {
+    byte[] encrypted = encrypt(content(3 * BackupEncryption.CHUNK_SIZE));
+    decrypt(Arrays.copyOf(encrypted, HEADER_LENGTH + 2 * FULL_CHUNK_LENGTH), PASSWORD);
+  }
+
+  @Test(expected = BackupEncryption.VerificationException.class)
+  public void shouldDetectTruncationInsideChunk() throws IOException {
+    byte[] encrypted = encrypt(content(3 * BackupEncryption.CHUNK_SIZE));
+    decrypt(Arrays.copyOf(encrypted, HEADER_LENGTH + FULL_CHUNK_LENGTH + 1000), PASSWORD);
+  }
+
+  @Test
+  public void shouldPropagateWriterFailureThroughFinish() throws IOException {
+    final IOException failure = new IOException("disk full");
+    OutputStream failing = new OutputStream() {
+      private int written;
+
+      @Override
+      public void write(int b) throws IOException {
+        //the header is written before encryption starts
+        if (++written > HEADER_LENGTH) {
+          throw failure;
+        }
+      }
+    };
+    BackupEncryption.EncryptingOutputStream encrypting = BackupEncryption.encrypt(failing, PASSWORD);
+    //the chunk is only handed to the background thread by finish
+    encrypting.write(content(BackupEncryption.CHUNK_SIZE));
+    try {
+      encrypting.finish();
+      fail("IOException expected");
+    } catch (IOException e) {
+      assertThat(e).isSameAs(failure);
+    }
+  }
+}
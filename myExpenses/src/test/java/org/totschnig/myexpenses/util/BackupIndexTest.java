@@ -0,0 +1,161 @@
+package org.totschnig.myexpenses.util;
+
+import android.content.Context;
+import android.net.Uri;
+import android.support.v4.provider.DocumentFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.List;
+import java.util.Locale;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(packageName = "org.totschnig.myexpenses")
+public class BackupIndexTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+  private Context context;
+  private File appDir;
+
+  @Before
+  public void setUp() throws IOException {
+    context = RuntimeEnvironment.application;
+    appDir = folder.newFolder("appDir");
+  }
+
+  @After
+  public void tearDown() {
+    //noinspection ResultOfMethodCallIgnored
+    BackupIndex.getFile(context).delete();
+  }
+
+  private File createFile(File dir, String name) throws IOException {
+    File file = new File(dir, name);
+    assertThat(file.createNewFile()).isTrue();
+    return file;
+  }
+
+  private File createManifest(String name) throws IOException {
+    File repositoryDir = new File(appDir, BackupRepository.REPOSITORY_DIR_NAME);
+    assertThat(repositoryDir.isDirectory() || repositoryDir.mkdir()).isTrue();
+    return createFile(repositoryDir, name);
+  }
+
+  private List<BackupIndex.Entry> getEntries() {
+    return BackupIndex.getEntries(context, DocumentFile.fromFile(appDir));
+  }
+
+  private static long parse(String timestamp) throws Exception {
+    return new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).parse(timestamp).getTime();
+  }
+
+  @Test
+  public void shouldListBackupsNewestFirst() throws Exception {
+    File archive = createFile(appDir, "backup-20180630-120000.zip");
+    File encrypted = createFile(appDir, "backup-20180629-120000.enc");
+    File manifest = createManifest("backup-20180701-120000.manifest");
+    createFile(appDir, "export.qif");
+    List<BackupIndex.Entry> entries = getEntries();
+    assertThat(entries).extracting("name").containsExactly(
+        manifest.getName(), archive.getName(), encrypted.getName());
+    assertThat(entries.get(0).uri).isEqualTo(Uri.fromFile(manifest));
+    assertThat(entries.get(0).timestamp).isEqualTo(parse("20180701-120000"));
+    assertThat(entries.get(0).isManifest()).isTrue();
+    assertThat(entries.get(1).isManifest()).isFalse();
+  }
+
+  @Test
+  public void shouldRecognizeAutomaticBackups() throws Exception {
+    createFile(appDir, "auto-backup-20180630-120000.enc");
+    createFile(appDir, "backup-20180629-120000.enc");
+    createManifest("backup-20180628-120000.manifest");
+    List<BackupIndex.Entry> entries = getEntries();
+    assertThat(entries).extracting("name").containsExactly("auto-backup-20180630-120000.enc",
+        "backup-20180629-120000.enc", "backup-20180628-120000.manifest");
+    assertThat(entries.get(0).timestamp).isEqualTo(parse("20180630-120000"));
+    assertThat(entries.get(0).isAutomatic()).isTrue();
+    assertThat(entries.get(1).isAutomatic()).isFalse();
+    assertThat(entries.get(2).isAutomatic()).isTrue();
+  }
+
+  @Test
+  public void shouldUseModificationTimeOfRenamedBackups() throws Exception {
+    File renamed = createFile(appDir, "my backup.zip");
+    assertThat(renamed.setLastModified(parse("20180630-120000"))).isTrue();
+    assertThat(getEntries().get(0).timestamp).isEqualTo(parse("20180630-120000"));
+  }
+
+  @Test
+  public void shouldReadWrittenIndex() throws Exception {
+    createFile(appDir, "backup-20180630-120000.zip");
+    assertThat(new File(appDir, BackupRepository.REPOSITORY_DIR_NAME).mkdir()).isTrue();
+    assertThat(getEntries()).hasSize(1);
+    assertThat(BackupIndex.getFile(context).exists()).isTrue();
+    //written by auto backup, which adds it to the index itself, the app dir is not modified
+    createManifest("backup-20180701-120000.manifest");
+    assertThat(getEntries()).extracting("name").containsExactly("backup-20180630-120000.zip");
+  }
+
+  @Test
+  public void shouldRebuildIfAppDirHasBeenModified() throws Exception {
+    createFile(appDir, "backup-20180630-120000.zip");
+    assertThat(appDir.setLastModified(parse("20180630-120000"))).isTrue();
+    assertThat(getEntries()).hasSize(1);
+    //copied into the app dir by the user
+    createFile(appDir, "backup-20180701-120000.zip");
+    assertThat(appDir.setLastModified(parse("20180701-120000"))).isTrue();
+    assertThat(getEntries()).extracting("name").containsExactly(
+        "backup-20180701-120000.zip", "backup-20180630-120000.zip");
+  }
+
+  @Test
+  public void shouldRebuildIfIndexIsEmpty() throws Exception {
+    assertThat(appDir.setLastModified(parse("20180630-120000"))).isTrue();
+    assertThat(getEntries()).isEmpty();
+    createFile(appDir, "backup-20180701-120000.zip");
+    //a document provider that does not report the modification of the app dir
+    assertThat(appDir.setLastModified(parse("20180630-120000"))).isTrue();
+    assertThat(getEntries()).extracting("name").containsExactly("backup-20180701-120000.zip");
+  }
+
+  @Test
+  public void shouldRebuildForOtherAppDir() throws Exception {
+    createFile(appDir, "backup-20180630-120000.zip");
+    assertThat(getEntries()).hasSize(1);
+    File otherAppDir = folder.newFolder("otherAppDir");
+    createFile(otherAppDir, "backup-20180701-120000.zip");
+    assertThat(BackupIndex.getEntries(context, DocumentFile.fromFile(otherAppDir)))
+        .extracting("name").containsExactly("backup-20180701-120000.zip");
+  }
+
+  @Test
+  public void shouldRebuildCorruptIndex() throws Exception {
+    createFile(appDir, "backup-20180630-120000.zip");
+    assertThat(getEntries()).hasSize(1);
+    DocumentFile appDirFile = DocumentFile.fromFile(appDir);
+    Writer writer = new OutputStreamWriter(new FileOutputStream(BackupIndex.getFile(context)), "UTF-8");
+    try {
+      writer.write(appDirFile.getUri() + "\t" + appDirFile.lastModified() + "\n");
+      writer.write("not a timestamp\tfile:///backup.zip\tbackup.zip\n");
+    } finally {
+      writer.close();
+    }
+    assertThat(getEntries()).extracting("name").containsExactly("backup-20180630-120000.zip");
+  }
+}
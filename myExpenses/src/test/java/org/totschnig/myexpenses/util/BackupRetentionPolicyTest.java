@@ -0,0 +1,141 @@
+package org.totschnig.myexpenses.util;
+
+import android.net.Uri;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(packageName = "org.totschnig.myexpenses")
+public class BackupRetentionPolicyTest {
+  private Locale defaultLocale;
+
+  @Before
+  public void setUp() {
+    defaultLocale = Locale.getDefault();
+    //the first day of the week depends on the locale
+    Locale.setDefault(Locale.US);
+  }
+
+  @After
+  public void tearDown() {
+    Locale.setDefault(defaultLocale);
+  }
+
+  /**
+   * @return one backup per day for the given number of days, starting at noon of 2018-06-30 and
+   * going backwards, newest first
+   */
+  private List<BackupIndex.Entry> dailyBackups(int days) {
+    Calendar calendar = Calendar.getInstance();
+    calendar.clear();
+    calendar.set(2018, Calendar.JUNE, 30, 12, 0);
+    List<BackupIndex.Entry> result = new ArrayList<>();
+    for (int i = 0; i < days; i++) {
+      String name = "backup-" + i + BackupRepository.MANIFEST_EXTENSION;
+      result.add(new BackupIndex.Entry(name, Uri.parse("file:///backups/" + name),
+          calendar.getTimeInMillis()));
+      calendar.add(Calendar.DAY_OF_YEAR, -1);
+    }
+    return result;
+  }
+
+  @Test
+  public void shouldKeepLatestBackupOfEachDay() {
+    List<BackupIndex.Entry> backups = dailyBackups(10);
+    List<BackupIndex.Entry> obsolete = new BackupRetentionPolicy(7, 0, 0).selectObsolete(backups);
+    assertThat(obsolete).containsExactlyElementsOf(backups.subList(7, 10));
+  }
+
+  @Test
+  public void shouldKeepOnlyLatestOfSeveralBackupsOnTheSameDay() {
+    List<BackupIndex.Entry> backups = new ArrayList<>();
+    BackupIndex.Entry first = dailyBackups(1).get(0);
+    BackupIndex.Entry earlierSameDay = new BackupIndex.Entry("backup-earlier.manifest",
+        Uri.parse("file:///backups/backup-earlier.manifest"), first.timestamp - 3600 * 1000);
+    backups.add(first);
+    backups.add(earlierSameDay);
+    assertThat(new BackupRetentionPolicy(7, 4, 12).selectObsolete(backups))
+        .containsExactly(earlierSameDay);
+  }
+
+  /**
+   * @return the days of the backups that are kept, newest first
+   */
+  private List<String> keptDays(List<BackupIndex.Entry> backups, BackupRetentionPolicy policy) {
+    List<BackupIndex.Entry> obsolete = policy.selectObsolete(backups);
+    SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd", Locale.US);
+    List<String> result = new ArrayList<>();
+    for (BackupIndex.Entry backup : backups) {
+      if (!obsolete.contains(backup)) {
+        result.add(format.format(new Date(backup.timestamp)));
+      }
+    }
+    return result;
+  }
+
+  @Test
+  public void shouldKeepBackupsOfWeeksAndMonthsBeyondDailyRange() {
+    //weeks start on Sunday, 2018-06-30 is a Saturday, hence the first week overlaps with the days,
+    //as does the first month
+    assertThat(keptDays(dailyBackups(400), new BackupRetentionPolicy(7, 4, 12))).containsExactly(
+        "2018-06-30", "2018-06-29", "2018-06-28", "2018-06-27", "2018-06-26", "2018-06-25",
+        "2018-06-24",
+        "2018-06-23", "2018-06-16", "2018-06-09",
+        "2018-05-31", "2018-04-30", "2018-03-31", "2018-02-28", "2018-01-31", "2017-12-31",
+        "2017-11-30", "2017-10-31", "2017-09-30", "2017-08-31", "2017-07-31");
+  }
+
+  @Test
+  public void shouldKeepLatestBackupOfWeeksStartingOnFirstDayOfWeekOfLocale() {
+    Locale.setDefault(Locale.GERMANY);
+    //weeks start on Monday, the latest backup of the second week (Sunday, 2018-06-24) is also
+    //kept as daily backup
+    assertThat(keptDays(dailyBackups(30), new BackupRetentionPolicy(7, 4, 0))).containsExactly(
+        "2018-06-30", "2018-06-29", "2018-06-28", "2018-06-27", "2018-06-26", "2018-06-25",
+        "2018-06-24",
+        "2018-06-17", "2018-06-10");
+  }
+
+  @Test
+  public void shouldKeepLatestBackupOfEachMonth() {
+    assertThat(keptDays(dailyBackups(100), new BackupRetentionPolicy(0, 0, 3))).containsExactly(
+        "2018-06-30", "2018-05-31", "2018-04-30");
+  }
+
+  /**
+   * once a backup password is set, auto backup writes encrypted archives instead of manifests
+   */
+  @Test
+  public void shouldApplyToEncryptedAutomaticBackups() {
+    List<BackupIndex.Entry> backups = new ArrayList<>();
+    for (BackupIndex.Entry backup : dailyBackups(10)) {
+      String name = backups.size() < 5 ? "auto-backup-" + backups.size() + ".enc" : backup.name;
+      backups.add(new BackupIndex.Entry(name, backup.uri, backup.timestamp));
+    }
+    assertThat(backups.get(0).isAutomatic()).isTrue();
+    assertThat(backups.get(0).isManifest()).isFalse();
+    assertThat(new BackupRetentionPolicy(3, 0, 0).selectObsolete(backups))
+        .containsExactlyElementsOf(backups.subList(3, 10));
+  }
+
+  @Test
+  public void shouldAlwaysKeepLatestBackup() {
+    List<BackupIndex.Entry> backups = dailyBackups(3);
+    assertThat(new BackupRetentionPolicy(0, 0, 0).selectObsolete(backups))
+        .containsExactlyElementsOf(backups.subList(1, 3));
+  }
+}